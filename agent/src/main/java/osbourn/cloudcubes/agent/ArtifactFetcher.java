@@ -0,0 +1,279 @@
+package osbourn.cloudcubes.agent;
+
+import org.jetbrains.annotations.NotNull;
+import osbourn.cloudcubes.core.artifacts.ArtifactManifest;
+import osbourn.cloudcubes.core.artifacts.ArtifactStore;
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * <p>
+ * Installs the artifacts in a server's manifest into the server directory. Artifacts are kept in a local cache, one
+ * file per hash, so only the artifacts that aren't cached yet are downloaded. Downloads run in parallel and each one
+ * is checked against its hash before it enters the cache, so a truncated or corrupted download is never installed.
+ * </p>
+ *
+ * <p>
+ * The cache lives on the data volume of the server, so it survives when the volume is reused by the next instance, and
+ * a server that restarts with the same mods downloads nothing. Container tasks share one cache on the shared file
+ * system, so a mod used by several servers is downloaded once for all of them.
+ * Artifacts that haven't been used for {@link #CACHE_RETENTION_DAYS} days are removed from the cache.
+ * </p>
+ *
+ * <p>
+ * Files installed from an earlier manifest that are not in the current one are removed from the server directory, so
+ * removing a mod from the manifest removes it from the server. Files the server created itself are never touched.
+ * </p>
+ */
+public class ArtifactFetcher {
+    private static final int PARALLEL_DOWNLOADS = 8;
+    private static final int DOWNLOAD_ATTEMPTS = 3;
+    private static final long CACHE_RETENTION_DAYS = 30;
+    /**
+     * The list of paths installed from the last manifest, kept in the server directory since the cache may be shared
+     */
+    private static final String INSTALLED_FILE_NAME = ".cloudcubes-artifacts";
+
+    private final S3Client s3Client;
+    private final ArtifactStore artifactStore;
+    private final Path cacheDirectory;
+
+    /**
+     * Creates an ArtifactFetcher object.
+     *
+     * @param s3Client       The S3 client used to download artifacts
+     * @param artifactStore  The store the artifacts are downloaded from
+     * @param cacheDirectory The directory the artifacts are cached in
+     */
+    public ArtifactFetcher(@NotNull S3Client s3Client,
+                           @NotNull ArtifactStore artifactStore,
+                           @NotNull Path cacheDirectory) {
+        this.s3Client = s3Client;
+        this.artifactStore = artifactStore;
+        this.cacheDirectory = cacheDirectory;
+    }
+
+    /**
+     * Downloads the artifacts of a manifest that aren't cached yet and installs all of them into the server directory.
+     *
+     * @param manifestHash    The hash of the server's manifest
+     * @param serverDirectory The directory of the server
+     * @throws IOException If an artifact could not be downloaded, verified or installed
+     */
+    public void install(@NotNull String manifestHash, @NotNull Path serverDirectory) throws IOException {
+        ArtifactManifest manifest = artifactStore.getManifest(manifestHash);
+        Files.createDirectories(cacheDirectory);
+        long startMillis = System.currentTimeMillis();
+        long downloadedBytes = fetchMissing(manifest);
+
+        Set<String> installedPaths = new HashSet<>();
+        for (ArtifactManifest.Artifact artifact : manifest.getArtifacts()) {
+            Path target = resolveInServerDirectory(serverDirectory, artifact.getPath());
+            installArtifact(artifact, target);
+            installedPaths.add(artifact.getPath());
+        }
+        removePreviouslyInstalled(serverDirectory, installedPaths);
+        Files.write(serverDirectory.resolve(INSTALLED_FILE_NAME), installedPaths);
+        pruneCache();
+        System.out.println(String.format(Locale.ROOT,
+                "Installed %d artifacts (%d MiB) from manifest %s, downloaded %d MiB in %d ms",
+                manifest.getArtifacts().size(), manifest.getTotalSize() / 1024 / 1024, manifestHash,
+                downloadedBytes / 1024 / 1024, System.currentTimeMillis() - startMillis));
+    }
+
+    /**
+     * Downloads the artifacts that aren't cached yet, in parallel.
+     *
+     * @param manifest The manifest whose artifacts should be cached
+     * @return The number of bytes downloaded
+     * @throws IOException If an artifact could not be downloaded
+     */
+    private long fetchMissing(@NotNull ArtifactManifest manifest) throws IOException {
+        // Several paths may have the same contents, but each hash is only downloaded once
+        Map<String, ArtifactManifest.Artifact> missing = new LinkedHashMap<>();
+        for (ArtifactManifest.Artifact artifact : manifest.getArtifacts()) {
+            Path cachedFile = getCachedFile(artifact.getHash());
+            if (Files.exists(cachedFile)) {
+                // Marks the artifact as used, which keeps it from being pruned
+                Files.setLastModifiedTime(cachedFile, FileTime.fromMillis(System.currentTimeMillis()));
+            } else {
+                missing.putIfAbsent(artifact.getHash(), artifact);
+            }
+        }
+        if (missing.isEmpty()) {
+            return 0;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(PARALLEL_DOWNLOADS, missing.size()));
+        try {
+            List<Future<Long>> futures = new ArrayList<>();
+            for (ArtifactManifest.Artifact artifact : missing.values()) {
+                futures.add(executor.submit(() -> download(artifact)));
+            }
+            long downloadedBytes = 0;
+            for (Future<Long> future : futures) {
+                downloadedBytes += future.get();
+            }
+            return downloadedBytes;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Could not download an artifact", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while downloading artifacts", e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Downloads an artifact into the cache. The artifact is written to a temporary file and hashed as it arrives, and
+     * only moved into the cache if the hash and size match, so the cache only ever contains verified artifacts even if
+     * the agent is stopped during a download.
+     *
+     * @param artifact The artifact to download
+     * @return The size of the artifact in bytes
+     * @throws IOException If the artifact could not be downloaded or failed verification on every attempt
+     */
+    private long download(@NotNull ArtifactManifest.Artifact artifact) throws IOException {
+        Path cachedFile = getCachedFile(artifact.getHash());
+        IOException lastException = null;
+        for (int attempt = 1; attempt <= DOWNLOAD_ATTEMPTS; attempt++) {
+            Path temporaryFile = Files.createTempFile(cacheDirectory, artifact.getHash(), ".part");
+            try {
+                MessageDigest digest = ArtifactManifest.newDigest();
+                long size = 0;
+                try (InputStream inputStream = s3Client.getObject(GetObjectRequest.builder()
+                        .bucket(artifactStore.getResourceBucketName())
+                        .key(ArtifactStore.getArtifactKey(artifact.getHash()))
+                        .build());
+                     OutputStream outputStream = Files.newOutputStream(temporaryFile)) {
+                    byte[] buffer = new byte[64 * 1024];
+                    int read;
+                    while ((read = inputStream.read(buffer)) != -1) {
+                        digest.update(buffer, 0, read);
+                        outputStream.write(buffer, 0, read);
+                        size += read;
+                    }
+                }
+                String hash = ArtifactManifest.toHash(digest);
+                if (!hash.equals(artifact.getHash()) || size != artifact.getSize()) {
+                    throw new IOException("Artifact " + artifact.getPath() + " has hash " + hash + " and size " + size
+                            + " instead of " + artifact.getHash() + " and " + artifact.getSize());
+                }
+                moveIntoPlace(temporaryFile, cachedFile);
+                return size;
+            } catch (IOException | SdkException e) {
+                lastException = e instanceof IOException ? (IOException) e : new IOException(e);
+                System.err.println("Attempt " + attempt + " to download artifact " + artifact.getPath()
+                        + " failed: " + e.getMessage());
+            } finally {
+                Files.deleteIfExists(temporaryFile);
+            }
+        }
+        throw lastException;
+    }
+
+    /**
+     * Copies a cached artifact to its place in the server directory, unless the file there already has the same
+     * contents. Artifacts are copied rather than linked, because the server may change its configs and those changes
+     * must not leak into the cache.
+     */
+    private void installArtifact(@NotNull ArtifactManifest.Artifact artifact, @NotNull Path target)
+            throws IOException {
+        if (Files.exists(target) && Files.size(target) == artifact.getSize()
+                && ArtifactManifest.hashFile(target).equals(artifact.getHash())) {
+            return;
+        }
+        Path cachedFile = getCachedFile(artifact.getHash());
+        Files.createDirectories(target.getParent());
+        Path temporaryFile = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".part");
+        try {
+            Files.copy(cachedFile, temporaryFile, StandardCopyOption.REPLACE_EXISTING);
+            moveIntoPlace(temporaryFile, target);
+        } finally {
+            Files.deleteIfExists(temporaryFile);
+        }
+    }
+
+    private void removePreviouslyInstalled(@NotNull Path serverDirectory, @NotNull Set<String> installedPaths)
+            throws IOException {
+        Path installedFile = serverDirectory.resolve(INSTALLED_FILE_NAME);
+        if (!Files.exists(installedFile)) {
+            return;
+        }
+        for (String path : Files.readAllLines(installedFile)) {
+            if (!path.isEmpty() && !installedPaths.contains(path)) {
+                Files.deleteIfExists(resolveInServerDirectory(serverDirectory, path));
+            }
+        }
+    }
+
+    private void pruneCache() throws IOException {
+        long oldestAllowedMillis = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(CACHE_RETENTION_DAYS);
+        List<Path> unused;
+        try (Stream<Path> stream = Files.list(cacheDirectory)) {
+            unused = stream
+                    .filter(file -> ArtifactManifest.isHash(file.getFileName().toString()))
+                    .filter(file -> {
+                        try {
+                            return Files.getLastModifiedTime(file).toMillis() < oldestAllowedMillis;
+                        } catch (IOException e) {
+                            return false;
+                        }
+                    })
+                    .collect(Collectors.toList());
+        }
+        for (Path file : unused) {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private @NotNull Path getCachedFile(@NotNull String hash) {
+        return cacheDirectory.resolve(hash);
+    }
+
+    private static @NotNull Path resolveInServerDirectory(@NotNull Path serverDirectory, @NotNull String path)
+            throws IOException {
+        Path file = serverDirectory.resolve(path).normalize();
+        if (!file.startsWith(serverDirectory.normalize())) {
+            throw new IOException("Artifact " + path + " is outside of the server directory");
+        }
+        return file;
+    }
+
+    private static void moveIntoPlace(@NotNull Path source, @NotNull Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
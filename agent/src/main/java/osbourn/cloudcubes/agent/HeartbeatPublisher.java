@@ -0,0 +1,237 @@
+package osbourn.cloudcubes.agent;
+
+import org.jetbrains.annotations.NotNull;
+import osbourn.cloudcubes.core.database.DatabaseEntry;
+import osbourn.cloudcubes.core.server.ServerHealth;
+import osbourn.cloudcubes.core.server.ServerRecord;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * <p>
+ * Publishes the heartbeat of the Minecraft server to its database entry. The player count follows the join and leave
+ * messages of the console, and the memory use of the process is read from {@code /proc} every few seconds. The tick
+ * statistics, and the player count as a check, are asked for through the console only once every
+ * {@link #CONSOLE_QUERY_INTERVAL_SAMPLES} samples, since the server writes every command and its response to
+ * {@code logs/latest.log}, which is shipped to the log bucket.
+ * </p>
+ *
+ * <p>
+ * Samples are coalesced before they are written: a heartbeat is written every
+ * {@link ServerHealth#HEARTBEAT_INTERVAL_MILLIS}, with the average time per tick and the lowest tick rate of the
+ * samples since the last write, and earlier only if the player count or the overload status changes. A write replaces
+ * a single attribute, and DynamoDB bills writes by the size of the whole item, so writing every sample would cost
+ * several times as much without telling the control plane anything new. Heartbeats written between two queries repeat
+ * the tick statistics of the last query.
+ * </p>
+ *
+ * <p>
+ * The tick statistics come from the vanilla {@code tick query} command (Minecraft 1.20.3 and later). Servers that
+ * don't know it are asked with the Paper {@code tps} and {@code mspt} commands instead, and servers that know neither
+ * only report their player count and memory.
+ * </p>
+ */
+public class HeartbeatPublisher {
+    private static final long SAMPLE_INTERVAL_SECONDS = 5;
+    /**
+     * The console is queried once a minute
+     */
+    private static final int CONSOLE_QUERY_INTERVAL_SAMPLES = 12;
+    private static final List<List<String>> TICK_COMMANDS = Arrays.asList(
+            Collections.singletonList("tick query"),
+            Arrays.asList("tps", "mspt"),
+            Collections.emptyList());
+
+    private static final Pattern AVERAGE_TICK_TIME = Pattern.compile("Average time per tick: ([0-9.]+) ?ms");
+    private static final Pattern TARGET_TICK_RATE = Pattern.compile("Target tick rate: ([0-9.]+)");
+    private static final Pattern PAPER_TPS = Pattern.compile("TPS from last 1m, 5m, 15m: \\*?([0-9.]+)");
+    private static final Pattern PAPER_MSPT = Pattern.compile("\\u25F4 ([0-9.]+)/");
+    private static final Pattern PLAYER_LIST = Pattern.compile("There are (\\d+) of a max of (\\d+) players online");
+    // The name is matched after the thread and level of the line, so chat messages can't pass for a join or leave
+    private static final Pattern PLAYER_JOINED = Pattern.compile("\\]: [A-Za-z0-9_.*]{1,17} joined the game$");
+    private static final Pattern PLAYER_LEFT = Pattern.compile("\\]: [A-Za-z0-9_.*]{1,17} left the game$");
+    private static final Pattern RESIDENT_MEMORY = Pattern.compile("VmRSS:\\s+(\\d+) kB");
+
+    private final DatabaseEntry serverEntry;
+    private final MinecraftProcess minecraftProcess;
+    private final long memoryTotalMiB;
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "heartbeat");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private boolean started = false;
+    private int samplesUntilConsoleQuery = 0;
+    private int tickCommandsIndex = 0;
+    private boolean tickCommandsSent = false;
+    private double targetTicksPerSecond = 20;
+    private int playerCount = -1;
+    private int maxPlayers = -1;
+    // Statistics of the samples since the last write
+    private double millisPerTickSum = 0;
+    private int millisPerTickCount = 0;
+    private double lowestTicksPerSecond = Double.MAX_VALUE;
+    // Statistics of the last query, which are repeated until the next query answers
+    private double lastMillisPerTick = -1;
+    private double lastTicksPerSecond = -1;
+    private ServerHealth lastPublished = null;
+
+    /**
+     * Creates a HeartbeatPublisher object. Nothing is published until {@link #start()} is called.
+     *
+     * @param serverEntry      The database entry the heartbeat is written to
+     * @param minecraftProcess The Minecraft server to measure
+     * @param memoryTotalMiB   The memory of the instance in MiB
+     */
+    public HeartbeatPublisher(@NotNull DatabaseEntry serverEntry,
+                              @NotNull MinecraftProcess minecraftProcess,
+                              long memoryTotalMiB) {
+        this.serverEntry = serverEntry;
+        this.minecraftProcess = minecraftProcess;
+        this.memoryTotalMiB = memoryTotalMiB;
+        minecraftProcess.addOutputListener(this::onConsoleLine);
+    }
+
+    /**
+     * Starts sampling. This should be called once the server accepts commands; later calls have no effect.
+     */
+    public synchronized void start() {
+        if (started) {
+            return;
+        }
+        started = true;
+        executor.scheduleWithFixedDelay(this::sample, 0, SAMPLE_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stops sampling. No further heartbeats are written, so the heartbeat goes stale unless the server is marked as
+     * stopped.
+     */
+    public void stop() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Gets a heartbeat for the current moment, which is written together with the ONLINE state so that a server is
+     * never online without a fresh heartbeat.
+     *
+     * @return The current heartbeat
+     */
+    public synchronized @NotNull ServerHealth getCurrentHealth() {
+        double millisPerTick = millisPerTickCount > 0 ? millisPerTickSum / millisPerTickCount : lastMillisPerTick;
+        double ticksPerSecond = lowestTicksPerSecond != Double.MAX_VALUE ? lowestTicksPerSecond : lastTicksPerSecond;
+        return new ServerHealth(System.currentTimeMillis(), ticksPerSecond, millisPerTick, playerCount, maxPlayers,
+                readResidentMemoryMiB(), memoryTotalMiB);
+    }
+
+    private void sample() {
+        if (!minecraftProcess.isRunning()) {
+            return;
+        }
+        try {
+            publishIfNeeded();
+            synchronized (this) {
+                if (samplesUntilConsoleQuery-- > 0) {
+                    return;
+                }
+                samplesUntilConsoleQuery = CONSOLE_QUERY_INTERVAL_SAMPLES - 1;
+                List<String> tickCommands = TICK_COMMANDS.get(tickCommandsIndex);
+                for (String command : tickCommands) {
+                    minecraftProcess.sendCommand(command);
+                }
+                tickCommandsSent = !tickCommands.isEmpty();
+            }
+            minecraftProcess.sendCommand("list");
+        } catch (IOException e) {
+            // The server has exited, so its heartbeat should go stale
+        } catch (RuntimeException e) {
+            System.err.println("Could not publish a heartbeat: " + e.getMessage());
+        }
+    }
+
+    private void publishIfNeeded() {
+        ServerHealth health;
+        synchronized (this) {
+            health = getCurrentHealth();
+            boolean due = lastPublished == null
+                    || health.getTimestampMillis() - lastPublished.getTimestampMillis()
+                    >= ServerHealth.HEARTBEAT_INTERVAL_MILLIS - SAMPLE_INTERVAL_SECONDS * 1000 / 2;
+            boolean changed = lastPublished != null
+                    && (health.getPlayerCount() != lastPublished.getPlayerCount()
+                    || health.isOverloaded() != lastPublished.isOverloaded());
+            if (!due && !changed) {
+                return;
+            }
+            lastPublished = health;
+            lastMillisPerTick = health.getMillisPerTick();
+            lastTicksPerSecond = health.getTicksPerSecond();
+            millisPerTickSum = 0;
+            millisPerTickCount = 0;
+            lowestTicksPerSecond = Double.MAX_VALUE;
+        }
+        ServerRecord.of(serverEntry).set(ServerRecord.HEARTBEAT, health);
+    }
+
+    private synchronized void onConsoleLine(@NotNull String line) {
+        Matcher matcher;
+        if ((matcher = TARGET_TICK_RATE.matcher(line)).find()) {
+            targetTicksPerSecond = Double.parseDouble(matcher.group(1));
+        } else if ((matcher = AVERAGE_TICK_TIME.matcher(line)).find()) {
+            double millisPerTick = Double.parseDouble(matcher.group(1));
+            addMillisPerTick(millisPerTick);
+            // The server sleeps when a tick finishes early, so the tick rate only drops once ticks overrun the target
+            addTicksPerSecond(Math.min(targetTicksPerSecond, 1000 / Math.max(millisPerTick, 0.001)));
+        } else if ((matcher = PAPER_TPS.matcher(line)).find()) {
+            addTicksPerSecond(Double.parseDouble(matcher.group(1)));
+        } else if ((matcher = PAPER_MSPT.matcher(line)).find()) {
+            // The first value is the average over the last five seconds
+            addMillisPerTick(Double.parseDouble(matcher.group(1)));
+        } else if ((matcher = PLAYER_LIST.matcher(line)).find()) {
+            playerCount = Integer.parseInt(matcher.group(1));
+            maxPlayers = Integer.parseInt(matcher.group(2));
+        } else if (PLAYER_JOINED.matcher(line).find()) {
+            // The count is only unknown until the first query answers, right after the server started empty
+            playerCount = Math.max(playerCount, 0) + 1;
+        } else if (PLAYER_LEFT.matcher(line).find()) {
+            playerCount = Math.max(playerCount - 1, 0);
+        } else if (line.contains("Unknown or incomplete command") && tickCommandsSent
+                && tickCommandsIndex < TICK_COMMANDS.size() - 1) {
+            // The server doesn't know the commands that were tried, so try the next ones
+            tickCommandsIndex++;
+            tickCommandsSent = false;
+        }
+    }
+
+    private void addMillisPerTick(double millisPerTick) {
+        millisPerTickSum += millisPerTick;
+        millisPerTickCount++;
+    }
+
+    private void addTicksPerSecond(double ticksPerSecond) {
+        lowestTicksPerSecond = Math.min(lowestTicksPerSecond, ticksPerSecond);
+    }
+
+    private long readResidentMemoryMiB() {
+        if (!minecraftProcess.isRunning()) {
+            return -1;
+        }
+        try {
+            String status = Files.readString(Paths.get("/proc", Long.toString(minecraftProcess.getPid()), "status"));
+            Matcher matcher = RESIDENT_MEMORY.matcher(status);
+            return matcher.find() ? Long.parseLong(matcher.group(1)) / 1024 : -1;
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package osbourn.cloudcubes.agent;
+
+import org.jetbrains.annotations.NotNull;
+import osbourn.cloudcubes.core.constructs.InfrastructureConfiguration;
+import osbourn.cloudcubes.core.constructs.InfrastructureConfiguration.InfrastructureSetting;
+import osbourn.cloudcubes.core.constructs.InfrastructureConstructor;
+import osbourn.cloudcubes.core.database.DynamoDBEntry;
+import osbourn.cloudcubes.core.server.ContainerInstanceManager;
+import osbourn.cloudcubes.core.server.HostAssignment;
+import osbourn.cloudcubes.core.server.LaunchProfile;
+import osbourn.cloudcubes.core.server.SharedHost;
+
+import java.net.URI;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * The agent of a shared host. It runs on the host as a system service and keeps the servers on the host in line with
+ * the {@code Servers} attribute of the host's entry: when the control plane places a server on the host, the agent
+ * starts it with its assigned port and memory limit, and when the control plane removes a server, the agent drains
+ * it. The host and its other servers keep running throughout.
+ * </p>
+ *
+ * <p>
+ * Each server is supervised by its own {@link ServerAgent}, so servers on a host publish heartbeats, ship logs and
+ * react to spot interruptions just like servers on their own instance. Their worlds are on the shared file system,
+ * which the host mounts at {@link ContainerInstanceManager#WORLD_ROOT}.
+ * </p>
+ */
+public class HostAgent {
+    /**
+     * How often the host's entry is read. A server placed on the host waits at most this long before it starts.
+     */
+    private static final long POLL_INTERVAL_SECONDS = 5;
+
+    private final InfrastructureConstructor infrastructureConstructor;
+    private final DynamoDBEntry hostEntry;
+    private final String hostAddress;
+    private final Map<UUID, ServerAgent> serverAgents = new ConcurrentHashMap<>();
+    private final ExecutorService serverThreads = Executors.newCachedThreadPool();
+    private final Set<UUID> startingServers = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Creates a HostAgent object.
+     *
+     * @param infrastructureConstructor The InfrastructureConstructor used to obtain AWS clients
+     * @param hostEntry                 The entry of the host in the host table
+     * @param hostAddress               The public address of the host
+     */
+    public HostAgent(@NotNull InfrastructureConstructor infrastructureConstructor,
+                     @NotNull DynamoDBEntry hostEntry,
+                     @NotNull String hostAddress) {
+        this.infrastructureConstructor = infrastructureConstructor;
+        this.hostEntry = hostEntry;
+        this.hostAddress = hostAddress;
+    }
+
+    public static void main(String[] args) throws Exception {
+        InfrastructureConfiguration infrastructureConfiguration = InfrastructureConfiguration.fromEnvironment();
+        InfrastructureConstructor infrastructureConstructor = new InfrastructureConstructor(infrastructureConfiguration);
+        DynamoDBEntry hostEntry = DynamoDBEntry.fromId(
+                UUID.fromString(ServerAgent.requireEnvironmentVariable("HOST_ID")),
+                infrastructureConstructor.getDynamoDBClient(),
+                infrastructureConfiguration.getValue(InfrastructureSetting.HOSTDATABASENAME));
+        HostAgent agent = new HostAgent(infrastructureConstructor, hostEntry,
+                PublicAddressResolver.resolve(infrastructureConstructor.getEc2Client()));
+
+        URI metadataEndpoint = URI.create(ServerAgent.getEnvironmentVariable("IMDS_ENDPOINT",
+                SpotInterruptionWatcher.DEFAULT_ENDPOINT));
+        new SpotInterruptionWatcher(metadataEndpoint, agent::onInterruptionNotice).start();
+        agent.run();
+    }
+
+    /**
+     * Marks the host as online and keeps its servers in line with its entry until the agent is stopped.
+     *
+     * @throws InterruptedException If the thread was interrupted
+     */
+    public void run() throws InterruptedException {
+        Map<String, String> values = new HashMap<>();
+        values.put("HostState", SharedHost.State.ONLINE.name());
+        values.put("HostAddress", hostAddress);
+        values.put("EC2InstanceId", ServerAgent.requireEnvironmentVariable("EC2_ID"));
+        // Fails if the host was interrupted or is being terminated before it came up, which leaves that state in place
+        hostEntry.setStringValuesIf(Collections.singletonMap("HostState", SharedHost.State.LAUNCHING.name()), values);
+
+        // Each server agent drains its own server when the JVM shuts down, so the servers are drained in parallel
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                reconcile();
+            } catch (RuntimeException e) {
+                System.err.println("Could not update the servers of the host: " + e.getMessage());
+            }
+            TimeUnit.SECONDS.sleep(POLL_INTERVAL_SECONDS);
+        }
+    }
+
+    /**
+     * Starts the servers that were placed on the host and drains the servers that were removed from it.
+     */
+    private void reconcile() {
+        List<HostAssignment> assignments =
+                HostAssignment.listFromString(hostEntry.requestStringValueFromDatabase("Servers"));
+        Set<UUID> assignedServerIds = new HashSet<>();
+        for (HostAssignment assignment : assignments) {
+            assignedServerIds.add(assignment.getServerId());
+            if (!serverAgents.containsKey(assignment.getServerId())
+                    && startingServers.add(assignment.getServerId())) {
+                serverThreads.execute(() -> runServer(assignment));
+            }
+        }
+        for (UUID serverId : new ArrayList<>(serverAgents.keySet())) {
+            if (!assignedServerIds.contains(serverId)) {
+                ServerAgent serverAgent = serverAgents.remove(serverId);
+                serverThreads.execute(serverAgent::stop);
+            }
+        }
+    }
+
+    private void runServer(@NotNull HostAssignment assignment) {
+        UUID serverId = assignment.getServerId();
+        ServerAgent serverAgent;
+        try {
+            Path worldRoot = Paths.get(ContainerInstanceManager.WORLD_ROOT);
+            serverAgent = ServerAgent.create(
+                    infrastructureConstructor,
+                    serverId,
+                    worldRoot.resolve(serverId.toString()),
+                    worldRoot.resolve(ContainerInstanceManager.ARTIFACT_CACHE_DIRECTORY_NAME),
+                    hostAddress + ":" + assignment.getPort(),
+                    assignment.getPort(),
+                    assignment.getMemoryMiB(),
+                    String.join(" ", LaunchProfile.getJvmOptions(assignment.getMemoryMiB())));
+        } catch (Exception e) {
+            System.err.println("Could not prepare server " + serverId + ": " + e.getMessage());
+            startingServers.remove(serverId);
+            return;
+        }
+        serverAgents.put(serverId, serverAgent);
+        startingServers.remove(serverId);
+        try {
+            // A server that exits on its own stays assigned, so it isn't restarted until the control plane places it
+            // again, which keeps a crashing server from restarting in a loop
+            serverAgent.run();
+        } catch (Exception e) {
+            System.err.println("Server " + serverId + " failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Passes a spot interruption notice on to every server on the host. Each server is drained and asks the control
+     * plane to place it on another host, and they all do so in parallel to fit into the two minute notice.
+     *
+     * @param notice The interruption notice from the instance metadata service
+     */
+    private void onInterruptionNotice(@NotNull String notice) {
+        List<Thread> threads = new ArrayList<>();
+        for (ServerAgent serverAgent : serverAgents.values()) {
+            Thread thread = new Thread(() -> serverAgent.onInterruptionNotice(notice), "interruption");
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package osbourn.cloudcubes.agent;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Validates the JVM options chosen for the Minecraft server before the server is started with them. The options are
+ * used to start a short-lived JVM that runs an allocation-heavy workload, which checks that the heap can actually be
+ * committed and pre-touched on this instance, that the JVM accepts the options without warnings (for example about
+ * huge pages not being available), and that GC pauses stay reasonable.
+ * </p>
+ *
+ * <p>
+ * The {@link #main(String[])} method is the workload that runs in the short-lived JVM, and {@link #run(List)} launches
+ * it.
+ * </p>
+ */
+public class JvmBenchmark {
+    private static final long WORKLOAD_DURATION_MILLIS = 3_000;
+    /**
+     * Pre-touching a large heap takes a while, so the benchmark JVM gets generous time to start
+     */
+    private static final long TIMEOUT_SECONDS = 120;
+    private static final long OUTPUT_TIMEOUT_MILLIS = 5_000;
+    /**
+     * The benchmark fails if the workload stalls for longer than this, which means the options are not usable for a
+     * server that has to tick every 50 milliseconds
+     */
+    private static final long MAXIMUM_PAUSE_MILLIS = 500;
+    private static final int RETAINED_ARRAY_COUNT = 4096;
+    private static final int ARRAY_SIZE = 16 * 1024;
+    private static final String RESULT_PREFIX = "RESULT ";
+
+    /**
+     * The result of a benchmark run.
+     */
+    public static final class Result {
+        private final boolean passed;
+        private final String description;
+
+        private Result(boolean passed, String description) {
+            this.passed = passed;
+            this.description = description;
+        }
+
+        /**
+         * Returns true if the JVM options can be used for the Minecraft server.
+         *
+         * @return True if the benchmark passed
+         */
+        public boolean isPassed() {
+            return passed;
+        }
+
+        @Override
+        public String toString() {
+            return (passed ? "passed: " : "failed: ") + description;
+        }
+    }
+
+    /**
+     * Runs the benchmark workload. This is called in the JVM started by {@link #run(List)}, and prints its result as a
+     * single line.
+     *
+     * @param args Unused
+     */
+    public static void main(String[] args) {
+        // Keep some arrays alive so that the collector has to copy and promote objects, like a server with loaded
+        // chunks
+        byte[][] retained = new byte[RETAINED_ARRAY_COUNT][];
+        long startMillis = System.currentTimeMillis();
+        long lastIterationMillis = startMillis;
+        long maxPauseMillis = 0;
+        long allocatedBytes = 0;
+        long nowMillis = startMillis;
+        while (nowMillis - startMillis < WORKLOAD_DURATION_MILLIS) {
+            for (int i = 0; i < 1000; i++) {
+                retained[ThreadLocalRandom.current().nextInt(RETAINED_ARRAY_COUNT)] = new byte[ARRAY_SIZE];
+            }
+            allocatedBytes += 1000L * ARRAY_SIZE;
+            nowMillis = System.currentTimeMillis();
+            maxPauseMillis = Math.max(maxPauseMillis, nowMillis - lastIterationMillis);
+            lastIterationMillis = nowMillis;
+        }
+        double allocationMiBPerSecond = allocatedBytes / 1024.0 / 1024.0 / ((nowMillis - startMillis) / 1000.0);
+        System.out.println(String.format(Locale.ROOT, "%s%.0f %d", RESULT_PREFIX, allocationMiBPerSecond,
+                maxPauseMillis));
+    }
+
+    /**
+     * Runs the benchmark in a new JVM started with the given options.
+     *
+     * @param jvmOptions The JVM options to validate
+     * @return The result of the benchmark
+     */
+    public static @NotNull Result run(@NotNull List<String> jvmOptions) {
+        List<String> command = new ArrayList<>();
+        command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(jvmOptions);
+        command.add("-cp");
+        command.add(getClassPath());
+        command.add(JvmBenchmark.class.getName());
+
+        long startMillis = System.currentTimeMillis();
+        Process process;
+        try {
+            process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        } catch (IOException e) {
+            return new Result(false, "could not start the JVM: " + e.getMessage());
+        }
+
+        // The output is read on its own thread, so a JVM that hangs without closing its output still times out
+        List<String> output = Collections.synchronizedList(new ArrayList<>());
+        IOException[] readFailure = new IOException[1];
+        Thread outputReader = new Thread(() -> {
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    output.add(line);
+                }
+            } catch (IOException e) {
+                readFailure[0] = e;
+            }
+        }, "JvmBenchmark output");
+        outputReader.setDaemon(true);
+        outputReader.start();
+        try {
+            if (!process.waitFor(TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                process.destroyForcibly();
+                return new Result(false, "timed out");
+            }
+            // The output ends when the JVM exits, unless a process it started still holds it open
+            outputReader.join(OUTPUT_TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+            process.destroyForcibly();
+            Thread.currentThread().interrupt();
+            return new Result(false, "interrupted");
+        }
+        if (outputReader.isAlive()) {
+            return new Result(false, "the output of the JVM did not end");
+        }
+        if (readFailure[0] != null) {
+            return new Result(false, "could not read the output of the JVM: " + readFailure[0].getMessage());
+        }
+        long elapsedMillis = System.currentTimeMillis() - startMillis;
+
+        if (process.exitValue() != 0) {
+            String lastLine = output.isEmpty() ? "" : ": " + output.get(output.size() - 1);
+            return new Result(false, "the JVM exited with code " + process.exitValue() + lastLine);
+        }
+        String resultLine = null;
+        for (String line : output) {
+            if (line.startsWith(RESULT_PREFIX)) {
+                resultLine = line;
+            } else if (line.toLowerCase(Locale.ROOT).contains("warning")) {
+                // The JVM only warns about options it can't honour, such as huge pages that aren't configured
+                return new Result(false, "the JVM printed a warning: " + line);
+            }
+        }
+        if (resultLine == null) {
+            return new Result(false, "the workload did not print a result");
+        }
+
+        String[] parts = resultLine.substring(RESULT_PREFIX.length()).split(" ");
+        long maxPauseMillis = Long.parseLong(parts[1]);
+        String description = String.format(Locale.ROOT, "%s MiB/s allocated, %d ms longest pause, %d ms total",
+                parts[0], maxPauseMillis, elapsedMillis);
+        return new Result(maxPauseMillis <= MAXIMUM_PAUSE_MILLIS, description);
+    }
+
+    private static @NotNull String getClassPath() {
+        try {
+            return Paths.get(JvmBenchmark.class.getProtectionDomain().getCodeSource().getLocation().toURI()).toString();
+        } catch (URISyntaxException e) {
+            throw new IllegalStateException("Could not find the agent jar", e);
+        }
+    }
+}
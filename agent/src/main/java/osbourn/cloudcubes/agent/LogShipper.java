@@ -0,0 +1,244 @@
+package osbourn.cloudcubes.agent;
+
+import org.jetbrains.annotations.NotNull;
+import osbourn.cloudcubes.core.database.DatabaseEntry;
+import osbourn.cloudcubes.core.logs.LogIndex;
+import osbourn.cloudcubes.core.logs.LogLine;
+import osbourn.cloudcubes.core.logs.LogSegment;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Ships the console log of the Minecraft server to the log bucket. The shipper tails {@code logs/latest.log} and
+ * collects the lines into segments, one for every {@link LogSegment#BUCKET_DURATION_MILLIS} of wall-clock time. When a
+ * time bucket ends, its segment is uploaded as a single object and added to the log index in the server's database
+ * entry, so a busy server makes one upload every few minutes instead of one request per line.
+ * </p>
+ *
+ * <p>
+ * Uploads run on their own thread, so a slow upload never holds up reading the log. The agent of a server that is
+ * restarted or resized ships the rest of the current bucket while the next agent already ships its own lines, so the
+ * segments of each agent are stored under their own keys, see {@link LogSegment#getObjectKey}, and the index is
+ * updated with a conditional write.
+ * </p>
+ */
+public class LogShipper {
+    private static final long POLL_INTERVAL_MILLIS = 1_000;
+    private static final long UPLOAD_TIMEOUT_SECONDS = 20;
+    private static final int MAX_INDEX_WRITE_ATTEMPTS = 10;
+
+    private final S3Client s3Client;
+    private final String logBucketName;
+    private final DatabaseEntry serverEntry;
+    private final Path logFile;
+    private final long startMillis = System.currentTimeMillis();
+    private final ScheduledExecutorService tailExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "log-tail");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ExecutorService uploadExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "log-upload");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private RandomAccessFile openFile = null;
+    private Object openFileKey = null;
+    private final ByteArrayOutputStream partialLine = new ByteArrayOutputStream();
+    private LogSegment.Writer segment = new LogSegment.Writer();
+    private long segmentBucketStartMillis = 0;
+
+    /**
+     * Creates a LogShipper object. Nothing is shipped until {@link #start()} is called.
+     *
+     * @param s3Client      The S3 client used to upload segments
+     * @param logBucketName The name of the bucket segments are uploaded to
+     * @param serverEntry   The database entry of the server, which holds its log index
+     * @param logFile       The log file to tail
+     */
+    public LogShipper(@NotNull S3Client s3Client,
+                      @NotNull String logBucketName,
+                      @NotNull DatabaseEntry serverEntry,
+                      @NotNull Path logFile) {
+        this.s3Client = s3Client;
+        this.logBucketName = logBucketName;
+        this.serverEntry = serverEntry;
+        this.logFile = logFile;
+    }
+
+    /**
+     * Starts tailing the log file. Lines already in the file are skipped, since they were written by the previous run
+     * of the server and were shipped when it stopped.
+     */
+    public synchronized void start() {
+        try {
+            if (Files.exists(logFile)) {
+                open();
+                openFile.seek(openFile.length());
+            }
+        } catch (IOException e) {
+            System.err.println("Could not open " + logFile + ": " + e.getMessage());
+        }
+        tailExecutor.scheduleWithFixedDelay(this::poll, POLL_INTERVAL_MILLIS, POLL_INTERVAL_MILLIS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Reads the rest of the log file, uploads the current segment and waits for the uploads to finish. This should be
+     * called after the Minecraft server has stopped, so that its last lines are included.
+     */
+    public void close() {
+        tailExecutor.shutdown();
+        try {
+            tailExecutor.awaitTermination(POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            readNewLines(System.currentTimeMillis());
+            if (partialLine.size() > 0) {
+                addLine(System.currentTimeMillis(), partialLine.toString(StandardCharsets.UTF_8));
+                partialLine.reset();
+            }
+            shipSegment();
+            closeFile();
+        }
+        uploadExecutor.shutdown();
+        try {
+            if (!uploadExecutor.awaitTermination(UPLOAD_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                System.err.println("Gave up waiting for log segments to upload");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private synchronized void poll() {
+        long nowMillis = System.currentTimeMillis();
+        readNewLines(nowMillis);
+        // Close the segment when its bucket ends even if the server has gone quiet
+        if (!segment.isEmpty() && bucketStart(nowMillis) != segmentBucketStartMillis) {
+            shipSegment();
+        }
+    }
+
+    private void readNewLines(long nowMillis) {
+        try {
+            if (!Files.exists(logFile)) {
+                return;
+            }
+            Object fileKey = Files.readAttributes(logFile, BasicFileAttributes.class).fileKey();
+            if (openFile == null || !Objects.equals(fileKey, openFileKey)
+                    || openFile.length() < openFile.getFilePointer()) {
+                // The server rotates latest.log when it starts, which replaces the file with a new one
+                closeFile();
+                open();
+            }
+
+            byte[] buffer = new byte[8192];
+            int bytesRead;
+            while ((bytesRead = openFile.read(buffer)) > 0) {
+                for (int i = 0; i < bytesRead; i++) {
+                    if (buffer[i] == '\n') {
+                        String line = partialLine.toString(StandardCharsets.UTF_8);
+                        partialLine.reset();
+                        addLine(nowMillis, line.endsWith("\r") ? line.substring(0, line.length() - 1) : line);
+                    } else {
+                        partialLine.write(buffer[i]);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Could not read " + logFile + ": " + e.getMessage());
+            closeFile();
+        }
+    }
+
+    private void addLine(long timestampMillis, @NotNull String text) {
+        long bucketStartMillis = bucketStart(timestampMillis);
+        if (!segment.isEmpty() && bucketStartMillis != segmentBucketStartMillis) {
+            shipSegment();
+        }
+        if (segment.isEmpty()) {
+            segmentBucketStartMillis = bucketStartMillis;
+        }
+        segment.addLine(new LogLine(timestampMillis, text));
+    }
+
+    /**
+     * Hands the current segment to the upload thread and starts a new one.
+     */
+    private void shipSegment() {
+        if (segment.isEmpty()) {
+            return;
+        }
+        LogSegment.Writer finishedSegment = segment;
+        long bucketStartMillis = segmentBucketStartMillis;
+        segment = new LogSegment.Writer();
+        uploadExecutor.execute(() -> upload(finishedSegment, bucketStartMillis));
+    }
+
+    private void upload(@NotNull LogSegment.Writer finishedSegment, long bucketStartMillis) {
+        byte[] contents = finishedSegment.toByteArray();
+        try {
+            s3Client.putObject(PutObjectRequest.builder()
+                    .bucket(logBucketName)
+                    .key(LogSegment.getObjectKey(serverEntry.getId(), bucketStartMillis, startMillis))
+                    .build(), RequestBody.fromBytes(contents));
+
+            // The previous or next agent of the server may add a segment at the same time
+            for (int attempt = 0; attempt < MAX_INDEX_WRITE_ATTEMPTS; attempt++) {
+                String currentIndex = serverEntry.requestStringValueFromDatabase("LogIndex");
+                LogIndex index = LogIndex.fromString(currentIndex);
+                index.add(bucketStartMillis, finishedSegment.getEndMillis(), contents.length, startMillis);
+                if (serverEntry.setStringValuesIf(Collections.singletonMap("LogIndex", currentIndex),
+                        Collections.singletonMap("LogIndex", index.toString()))) {
+                    return;
+                }
+            }
+            System.err.println("Could not add log segment " + bucketStartMillis + " to the index, since it kept "
+                    + "changing");
+        } catch (RuntimeException e) {
+            System.err.println("Could not ship log segment " + bucketStartMillis + ": " + e.getMessage());
+        }
+    }
+
+    private void open() throws IOException {
+        openFile = new RandomAccessFile(logFile.toFile(), "r");
+        openFileKey = Files.readAttributes(logFile, BasicFileAttributes.class).fileKey();
+        partialLine.reset();
+    }
+
+    private void closeFile() {
+        if (openFile != null) {
+            try {
+                openFile.close();
+            } catch (IOException ignored) {
+                // Nothing was written to the file
+            }
+            openFile = null;
+            openFileKey = null;
+        }
+    }
+
+    private static long bucketStart(long timestampMillis) {
+        return timestampMillis - timestampMillis % LogSegment.BUCKET_DURATION_MILLIS;
+    }
+}
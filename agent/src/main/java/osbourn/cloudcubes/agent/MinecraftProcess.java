@@ -0,0 +1,193 @@
+package osbourn.cloudcubes.agent;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * A Minecraft server process supervised by the agent. The agent owns the console of the server, so it can send
+ * commands to it and watch its output without needing RCON.
+ */
+public class MinecraftProcess {
+    private final Path serverDirectory;
+    private final List<String> jvmOptions;
+    private final int port;
+    private final List<Consumer<String>> outputListeners = new CopyOnWriteArrayList<>();
+    private Process process = null;
+    private Writer console = null;
+
+    /**
+     * Creates a MinecraftProcess object. The process is not started until {@link #start()} is called.
+     *
+     * @param serverDirectory The directory containing server.jar, which is also used as the working directory
+     * @param jvmOptions      Options passed to the JVM that runs the server
+     */
+    public MinecraftProcess(@NotNull Path serverDirectory, @NotNull List<String> jvmOptions) {
+        this(serverDirectory, jvmOptions, -1);
+    }
+
+    /**
+     * Creates a MinecraftProcess object that listens on the given port, overriding the port in server.properties. This
+     * is used on shared hosts, where every server needs its own port.
+     *
+     * @param serverDirectory The directory containing server.jar, which is also used as the working directory
+     * @param jvmOptions      Options passed to the JVM that runs the server
+     * @param port            The port the server listens on, or -1 to use the port in server.properties
+     */
+    public MinecraftProcess(@NotNull Path serverDirectory, @NotNull List<String> jvmOptions, int port) {
+        this.serverDirectory = serverDirectory;
+        this.jvmOptions = jvmOptions;
+        this.port = port;
+    }
+
+    /**
+     * Registers a listener that is called with every line the server prints to its console. Listeners are called from
+     * the thread that reads the console, so they should return quickly.
+     *
+     * @param listener The listener to register
+     */
+    public void addOutputListener(@NotNull Consumer<String> listener) {
+        outputListeners.add(listener);
+    }
+
+    /**
+     * Starts the server.
+     *
+     * @throws IOException If the process could not be started
+     */
+    public synchronized void start() throws IOException {
+        if (process != null) {
+            throw new IllegalStateException("The server process has already been started");
+        }
+        List<String> command = new ArrayList<>();
+        command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(jvmOptions);
+        command.add("-jar");
+        command.add("server.jar");
+        if (port >= 0) {
+            command.add("--port");
+            command.add(Integer.toString(port));
+        }
+        command.add("nogui");
+
+        process = new ProcessBuilder(command)
+                .directory(serverDirectory.toFile())
+                .redirectErrorStream(true)
+                .start();
+        console = new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8);
+
+        Thread outputReader = new Thread(this::readOutput, "minecraft-console");
+        outputReader.setDaemon(true);
+        outputReader.start();
+    }
+
+    /**
+     * Sends a command to the server console, as if it had been typed by an operator.
+     *
+     * @param command The command, without a leading slash
+     * @throws IOException If the console could not be written to, for example because the server has exited
+     */
+    public synchronized void sendCommand(@NotNull String command) throws IOException {
+        if (console == null) {
+            throw new IllegalStateException("The server process has not been started");
+        }
+        console.write(command + "\n");
+        console.flush();
+    }
+
+    /**
+     * Returns true if the server has been started and hasn't exited yet.
+     *
+     * @return True if the server is running
+     */
+    public synchronized boolean isRunning() {
+        return process != null && process.isAlive();
+    }
+
+    /**
+     * Gets the operating system id of the server process.
+     *
+     * @return The pid of the process
+     */
+    public synchronized long getPid() {
+        if (process == null) {
+            throw new IllegalStateException("The server process has not been started");
+        }
+        return process.pid();
+    }
+
+    /**
+     * Waits for the server to exit.
+     *
+     * @return The exit code of the server
+     * @throws InterruptedException If the thread was interrupted while waiting
+     */
+    public int waitFor() throws InterruptedException {
+        Process startedProcess;
+        synchronized (this) {
+            startedProcess = process;
+        }
+        if (startedProcess == null) {
+            throw new IllegalStateException("The server process has not been started");
+        }
+        return startedProcess.waitFor();
+    }
+
+    /**
+     * Stops the server gracefully: players are warned, the world is saved and the server is asked to stop. If the
+     * server doesn't exit within the timeout it is killed.
+     *
+     * @param reason         The message shown to players before the server stops
+     * @param timeoutSeconds How long to wait for the server to exit
+     */
+    public void drain(@NotNull String reason, long timeoutSeconds) {
+        Process startedProcess;
+        synchronized (this) {
+            startedProcess = process;
+        }
+        if (startedProcess == null || !startedProcess.isAlive()) {
+            return;
+        }
+        try {
+            sendCommand("say " + reason);
+            sendCommand("save-all flush");
+            sendCommand("stop");
+            if (!startedProcess.waitFor(timeoutSeconds, TimeUnit.SECONDS)) {
+                startedProcess.destroyForcibly();
+            }
+        } catch (IOException e) {
+            // The console is gone, so the server can't be asked to stop
+            startedProcess.destroyForcibly();
+        } catch (InterruptedException e) {
+            startedProcess.destroyForcibly();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void readOutput() {
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                // Echo the console so that it ends up in the agent's own log
+                System.out.println(line);
+                for (Consumer<String> listener : outputListeners) {
+                    listener.accept(line);
+                }
+            }
+        } catch (IOException e) {
+            // The process has exited
+        }
+    }
+}
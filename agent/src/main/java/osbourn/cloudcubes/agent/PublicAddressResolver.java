@@ -0,0 +1,69 @@
+package osbourn.cloudcubes.agent;
+
+import org.jetbrains.annotations.NotNull;
+import software.amazon.awssdk.services.ec2.Ec2Client;
+import software.amazon.awssdk.services.ec2.model.DescribeNetworkInterfacesRequest;
+import software.amazon.awssdk.services.ec2.model.Filter;
+import software.amazon.awssdk.services.ec2.model.NetworkInterface;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Finds the public IP address players use to connect to the server. On a spot instance the startup script passes the
+ * address in. In a container task the address belongs to the task's network interface, which is found through the
+ * private address from the ECS task metadata endpoint.
+ */
+public final class PublicAddressResolver {
+    private static final Pattern PRIVATE_ADDRESS = Pattern.compile("\"IPv4Addresses\"\\s*:\\s*\\[\\s*\"([0-9.]+)\"");
+
+    private PublicAddressResolver() {
+    }
+
+    /**
+     * Finds the public IP address of the server.
+     *
+     * @param ec2Client The EC2 client used to look up the network interface of a container task
+     * @return The public IP address
+     * @throws IOException If the address could not be found
+     */
+    public static @NotNull String resolve(@NotNull Ec2Client ec2Client) throws IOException {
+        String instanceAddress = System.getenv("EC2_PUBLIC_IP");
+        if (instanceAddress != null) {
+            return instanceAddress;
+        }
+        String metadataUri = System.getenv("ECS_CONTAINER_METADATA_URI_V4");
+        if (metadataUri == null) {
+            throw new IOException("Neither EC2_PUBLIC_IP nor ECS_CONTAINER_METADATA_URI_V4 is set");
+        }
+
+        String taskMetadata;
+        try {
+            taskMetadata = HttpClient.newHttpClient().send(
+                    HttpRequest.newBuilder(URI.create(metadataUri + "/task")).GET().build(),
+                    HttpResponse.BodyHandlers.ofString()).body();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading the task metadata", e);
+        }
+        Matcher matcher = PRIVATE_ADDRESS.matcher(taskMetadata);
+        if (!matcher.find()) {
+            throw new IOException("The task metadata does not contain a private address");
+        }
+
+        List<NetworkInterface> networkInterfaces = ec2Client.describeNetworkInterfaces(
+                DescribeNetworkInterfacesRequest.builder()
+                        .filters(Filter.builder().name("addresses.private-ip-address").values(matcher.group(1)).build())
+                        .build()).networkInterfaces();
+        if (networkInterfaces.isEmpty() || networkInterfaces.get(0).association() == null) {
+            throw new IOException("The task does not have a public address");
+        }
+        return networkInterfaces.get(0).association().publicIp();
+    }
+}
@@ -0,0 +1,394 @@
+package osbourn.cloudcubes.agent;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import osbourn.cloudcubes.core.artifacts.ArtifactStore;
+import osbourn.cloudcubes.core.constructs.InfrastructureConfiguration;
+import osbourn.cloudcubes.core.constructs.InfrastructureConfiguration.InfrastructureSetting;
+import osbourn.cloudcubes.core.constructs.InfrastructureConstructor;
+import osbourn.cloudcubes.core.database.DatabaseEntry;
+import osbourn.cloudcubes.core.database.DynamoDBEntry;
+import osbourn.cloudcubes.core.database.TypedRecord;
+import osbourn.cloudcubes.core.server.EC2SpotInstanceManager;
+import osbourn.cloudcubes.core.server.LaunchProfile;
+import osbourn.cloudcubes.core.server.ProvisionalServerState;
+import osbourn.cloudcubes.core.server.ServerRecord;
+import software.amazon.awssdk.services.ec2.Ec2Client;
+import software.amazon.awssdk.services.eventbridge.EventBridgeClient;
+import software.amazon.awssdk.services.eventbridge.model.PutEventsRequest;
+import software.amazon.awssdk.services.eventbridge.model.PutEventsRequestEntry;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * The agent runs on a server instance as a system service. It launches the Minecraft server, marks the server as
+ * online in the database once the server is accepting players, publishes heartbeats while the server runs, ships the
+ * server's console log, and drains the server when the service is stopped or the spot instance is about to be
+ * reclaimed.
+ * </p>
+ *
+ * <p>
+ * The agent also runs as the main process of container tasks, where it is stopped with SIGTERM in the same way. On
+ * shared hosts, the {@link HostAgent} runs one ServerAgent for each server on the host.
+ * </p>
+ *
+ * <p>
+ * The service is stopped whenever the instance shuts down, including when the control plane terminates the instance
+ * to stop the server, so draining here is what saves the world to the data volume before the volume is detached.
+ * </p>
+ */
+public class ServerAgent {
+    /**
+     * How long the server gets to save and stop when draining. Together with the time the log shipper waits for its
+     * last uploads, this must be less than the stop timeout of the service.
+     */
+    private static final long DRAIN_TIMEOUT_SECONDS = 60;
+
+    /**
+     * How long players are warned before the server is drained because of a spot interruption. The warning and the
+     * drain together must fit into the two minute interruption notice.
+     */
+    private static final long INTERRUPTION_WARNING_SECONDS = 10;
+
+    /**
+     * How long the agent waits for an interruption to be handled before it exits anyway. The handling has to finish
+     * within the two minute interruption notice, after which the instance is gone regardless.
+     */
+    private static final long INTERRUPTION_HANDLING_TIMEOUT_SECONDS = 110;
+
+    private final DatabaseEntry serverEntry;
+    private final String serverAddress;
+    private final MinecraftProcess minecraftProcess;
+    private final HeartbeatPublisher heartbeatPublisher;
+    private final LogShipper logShipper;
+    private final EventBridgeClient eventBridgeClient;
+    private final Thread shutdownHook = new Thread(this::stop, "drain");
+    private volatile boolean shuttingDown = false;
+    private volatile boolean interrupted = false;
+    private final CountDownLatch interruptionHandled = new CountDownLatch(1);
+    private boolean stopped = false;
+
+    /**
+     * Creates a ServerAgent object.
+     *
+     * @param serverEntry       The database entry of the server
+     * @param serverAddress     The address players connect to
+     * @param minecraftProcess  The Minecraft server to supervise
+     * @param memoryTotalMiB    The memory of the instance in MiB
+     * @param logShipper        The shipper for the server's console log, or null if logs should not be shipped
+     * @param eventBridgeClient The client used to ask the control plane to relaunch the server after an interruption
+     */
+    public ServerAgent(@NotNull DatabaseEntry serverEntry,
+                       @NotNull String serverAddress,
+                       @NotNull MinecraftProcess minecraftProcess,
+                       long memoryTotalMiB,
+                       @Nullable LogShipper logShipper,
+                       @NotNull EventBridgeClient eventBridgeClient) {
+        this.serverEntry = serverEntry;
+        this.serverAddress = serverAddress;
+        this.minecraftProcess = minecraftProcess;
+        this.heartbeatPublisher = new HeartbeatPublisher(serverEntry, minecraftProcess, memoryTotalMiB);
+        this.logShipper = logShipper;
+        this.eventBridgeClient = eventBridgeClient;
+    }
+
+    public static void main(String[] args) throws Exception {
+        InfrastructureConfiguration infrastructureConfiguration = InfrastructureConfiguration.fromEnvironment();
+        InfrastructureConstructor infrastructureConstructor = new InfrastructureConstructor(infrastructureConfiguration);
+        UUID serverId = UUID.fromString(requireEnvironmentVariable("SERVER_ID"));
+        Path serverDirectory = Paths.get(getEnvironmentVariable("SERVER_DIRECTORY", "/home/ec2-user/server"));
+        Path cacheDirectory = Paths.get(getEnvironmentVariable("ARTIFACT_CACHE_DIRECTORY",
+                serverDirectory.resolve(".cloudcubes-cache").toString()));
+        String serverAddress = PublicAddressResolver.resolve(infrastructureConstructor.getEc2Client());
+
+        ServerAgent agent = create(infrastructureConstructor, serverId, serverDirectory, cacheDirectory, serverAddress,
+                -1, readTotalMemoryMiB(), getEnvironmentVariable("MINECRAFT_JVM_OPTS", ""));
+        // Container tasks have no instance metadata; Fargate Spot sends SIGTERM instead, which drains the server
+        if (System.getenv("EC2_ID") != null) {
+            URI metadataEndpoint = URI.create(
+                    getEnvironmentVariable("IMDS_ENDPOINT", SpotInterruptionWatcher.DEFAULT_ENDPOINT));
+            new SpotInterruptionWatcher(metadataEndpoint, agent::onInterruptionNotice).start();
+        }
+        System.exit(agent.run());
+    }
+
+    /**
+     * Prepares a server directory and creates the agent for the server in it. The server's artifacts are installed
+     * (or the directory is seeded, for a new server without a manifest), and its JVM options are chosen and validated.
+     *
+     * @param infrastructureConstructor The InfrastructureConstructor used to obtain AWS clients
+     * @param serverId                  The id of the server
+     * @param serverDirectory           The directory of the server
+     * @param cacheDirectory            The directory artifacts are cached in
+     * @param serverAddress             The address players connect to
+     * @param port                      The port the server listens on, or -1 to use the port in server.properties
+     * @param memoryMiB                 The memory available to the server in MiB
+     * @param jvmOptions                The JVM options chosen by the control plane, separated by spaces, or an empty
+     *                                  string to derive them from the memory
+     * @return The agent, which hasn't started the server yet
+     * @throws IOException If the server directory could not be prepared
+     */
+    static @NotNull ServerAgent create(@NotNull InfrastructureConstructor infrastructureConstructor,
+                                       @NotNull UUID serverId,
+                                       @NotNull Path serverDirectory,
+                                       @NotNull Path cacheDirectory,
+                                       @NotNull String serverAddress,
+                                       int port,
+                                       long memoryMiB,
+                                       @NotNull String jvmOptions) throws IOException {
+        InfrastructureConfiguration infrastructureConfiguration =
+                infrastructureConstructor.getInfrastructureConfiguration();
+        DynamoDBEntry serverEntry = DynamoDBEntry.fromId(
+                serverId,
+                infrastructureConstructor.getDynamoDBClient(),
+                infrastructureConfiguration.getValue(InfrastructureSetting.SERVERDATABASENAME));
+
+        String resourceBucketName = infrastructureConfiguration.getValue(InfrastructureSetting.RESOURCEBUCKETNAME);
+        String manifestHash = serverEntry.getStringValue("ArtifactManifest");
+        if (manifestHash != null) {
+            new ArtifactFetcher(
+                    infrastructureConstructor.getS3Client(),
+                    new ArtifactStore(infrastructureConstructor.getS3Client(), resourceBucketName),
+                    cacheDirectory
+            ).install(manifestHash, serverDirectory);
+        }
+        ServerFiles.seedIfEmpty(infrastructureConstructor.getS3Client(), resourceBucketName, serverDirectory);
+        MinecraftProcess minecraftProcess = new MinecraftProcess(serverDirectory,
+                chooseJvmOptions(serverEntry, memoryMiB, jvmOptions), port);
+
+        LogShipper logShipper = new LogShipper(
+                infrastructureConstructor.getS3Client(),
+                infrastructureConfiguration.getValue(InfrastructureSetting.LOGBUCKETNAME),
+                serverEntry,
+                serverDirectory.resolve("logs").resolve("latest.log"));
+
+        EventBridgeClient eventBridgeClient = EventBridgeClient.builder()
+                .region(infrastructureConfiguration.getRegion())
+                .build();
+
+        return new ServerAgent(serverEntry, serverAddress, minecraftProcess, memoryMiB, logShipper, eventBridgeClient);
+    }
+
+    /**
+     * Starts the Minecraft server and waits for it to exit.
+     *
+     * @return The exit code of the Minecraft server
+     * @throws Exception If the server could not be started
+     */
+    public int run() throws Exception {
+        minecraftProcess.addOutputListener(this::onConsoleLine);
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+
+        if (logShipper != null) {
+            logShipper.start();
+        }
+        minecraftProcess.start();
+        int exitCode = minecraftProcess.waitFor();
+        if (!shuttingDown) {
+            System.err.println("The Minecraft server exited unexpectedly with code " + exitCode);
+        }
+        // The server stops in the middle of handling an interruption, which still has to record it and ask for the
+        // relaunch before the agent exits
+        awaitInterruptionHandling();
+        return exitCode;
+    }
+
+    /**
+     * Drains the server and ships the rest of its log. This happens when the agent is stopped, and on shared hosts when
+     * the server is removed from the host while the host keeps running. Later calls have no effect.
+     */
+    public void stop() {
+        synchronized (this) {
+            if (stopped) {
+                return;
+            }
+            stopped = true;
+        }
+        shuttingDown = true;
+        awaitInterruptionHandling();
+        heartbeatPublisher.stop();
+        minecraftProcess.drain("The server is shutting down", DRAIN_TIMEOUT_SECONDS);
+        if (logShipper != null) {
+            logShipper.close();
+        }
+        if (Thread.currentThread() != shutdownHook) {
+            try {
+                Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            } catch (IllegalStateException e) {
+                // The JVM is already shutting down
+            }
+        }
+    }
+
+    /**
+     * Chooses the JVM options of the Minecraft server. The options derived from the launch profile are passed in by
+     * the control plane and are validated with {@link JvmBenchmark} first; if they fail, conservative options for the
+     * memory of this instance are used instead. The outcome is recorded in the database so that operators can see
+     * whether a launch profile works.
+     *
+     * @param serverEntry      The database entry of the server
+     * @param memoryMiB        The memory available to the server in MiB
+     * @param jvmOptionsString The JVM options chosen by the control plane, or an empty string if there are none
+     * @return The JVM options to start the Minecraft server with
+     */
+    private static @NotNull List<String> chooseJvmOptions(@NotNull DatabaseEntry serverEntry,
+                                                          long memoryMiB,
+                                                          @NotNull String jvmOptionsString) {
+        jvmOptionsString = jvmOptionsString.trim();
+        List<String> jvmOptions = jvmOptionsString.isEmpty()
+                ? LaunchProfile.getJvmOptions(memoryMiB)
+                : Arrays.asList(jvmOptionsString.split("\\s+"));
+
+        JvmBenchmark.Result result = JvmBenchmark.run(jvmOptions);
+        String outcome = "tuned options " + result;
+        if (!result.isPassed()) {
+            jvmOptions = LaunchProfile.getFallbackJvmOptions(memoryMiB);
+            outcome += "; fallback options " + JvmBenchmark.run(jvmOptions);
+        }
+        System.out.println("JVM benchmark " + outcome);
+        serverEntry.setStringValue("LaunchProfileBenchmark", outcome);
+        return jvmOptions;
+    }
+
+    /**
+     * Reads the memory available to the server. In a container, /proc/meminfo shows the memory of the host, so the
+     * memory limit of the container's cgroup is used if it is lower.
+     *
+     * @return The available memory in MiB
+     * @throws IOException If the memory could not be read
+     */
+    static long readTotalMemoryMiB() throws IOException {
+        long memoryMiB = -1;
+        for (String line : Files.readAllLines(Paths.get("/proc/meminfo"))) {
+            // The line looks like "MemTotal:        7864320 kB"
+            if (line.startsWith("MemTotal:")) {
+                memoryMiB = Long.parseLong(line.replaceAll("[^0-9]", "")) / 1024;
+            }
+        }
+        if (memoryMiB < 0) {
+            throw new IOException("/proc/meminfo does not contain the total memory");
+        }
+        for (Path limitFile : Arrays.asList(Paths.get("/sys/fs/cgroup/memory.max"),
+                Paths.get("/sys/fs/cgroup/memory/memory.limit_in_bytes"))) {
+            if (Files.exists(limitFile)) {
+                String limit = Files.readString(limitFile).trim();
+                // cgroup v2 uses "max" for no limit, and v1 uses a huge number
+                if (limit.matches("[0-9]+")) {
+                    memoryMiB = Math.min(memoryMiB, Long.parseLong(limit) / 1024 / 1024);
+                }
+            }
+        }
+        return memoryMiB;
+    }
+
+    private void onConsoleLine(@NotNull String line) {
+        // The server prints e.g. "Done (12.345s)! For help, type "help"" once it accepts players
+        if (line.contains("Done (") && line.contains("For help, type")) {
+            markOnline();
+        }
+    }
+
+    /**
+     * Reacts to a spot interruption notice: players are warned, the world is saved and the Minecraft server is stopped
+     * while the instance still has time left. The server is then marked as interrupted in the database, and the
+     * control plane is asked to relaunch it on a new instance right away rather than when the old one is gone. The
+     * watcher's thread doesn't keep the JVM alive, so {@link #run()} and the shutdown hook wait for this to finish.
+     *
+     * @param notice The interruption notice from the instance metadata service
+     */
+    void onInterruptionNotice(@NotNull String notice) {
+        System.out.println("Received spot interruption notice " + notice);
+        interrupted = true;
+        shuttingDown = true;
+        try {
+            handleInterruption(notice);
+        } finally {
+            interruptionHandled.countDown();
+        }
+    }
+
+    private void handleInterruption(@NotNull String notice) {
+        try {
+            minecraftProcess.sendCommand("say This server is moving to a new machine and will stop in "
+                    + INTERRUPTION_WARNING_SECONDS + " seconds. It will be back in a few minutes.");
+            Thread.sleep(INTERRUPTION_WARNING_SECONDS * 1000);
+        } catch (IOException | IllegalStateException e) {
+            // The server isn't running, so there is nobody to warn
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        heartbeatPublisher.stop();
+        minecraftProcess.drain("The server is moving to a new machine", DRAIN_TIMEOUT_SECONDS);
+
+        ServerRecord.of(serverEntry).apply(new TypedRecord.Update()
+                .set(ServerRecord.STATE, ProvisionalServerState.UNKNOWN)
+                .setString("InterruptionNotice", notice)
+                .setString("InterruptedAvailabilityZone", requireEnvironmentVariable("EC2_ZONE"))
+                .removeString("ServerAddress"));
+
+        eventBridgeClient.putEvents(PutEventsRequest.builder()
+                .entries(PutEventsRequestEntry.builder()
+                        .source(EC2SpotInstanceManager.INTERRUPTION_EVENT_SOURCE)
+                        .detailType(EC2SpotInstanceManager.INTERRUPTION_EVENT_DETAIL_TYPE)
+                        .detail("{\"ServerId\":\"" + serverEntry.getId() + "\"}")
+                        .build())
+                .build());
+    }
+
+    /**
+     * Waits until an interruption notice that has been received is handled, so that the agent doesn't exit, or the JVM
+     * shut down, between draining the server and asking for its relaunch. Returns right away if no notice was received.
+     */
+    private void awaitInterruptionHandling() {
+        if (!interrupted) {
+            return;
+        }
+        try {
+            if (!interruptionHandled.await(INTERRUPTION_HANDLING_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                System.err.println("The spot interruption was not handled in time");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Records in the database that the server is online, together with the details the control plane and the wake
+     * proxy need to reach it. The values are written at once so nobody sees an ONLINE server without an address.
+     */
+    private void markOnline() {
+        TypedRecord.Update update = new TypedRecord.Update()
+                .set(ServerRecord.STATE, ProvisionalServerState.ONLINE)
+                .setString("ServerAddress", serverAddress)
+                .set(ServerRecord.HEARTBEAT, heartbeatPublisher.getCurrentHealth());
+        String instanceId = System.getenv("EC2_ID");
+        if (instanceId != null) {
+            update.setString("EC2InstanceId", instanceId);
+        }
+        ServerRecord.of(serverEntry).apply(update);
+        heartbeatPublisher.start();
+    }
+
+    static @NotNull String requireEnvironmentVariable(@NotNull String name) {
+        String value = System.getenv(name);
+        if (value == null) {
+            throw new IllegalStateException("Environment variable " + name + " is not set");
+        }
+        return value;
+    }
+
+    static @NotNull String getEnvironmentVariable(@NotNull String name, @NotNull String defaultValue) {
+        String value = System.getenv(name);
+        return value != null ? value : defaultValue;
+    }
+}
@@ -0,0 +1,57 @@
+package osbourn.cloudcubes.agent;
+
+import org.jetbrains.annotations.NotNull;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
+import software.amazon.awssdk.services.s3.model.S3Object;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Prepares the directory of a new server. A new server starts with the files from the {@code server-files} folder of
+ * the resource bucket, such as server.jar and eula.txt. The startup script of the spot instances seeds new data volumes
+ * itself, so this is only needed where there is no startup script, as in container tasks. Servers with an artifact
+ * manifest get their server jar from {@link ArtifactFetcher} first, so they are never seeded.
+ */
+public final class ServerFiles {
+    private static final String PREFIX = "server-files/";
+
+    private ServerFiles() {
+    }
+
+    /**
+     * Downloads the server files into the server directory if the directory doesn't contain a server yet.
+     *
+     * @param s3Client           The S3 client used to download the files
+     * @param resourceBucketName The name of the resource bucket
+     * @param serverDirectory    The directory of the server
+     * @throws IOException If the files could not be written
+     */
+    public static void seedIfEmpty(@NotNull S3Client s3Client,
+                                   @NotNull String resourceBucketName,
+                                   @NotNull Path serverDirectory) throws IOException {
+        if (Files.exists(serverDirectory.resolve("server.jar"))) {
+            return;
+        }
+        Files.createDirectories(serverDirectory);
+        ListObjectsV2Request request = ListObjectsV2Request.builder()
+                .bucket(resourceBucketName)
+                .prefix(PREFIX)
+                .build();
+        for (S3Object object : s3Client.listObjectsV2Paginator(request).contents()) {
+            if (object.key().endsWith("/")) {
+                continue;
+            }
+            Path file = serverDirectory.resolve(object.key().substring(PREFIX.length())).normalize();
+            if (!file.startsWith(serverDirectory)) {
+                throw new IOException("Server file " + object.key() + " is outside of the server directory");
+            }
+            Files.createDirectories(file.getParent());
+            Files.deleteIfExists(file);
+            s3Client.getObject(GetObjectRequest.builder().bucket(resourceBucketName).key(object.key()).build(), file);
+        }
+    }
+}
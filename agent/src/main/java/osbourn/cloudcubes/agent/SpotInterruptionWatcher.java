@@ -0,0 +1,124 @@
+package osbourn.cloudcubes.agent;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * <p>
+ * Watches the instance metadata service for a spot interruption notice. AWS publishes the notice two minutes before it
+ * reclaims a spot instance, at {@code /latest/meta-data/spot/instance-action}; the path returns 404 until then. The
+ * watcher uses IMDSv2, so it first requests a session token and sends it with every poll.
+ * </p>
+ *
+ * <p>
+ * The endpoint can be overridden, so that a local HTTP server can stand in for the metadata service when testing.
+ * </p>
+ */
+public class SpotInterruptionWatcher {
+    public static final String DEFAULT_ENDPOINT = "http://169.254.169.254";
+    /**
+     * AWS recommends polling every five seconds, which leaves most of the two minute notice for the reaction
+     */
+    private static final long POLL_INTERVAL_MILLIS = 5000;
+    private static final int TOKEN_TTL_SECONDS = 6 * 60 * 60;
+    private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(2);
+
+    private final URI endpoint;
+    private final Consumer<String> noticeListener;
+    private final long pollIntervalMillis;
+    private final HttpClient httpClient = HttpClient.newBuilder().connectTimeout(REQUEST_TIMEOUT).build();
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "spot-interruption-watcher");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private String token = null;
+    private long tokenExpiryMillis = 0;
+
+    /**
+     * Creates a SpotInterruptionWatcher object. Nothing is polled until {@link #start()} is called.
+     *
+     * @param endpoint       The base URI of the instance metadata service, usually {@link #DEFAULT_ENDPOINT}
+     * @param noticeListener Called once, on the watcher's thread, with the body of the interruption notice
+     */
+    public SpotInterruptionWatcher(@NotNull URI endpoint, @NotNull Consumer<String> noticeListener) {
+        this(endpoint, noticeListener, POLL_INTERVAL_MILLIS);
+    }
+
+    SpotInterruptionWatcher(@NotNull URI endpoint, @NotNull Consumer<String> noticeListener, long pollIntervalMillis) {
+        this.endpoint = endpoint;
+        this.noticeListener = noticeListener;
+        this.pollIntervalMillis = pollIntervalMillis;
+    }
+
+    /**
+     * Starts polling for an interruption notice.
+     */
+    public void start() {
+        executor.scheduleWithFixedDelay(this::poll, 0, pollIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops polling. A notice that is being handled is not interrupted.
+     */
+    public void stop() {
+        executor.shutdown();
+    }
+
+    private void poll() {
+        try {
+            HttpResponse<String> response = httpClient.send(HttpRequest.newBuilder()
+                    .uri(endpoint.resolve("/latest/meta-data/spot/instance-action"))
+                    .header("X-aws-ec2-metadata-token", getToken())
+                    .timeout(REQUEST_TIMEOUT)
+                    .GET()
+                    .build(), HttpResponse.BodyHandlers.ofString());
+            if (response.statusCode() == 200) {
+                // Only one notice is ever delivered, so there is nothing left to watch for
+                executor.shutdown();
+                noticeListener.accept(response.body());
+            } else if (response.statusCode() == 401) {
+                // The token has expired or was rejected, so get a new one on the next poll
+                token = null;
+            }
+        } catch (IOException e) {
+            System.err.println("Could not poll for a spot interruption notice: " + e.getMessage());
+        } catch (RuntimeException e) {
+            // An exception that escapes a scheduled task cancels all later polls, and is never reported
+            System.err.println("Unexpected error while watching for a spot interruption notice: " + e);
+            e.printStackTrace();
+            // The token may be what the request failed on, so get a new one on the next poll
+            token = null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private @NotNull String getToken() throws IOException, InterruptedException {
+        if (token == null || System.currentTimeMillis() >= tokenExpiryMillis) {
+            HttpResponse<String> response = httpClient.send(HttpRequest.newBuilder()
+                    .uri(endpoint.resolve("/latest/api/token"))
+                    .header("X-aws-ec2-metadata-token-ttl-seconds", Integer.toString(TOKEN_TTL_SECONDS))
+                    .timeout(REQUEST_TIMEOUT)
+                    .PUT(HttpRequest.BodyPublishers.noBody())
+                    .build(), HttpResponse.BodyHandlers.ofString());
+            if (response.statusCode() != 200) {
+                throw new IOException("The metadata service refused to issue a token: " + response.statusCode());
+            }
+            token = response.body();
+            // Renew the token well before it expires
+            tokenExpiryMillis = System.currentTimeMillis() + TOKEN_TTL_SECONDS * 1000L / 2;
+        }
+        return token;
+    }
+}
@@ -0,0 +1,161 @@
+package osbourn.cloudcubes.agent;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs the watcher against a local HTTP server that stands in for the instance metadata service.
+ */
+class SpotInterruptionWatcherTest {
+    private static final String NOTICE = "{\"action\": \"terminate\", \"time\": \"2026-10-19T12:00:00Z\"}";
+    private static final long POLL_INTERVAL_MILLIS = 20;
+    private static final long TIMEOUT_SECONDS = 5;
+
+    private HttpServer server;
+    private final Deque<String> tokenResponses = new ArrayDeque<>();
+    private final Deque<Integer> noticeStatuses = new ArrayDeque<>();
+    private final List<String> pollTokens = Collections.synchronizedList(new ArrayList<>());
+    private final AtomicInteger tokenRequests = new AtomicInteger();
+    private volatile String validToken = null;
+    private final BlockingQueue<String> notices = new LinkedBlockingQueue<>();
+    private SpotInterruptionWatcher watcher;
+
+    @BeforeEach
+    void startMetadataService() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/latest/api/token", this::handleToken);
+        server.createContext("/latest/meta-data/spot/instance-action", this::handleInstanceAction);
+        server.start();
+        watcher = new SpotInterruptionWatcher(URI.create("http://127.0.0.1:" + server.getAddress().getPort()),
+                notices::add, POLL_INTERVAL_MILLIS);
+    }
+
+    @AfterEach
+    void stopMetadataService() {
+        watcher.stop();
+        server.stop(0);
+    }
+
+    @Test
+    void deliversTheNoticeOnceAndStopsPolling() throws Exception {
+        noticeStatuses.add(404);
+        noticeStatuses.add(404);
+        noticeStatuses.add(200);
+
+        watcher.start();
+
+        assertEquals(NOTICE, notices.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        int pollsAtNotice = pollTokens.size();
+        Thread.sleep(10 * POLL_INTERVAL_MILLIS);
+        assertEquals(pollsAtNotice, pollTokens.size(), "The watcher kept polling after the notice");
+        assertTrue(notices.isEmpty());
+        assertEquals(3, pollTokens.size());
+        // The token is reused for every poll
+        assertEquals(1, tokenRequests.get());
+        for (String pollToken : pollTokens) {
+            assertEquals("token-1", pollToken);
+        }
+    }
+
+    @Test
+    void requestsANewTokenWhenTheTokenIsRejected() throws Exception {
+        noticeStatuses.add(404);
+        // The metadata service forgets the token, as it does when the instance is stopped and started
+        noticeStatuses.add(401);
+        noticeStatuses.add(200);
+
+        watcher.start();
+
+        assertEquals(NOTICE, notices.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(2, tokenRequests.get());
+        assertEquals("token-2", pollTokens.get(pollTokens.size() - 1));
+    }
+
+    @Test
+    void keepsPollingWhenNoTokenIsIssued() throws Exception {
+        tokenResponses.add("500");
+        noticeStatuses.add(200);
+
+        watcher.start();
+
+        assertEquals(NOTICE, notices.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(2, tokenRequests.get());
+    }
+
+    @Test
+    void keepsPollingAfterAnUnexpectedError() throws Exception {
+        // A token that isn't a valid header value makes building the poll request throw an IllegalArgumentException
+        tokenResponses.add("invalid\ntoken");
+        noticeStatuses.add(200);
+
+        watcher.start();
+
+        assertEquals(NOTICE, notices.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(2, tokenRequests.get());
+    }
+
+    private void handleToken(HttpExchange exchange) throws IOException {
+        if (!exchange.getRequestMethod().equals("PUT")
+                || exchange.getRequestHeaders().getFirst("X-aws-ec2-metadata-token-ttl-seconds") == null) {
+            respond(exchange, 400, "");
+            return;
+        }
+        int request = tokenRequests.incrementAndGet();
+        String response;
+        synchronized (tokenResponses) {
+            response = tokenResponses.poll();
+        }
+        if ("500".equals(response)) {
+            respond(exchange, 500, "");
+            return;
+        }
+        String token = response != null ? response : "token-" + request;
+        validToken = token;
+        respond(exchange, 200, token);
+    }
+
+    private void handleInstanceAction(HttpExchange exchange) throws IOException {
+        String token = exchange.getRequestHeaders().getFirst("X-aws-ec2-metadata-token");
+        if (token == null || !token.equals(validToken)) {
+            respond(exchange, 401, "");
+            return;
+        }
+        pollTokens.add(token);
+        Integer status;
+        synchronized (noticeStatuses) {
+            status = noticeStatuses.isEmpty() ? Integer.valueOf(404) : noticeStatuses.poll();
+        }
+        if (status == 401) {
+            validToken = null;
+        }
+        respond(exchange, status, status == 200 ? NOTICE : "");
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+        try (OutputStream output = exchange.getResponseBody()) {
+            output.write(bytes);
+        }
+    }
+}
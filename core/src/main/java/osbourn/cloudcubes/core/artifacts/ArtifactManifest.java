@@ -0,0 +1,198 @@
+package osbourn.cloudcubes.core.artifacts;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * <p>
+ * The list of files a server is installed from: the server jar, its mods and its configs, each identified by the
+ * SHA-256 hash of its contents. The files themselves are kept once per hash in the {@link ArtifactStore}, so servers
+ * that share a mod share a single copy of it.
+ * </p>
+ *
+ * <p>
+ * A manifest is stored in the artifact store as well, as text with one line per artifact of the form
+ * {@code "hash size path"}, where the path is relative to the server directory. The server's database entry only holds
+ * the hash of its manifest in the {@code ArtifactManifest} attribute, so that a modded server with hundreds of files
+ * doesn't make every read of the entry more expensive.
+ * </p>
+ */
+public final class ArtifactManifest {
+    private static final Pattern HASH = Pattern.compile("[0-9a-f]{64}");
+
+    private final List<Artifact> artifacts;
+
+    public ArtifactManifest(@NotNull List<Artifact> artifacts) {
+        this.artifacts = Collections.unmodifiableList(new ArrayList<>(artifacts));
+    }
+
+    /**
+     * Parses a manifest.
+     *
+     * @param value The text of the manifest
+     * @return The parsed manifest
+     * @throws IOException If the manifest is malformed
+     */
+    public static @NotNull ArtifactManifest fromString(@NotNull String value) throws IOException {
+        List<Artifact> artifacts = new ArrayList<>();
+        for (String line : value.split("\n")) {
+            if (line.isEmpty()) {
+                continue;
+            }
+            // The path is last, so it may contain spaces
+            String[] parts = line.split(" ", 3);
+            if (parts.length != 3 || !isHash(parts[0])) {
+                throw new IOException("Malformed manifest line: " + line);
+            }
+            artifacts.add(new Artifact(parts[2], parts[0], Long.parseLong(parts[1])));
+        }
+        return new ArtifactManifest(artifacts);
+    }
+
+    /**
+     * Returns true if the given string is a SHA-256 hash in the form used by artifacts.
+     *
+     * @param value The string to check
+     * @return True if the string is a lowercase hexadecimal SHA-256 hash
+     */
+    public static boolean isHash(@NotNull String value) {
+        return HASH.matcher(value).matches();
+    }
+
+    /**
+     * Creates a digest for computing artifact hashes.
+     *
+     * @return A new SHA-256 digest
+     */
+    public static @NotNull MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Formats the result of a digest as an artifact hash.
+     *
+     * @param digest The digest that the contents were fed into
+     * @return The hash as lowercase hexadecimal
+     */
+    public static @NotNull String toHash(@NotNull MessageDigest digest) {
+        StringBuilder hash = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hash.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hash.toString();
+    }
+
+    /**
+     * Computes the hash of a file.
+     *
+     * @param file The file to hash
+     * @return The SHA-256 hash of the file's contents
+     * @throws IOException If the file could not be read
+     */
+    public static @NotNull String hashFile(@NotNull Path file) throws IOException {
+        MessageDigest digest = newDigest();
+        try (InputStream inputStream = Files.newInputStream(file)) {
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return toHash(digest);
+    }
+
+    public @NotNull List<Artifact> getArtifacts() {
+        return artifacts;
+    }
+
+    /**
+     * Gets the hash of the manifest itself, which is the key it is stored under.
+     *
+     * @return The hash of the manifest
+     */
+    public @NotNull String getHash() {
+        MessageDigest digest = newDigest();
+        digest.update(toString().getBytes(StandardCharsets.UTF_8));
+        return toHash(digest);
+    }
+
+    /**
+     * Gets the total size of the artifacts.
+     *
+     * @return The total size in bytes
+     */
+    public long getTotalSize() {
+        long totalSize = 0;
+        for (Artifact artifact : artifacts) {
+            totalSize += artifact.getSize();
+        }
+        return totalSize;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (Artifact artifact : artifacts) {
+            builder.append(artifact.getHash()).append(' ')
+                    .append(artifact.getSize()).append(' ')
+                    .append(artifact.getPath()).append('\n');
+        }
+        return builder.toString();
+    }
+
+    /**
+     * A file of the server, identified by the hash of its contents.
+     */
+    public static final class Artifact {
+        private final String path;
+        private final String hash;
+        private final long size;
+
+        /**
+         * Creates an Artifact object.
+         *
+         * @param path The path of the file relative to the server directory, with forward slashes
+         * @param hash The SHA-256 hash of the file's contents
+         * @param size The size of the file in bytes
+         */
+        public Artifact(@NotNull String path, @NotNull String hash, long size) {
+            if (!isHash(hash)) {
+                throw new IllegalArgumentException("Not a SHA-256 hash: " + hash);
+            }
+            if (path.contains("\n")) {
+                throw new IllegalArgumentException("Artifact paths can't contain line breaks");
+            }
+            this.path = path;
+            this.hash = hash;
+            this.size = size;
+        }
+
+        public @NotNull String getPath() {
+            return path;
+        }
+
+        public @NotNull String getHash() {
+            return hash;
+        }
+
+        public long getSize() {
+            return size;
+        }
+    }
+}
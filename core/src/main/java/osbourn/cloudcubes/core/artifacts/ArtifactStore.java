@@ -0,0 +1,158 @@
+package osbourn.cloudcubes.core.artifacts;
+
+import org.jetbrains.annotations.NotNull;
+import software.amazon.awssdk.core.ResponseBytes;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * <p>
+ * Stores artifacts and manifests in the resource bucket under the hash of their contents: artifacts under
+ * {@code artifacts/sha256/<hash>} and manifests under {@code artifacts/manifests/<hash>}. Since the key is derived
+ * from the contents, an object is only ever uploaded once, and objects never change once they exist, so they can be
+ * cached anywhere without being revalidated.
+ * </p>
+ */
+public class ArtifactStore {
+    private static final String ARTIFACT_PREFIX = "artifacts/sha256/";
+    private static final String MANIFEST_PREFIX = "artifacts/manifests/";
+
+    private final S3Client s3Client;
+    private final String resourceBucketName;
+
+    /**
+     * Creates an ArtifactStore object.
+     *
+     * @param s3Client           The S3 client used to make requests
+     * @param resourceBucketName The name of the resource bucket the artifacts are stored in
+     */
+    public ArtifactStore(@NotNull S3Client s3Client, @NotNull String resourceBucketName) {
+        this.s3Client = s3Client;
+        this.resourceBucketName = resourceBucketName;
+    }
+
+    public @NotNull String getResourceBucketName() {
+        return resourceBucketName;
+    }
+
+    /**
+     * Gets the key of the object that holds the artifact with the given hash.
+     *
+     * @param hash The hash of the artifact
+     * @return The key of the artifact's object
+     */
+    public static @NotNull String getArtifactKey(@NotNull String hash) {
+        return ARTIFACT_PREFIX + hash;
+    }
+
+    /**
+     * Uploads every file in a directory and stores a manifest that lists them. Files that are already in the store are
+     * not uploaded again.
+     *
+     * @param directory The directory of a server, containing the server jar, mods and configs
+     * @return The manifest of the directory
+     * @throws IOException If a file could not be read
+     */
+    public @NotNull ArtifactManifest publish(@NotNull Path directory) throws IOException {
+        List<Path> files;
+        try (Stream<Path> stream = Files.walk(directory)) {
+            files = stream.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+        }
+        List<ArtifactManifest.Artifact> artifacts = new ArrayList<>();
+        for (Path file : files) {
+            String path = directory.relativize(file).toString().replace(file.getFileSystem().getSeparator(), "/");
+            artifacts.add(putArtifact(file, path));
+        }
+        ArtifactManifest manifest = new ArtifactManifest(artifacts);
+        putManifest(manifest);
+        return manifest;
+    }
+
+    /**
+     * Uploads a file to the store unless an artifact with the same contents is already stored.
+     *
+     * @param file The file to upload
+     * @param path The path of the file relative to the server directory
+     * @return The artifact describing the file
+     * @throws IOException If the file could not be read
+     */
+    public @NotNull ArtifactManifest.Artifact putArtifact(@NotNull Path file, @NotNull String path) throws IOException {
+        ArtifactManifest.Artifact artifact = new ArtifactManifest.Artifact(path, ArtifactManifest.hashFile(file),
+                Files.size(file));
+        if (!exists(getArtifactKey(artifact.getHash()))) {
+            s3Client.putObject(PutObjectRequest.builder()
+                    .bucket(resourceBucketName)
+                    .key(getArtifactKey(artifact.getHash()))
+                    .build(), RequestBody.fromFile(file));
+        }
+        return artifact;
+    }
+
+    /**
+     * Stores a manifest unless it is already stored.
+     *
+     * @param manifest The manifest to store
+     * @return The hash of the manifest
+     */
+    public @NotNull String putManifest(@NotNull ArtifactManifest manifest) {
+        String hash = manifest.getHash();
+        if (!exists(MANIFEST_PREFIX + hash)) {
+            s3Client.putObject(PutObjectRequest.builder()
+                    .bucket(resourceBucketName)
+                    .key(MANIFEST_PREFIX + hash)
+                    .contentType("text/plain; charset=utf-8")
+                    .build(), RequestBody.fromString(manifest.toString(), StandardCharsets.UTF_8));
+        }
+        return hash;
+    }
+
+    /**
+     * Downloads a manifest and checks that its contents match its hash.
+     *
+     * @param hash The hash of the manifest
+     * @return The manifest
+     * @throws IOException If the manifest doesn't exist, is malformed or doesn't match its hash
+     */
+    public @NotNull ArtifactManifest getManifest(@NotNull String hash) throws IOException {
+        if (!ArtifactManifest.isHash(hash)) {
+            throw new IOException("Not a manifest hash: " + hash);
+        }
+        ResponseBytes<GetObjectResponse> response;
+        try {
+            response = s3Client.getObjectAsBytes(GetObjectRequest.builder()
+                    .bucket(resourceBucketName)
+                    .key(MANIFEST_PREFIX + hash)
+                    .build());
+        } catch (NoSuchKeyException e) {
+            throw new IOException("Manifest " + hash + " does not exist", e);
+        }
+        ArtifactManifest manifest = ArtifactManifest.fromString(response.asUtf8String());
+        if (!manifest.getHash().equals(hash)) {
+            throw new IOException("Manifest " + hash + " does not match its hash");
+        }
+        return manifest;
+    }
+
+    private boolean exists(@NotNull String key) {
+        try {
+            s3Client.headObject(HeadObjectRequest.builder().bucket(resourceBucketName).key(key).build());
+            return true;
+        } catch (NoSuchKeyException e) {
+            return false;
+        }
+    }
+}
@@ -21,6 +21,12 @@ import java.util.*;
  * </p>
  */
 public final class InfrastructureConfiguration {
+    /**
+     * The name of the SSM parameter that each regional stack stores its InfrastructureConfiguration in, so that code
+     * running in one region can find the resources of the other regions.
+     */
+    public static final String PARAMETER_NAME = "/cloudcubes/infrastructure-configuration";
+
     private final Map<InfrastructureSetting, String> settings;
     private boolean hasCheckedCompleteness = false;
 
@@ -54,6 +60,33 @@ public final class InfrastructureConfiguration {
         return configuration;
     }
 
+    /**
+     * Construct an InfrastructureConfiguration object from a string created by {@link #toParameterString()}.
+     *
+     * @param parameterString The string to read the values from
+     * @return The InfrastructureConfiguration object that was just constructed
+     * @throws IncompleteInfrastructureConfigurationException If the string did not contain all the necessary values
+     */
+    public static @NotNull InfrastructureConfiguration fromParameterString(@NotNull String parameterString) {
+        Map<String, String> values = new HashMap<>();
+        for (String line : parameterString.split("\n")) {
+            int separatorIndex = line.indexOf('=');
+            if (separatorIndex > 0) {
+                values.put(line.substring(0, separatorIndex), line.substring(separatorIndex + 1));
+            }
+        }
+        InfrastructureConfiguration configuration = new InfrastructureConfiguration();
+        for (InfrastructureSetting setting : InfrastructureSetting.values()) {
+            String settingValue = values.get(setting.environmentVariableName);
+            if (settingValue == null) {
+                throw new IncompleteInfrastructureConfigurationException("Parameter did not contain all values" +
+                        " needed to construct an InfrastructureConfiguration object");
+            }
+            configuration.setValue(setting, settingValue);
+        }
+        return configuration;
+    }
+
     /**
      * Set the value of the specified setting.
      *
@@ -95,11 +128,48 @@ public final class InfrastructureConfiguration {
         return environmentVariables;
     }
 
+    /**
+     * Generate a string that can later be read by {@link #fromParameterString(String)}. The string contains one
+     * "NAME=value" line per setting, using the same names as {@link #toEnvironmentVariableMap()}.
+     *
+     * @return A string that represents the InfrastructureConfiguration object.
+     */
+    public @NotNull String toParameterString() {
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, String> entry : new TreeMap<>(this.toEnvironmentVariableMap()).entrySet()) {
+            builder.append(entry.getKey()).append('=').append(entry.getValue()).append('\n');
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Gets the region that the resources described by this object are in.
+     *
+     * @return The region of this configuration
+     */
     public Region getRegion() {
         return Region.of(this.getValue(InfrastructureSetting.REGIONASSTRING)
                 .toLowerCase().replace('_', '-'));
     }
 
+    /**
+     * Gets all the regions that CloudCubes is deployed to and that servers can be placed in. The first region is the
+     * primary region, which holds the main copy of the server table.
+     *
+     * @return The regions servers can run in
+     */
+    public @NotNull List<Region> getServerRegions() {
+        List<Region> regions = new ArrayList<>();
+        for (String region : this.getValue(InfrastructureSetting.SERVERREGIONSASSTRING).split(",")) {
+            regions.add(Region.of(region));
+        }
+        return regions;
+    }
+
+    public void setServerRegions(@NotNull List<String> serverRegions) {
+        this.setValue(InfrastructureSetting.SERVERREGIONSASSTRING, String.join(",", serverRegions));
+    }
+
     public @NotNull List<String> getServerSubnetIds() {
         return new ArrayList<>(Arrays.asList(
                 this.getValue(InfrastructureSetting.SERVERSUBNETIDSASSTRING).split(",")));
@@ -131,13 +201,21 @@ public final class InfrastructureConfiguration {
 
     public enum InfrastructureSetting {
         REGIONASSTRING("CLOUDCUBESREGION"),
+        SERVERREGIONSASSTRING("CLOUDCUBESSERVERREGIONS"),
         SERVERDATABASENAME("CLOUDCUBESSERVERDATABASENAME"),
         RESOURCEBUCKETNAME("CLOUDCUBESRESOURCEBUCKETNAME"),
         SERVERROLEID("CLOUDCUBESSERVERROLEID"),
         SERVERINSTANCEPROFILEARN("CLOUDCUBESSERVERINSTANCEPROFILEARN"),
         SERVERSECURITYGROUPID("CLOUDCUBESSERVERSECURITYGROUPID"),
         SERVERVPCID("CLOUDCUBESSERVERVPCID"),
-        SERVERSUBNETIDSASSTRING("CLOUDCUBESSERVERSUBNETIDS");
+        SERVERSUBNETIDSASSTRING("CLOUDCUBESSERVERSUBNETIDS"),
+        SERVERIMAGEID("CLOUDCUBESSERVERIMAGEID"),
+        LOGBUCKETNAME("CLOUDCUBESLOGBUCKETNAME"),
+        CONTAINERCLUSTERNAME("CLOUDCUBESCONTAINERCLUSTERNAME"),
+        CONTAINERTASKDEFINITIONARN("CLOUDCUBESCONTAINERTASKDEFINITIONARN"),
+        CONTAINERCAPACITYPROVIDER("CLOUDCUBESCONTAINERCAPACITYPROVIDER"),
+        HOSTDATABASENAME("CLOUDCUBESHOSTDATABASENAME"),
+        WORLDFILESYSTEMID("CLOUDCUBESWORLDFILESYSTEMID");
 
         private final @NotNull String environmentVariableName;
 
@@ -1,20 +1,40 @@
 package osbourn.cloudcubes.core.constructs;
 
+import org.jetbrains.annotations.Nullable;
 import osbourn.cloudcubes.core.constructs.InfrastructureConfiguration.InfrastructureSetting;
+import software.amazon.awssdk.regions.Region;
 import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClientBuilder;
 import software.amazon.awssdk.services.ec2.Ec2Client;
 import software.amazon.awssdk.services.ec2.model.Vpc;
+import software.amazon.awssdk.services.ecs.EcsClient;
+import software.amazon.awssdk.services.eventbridge.EventBridgeClient;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.ssm.SsmClient;
+import software.amazon.awssdk.services.ssm.model.GetParameterRequest;
+
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * Retrieves information from an InfrastructureConfiguration object and generates AWS SDK objects.
  * For example, it can return objects representing the DynamoDB Table where the server data is stored.
+ * When CloudCubes is deployed to several regions, {@link #forRegion(Region)} returns the constructor for another
+ * region, sharing its clients with every other caller. The clients are created once and may be used by several threads.
  */
 public class InfrastructureConstructor {
     private final InfrastructureConfiguration infrastructureConfiguration;
+    private final @Nullable URI dynamoDBEndpoint;
 
     private DynamoDbClient dynamoDBClient = null;
     private Ec2Client ec2Client = null;
     private Vpc serverVpc = null;
+    private SsmClient ssmClient = null;
+    private S3Client s3Client = null;
+    private EcsClient ecsClient = null;
+    private EventBridgeClient eventBridgeClient = null;
+    private final Map<Region, InfrastructureConstructor> regionalConstructors = new HashMap<>();
 
     /**
      * Generates an InfrastructureConstructor object from an InfrastructureConfiguration object.
@@ -22,7 +42,20 @@ public class InfrastructureConstructor {
      * @param infrastructureConfiguration The data to use when generating objects.
      */
     public InfrastructureConstructor(InfrastructureConfiguration infrastructureConfiguration) {
+        this(infrastructureConfiguration, null);
+    }
+
+    /**
+     * Generates an InfrastructureConstructor object whose DynamoDB client talks to the given endpoint instead of the
+     * endpoint of the region, for example DynamoDB Local during development.
+     *
+     * @param infrastructureConfiguration The data to use when generating objects.
+     * @param dynamoDBEndpoint            The DynamoDB endpoint to use, or null to use the endpoint of the region
+     */
+    public InfrastructureConstructor(InfrastructureConfiguration infrastructureConfiguration,
+                                     @Nullable URI dynamoDBEndpoint) {
         this.infrastructureConfiguration = infrastructureConfiguration;
+        this.dynamoDBEndpoint = dynamoDBEndpoint;
     }
 
     /**
@@ -34,21 +67,79 @@ public class InfrastructureConstructor {
         return infrastructureConfiguration;
     }
 
-    public DynamoDbClient getDynamoDBClient() {
+    public synchronized DynamoDbClient getDynamoDBClient() {
         if (dynamoDBClient == null) {
-            dynamoDBClient = DynamoDbClient.builder().region(infrastructureConfiguration.getRegion()).build();
+            DynamoDbClientBuilder builder = DynamoDbClient.builder().region(infrastructureConfiguration.getRegion());
+            if (dynamoDBEndpoint != null) {
+                builder.endpointOverride(dynamoDBEndpoint);
+            }
+            dynamoDBClient = builder.build();
         }
         return dynamoDBClient;
     }
 
-    public Ec2Client getEc2Client() {
+    public synchronized Ec2Client getEc2Client() {
         if (ec2Client == null) {
             ec2Client = Ec2Client.builder().region(infrastructureConfiguration.getRegion()).build();
         }
         return ec2Client;
     }
 
-    public Vpc getServerVpc() {
+    public synchronized SsmClient getSsmClient() {
+        if (ssmClient == null) {
+            ssmClient = SsmClient.builder().region(infrastructureConfiguration.getRegion()).build();
+        }
+        return ssmClient;
+    }
+
+    public synchronized S3Client getS3Client() {
+        if (s3Client == null) {
+            s3Client = S3Client.builder().region(infrastructureConfiguration.getRegion()).build();
+        }
+        return s3Client;
+    }
+
+    public synchronized EcsClient getEcsClient() {
+        if (ecsClient == null) {
+            ecsClient = EcsClient.builder().region(infrastructureConfiguration.getRegion()).build();
+        }
+        return ecsClient;
+    }
+
+    public synchronized EventBridgeClient getEventBridgeClient() {
+        if (eventBridgeClient == null) {
+            eventBridgeClient = EventBridgeClient.builder().region(infrastructureConfiguration.getRegion()).build();
+        }
+        return eventBridgeClient;
+    }
+
+    /**
+     * Gets the InfrastructureConstructor for the CloudCubes resources in another region. The configuration of that
+     * region is read from the SSM parameter its stack created, and the constructor is cached so the clients it creates
+     * are reused.
+     *
+     * @param region The region to get the constructor for
+     * @return This object if the region is the region of this constructor, otherwise the constructor for the region
+     */
+    public synchronized InfrastructureConstructor forRegion(Region region) {
+        if (region.equals(infrastructureConfiguration.getRegion())) {
+            return this;
+        }
+        InfrastructureConstructor regionalConstructor = regionalConstructors.get(region);
+        if (regionalConstructor == null) {
+            try (SsmClient regionalSsmClient = SsmClient.builder().region(region).build()) {
+                String parameterString = regionalSsmClient.getParameter(GetParameterRequest.builder()
+                        .name(InfrastructureConfiguration.PARAMETER_NAME)
+                        .build()).parameter().value();
+                regionalConstructor = new InfrastructureConstructor(
+                        InfrastructureConfiguration.fromParameterString(parameterString), dynamoDBEndpoint);
+            }
+            regionalConstructors.put(region, regionalConstructor);
+        }
+        return regionalConstructor;
+    }
+
+    public synchronized Vpc getServerVpc() {
         if (serverVpc == null) {
             String serverVpcId = infrastructureConfiguration.getValue(InfrastructureSetting.SERVERVPCID);
             serverVpc = Vpc.builder().vpcId(serverVpcId).build();
@@ -4,6 +4,8 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import osbourn.cloudcubes.core.util.Identifiable;
 
+import java.util.Collection;
+import java.util.Map;
 import java.util.UUID;
 
 /**
@@ -25,6 +27,72 @@ public interface DatabaseEntry extends Identifiable {
      */
     @Nullable String getStringValue(@NotNull String key);
 
+    /**
+     * Gets a string value associated with key "key" from the database, bypassing any local cache. This is useful for
+     * values that are written by other processes, such as the server instance itself.
+     *
+     * @param key The key to get the value of
+     * @return The value in the database that matches the key, or null if the key does not exist
+     */
+    @Nullable String requestStringValueFromDatabase(@NotNull String key);
+
+    /**
+     * Gets several string values in a single read, bypassing any local cache. This is cheaper than reading the values
+     * one at a time, and the values are read together, so they are consistent with each other. Binary values among
+     * the keys are mapped to null, but are read as well, so {@link #getBinaryValue(String)} returns them afterwards.
+     *
+     * @param keys The keys to get the values of
+     * @return The values of the keys; keys that do not exist are mapped to null
+     */
+    @NotNull Map<String, String> requestStringValuesFromDatabase(@NotNull Collection<String> keys);
+
+    /**
+     * Gets several string values, which may come from a local cache. The values that aren't cached are read in a
+     * single request, like {@link #requestStringValuesFromDatabase(Collection)}, so binary values among the keys are
+     * mapped to null, but {@link #getBinaryValue(String)} returns them afterwards without another request.
+     *
+     * @param keys The keys to get the values of
+     * @return The values of the keys; keys that do not exist are mapped to null
+     */
+    @NotNull Map<String, String> getStringValues(@NotNull Collection<String> keys);
+
+    /**
+     * Gets a binary value associated with key "key" from the database. The value may come from a local cache.
+     *
+     * @param key The key to get the value of
+     * @return The value in the database that matches the key, or null if the key does not exist
+     */
+    @Nullable byte[] getBinaryValue(@NotNull String key);
+
+    /**
+     * Gets a binary value associated with key "key" from the database, bypassing any local cache.
+     *
+     * @param key The key to get the value of
+     * @return The value in the database that matches the key, or null if the key does not exist
+     */
+    @Nullable byte[] requestBinaryValueFromDatabase(@NotNull String key);
+
+    /**
+     * Sets a binary value, but only if its current value and the current values of the given string keys match the
+     * expected values. String values are set and keys are removed in the same atomic update. This allows several
+     * processes to change parts of the same binary value without overwriting each other's changes.
+     *
+     * @param key                  The key of the binary value
+     * @param expectedValue        The value the key must currently have, or null if the key must not exist
+     * @param value                The binary value to put in the database
+     * @param expectedStringValues The values the string keys must currently have; a null value means the key must
+     *                             not exist
+     * @param stringValues         The string values to put in the database
+     * @param removedKeys          The keys to remove from the database
+     * @return True if the values were set, false if one of the current values did not match
+     */
+    boolean setBinaryValueIf(@NotNull String key,
+                             @Nullable byte[] expectedValue,
+                             @NotNull byte[] value,
+                             @NotNull Map<String, String> expectedStringValues,
+                             @NotNull Map<String, String> stringValues,
+                             @NotNull Collection<String> removedKeys);
+
     /**
      * Sets the string value associated with key "key" to the specified value
      *
@@ -32,5 +100,44 @@ public interface DatabaseEntry extends Identifiable {
      * @param value The value to put in the database
      */
     void setStringValue(@NotNull String key, @NotNull String value);
+
+    /**
+     * Sets several string values at once. The values are written in a single atomic update, so other readers never
+     * see only some of them.
+     *
+     * @param values The keys and values to put in the database
+     */
+    void setStringValues(@NotNull Map<String, String> values);
+
+    /**
+     * Sets several string values at once, but only if the current values of the given keys match the expected values.
+     * This allows several processes to update the same entry without overwriting each other's changes.
+     *
+     * @param expectedValues The values the keys must currently have; a null value means the key must not exist
+     * @param values         The keys and values to put in the database
+     * @return True if the values were set, false if one of the current values did not match
+     */
+    boolean setStringValuesIf(@NotNull Map<String, String> expectedValues, @NotNull Map<String, String> values);
+
+    /**
+     * Sets several string values and removes keys in a single atomic update, but only if the current values of the
+     * given keys match the expected values.
+     *
+     * @param expectedValues The values the keys must currently have; a null value means the key must not exist
+     * @param values         The keys and values to put in the database
+     * @param removedKeys    The keys to remove from the database
+     * @return True if the values were set, false if one of the current values did not match
+     * @see #setStringValuesIf(Map, Map)
+     */
+    boolean setStringValuesIf(@NotNull Map<String, String> expectedValues,
+                              @NotNull Map<String, String> values,
+                              @NotNull Collection<String> removedKeys);
+
+    /**
+     * Removes the value associated with key "key" from the database. Does nothing if the key does not exist.
+     *
+     * @param key The key of the value to remove
+     */
+    void removeValue(@NotNull String key);
 }
 
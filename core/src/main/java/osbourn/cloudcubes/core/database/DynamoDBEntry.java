@@ -2,16 +2,22 @@ package osbourn.cloudcubes.core.database;
 
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import software.amazon.awssdk.core.SdkBytes;
 import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
 import software.amazon.awssdk.services.dynamodb.model.*;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 
 /**
  * Represents a entry on the DynamoDB database.
  * This class primarily acts as an interface to the DynamoDB table, allowing you to read and set values in the database.
+ * An entry may be shared between threads.
  */
 public class DynamoDBEntry implements DatabaseEntry {
     public final UUID id;
@@ -19,9 +25,14 @@ public class DynamoDBEntry implements DatabaseEntry {
     private final String tableName;
     /**
      * Contains a local cache of values the user requested from the database.
-     * Format for each entry is ("nameOfKey", "valueInDatabase")
+     * Format for each entry is ("nameOfKey", "valueInDatabase"). Values that don't exist are cached as null, so the
+     * cache is a synchronized HashMap rather than a ConcurrentHashMap.
      */
-    private final Map<String, String> stringValueCache = new HashMap<>();
+    private final Map<String, String> stringValueCache = Collections.synchronizedMap(new HashMap<>());
+    /**
+     * Contains a local cache of binary values, in the same way as {@link #stringValueCache}
+     */
+    private final Map<String, byte[]> binaryValueCache = Collections.synchronizedMap(new HashMap<>());
 
     private DynamoDBEntry(UUID id, DynamoDbClient dynamoDbClient, String tableName) {
         this.id = id;
@@ -41,6 +52,31 @@ public class DynamoDBEntry implements DatabaseEntry {
         return new DynamoDBEntry(id, dynamoDbClient, tableName);
     }
 
+    /**
+     * Creates a new DynamoDBEntry object from an item that was read from the server database, for example by a
+     * {@link ParallelScan}. The string and binary attributes of the item are cached, so reading them with
+     * {@link #getStringValue(String)} or {@link #getBinaryValue(String)} doesn't make another request.
+     *
+     * @param item           The item, which must include the "Id" attribute
+     * @param dynamoDbClient The DynamoDB client used to make requests
+     * @param tableName      The name of the database table
+     * @return The server object that was just created
+     */
+    public static DynamoDBEntry fromItem(Map<String, AttributeValue> item, DynamoDbClient dynamoDbClient,
+                                         String tableName) {
+        AttributeValue id = item.get("Id");
+        if (id == null || id.s() == null) {
+            throw new IllegalArgumentException("The item does not have an id");
+        }
+        DynamoDBEntry entry = new DynamoDBEntry(UUID.fromString(id.s()), dynamoDbClient, tableName);
+        for (Map.Entry<String, AttributeValue> attribute : item.entrySet()) {
+            if (attribute.getValue().s() != null || attribute.getValue().b() != null) {
+                entry.cacheValue(attribute.getKey(), attribute.getValue());
+            }
+        }
+        return entry;
+    }
+
     @Override
     public @NotNull UUID getId() {
         return this.id;
@@ -66,11 +102,12 @@ public class DynamoDBEntry implements DatabaseEntry {
      */
     public @Nullable String getStringValue(@NotNull String valueToGet) {
         // Check if value has been cached
-        if (stringValueCache.containsKey(valueToGet)) {
-            return stringValueCache.get(valueToGet);
-        } else {
-            return requestStringValueFromDatabase(valueToGet);
+        synchronized (stringValueCache) {
+            if (stringValueCache.containsKey(valueToGet)) {
+                return stringValueCache.get(valueToGet);
+            }
         }
+        return requestStringValueFromDatabase(valueToGet);
     }
 
     /**
@@ -91,6 +128,7 @@ public class DynamoDBEntry implements DatabaseEntry {
      * @return The value in the database, or null if it does not exist.
      * @see #getStringValue(String)
      */
+    @Override
     public @Nullable String requestStringValueFromDatabase(@NotNull String valueToGet) {
         // Used to let AWS know that we want to get values from the item that has "Id" set to this.id
         Map<String, AttributeValue> keyToGet = new HashMap<>();
@@ -106,24 +144,313 @@ public class DynamoDBEntry implements DatabaseEntry {
                 .build();
         Map<String, AttributeValue> returnedItem = dynamoDbClient.getItem(request).item();
 
-        // Request value from database
-        String value = returnedItem.get(valueToGet).s();
-        stringValueCache.put(valueToGet, value);
-        return value;
+        // Request value from database (the item itself is missing if no attribute matched the projection)
+        AttributeValue attributeValue = returnedItem == null ? null : returnedItem.get(valueToGet);
+        cacheValue(valueToGet, attributeValue);
+        return attributeValue == null ? null : attributeValue.s();
+    }
+
+    @Override
+    public @NotNull Map<String, String> requestStringValuesFromDatabase(@NotNull Collection<String> valuesToGet) {
+        Map<String, AttributeValue> keyToGet = new HashMap<>();
+        keyToGet.put("Id", AttributeValue.builder()
+                .s(this.id.toString())
+                .build());
+
+        // Attribute names are passed as placeholders, since some names are reserved words in projection expressions
+        Map<String, String> attributeNames = new HashMap<>();
+        List<String> projection = new ArrayList<>();
+        int index = 0;
+        for (String valueToGet : valuesToGet) {
+            attributeNames.put("#p" + index, valueToGet);
+            projection.add("#p" + index);
+            index++;
+        }
+        GetItemRequest request = GetItemRequest.builder()
+                .key(keyToGet)
+                .tableName(this.tableName)
+                .projectionExpression(String.join(", ", projection))
+                .expressionAttributeNames(attributeNames)
+                .build();
+        Map<String, AttributeValue> returnedItem = dynamoDbClient.getItem(request).item();
+
+        Map<String, String> values = new HashMap<>();
+        for (String valueToGet : valuesToGet) {
+            AttributeValue attributeValue = returnedItem == null ? null : returnedItem.get(valueToGet);
+            values.put(valueToGet, attributeValue == null ? null : attributeValue.s());
+            cacheValue(valueToGet, attributeValue);
+        }
+        return values;
+    }
+
+    @Override
+    public @NotNull Map<String, String> getStringValues(@NotNull Collection<String> valuesToGet) {
+        Map<String, String> values = new HashMap<>();
+        for (String valueToGet : valuesToGet) {
+            synchronized (stringValueCache) {
+                if (stringValueCache.containsKey(valueToGet)) {
+                    values.put(valueToGet, stringValueCache.get(valueToGet));
+                    continue;
+                }
+            }
+            // A binary value may only be cached as binary, and its string value is null
+            if (binaryValueCache.containsKey(valueToGet)) {
+                values.put(valueToGet, null);
+            } else {
+                return requestStringValuesFromDatabase(valuesToGet);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Gets a binary value associated with a key from the database. Like {@link #getStringValue(String)}, this uses a
+     * local cache to determine if the value has been downloaded before.
+     *
+     * @param valueToGet The key of the value in the database
+     * @return The value in the database, or null if it does not exist.
+     * @see #requestBinaryValueFromDatabase(String)
+     */
+    @Override
+    public @Nullable byte[] getBinaryValue(@NotNull String valueToGet) {
+        synchronized (binaryValueCache) {
+            if (binaryValueCache.containsKey(valueToGet)) {
+                byte[] value = binaryValueCache.get(valueToGet);
+                return value == null ? null : value.clone();
+            }
+        }
+        return requestBinaryValueFromDatabase(valueToGet);
+    }
+
+    @Override
+    public @Nullable byte[] requestBinaryValueFromDatabase(@NotNull String valueToGet) {
+        Map<String, AttributeValue> keyToGet = new HashMap<>();
+        keyToGet.put("Id", AttributeValue.builder()
+                .s(this.id.toString())
+                .build());
+
+        GetItemRequest request = GetItemRequest.builder()
+                .key(keyToGet)
+                .tableName(this.tableName)
+                .projectionExpression("#p")
+                .expressionAttributeNames(Collections.singletonMap("#p", valueToGet))
+                .build();
+        Map<String, AttributeValue> returnedItem = dynamoDbClient.getItem(request).item();
+
+        AttributeValue attributeValue = returnedItem == null ? null : returnedItem.get(valueToGet);
+        cacheValue(valueToGet, attributeValue);
+        return attributeValue == null || attributeValue.b() == null ? null : attributeValue.b().asByteArray();
     }
 
     public void setStringValue(@NotNull String key, @NotNull String value) {
-        // Used to let AWS know that we want to set values for the item that has "Id" set to this.id
+        Map<String, String> values = new HashMap<>();
+        values.put(key, value);
+        setStringValues(values);
+    }
+
+    @Override
+    public void setStringValues(@NotNull Map<String, String> values) {
+        // Tells AWS which values to update and what the new values are
+        HashMap<String, AttributeValueUpdate> updatedValues = new HashMap<>();
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            updatedValues.put(entry.getKey(), AttributeValueUpdate.builder()
+                    .value(AttributeValue.builder().s(entry.getValue()).build())
+                    .action(AttributeAction.PUT)
+                    .build());
+        }
+        updateItem(updatedValues);
+
+        // Cache new values
+        stringValueCache.putAll(values);
+    }
+
+    @Override
+    public boolean setStringValuesIf(@NotNull Map<String, String> expectedValues, @NotNull Map<String, String> values) {
+        return setStringValuesIf(expectedValues, values, Collections.emptySet());
+    }
+
+    @Override
+    public boolean setStringValuesIf(@NotNull Map<String, String> expectedValues,
+                                     @NotNull Map<String, String> values,
+                                     @NotNull Collection<String> removedKeys) {
+        // Conditions can't be combined with attributeUpdates, so the update is written as an expression
+        Map<String, String> attributeNames = new HashMap<>();
+        Map<String, AttributeValue> attributeValues = new HashMap<>();
+        List<String> assignments = new ArrayList<>();
+        List<String> removals = new ArrayList<>();
+        List<String> conditions = new ArrayList<>();
+        int index = 0;
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            attributeNames.put("#v" + index, entry.getKey());
+            attributeValues.put(":v" + index, AttributeValue.builder().s(entry.getValue()).build());
+            assignments.add("#v" + index + " = :v" + index);
+            index++;
+        }
+        index = 0;
+        for (String removedKey : removedKeys) {
+            attributeNames.put("#r" + index, removedKey);
+            removals.add("#r" + index);
+            index++;
+        }
+        index = 0;
+        for (Map.Entry<String, String> entry : expectedValues.entrySet()) {
+            attributeNames.put("#e" + index, entry.getKey());
+            if (entry.getValue() == null) {
+                conditions.add("attribute_not_exists(#e" + index + ")");
+            } else {
+                attributeValues.put(":e" + index, AttributeValue.builder().s(entry.getValue()).build());
+                conditions.add("#e" + index + " = :e" + index);
+            }
+            index++;
+        }
+
         Map<String, AttributeValue> itemKey = new HashMap<>();
         itemKey.put("Id", AttributeValue.builder()
                 .s(this.id.toString())
                 .build());
+        List<String> clauses = new ArrayList<>();
+        if (!assignments.isEmpty()) {
+            clauses.add("SET " + String.join(", ", assignments));
+        }
+        if (!removals.isEmpty()) {
+            clauses.add("REMOVE " + String.join(", ", removals));
+        }
+        UpdateItemRequest.Builder request = UpdateItemRequest.builder()
+                .tableName(this.tableName)
+                .key(itemKey)
+                .updateExpression(String.join(" ", clauses))
+                .expressionAttributeNames(attributeNames);
+        // DynamoDB rejects an empty map of values, which an update that only removes keys may have
+        if (!attributeValues.isEmpty()) {
+            request.expressionAttributeValues(attributeValues);
+        }
+        if (!conditions.isEmpty()) {
+            request.conditionExpression(String.join(" AND ", conditions));
+        }
+        try {
+            dynamoDbClient.updateItem(request.build());
+        } catch (ConditionalCheckFailedException e) {
+            // The cached values are out of date, so they are read again when they are needed
+            for (String key : expectedValues.keySet()) {
+                stringValueCache.remove(key);
+            }
+            return false;
+        }
+
+        stringValueCache.putAll(values);
+        for (String removedKey : removedKeys) {
+            stringValueCache.put(removedKey, null);
+            binaryValueCache.put(removedKey, null);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean setBinaryValueIf(@NotNull String key,
+                                    @Nullable byte[] expectedValue,
+                                    @NotNull byte[] value,
+                                    @NotNull Map<String, String> expectedStringValues,
+                                    @NotNull Map<String, String> stringValues,
+                                    @NotNull Collection<String> removedKeys) {
+        Map<String, String> attributeNames = new HashMap<>();
+        Map<String, AttributeValue> attributeValues = new HashMap<>();
+        List<String> assignments = new ArrayList<>();
+        List<String> removals = new ArrayList<>();
+        List<String> conditions = new ArrayList<>();
 
-        // Tells AWS which value to update and what the new value is
+        attributeNames.put("#b", key);
+        attributeValues.put(":b", AttributeValue.builder().b(SdkBytes.fromByteArray(value)).build());
+        assignments.add("#b = :b");
+        if (expectedValue == null) {
+            conditions.add("attribute_not_exists(#b)");
+        } else {
+            attributeValues.put(":eb", AttributeValue.builder().b(SdkBytes.fromByteArray(expectedValue)).build());
+            conditions.add("#b = :eb");
+        }
+        int index = 0;
+        for (Map.Entry<String, String> entry : stringValues.entrySet()) {
+            attributeNames.put("#v" + index, entry.getKey());
+            attributeValues.put(":v" + index, AttributeValue.builder().s(entry.getValue()).build());
+            assignments.add("#v" + index + " = :v" + index);
+            index++;
+        }
+        index = 0;
+        for (String removedKey : removedKeys) {
+            attributeNames.put("#r" + index, removedKey);
+            removals.add("#r" + index);
+            index++;
+        }
+        index = 0;
+        for (Map.Entry<String, String> entry : expectedStringValues.entrySet()) {
+            attributeNames.put("#e" + index, entry.getKey());
+            if (entry.getValue() == null) {
+                conditions.add("attribute_not_exists(#e" + index + ")");
+            } else {
+                attributeValues.put(":e" + index, AttributeValue.builder().s(entry.getValue()).build());
+                conditions.add("#e" + index + " = :e" + index);
+            }
+            index++;
+        }
+
+        Map<String, AttributeValue> itemKey = new HashMap<>();
+        itemKey.put("Id", AttributeValue.builder()
+                .s(this.id.toString())
+                .build());
+        String updateExpression = "SET " + String.join(", ", assignments);
+        if (!removals.isEmpty()) {
+            updateExpression += " REMOVE " + String.join(", ", removals);
+        }
+        try {
+            dynamoDbClient.updateItem(UpdateItemRequest.builder()
+                    .tableName(this.tableName)
+                    .key(itemKey)
+                    .updateExpression(updateExpression)
+                    .conditionExpression(String.join(" AND ", conditions))
+                    .expressionAttributeNames(attributeNames)
+                    .expressionAttributeValues(attributeValues)
+                    .build());
+        } catch (ConditionalCheckFailedException e) {
+            // The cached values are out of date, so they are read again when they are needed
+            binaryValueCache.remove(key);
+            for (String expectedKey : expectedStringValues.keySet()) {
+                stringValueCache.remove(expectedKey);
+            }
+            return false;
+        }
+
+        binaryValueCache.put(key, value.clone());
+        stringValueCache.putAll(stringValues);
+        for (String removedKey : removedKeys) {
+            stringValueCache.put(removedKey, null);
+        }
+        return true;
+    }
+
+    @Override
+    public void removeValue(@NotNull String key) {
         HashMap<String, AttributeValueUpdate> updatedValues = new HashMap<>();
         updatedValues.put(key, AttributeValueUpdate.builder()
-                .value(AttributeValue.builder().s(value).build())
-                .action(AttributeAction.PUT)
+                .action(AttributeAction.DELETE)
+                .build());
+        updateItem(updatedValues);
+
+        // A removed value reads as null, so it can be cached as such
+        stringValueCache.put(key, null);
+        binaryValueCache.put(key, null);
+    }
+
+    private void cacheValue(@NotNull String key, @Nullable AttributeValue attributeValue) {
+        stringValueCache.put(key, attributeValue == null ? null : attributeValue.s());
+        binaryValueCache.put(key, attributeValue == null || attributeValue.b() == null
+                ? null
+                : attributeValue.b().asByteArray());
+    }
+
+    private void updateItem(Map<String, AttributeValueUpdate> updatedValues) {
+        // Used to let AWS know that we want to set values for the item that has "Id" set to this.id
+        Map<String, AttributeValue> itemKey = new HashMap<>();
+        itemKey.put("Id", AttributeValue.builder()
+                .s(this.id.toString())
                 .build());
 
         // Request value from database
@@ -133,8 +460,5 @@ public class DynamoDBEntry implements DatabaseEntry {
                 .attributeUpdates(updatedValues)
                 .build();
         dynamoDbClient.updateItem(request);
-
-        // Cache new value
-        stringValueCache.put(key, value);
     }
 }
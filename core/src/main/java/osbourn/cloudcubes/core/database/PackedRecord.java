@@ -0,0 +1,174 @@
+package osbourn.cloudcubes.core.database;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * <p>
+ * The values of the fields of a {@link RecordSchema}, in the form they are stored in. A record is immutable; changing
+ * a field gives a new record.
+ * </p>
+ *
+ * <p>
+ * A record starts with the version of the schema that wrote it, followed by each field that has a value, in the order
+ * of their tags: the tag, the length of the value and the value as written by the field's {@link RecordCodec}. The
+ * version, tags and lengths are unsigned LEB128 numbers, so a small field takes two bytes plus its value. Since each
+ * value has its length, fields the schema doesn't know can be skipped when reading, and are kept as they are.
+ * </p>
+ */
+public final class PackedRecord {
+    private final RecordSchema schema;
+    private final int version;
+    /**
+     * The packed value of each field by tag
+     */
+    private final TreeMap<Integer, byte[]> values;
+
+    private PackedRecord(RecordSchema schema, int version, TreeMap<Integer, byte[]> values) {
+        this.schema = schema;
+        this.version = version;
+        this.values = values;
+    }
+
+    /**
+     * Creates a record without any values.
+     *
+     * @param schema The schema of the record
+     * @return The record
+     */
+    public static @NotNull PackedRecord empty(@NotNull RecordSchema schema) {
+        return new PackedRecord(schema, schema.getVersion(), new TreeMap<>());
+    }
+
+    /**
+     * Reads a record that was written by {@link #encode()}.
+     *
+     * @param schema The schema of the record
+     * @param bytes  The record
+     * @return The record
+     * @throws IllegalArgumentException If the bytes are not a valid record
+     */
+    public static @NotNull PackedRecord decode(@NotNull RecordSchema schema, @NotNull byte[] bytes) {
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(bytes));
+        try {
+            int version = (int) RecordCodec.readUnsigned(input);
+            TreeMap<Integer, byte[]> values = new TreeMap<>();
+            while (input.available() > 0) {
+                int tag = (int) RecordCodec.readUnsigned(input);
+                long length = RecordCodec.readUnsigned(input);
+                if (length > input.available()) {
+                    throw new IOException("Truncated record");
+                }
+                byte[] value = new byte[(int) length];
+                input.readFully(value);
+                values.put(tag, value);
+            }
+            return new PackedRecord(schema, version, values);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Malformed record", e);
+        }
+    }
+
+    /**
+     * @return The record in the form it is stored in
+     */
+    public @NotNull byte[] encode() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(bytes);
+        try {
+            RecordCodec.writeUnsigned(version, output);
+            for (Map.Entry<Integer, byte[]> value : values.entrySet()) {
+                RecordCodec.writeUnsigned(value.getKey(), output);
+                RecordCodec.writeUnsigned(value.getValue().length, output);
+                output.write(value.getValue());
+            }
+        } catch (IOException e) {
+            // Writing to memory doesn't fail
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @return The version of the schema that wrote the record
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * Returns true if the field has a value.
+     *
+     * @param field The field
+     * @return True if the field has a value
+     */
+    public boolean has(@NotNull RecordField<?> field) {
+        return values.containsKey(field.getTag());
+    }
+
+    /**
+     * Gets the value of a field.
+     *
+     * @param field The field
+     * @param <T>   The type of the value
+     * @return The value, or null if the field has none
+     * @throws IllegalArgumentException If the value is malformed
+     */
+    public <T> @Nullable T get(@NotNull RecordField<T> field) {
+        byte[] value = values.get(field.getTag());
+        if (value == null) {
+            return null;
+        }
+        try {
+            return field.getCodec().read(new DataInputStream(new ByteArrayInputStream(value)));
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Malformed value of " + field, e);
+        }
+    }
+
+    /**
+     * Gets the value of a field as it would be stored in the string layout.
+     *
+     * @param field The field
+     * @param <T>   The type of the value
+     * @return The formatted value, or null if the field has none
+     */
+    public <T> @Nullable String format(@NotNull RecordField<T> field) {
+        T value = get(field);
+        return value != null ? field.getCodec().format(value) : null;
+    }
+
+    /**
+     * Gives the record with a field set to a value. The record is marked as written by the current version of the
+     * schema, unless it was written by a newer one.
+     *
+     * @param field The field, which must belong to the schema of the record
+     * @param value The value
+     * @param <T>   The type of the value
+     * @return The changed record
+     */
+    public <T> @NotNull PackedRecord with(@NotNull RecordField<T> field, @NotNull T value) {
+        if (!schema.contains(field)) {
+            throw new IllegalArgumentException("The field " + field + " is not part of the schema");
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            field.getCodec().write(value, new DataOutputStream(bytes));
+        } catch (IOException e) {
+            // Writing to memory doesn't fail
+            throw new UncheckedIOException(e);
+        }
+        TreeMap<Integer, byte[]> changedValues = new TreeMap<>(values);
+        changedValues.put(field.getTag(), bytes.toByteArray());
+        return new PackedRecord(schema, Math.max(version, schema.getVersion()), changedValues);
+    }
+}
@@ -0,0 +1,216 @@
+package osbourn.cloudcubes.core.database;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.ReturnConsumedCapacity;
+import software.amazon.awssdk.services.dynamodb.model.ScanRequest;
+import software.amazon.awssdk.services.dynamodb.model.ScanResponse;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * <p>
+ * Reads every item of a table with a parallel scan. The table is split into segments that are scanned at the same
+ * time, each on its own thread, which makes a full read of a large table many times faster than a single scan: a
+ * single scan reads one page at a time from one partition, while the segments spread the reads over the partitions.
+ * </p>
+ *
+ * <p>
+ * The pages the segments read are handed to the caller through a small bounded queue, so the segments stop reading
+ * while the caller is busy and a slow consumer never has more than a few pages in memory. The read capacity the scan
+ * consumes is limited, since an unthrottled parallel scan can use the whole throughput of the table and slow down the
+ * requests of running servers.
+ * </p>
+ */
+public class ParallelScan {
+    /**
+     * The number of items read per request. Smaller pages spread the consumed capacity more evenly, which keeps the
+     * capacity limit smooth; a full 1 MB page consumes over a hundred read capacity units at once.
+     */
+    private static final int PAGE_SIZE = 100;
+    /**
+     * The number of pages per segment that may wait in the queue for the caller
+     */
+    private static final int QUEUED_PAGES_PER_SEGMENT = 2;
+
+    private final DynamoDbClient dynamoDbClient;
+    private final String tableName;
+    private final @Nullable String projectionExpression;
+    private final Map<String, String> projectionAttributeNames = new HashMap<>();
+    private final int segmentCount;
+    private final double maxReadCapacityPerSecond;
+    private double consumedReadCapacity = 0;
+
+    /**
+     * Creates a ParallelScan object. Nothing is read until {@link #forEachItem(Consumer)} is called.
+     *
+     * @param dynamoDbClient           The DynamoDB client used to make requests
+     * @param tableName                The name of the table to scan
+     * @param attributesToGet          The attributes to read from each item, or null to read whole items
+     * @param segmentCount             The number of segments scanned at the same time
+     * @param maxReadCapacityPerSecond The read capacity units per second the scan may consume, or 0 for no limit
+     */
+    public ParallelScan(@NotNull DynamoDbClient dynamoDbClient,
+                        @NotNull String tableName,
+                        @Nullable Collection<String> attributesToGet,
+                        int segmentCount,
+                        double maxReadCapacityPerSecond) {
+        if (segmentCount < 1) {
+            throw new IllegalArgumentException("A scan needs at least one segment");
+        }
+        this.dynamoDbClient = dynamoDbClient;
+        this.tableName = tableName;
+        if (attributesToGet != null) {
+            // Attribute names are passed as placeholders, since some names are reserved words in projection expressions
+            List<String> projection = new ArrayList<>();
+            for (String attribute : attributesToGet) {
+                String placeholder = "#p" + projection.size();
+                projectionAttributeNames.put(placeholder, attribute);
+                projection.add(placeholder);
+            }
+            this.projectionExpression = String.join(", ", projection);
+        } else {
+            this.projectionExpression = null;
+        }
+        this.segmentCount = segmentCount;
+        this.maxReadCapacityPerSecond = maxReadCapacityPerSecond;
+    }
+
+    /**
+     * Scans the table and passes each item to the consumer. The consumer is called on the calling thread, one item at
+     * a time, so it doesn't need to be thread-safe; the order of the items is unspecified. If the consumer throws, the
+     * scan is cancelled and the exception is rethrown.
+     *
+     * @param itemConsumer Called with each item of the table
+     * @return The number of items that were read
+     */
+    public long forEachItem(@NotNull Consumer<Map<String, AttributeValue>> itemConsumer) {
+        BlockingQueue<Page> pages = new ArrayBlockingQueue<>(segmentCount * QUEUED_PAGES_PER_SEGMENT);
+        ReadCapacityLimiter limiter = new ReadCapacityLimiter(maxReadCapacityPerSecond);
+        AtomicReference<RuntimeException> failure = new AtomicReference<>();
+        AtomicInteger threadIndex = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(segmentCount, runnable -> {
+            Thread thread = new Thread(runnable, "scan-" + tableName + "-" + threadIndex.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        long itemCount = 0;
+        try {
+            for (int segment = 0; segment < segmentCount; segment++) {
+                int thisSegment = segment;
+                executor.execute(() -> scanSegment(thisSegment, pages, limiter, failure));
+            }
+            int finishedSegments = 0;
+            while (finishedSegments < segmentCount) {
+                Page page = pages.take();
+                if (page.isEnd()) {
+                    finishedSegments++;
+                    continue;
+                }
+                synchronized (this) {
+                    consumedReadCapacity += page.consumedCapacity;
+                }
+                for (Map<String, AttributeValue> item : page.items) {
+                    itemConsumer.accept(item);
+                    itemCount++;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while scanning " + tableName, e);
+        } finally {
+            // Segments that are still running are blocked on the full queue or waiting for capacity, and stop here
+            executor.shutdownNow();
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        return itemCount;
+    }
+
+    /**
+     * Gets the read capacity the scans of this object have consumed so far, as reported by DynamoDB.
+     *
+     * @return The consumed read capacity units
+     */
+    public synchronized double getConsumedReadCapacity() {
+        return consumedReadCapacity;
+    }
+
+    private void scanSegment(int segment,
+                             @NotNull BlockingQueue<Page> pages,
+                             @NotNull ReadCapacityLimiter limiter,
+                             @NotNull AtomicReference<RuntimeException> failure) {
+        try {
+            try {
+                Map<String, AttributeValue> startKey = null;
+                do {
+                    ScanResponse response = dynamoDbClient.scan(createRequest(segment, startKey));
+                    double consumedCapacity = response.consumedCapacity() != null
+                            && response.consumedCapacity().capacityUnits() != null
+                            ? response.consumedCapacity().capacityUnits()
+                            : 0;
+                    pages.put(new Page(response.items(), consumedCapacity));
+                    limiter.consume(consumedCapacity);
+                    startKey = response.hasLastEvaluatedKey() && !response.lastEvaluatedKey().isEmpty()
+                            ? response.lastEvaluatedKey()
+                            : null;
+                } while (startKey != null && failure.get() == null);
+            } catch (RuntimeException e) {
+                failure.compareAndSet(null, e);
+            }
+            pages.put(Page.END);
+        } catch (InterruptedException e) {
+            // The scan was cancelled, so nobody is waiting for the rest of the segment
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private @NotNull ScanRequest createRequest(int segment, @Nullable Map<String, AttributeValue> startKey) {
+        ScanRequest.Builder request = ScanRequest.builder()
+                .tableName(tableName)
+                .segment(segment)
+                .totalSegments(segmentCount)
+                .limit(PAGE_SIZE)
+                .returnConsumedCapacity(ReturnConsumedCapacity.TOTAL);
+        if (projectionExpression != null) {
+            request.projectionExpression(projectionExpression)
+                    .expressionAttributeNames(projectionAttributeNames);
+        }
+        if (startKey != null) {
+            request.exclusiveStartKey(startKey);
+        }
+        return request.build();
+    }
+
+    private static final class Page {
+        private static final Page END = new Page(Collections.emptyList(), 0);
+
+        private final List<Map<String, AttributeValue>> items;
+        private final double consumedCapacity;
+
+        private Page(List<Map<String, AttributeValue>> items, double consumedCapacity) {
+            this.items = items;
+            this.consumedCapacity = consumedCapacity;
+        }
+
+        private boolean isEnd() {
+            return this == END;
+        }
+    }
+}
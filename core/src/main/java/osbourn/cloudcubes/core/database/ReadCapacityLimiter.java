@@ -0,0 +1,57 @@
+package osbourn.cloudcubes.core.database;
+
+/**
+ * <p>
+ * Limits the read capacity a background job consumes, so that it leaves the rest of the table's throughput to live
+ * traffic. The capacity a request consumes is only known once it has been made, so the limiter works as a debt: each
+ * request adds the capacity it consumed, the debt is paid off at the configured rate, and a thread that records a
+ * request while the debt is larger than one second's worth of capacity sleeps until it is paid down to that.
+ * </p>
+ *
+ * <p>
+ * One limiter is shared by all the threads of a job, so the limit applies to the job as a whole.
+ * </p>
+ */
+final class ReadCapacityLimiter {
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+
+    private final double unitsPerSecond;
+    /**
+     * The time at which everything consumed so far has been paid off
+     */
+    private long paidOffAtNanos = System.nanoTime();
+
+    /**
+     * Creates a ReadCapacityLimiter object.
+     *
+     * @param unitsPerSecond The read capacity units per second the job may consume, or 0 for no limit
+     */
+    ReadCapacityLimiter(double unitsPerSecond) {
+        if (unitsPerSecond < 0) {
+            throw new IllegalArgumentException("The read capacity limit must not be negative");
+        }
+        this.unitsPerSecond = unitsPerSecond;
+    }
+
+    /**
+     * Records capacity that a request consumed, and waits if the job is over its limit.
+     *
+     * @param units The read capacity units the request consumed
+     * @throws InterruptedException If the thread was interrupted while waiting
+     */
+    void consume(double units) throws InterruptedException {
+        if (unitsPerSecond == 0 || units <= 0) {
+            return;
+        }
+        long waitNanos;
+        synchronized (this) {
+            long nowNanos = System.nanoTime();
+            paidOffAtNanos = Math.max(paidOffAtNanos, nowNanos) + (long) (units / unitsPerSecond * NANOS_PER_SECOND);
+            // Up to a second of capacity may be used in a burst
+            waitNanos = paidOffAtNanos - nowNanos - NANOS_PER_SECOND;
+        }
+        if (waitNanos > 0) {
+            Thread.sleep(waitNanos / 1_000_000, (int) (waitNanos % 1_000_000));
+        }
+    }
+}
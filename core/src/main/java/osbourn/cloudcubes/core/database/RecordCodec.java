@@ -0,0 +1,176 @@
+package osbourn.cloudcubes.core.database;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Converts the value of a {@link RecordField} to and from its packed form, and to and from the string it is stored as
+ * in the string layout the field is migrated from.
+ *
+ * @param <T> The type of the value
+ */
+public interface RecordCodec<T> {
+    /**
+     * Writes the value in its packed form.
+     *
+     * @param value  The value
+     * @param output The output to write to
+     * @throws IOException If the output could not be written to
+     */
+    void write(@NotNull T value, @NotNull DataOutput output) throws IOException;
+
+    /**
+     * Reads a value that was written by {@link #write(Object, DataOutput)}.
+     *
+     * @param input The input to read from, which holds only the value
+     * @return The value
+     * @throws IOException If the input could not be read or doesn't hold a valid value
+     */
+    @NotNull T read(@NotNull DataInputStream input) throws IOException;
+
+    /**
+     * Parses the value from the string it is stored as in the string layout.
+     *
+     * @param value The stored string
+     * @return The value
+     */
+    @NotNull T parse(@NotNull String value);
+
+    /**
+     * Formats the value as the string it is stored as in the string layout.
+     *
+     * @param value The value
+     * @return The string
+     */
+    @NotNull String format(@NotNull T value);
+
+    /**
+     * @return A codec for non-negative numbers, such as timestamps, which are packed into one byte per seven bits
+     */
+    static @NotNull RecordCodec<Long> unsignedLong() {
+        return new RecordCodec<Long>() {
+            @Override
+            public void write(@NotNull Long value, @NotNull DataOutput output) throws IOException {
+                writeUnsigned(value, output);
+            }
+
+            @Override
+            public @NotNull Long read(@NotNull DataInputStream input) throws IOException {
+                return readUnsigned(input);
+            }
+
+            @Override
+            public @NotNull Long parse(@NotNull String value) {
+                return Long.parseLong(value);
+            }
+
+            @Override
+            public @NotNull String format(@NotNull Long value) {
+                return value.toString();
+            }
+        };
+    }
+
+    /**
+     * Gets a codec for the constants of an enum, which are packed as their ordinal. Constants may be added to the end
+     * of the enum, but never removed or reordered, since that would change the meaning of records that were already
+     * written. In the string layout, the constants are stored by name.
+     *
+     * @param type The class of the enum
+     * @param <E>  The type of the enum
+     * @return The codec
+     */
+    static <E extends Enum<E>> @NotNull RecordCodec<E> forEnum(@NotNull Class<E> type) {
+        E[] constants = type.getEnumConstants();
+        return new RecordCodec<E>() {
+            @Override
+            public void write(@NotNull E value, @NotNull DataOutput output) throws IOException {
+                writeUnsigned(value.ordinal(), output);
+            }
+
+            @Override
+            public @NotNull E read(@NotNull DataInputStream input) throws IOException {
+                long ordinal = readUnsigned(input);
+                if (ordinal >= constants.length) {
+                    throw new IOException("Unknown " + type.getSimpleName() + " " + ordinal);
+                }
+                return constants[(int) ordinal];
+            }
+
+            @Override
+            public @NotNull E parse(@NotNull String value) {
+                return Enum.valueOf(type, value);
+            }
+
+            @Override
+            public @NotNull String format(@NotNull E value) {
+                return value.name();
+            }
+        };
+    }
+
+    /**
+     * Writes a non-negative number as unsigned LEB128: seven bits per byte, lowest first, with the top bit of each
+     * byte set if another byte follows.
+     *
+     * @param value  The number
+     * @param output The output to write to
+     * @throws IOException If the output could not be written to
+     */
+    static void writeUnsigned(long value, @NotNull DataOutput output) throws IOException {
+        if (value < 0) {
+            throw new IllegalArgumentException("Negative value " + value);
+        }
+        while ((value & ~0x7FL) != 0) {
+            output.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        output.writeByte((int) value);
+    }
+
+    /**
+     * Reads a number written by {@link #writeUnsigned(long, DataOutput)}.
+     *
+     * @param input The input to read from
+     * @return The number
+     * @throws IOException If the input could not be read or the number is malformed
+     */
+    static long readUnsigned(@NotNull DataInput input) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 63; shift += 7) {
+            int b = input.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed number");
+    }
+
+    /**
+     * Writes a number that may be negative, mapping small negative numbers to small unsigned ones so they stay short.
+     *
+     * @param value  The number
+     * @param output The output to write to
+     * @throws IOException If the output could not be written to
+     */
+    static void writeSigned(long value, @NotNull DataOutput output) throws IOException {
+        writeUnsigned((value << 1) ^ (value >> 63), output);
+    }
+
+    /**
+     * Reads a number written by {@link #writeSigned(long, DataOutput)}.
+     *
+     * @param input The input to read from
+     * @return The number
+     * @throws IOException If the input could not be read or the number is malformed
+     */
+    static long readSigned(@NotNull DataInput input) throws IOException {
+        long value = readUnsigned(input);
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
@@ -0,0 +1,49 @@
+package osbourn.cloudcubes.core.database;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * A field of a {@link RecordSchema}. The field is identified in packed records by its tag, and in the string layout it
+ * is migrated from by its name, which is the name of the string attribute that used to hold it.
+ *
+ * @param <T> The type of the value of the field
+ */
+public final class RecordField<T> {
+    private final String name;
+    private final int tag;
+    private final RecordCodec<T> codec;
+
+    /**
+     * Creates a RecordField object.
+     *
+     * @param name  The name of the string attribute the field is migrated from
+     * @param tag   The number that identifies the field in packed records, which must be positive and must never be
+     *              given to another field of the schema, even after this field is dropped
+     * @param codec The codec of the value
+     */
+    public RecordField(@NotNull String name, int tag, @NotNull RecordCodec<T> codec) {
+        if (tag <= 0) {
+            throw new IllegalArgumentException("Tags must be positive");
+        }
+        this.name = name;
+        this.tag = tag;
+        this.codec = codec;
+    }
+
+    public @NotNull String getName() {
+        return name;
+    }
+
+    public int getTag() {
+        return tag;
+    }
+
+    public @NotNull RecordCodec<T> getCodec() {
+        return codec;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
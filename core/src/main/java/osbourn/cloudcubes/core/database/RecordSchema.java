@@ -0,0 +1,116 @@
+package osbourn.cloudcubes.core.database;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * <p>
+ * Describes the fields that are packed into a single binary attribute of an entry, instead of each being a string
+ * attribute of its own. Packing saves the attribute name and the decimal formatting of every field, which matters for
+ * fields that are read and written all the time, since DynamoDB charges reads and writes by the size of the whole
+ * item. Fields that people read in the console, such as names and addresses, should stay strings.
+ * </p>
+ *
+ * <p>
+ * The schema has a version, which is written at the start of every record so that it is known which schema wrote it.
+ * Fields are only ever added to a schema, with a new tag and a higher version; since tags are never reused, any
+ * version of the schema can read the fields it knows from a record written by any other version, and keeps the fields
+ * it doesn't know when it rewrites the record. See {@link PackedRecord} for the layout of a record.
+ * </p>
+ */
+public final class RecordSchema {
+    private final String attributeName;
+    private final int version;
+    private final List<RecordField<?>> fields;
+    private final Map<Integer, RecordField<?>> fieldsByTag = new HashMap<>();
+
+    /**
+     * Creates a RecordSchema object.
+     *
+     * @param attributeName The name of the binary attribute the fields are packed into
+     * @param version       The version of the schema, which must be raised whenever a field is added
+     * @param fields        The fields of the schema
+     */
+    public RecordSchema(@NotNull String attributeName, int version, @NotNull RecordField<?>... fields) {
+        if (version <= 0) {
+            throw new IllegalArgumentException("Versions must be positive");
+        }
+        this.attributeName = attributeName;
+        this.version = version;
+        this.fields = Collections.unmodifiableList(Arrays.asList(fields.clone()));
+        Set<String> names = new HashSet<>();
+        for (RecordField<?> field : fields) {
+            if (fieldsByTag.put(field.getTag(), field) != null || !names.add(field.getName())) {
+                throw new IllegalArgumentException("Duplicate field " + field);
+            }
+        }
+    }
+
+    public @NotNull String getAttributeName() {
+        return attributeName;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public @NotNull List<RecordField<?>> getFields() {
+        return fields;
+    }
+
+    /**
+     * Gets the field with the given tag.
+     *
+     * @param tag The tag of the field
+     * @return The field, or null if this version of the schema doesn't have it
+     */
+    public @Nullable RecordField<?> getField(int tag) {
+        return fieldsByTag.get(tag);
+    }
+
+    /**
+     * Returns true if the field belongs to this schema.
+     *
+     * @param field The field
+     * @return True if the field belongs to this schema
+     */
+    public boolean contains(@NotNull RecordField<?> field) {
+        return fieldsByTag.get(field.getTag()) == field;
+    }
+
+    /**
+     * Gets the values of an entry as they would be stored in the string layout, for code that reads whole items, such
+     * as scans and exports. The fields of the record are added as string attributes, unless the entry still has the
+     * string attribute, which is then newer than the record (see {@link TypedRecord}).
+     *
+     * @param stringValues The string attributes of the entry
+     * @param record       The record of the entry, or null if it has none
+     * @return The string attributes together with the fields of the record, without the record itself
+     */
+    public @NotNull Map<String, String> toStringValues(@NotNull Map<String, String> stringValues,
+                                                      @Nullable byte[] record) {
+        Map<String, String> values = new HashMap<>(stringValues);
+        values.remove(attributeName);
+        if (record == null) {
+            return values;
+        }
+        PackedRecord packedRecord = PackedRecord.decode(this, record);
+        for (RecordField<?> field : fields) {
+            if (values.get(field.getName()) == null) {
+                String value = packedRecord.format(field);
+                if (value != null) {
+                    values.put(field.getName(), value);
+                }
+            }
+        }
+        return values;
+    }
+}
@@ -0,0 +1,300 @@
+package osbourn.cloudcubes.core.database;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * <p>
+ * Reads and writes the fields of a {@link RecordSchema} on a database entry. Packing is optional for each entry: an
+ * entry without a record keeps its fields as string attributes, and is written that way until it is migrated with
+ * {@link #migrate()}, which moves the fields into the record. Once an entry has a record, every write goes to the
+ * record, and removes the string attribute of the fields it writes.
+ * </p>
+ *
+ * <p>
+ * Processes that don't know the record yet, such as agents that were started before the record was introduced, keep
+ * writing string attributes, even after the entry was migrated. Since every writer that knows the record removes the
+ * string attribute of the fields it writes, a string attribute next to the record was always written after the record,
+ * so the string attribute is read instead of the record while it exists.
+ * </p>
+ *
+ * <p>
+ * Several processes may change different fields of the record at the same time, so the record is written with a
+ * condition that it hasn't changed since it was read, and read again and rewritten if it has.
+ * </p>
+ */
+public final class TypedRecord {
+    private static final int MAX_WRITE_ATTEMPTS = 10;
+
+    private final DatabaseEntry entry;
+    private final RecordSchema schema;
+
+    /**
+     * The changes of a single write: fields of the record, and string attributes of the entry that are written at the
+     * same time.
+     */
+    public static final class Update {
+        private final Map<RecordField<?>, Object> fieldValues = new LinkedHashMap<>();
+        private final Map<String, String> stringValues = new HashMap<>();
+        private final Set<String> removedKeys = new HashSet<>();
+        private final Map<String, String> expectedStringValues = new HashMap<>();
+
+        /**
+         * Sets a field of the record.
+         *
+         * @param field The field
+         * @param value The value
+         * @param <T>   The type of the value
+         * @return This update
+         */
+        public <T> @NotNull Update set(@NotNull RecordField<T> field, @NotNull T value) {
+            fieldValues.put(field, value);
+            return this;
+        }
+
+        /**
+         * Sets a string attribute of the entry.
+         *
+         * @param key   The key of the attribute
+         * @param value The value
+         * @return This update
+         */
+        public @NotNull Update setString(@NotNull String key, @NotNull String value) {
+            removedKeys.remove(key);
+            stringValues.put(key, value);
+            return this;
+        }
+
+        /**
+         * Removes a string attribute of the entry.
+         *
+         * @param key The key of the attribute
+         * @return This update
+         */
+        public @NotNull Update removeString(@NotNull String key) {
+            stringValues.remove(key);
+            removedKeys.add(key);
+            return this;
+        }
+
+        /**
+         * Makes the write conditional on the current value of a string attribute of the entry.
+         *
+         * @param key   The key of the attribute
+         * @param value The value the attribute must have, or null if it must not exist
+         * @return This update
+         */
+        public @NotNull Update expectString(@NotNull String key, @Nullable String value) {
+            expectedStringValues.put(key, value);
+            return this;
+        }
+    }
+
+    /**
+     * Creates a TypedRecord object.
+     *
+     * @param entry  The entry the record belongs to
+     * @param schema The schema of the record
+     */
+    public TypedRecord(@NotNull DatabaseEntry entry, @NotNull RecordSchema schema) {
+        this.entry = entry;
+        this.schema = schema;
+    }
+
+    /**
+     * Gets the value of a field. The values may come from the local cache of the entry; if they don't, the record and
+     * the string attribute of the field are read together, in a single request.
+     *
+     * @param field The field
+     * @param <T>   The type of the value
+     * @return The value, or null if the field has no value
+     */
+    public <T> @Nullable T get(@NotNull RecordField<T> field) {
+        String stringValue = entry.getStringValues(Arrays.asList(field.getName(), schema.getAttributeName()))
+                .get(field.getName());
+        if (stringValue != null) {
+            return field.getCodec().parse(stringValue);
+        }
+        byte[] record = entry.getBinaryValue(schema.getAttributeName());
+        return record == null ? null : PackedRecord.decode(schema, record).get(field);
+    }
+
+    /**
+     * Gets the value of a field from the database, bypassing the local cache. The record and the string attribute of
+     * the field are read together, in a single request.
+     *
+     * @param field The field
+     * @param <T>   The type of the value
+     * @return The value, or null if the field has no value
+     */
+    public <T> @Nullable T request(@NotNull RecordField<T> field) {
+        return request(Collections.singletonList(field)).get(field);
+    }
+
+    /**
+     * Gets the values of all fields from the database in a single request, bypassing the local cache.
+     *
+     * @return The values, with the fields that are still string attributes included
+     */
+    public @NotNull PackedRecord request() {
+        return request(schema.getFields());
+    }
+
+    private @NotNull PackedRecord request(@NotNull List<RecordField<?>> fields) {
+        List<String> keys = new ArrayList<>();
+        keys.add(schema.getAttributeName());
+        for (RecordField<?> field : fields) {
+            keys.add(field.getName());
+        }
+        Map<String, String> stringValues = entry.requestStringValuesFromDatabase(keys);
+        // The record was read along with the string attributes
+        byte[] current = entry.getBinaryValue(schema.getAttributeName());
+        PackedRecord record = current == null ? PackedRecord.empty(schema) : PackedRecord.decode(schema, current);
+        for (RecordField<?> field : fields) {
+            String stringValue = stringValues.get(field.getName());
+            if (stringValue != null) {
+                record = with(record, field, field.getCodec().parse(stringValue));
+            }
+        }
+        return record;
+    }
+
+    /**
+     * Sets a field. See {@link #apply(Update)}.
+     *
+     * @param field The field
+     * @param value The value
+     * @param <T>   The type of the value
+     */
+    public <T> void set(@NotNull RecordField<T> field, @NotNull T value) {
+        apply(new Update().set(field, value));
+    }
+
+    /**
+     * Writes an update in a single atomic write. If the entry has a record, the fields are written to the record, and
+     * their string attributes are removed; otherwise the fields are written as string attributes.
+     *
+     * @param update The update
+     * @return True if the update was written, false if a string attribute it expects had a different value
+     */
+    public boolean apply(@NotNull Update update) {
+        for (int attempt = 0; attempt < MAX_WRITE_ATTEMPTS; attempt++) {
+            if (attempt > 0 && !expectationsHold(update)) {
+                return false;
+            }
+            byte[] current = attempt == 0
+                    ? entry.getBinaryValue(schema.getAttributeName())
+                    : entry.requestBinaryValueFromDatabase(schema.getAttributeName());
+            if (current == null) {
+                if (applyAsStrings(update)) {
+                    return true;
+                }
+                // The entry was migrated since its record was last read
+                continue;
+            }
+
+            PackedRecord record = PackedRecord.decode(schema, current);
+            Set<String> removedKeys = new HashSet<>(update.removedKeys);
+            for (Map.Entry<RecordField<?>, Object> fieldValue : update.fieldValues.entrySet()) {
+                record = with(record, fieldValue.getKey(), fieldValue.getValue());
+                removedKeys.add(fieldValue.getKey().getName());
+            }
+            if (entry.setBinaryValueIf(schema.getAttributeName(), current, record.encode(),
+                    update.expectedStringValues, update.stringValues, removedKeys)) {
+                return true;
+            }
+        }
+        throw new IllegalStateException("The record of " + entry.getId() + " kept changing while it was written");
+    }
+
+    /**
+     * Checks whether the string attributes an update expects still have the expected values, after a write of the
+     * update failed, since the write also fails when the record changed.
+     */
+    private boolean expectationsHold(@NotNull Update update) {
+        if (update.expectedStringValues.isEmpty()) {
+            return true;
+        }
+        Map<String, String> currentValues = entry.requestStringValuesFromDatabase(
+                new ArrayList<>(update.expectedStringValues.keySet()));
+        for (Map.Entry<String, String> expectedValue : update.expectedStringValues.entrySet()) {
+            if (!Objects.equals(currentValues.get(expectedValue.getKey()), expectedValue.getValue())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Moves the fields that are still string attributes into the record, creating the record if the entry doesn't
+     * have one yet. The fields are moved in a single atomic write, on the condition that neither the record nor the
+     * moved attributes have changed since they were read.
+     *
+     * @return True if the entry was changed, false if it was already migrated
+     */
+    public boolean migrate() {
+        List<String> keys = new ArrayList<>();
+        keys.add(schema.getAttributeName());
+        for (RecordField<?> field : schema.getFields()) {
+            keys.add(field.getName());
+        }
+
+        for (int attempt = 0; attempt < MAX_WRITE_ATTEMPTS; attempt++) {
+            Map<String, String> stringValues = entry.requestStringValuesFromDatabase(keys);
+            byte[] current = entry.getBinaryValue(schema.getAttributeName());
+            PackedRecord record = current == null ? PackedRecord.empty(schema) : PackedRecord.decode(schema, current);
+            Map<String, String> movedValues = new HashMap<>();
+            for (RecordField<?> field : schema.getFields()) {
+                String stringValue = stringValues.get(field.getName());
+                if (stringValue != null) {
+                    record = with(record, field, field.getCodec().parse(stringValue));
+                    movedValues.put(field.getName(), stringValue);
+                }
+            }
+            if (current != null && movedValues.isEmpty()) {
+                return false;
+            }
+            if (entry.setBinaryValueIf(schema.getAttributeName(), current, record.encode(), movedValues,
+                    Collections.emptyMap(), movedValues.keySet())) {
+                return true;
+            }
+        }
+        throw new IllegalStateException("The record of " + entry.getId() + " kept changing while it was migrated");
+    }
+
+    private boolean applyAsStrings(@NotNull Update update) {
+        Map<String, String> stringValues = new HashMap<>(update.stringValues);
+        for (Map.Entry<RecordField<?>, Object> fieldValue : update.fieldValues.entrySet()) {
+            stringValues.put(fieldValue.getKey().getName(), format(fieldValue.getKey(), fieldValue.getValue()));
+        }
+        if (stringValues.isEmpty() && update.removedKeys.isEmpty()) {
+            // There is nothing to write, so the update only checks its expectations
+            return expectationsHold(update);
+        }
+        Map<String, String> expectedValues = new HashMap<>(update.expectedStringValues);
+        expectedValues.put(schema.getAttributeName(), null);
+        return entry.setStringValuesIf(expectedValues, stringValues, update.removedKeys);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> @NotNull PackedRecord with(@NotNull PackedRecord record, @NotNull RecordField<T> field,
+                                                  @NotNull Object value) {
+        return record.with(field, (T) value);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> @NotNull String format(@NotNull RecordField<T> field, @NotNull Object value) {
+        return field.getCodec().format((T) value);
+    }
+}
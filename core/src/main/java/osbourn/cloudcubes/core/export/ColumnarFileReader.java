@@ -0,0 +1,128 @@
+package osbourn.cloudcubes.core.export;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads the rows of a file written by {@link ColumnarFileWriter}. The file is read one row group at a time, so only a
+ * single group is held in memory.
+ */
+public class ColumnarFileReader implements AutoCloseable {
+    private final DataInputStream input;
+    private List<Map<String, String>> rowGroup = new ArrayList<>();
+    private int nextRow = 0;
+    private boolean ended = false;
+
+    /**
+     * Creates a ColumnarFileReader object and checks the start of the file.
+     *
+     * @param inputStream The stream to read the file from, which is closed when the reader is closed
+     * @throws IOException If the stream could not be read or is not a columnar file
+     */
+    public ColumnarFileReader(@NotNull InputStream inputStream) throws IOException {
+        byte[] magic = inputStream.readNBytes(ColumnarFileWriter.MAGIC.length);
+        if (!Arrays.equals(magic, ColumnarFileWriter.MAGIC)) {
+            inputStream.close();
+            throw new IOException("The file is not a columnar export");
+        }
+        this.input = new DataInputStream(new BufferedInputStream(new GZIPInputStream(inputStream)));
+    }
+
+    /**
+     * Reads the next row of the file.
+     *
+     * @return The values of the row by column name, without the columns the row has no value for, or null at the end
+     * of the file
+     * @throws IOException If the file could not be read or is corrupted
+     */
+    public @Nullable Map<String, String> readRow() throws IOException {
+        while (nextRow >= rowGroup.size()) {
+            if (ended) {
+                return null;
+            }
+            readRowGroup();
+        }
+        return rowGroup.get(nextRow++);
+    }
+
+    @Override
+    public void close() throws IOException {
+        input.close();
+    }
+
+    private void readRowGroup() throws IOException {
+        int rowCount = input.readInt();
+        rowGroup = new ArrayList<>(rowCount);
+        nextRow = 0;
+        if (rowCount == 0) {
+            ended = true;
+            return;
+        }
+        for (int i = 0; i < rowCount; i++) {
+            rowGroup.add(new HashMap<>());
+        }
+
+        int columnCount = input.readInt();
+        for (int column = 0; column < columnCount; column++) {
+            String columnName = readString();
+            byte encoding = input.readByte();
+            byte[] presence = new byte[(rowCount + 7) / 8];
+            input.readFully(presence);
+            String[] dictionary = null;
+            if (encoding == ColumnarFileWriter.DICTIONARY_ENCODING) {
+                dictionary = new String[readUnsigned()];
+                for (int i = 0; i < dictionary.length; i++) {
+                    dictionary[i] = readString();
+                }
+            } else if (encoding != ColumnarFileWriter.PLAIN_ENCODING) {
+                throw new IOException("Unknown column encoding " + encoding);
+            }
+            for (int row = 0; row < rowCount; row++) {
+                if ((presence[row / 8] & (1 << (row % 8))) == 0) {
+                    continue;
+                }
+                String value;
+                if (dictionary != null) {
+                    int index = readUnsigned();
+                    if (index >= dictionary.length) {
+                        throw new IOException("Dictionary index out of range in column " + columnName);
+                    }
+                    value = dictionary[index];
+                } else {
+                    value = readString();
+                }
+                rowGroup.get(row).put(columnName, value);
+            }
+        }
+    }
+
+    private @NotNull String readString() throws IOException {
+        byte[] bytes = new byte[readUnsigned()];
+        input.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private int readUnsigned() throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = input.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed length");
+    }
+}
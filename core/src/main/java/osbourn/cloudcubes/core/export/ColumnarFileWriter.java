@@ -0,0 +1,164 @@
+package osbourn.cloudcubes.core.export;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * <p>
+ * Writes rows of string values to a compact columnar file, which {@link ColumnarFileReader} reads back. Rows are
+ * collected into groups of {@link #ROW_GROUP_SIZE}, and each group is written column by column: the values of a column
+ * are alike (most servers share a state, a region and a backend), so storing them together lets columns with few
+ * distinct values be written as indexes into a dictionary, and lets the compression that is applied to the whole file
+ * find the repetition in the others.
+ * </p>
+ *
+ * <p>
+ * The file starts with {@link #MAGIC}, is followed by the row groups, and ends with a row group of zero rows. A row
+ * group is its row count and column count, followed by each column: its name, its encoding, a bitmap of the rows that
+ * have a value, and the values of those rows. Strings and numbers are written as unsigned LEB128 lengths and values,
+ * and everything after the magic is compressed with gzip.
+ * </p>
+ */
+public class ColumnarFileWriter implements AutoCloseable {
+    static final byte[] MAGIC = "CCCOL1\n".getBytes(StandardCharsets.US_ASCII);
+    static final int ROW_GROUP_SIZE = 4096;
+    static final byte PLAIN_ENCODING = 0;
+    static final byte DICTIONARY_ENCODING = 1;
+
+    private final OutputStream rawOutput;
+    private final DataOutputStream output;
+    private final List<Map<String, String>> rows = new ArrayList<>();
+    private long rowCount = 0;
+
+    /**
+     * Creates a ColumnarFileWriter object and writes the start of the file.
+     *
+     * @param outputStream The stream to write the file to, which is closed when the writer is closed
+     * @throws IOException If the stream could not be written to
+     */
+    public ColumnarFileWriter(@NotNull OutputStream outputStream) throws IOException {
+        this.rawOutput = outputStream;
+        outputStream.write(MAGIC);
+        this.output = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(outputStream)));
+    }
+
+    /**
+     * Adds a row to the file. Keys that are missing from the row, or are mapped to null, are stored as missing.
+     *
+     * @param row The values of the row by column name
+     * @throws IOException If the file could not be written to
+     */
+    public void writeRow(@NotNull Map<String, String> row) throws IOException {
+        rows.add(new HashMap<>(row));
+        rowCount++;
+        if (rows.size() >= ROW_GROUP_SIZE) {
+            flushRowGroup();
+        }
+    }
+
+    /**
+     * @return The number of rows written so far
+     */
+    public long getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * Writes the rows that haven't been written yet and the end of the file, and closes the stream.
+     *
+     * @throws IOException If the file could not be written to
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            flushRowGroup();
+            output.writeInt(0);
+            output.close();
+        } finally {
+            rawOutput.close();
+        }
+    }
+
+    private void flushRowGroup() throws IOException {
+        if (rows.isEmpty()) {
+            return;
+        }
+        TreeSet<String> columnNames = new TreeSet<>();
+        for (Map<String, String> row : rows) {
+            for (Map.Entry<String, String> value : row.entrySet()) {
+                if (value.getValue() != null) {
+                    columnNames.add(value.getKey());
+                }
+            }
+        }
+
+        output.writeInt(rows.size());
+        output.writeInt(columnNames.size());
+        for (String columnName : columnNames) {
+            writeColumn(columnName);
+        }
+        rows.clear();
+    }
+
+    private void writeColumn(@NotNull String columnName) throws IOException {
+        byte[] presence = new byte[(rows.size() + 7) / 8];
+        List<String> values = new ArrayList<>();
+        Map<String, Integer> dictionary = new HashMap<>();
+        for (int i = 0; i < rows.size(); i++) {
+            String value = rows.get(i).get(columnName);
+            if (value != null) {
+                presence[i / 8] |= (byte) (1 << (i % 8));
+                values.add(value);
+                dictionary.putIfAbsent(value, dictionary.size());
+            }
+        }
+
+        writeString(columnName);
+        // A dictionary only pays off if values repeat, which for ids and timestamps they don't
+        boolean useDictionary = dictionary.size() <= values.size() / 2;
+        output.writeByte(useDictionary ? DICTIONARY_ENCODING : PLAIN_ENCODING);
+        output.write(presence);
+        if (useDictionary) {
+            String[] entries = new String[dictionary.size()];
+            for (Map.Entry<String, Integer> entry : dictionary.entrySet()) {
+                entries[entry.getValue()] = entry.getKey();
+            }
+            writeUnsigned(entries.length);
+            for (String entry : entries) {
+                writeString(entry);
+            }
+            for (String value : values) {
+                writeUnsigned(dictionary.get(value));
+            }
+        } else {
+            for (String value : values) {
+                writeString(value);
+            }
+        }
+    }
+
+    private void writeString(@NotNull String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeUnsigned(bytes.length);
+        output.write(bytes);
+    }
+
+    private void writeUnsigned(int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            output.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        output.writeByte(value);
+    }
+}
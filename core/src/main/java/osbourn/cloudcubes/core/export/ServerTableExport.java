@@ -0,0 +1,139 @@
+package osbourn.cloudcubes.core.export;
+
+import org.jetbrains.annotations.NotNull;
+import osbourn.cloudcubes.core.constructs.InfrastructureConfiguration.InfrastructureSetting;
+import osbourn.cloudcubes.core.constructs.InfrastructureConstructor;
+import osbourn.cloudcubes.core.database.ParallelScan;
+import osbourn.cloudcubes.core.server.CloudCubesServer;
+import osbourn.cloudcubes.core.server.ServerRecord;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * <p>
+ * Exports every server in the server table, for jobs such as reporting and billing that need all of them. The table
+ * is read with a {@link ParallelScan}, and the items are either turned into {@link CloudCubesServer} objects without
+ * reading them again, or written to a columnar file.
+ * </p>
+ *
+ * <p>
+ * The export reads the local replica of the server table, and its read capacity is limited so that it doesn't slow
+ * down the servers that are running. The limit should be well below the capacity of the table.
+ * </p>
+ */
+public class ServerTableExport {
+    public static final int DEFAULT_SEGMENT_COUNT = 8;
+    public static final double DEFAULT_MAX_READ_CAPACITY_PER_SECOND = 200;
+
+    private final InfrastructureConstructor infrastructureConstructor;
+    private final ParallelScan scan;
+
+    /**
+     * Creates a ServerTableExport object with the default segment count and capacity limit.
+     *
+     * @param infrastructureConstructor The InfrastructureConstructor used to obtain AWS clients
+     */
+    public ServerTableExport(@NotNull InfrastructureConstructor infrastructureConstructor) {
+        this(infrastructureConstructor, DEFAULT_SEGMENT_COUNT, DEFAULT_MAX_READ_CAPACITY_PER_SECOND);
+    }
+
+    /**
+     * Creates a ServerTableExport object.
+     *
+     * @param infrastructureConstructor The InfrastructureConstructor used to obtain AWS clients
+     * @param segmentCount              The number of segments scanned at the same time
+     * @param maxReadCapacityPerSecond  The read capacity units per second the export may consume, or 0 for no limit
+     */
+    public ServerTableExport(@NotNull InfrastructureConstructor infrastructureConstructor,
+                             int segmentCount,
+                             double maxReadCapacityPerSecond) {
+        this.infrastructureConstructor = infrastructureConstructor;
+        this.scan = new ParallelScan(
+                infrastructureConstructor.getDynamoDBClient(),
+                infrastructureConstructor.getInfrastructureConfiguration()
+                        .getValue(InfrastructureSetting.SERVERDATABASENAME),
+                null,
+                segmentCount,
+                maxReadCapacityPerSecond);
+    }
+
+    /**
+     * Passes every server to the consumer, on the calling thread.
+     *
+     * @param serverConsumer Called with each server
+     * @return The number of servers
+     */
+    public long forEachServer(@NotNull Consumer<CloudCubesServer> serverConsumer) {
+        return scan.forEachItem(item ->
+                serverConsumer.accept(CloudCubesServer.fromItem(item, infrastructureConstructor)));
+    }
+
+    /**
+     * Writes every server to a file that can be read with {@link ColumnarFileReader}. Each row holds the string
+     * attributes of a server, including its "Id", with the fields of its record written as the string attributes they
+     * replaced.
+     *
+     * <p>
+     * Closing the writer ends the file, so a file written up to a failed scan would look complete. The rows are
+     * therefore written to a temporary file next to the target, which is only moved into place once the scan has
+     * read every server; if the export fails, the target is left as it was.
+     * </p>
+     *
+     * @param file The file to write, which is replaced if it exists
+     * @return The number of servers
+     * @throws IOException If the file could not be written
+     */
+    public long exportTo(@NotNull Path file) throws IOException {
+        Path absoluteFile = file.toAbsolutePath();
+        Path temporaryFile = Files.createTempFile(absoluteFile.getParent(), absoluteFile.getFileName().toString(),
+                ".tmp");
+        try {
+            long rowCount;
+            try (ColumnarFileWriter writer = new ColumnarFileWriter(Files.newOutputStream(temporaryFile))) {
+                scan.forEachItem(item -> {
+                    try {
+                        writer.writeRow(toStringValues(item));
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+                rowCount = writer.getRowCount();
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            Files.move(temporaryFile, absoluteFile, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            return rowCount;
+        } finally {
+            Files.deleteIfExists(temporaryFile);
+        }
+    }
+
+    /**
+     * @return The read capacity units the export has consumed so far
+     */
+    public double getConsumedReadCapacity() {
+        return scan.getConsumedReadCapacity();
+    }
+
+    private static @NotNull Map<String, String> toStringValues(@NotNull Map<String, AttributeValue> item) {
+        Map<String, String> values = new HashMap<>();
+        for (Map.Entry<String, AttributeValue> attribute : item.entrySet()) {
+            // Every attribute CloudCubes writes is a string, except for the record
+            if (attribute.getValue().s() != null) {
+                values.put(attribute.getKey(), attribute.getValue().s());
+            }
+        }
+        AttributeValue record = item.get(ServerRecord.SCHEMA.getAttributeName());
+        return ServerRecord.SCHEMA.toStringValues(values,
+                record != null && record.b() != null ? record.b().asByteArray() : null);
+    }
+}
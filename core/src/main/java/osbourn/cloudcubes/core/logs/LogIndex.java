@@ -0,0 +1,166 @@
+package osbourn.cloudcubes.core.logs;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.StringJoiner;
+
+/**
+ * <p>
+ * The list of log segments a server has shipped, kept in the server's database entry so that readers know which
+ * segment objects exist without listing the log bucket.
+ * </p>
+ *
+ * <p>
+ * The index is stored as a single string of the form {@code "start:end:size:agent,start:end:size:agent"}, where each
+ * entry is the start of the segment's time bucket, the timestamp of its last line, the size of its object in bytes and
+ * the time the agent that shipped it started, see {@link LogSegment#getObjectKey(java.util.UUID, long, long)}. Entries
+ * written before the agent was recorded have no agent part. A bucket has several entries if several agents shipped
+ * lines during it, and entries are kept in the order of their buckets and agents. Only the most recent segments are
+ * kept, because every read of the entry is billed for the size of the whole item. Older
+ * segments remain in the log bucket, where {@link ServerLogReader} finds them by listing, until the bucket's lifecycle
+ * rule expires them.
+ * </p>
+ */
+public final class LogIndex {
+    /**
+     * The number of segments kept in the index. With five minute buckets this covers the last eight hours of a server
+     * that runs continuously, in about 3 KB.
+     */
+    private static final int MAX_SEGMENTS = 96;
+
+    private final List<Segment> segments;
+
+    private LogIndex(List<Segment> segments) {
+        this.segments = segments;
+    }
+
+    /**
+     * Parses the index stored in the database.
+     *
+     * @param value The stored string, or null if the server has not shipped any logs
+     * @return The parsed index
+     */
+    public static @NotNull LogIndex fromString(@Nullable String value) {
+        List<Segment> segments = new ArrayList<>();
+        if (value != null && !value.isEmpty()) {
+            for (String entry : value.split(",")) {
+                String[] parts = entry.split(":");
+                segments.add(new Segment(Long.parseLong(parts[0]), Long.parseLong(parts[1]), Long.parseLong(parts[2]),
+                        parts.length > 3 ? Long.parseLong(parts[3]) : 0));
+            }
+        }
+        return new LogIndex(segments);
+    }
+
+    /**
+     * Adds a segment to the index, dropping the oldest buckets if the index is full.
+     *
+     * @param bucketStartMillis The start of the time bucket of the segment
+     * @param endMillis         The timestamp of the last line in the segment
+     * @param size              The size of the segment object in bytes
+     * @param agentStartMillis  The time the agent that shipped the segment started
+     */
+    public void add(long bucketStartMillis, long endMillis, long size, long agentStartMillis) {
+        Segment segment = new Segment(bucketStartMillis, endMillis, size, agentStartMillis);
+        // The previous agent of a server may ship its last segment after the next agent shipped a later one
+        int position = segments.size();
+        while (position > 0 && segments.get(position - 1).compareTo(segment) > 0) {
+            position--;
+        }
+        segments.add(position, segment);
+        if (segments.size() > MAX_SEGMENTS) {
+            // A bucket is either wholly in the index or wholly left to listing, so readers don't miss a segment of it
+            long droppedBucketStartMillis = segments.get(segments.size() - MAX_SEGMENTS - 1).bucketStartMillis;
+            int dropped = segments.size() - MAX_SEGMENTS;
+            while (dropped < segments.size() && segments.get(dropped).bucketStartMillis == droppedBucketStartMillis) {
+                dropped++;
+            }
+            segments.subList(0, dropped).clear();
+        }
+    }
+
+    /**
+     * Gets the start of the time bucket of the oldest segment in the index.
+     *
+     * @return The start of the oldest segment, or {@link Long#MAX_VALUE} if the index is empty
+     */
+    public long getOldestBucketStartMillis() {
+        return segments.isEmpty() ? Long.MAX_VALUE : segments.get(0).bucketStartMillis;
+    }
+
+    /**
+     * Gets the segments that may contain lines in the given time window.
+     *
+     * @param fromMillis The start of the window, inclusive
+     * @param toMillis   The end of the window, inclusive
+     * @return The overlapping segments, oldest first
+     */
+    public @NotNull List<Segment> getSegments(long fromMillis, long toMillis) {
+        List<Segment> overlapping = new ArrayList<>();
+        for (Segment segment : segments) {
+            if (segment.bucketStartMillis <= toMillis && segment.endMillis >= fromMillis) {
+                overlapping.add(segment);
+            }
+        }
+        return Collections.unmodifiableList(overlapping);
+    }
+
+    @Override
+    public String toString() {
+        StringJoiner joiner = new StringJoiner(",");
+        for (Segment segment : segments) {
+            joiner.add(segment.bucketStartMillis + ":" + segment.endMillis + ":" + segment.size
+                    + (segment.agentStartMillis != 0 ? ":" + segment.agentStartMillis : ""));
+        }
+        return joiner.toString();
+    }
+
+    /**
+     * An entry of the index.
+     */
+    public static final class Segment implements Comparable<Segment> {
+        private final long bucketStartMillis;
+        private final long endMillis;
+        private final long size;
+        private final long agentStartMillis;
+
+        Segment(long bucketStartMillis, long endMillis, long size, long agentStartMillis) {
+            this.bucketStartMillis = bucketStartMillis;
+            this.endMillis = endMillis;
+            this.size = size;
+            this.agentStartMillis = agentStartMillis;
+        }
+
+        public long getBucketStartMillis() {
+            return bucketStartMillis;
+        }
+
+        public long getEndMillis() {
+            return endMillis;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * @return The time the agent that shipped the segment started, or 0 if it wasn't recorded
+         */
+        public long getAgentStartMillis() {
+            return agentStartMillis;
+        }
+
+        /**
+         * Orders segments by their bucket, and the segments of a bucket by the time their agents started.
+         */
+        @Override
+        public int compareTo(@NotNull Segment other) {
+            int byBucket = Long.compare(bucketStartMillis, other.bucketStartMillis);
+            return byBucket != 0 ? byBucket : Long.compare(agentStartMillis, other.agentStartMillis);
+        }
+    }
+}
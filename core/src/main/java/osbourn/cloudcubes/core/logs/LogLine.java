@@ -0,0 +1,40 @@
+package osbourn.cloudcubes.core.logs;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * A single line of a server's console log, together with the time the log shipper read it.
+ */
+public final class LogLine {
+    private final long timestampMillis;
+    private final String text;
+
+    public LogLine(long timestampMillis, @NotNull String text) {
+        this.timestampMillis = timestampMillis;
+        this.text = text;
+    }
+
+    /**
+     * Gets the time the line was read from the log, in milliseconds since the epoch. Minecraft only prints the time of
+     * day in front of its log lines, so this is the timestamp used to search logs.
+     *
+     * @return The timestamp of the line
+     */
+    public long getTimestampMillis() {
+        return timestampMillis;
+    }
+
+    /**
+     * Gets the text of the line, as printed by the server.
+     *
+     * @return The text of the line
+     */
+    public @NotNull String getText() {
+        return text;
+    }
+
+    @Override
+    public String toString() {
+        return timestampMillis + " " + text;
+    }
+}
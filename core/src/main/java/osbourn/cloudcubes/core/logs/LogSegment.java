@@ -0,0 +1,245 @@
+package osbourn.cloudcubes.core.logs;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * <p>
+ * The format of a log segment, which holds the log lines of one server for one time bucket. A segment is stored as a
+ * single S3 object laid out so that a reader can fetch only the parts it needs with ranged requests:
+ * </p>
+ * <pre>
+ * [block 0] [block 1] ... [block n-1] [footer] [trailer]
+ * </pre>
+ *
+ * <p>
+ * Each block is an independently gzipped run of lines of the form {@code "<epoch millis>\t<text>\n"}. The footer lists
+ * the time range, offset, length and line count of every block, and the fixed size trailer at the very end of the
+ * object gives the position of the footer. A reader therefore fetches the end of the object, picks the blocks that
+ * overlap the time window it wants and fetches just those.
+ * </p>
+ */
+public final class LogSegment {
+    /**
+     * Blocks are closed once they hold this many uncompressed bytes. Smaller blocks make reads more selective, larger
+     * blocks compress better.
+     */
+    private static final int TARGET_BLOCK_SIZE = 64 * 1024;
+    /**
+     * The length of the time buckets. The log shipper starts a new segment at every multiple of this duration.
+     */
+    public static final long BUCKET_DURATION_MILLIS = 5 * 60_000;
+    static final int BLOCK_INFO_SIZE = 8 + 8 + 8 + 4 + 4;
+    static final int TRAILER_SIZE = 8 + 4 + 4;
+    private static final int MAGIC = 0x43434C31; // "CCL1"
+
+    private LogSegment() {
+    }
+
+    /**
+     * Gets the key of the S3 object that stores a segment. A bucket can have several segments, since the agent of a
+     * server that is restarted, resized or relaunched ships the part of the bucket before it stopped, and the next
+     * agent ships the rest. The key therefore includes the time the shipping agent started, which keeps the segments
+     * of different agents apart.
+     *
+     * @param serverId          The id of the server the segment belongs to
+     * @param bucketStartMillis The start of the time bucket of the segment
+     * @param agentStartMillis  The time the agent that shipped the segment started, or 0 for segments shipped before
+     *                          this was part of the key
+     * @return The key of the segment object
+     */
+    public static @NotNull String getObjectKey(@NotNull UUID serverId, long bucketStartMillis, long agentStartMillis) {
+        return getObjectKeyPrefix(serverId) + bucketStartMillis
+                + (agentStartMillis != 0 ? "-" + agentStartMillis : "") + ".cclog";
+    }
+
+    /**
+     * Gets the prefix shared by the keys of all segment objects of a server. Because bucket start times have the same
+     * number of digits for the foreseeable future, listing the prefix returns the segments in time order, and the
+     * segments of a bucket in the order their agents started.
+     *
+     * @param serverId The id of the server
+     * @return The prefix of the server's segment objects
+     */
+    public static @NotNull String getObjectKeyPrefix(@NotNull UUID serverId) {
+        return "server-logs/" + serverId + "/";
+    }
+
+    /**
+     * Builds a segment from log lines. Lines must be added in timestamp order.
+     */
+    public static final class Writer {
+        private final ByteArrayOutputStream blocks = new ByteArrayOutputStream();
+        private final List<BlockInfo> blockInfos = new ArrayList<>();
+        private final StringBuilder currentBlock = new StringBuilder();
+        private long currentBlockStartMillis = 0;
+        private long currentBlockEndMillis = 0;
+        private int currentBlockLineCount = 0;
+
+        /**
+         * Adds a line to the segment.
+         *
+         * @param line The line to add
+         */
+        public void addLine(@NotNull LogLine line) {
+            if (currentBlockLineCount == 0) {
+                currentBlockStartMillis = line.getTimestampMillis();
+            }
+            currentBlockEndMillis = line.getTimestampMillis();
+            currentBlockLineCount++;
+            currentBlock.append(line.getTimestampMillis()).append('\t').append(line.getText()).append('\n');
+            if (currentBlock.length() >= TARGET_BLOCK_SIZE) {
+                closeBlock();
+            }
+        }
+
+        /**
+         * Returns true if no lines have been added.
+         *
+         * @return True if the segment is empty
+         */
+        public boolean isEmpty() {
+            return blockInfos.isEmpty() && currentBlockLineCount == 0;
+        }
+
+        /**
+         * Gets the timestamp of the last line that was added.
+         *
+         * @return The timestamp of the last line, or 0 if the segment is empty
+         */
+        public long getEndMillis() {
+            if (currentBlockLineCount > 0) {
+                return currentBlockEndMillis;
+            }
+            return blockInfos.isEmpty() ? 0 : blockInfos.get(blockInfos.size() - 1).endMillis;
+        }
+
+        /**
+         * Finishes the segment.
+         *
+         * @return The contents of the segment object
+         */
+        public byte @NotNull [] toByteArray() {
+            if (currentBlockLineCount > 0) {
+                closeBlock();
+            }
+            long footerOffset = blocks.size();
+            ByteBuffer footer = ByteBuffer.allocate(4 + blockInfos.size() * BLOCK_INFO_SIZE + TRAILER_SIZE);
+            footer.putInt(blockInfos.size());
+            for (BlockInfo blockInfo : blockInfos) {
+                footer.putLong(blockInfo.startMillis);
+                footer.putLong(blockInfo.endMillis);
+                footer.putLong(blockInfo.offset);
+                footer.putInt(blockInfo.length);
+                footer.putInt(blockInfo.lineCount);
+            }
+            footer.putLong(footerOffset);
+            footer.putInt(4 + blockInfos.size() * BLOCK_INFO_SIZE);
+            footer.putInt(MAGIC);
+
+            ByteArrayOutputStream segment = new ByteArrayOutputStream(blocks.size() + footer.capacity());
+            segment.write(blocks.toByteArray(), 0, blocks.size());
+            segment.write(footer.array(), 0, footer.capacity());
+            return segment.toByteArray();
+        }
+
+        private void closeBlock() {
+            byte[] compressed = compress(currentBlock.toString().getBytes(StandardCharsets.UTF_8));
+            blockInfos.add(new BlockInfo(currentBlockStartMillis, currentBlockEndMillis,
+                    blocks.size(), compressed.length, currentBlockLineCount));
+            blocks.write(compressed, 0, compressed.length);
+            currentBlock.setLength(0);
+            currentBlockLineCount = 0;
+        }
+    }
+
+    /**
+     * Describes where a block is in a segment and which lines it holds.
+     */
+    static final class BlockInfo {
+        final long startMillis;
+        final long endMillis;
+        final long offset;
+        final int length;
+        final int lineCount;
+
+        BlockInfo(long startMillis, long endMillis, long offset, int length, int lineCount) {
+            this.startMillis = startMillis;
+            this.endMillis = endMillis;
+            this.offset = offset;
+            this.length = length;
+            this.lineCount = lineCount;
+        }
+    }
+
+    /**
+     * Reads the position of the footer from the trailer.
+     *
+     * @param trailer The last {@link #TRAILER_SIZE} bytes of a segment
+     * @return The offset and the length of the footer
+     * @throws IOException If the trailer is not valid
+     */
+    static long @NotNull [] readTrailer(@NotNull ByteBuffer trailer) throws IOException {
+        long footerOffset = trailer.getLong();
+        int footerLength = trailer.getInt();
+        if (trailer.getInt() != MAGIC) {
+            throw new IOException("Object is not a log segment");
+        }
+        return new long[]{footerOffset, footerLength};
+    }
+
+    /**
+     * Reads the list of blocks from the footer.
+     *
+     * @param footer The footer of a segment, without the trailer
+     * @return The blocks of the segment, in order
+     */
+    static @NotNull List<BlockInfo> readFooter(@NotNull ByteBuffer footer) {
+        int blockCount = footer.getInt();
+        List<BlockInfo> blockInfos = new ArrayList<>(blockCount);
+        for (int i = 0; i < blockCount; i++) {
+            blockInfos.add(new BlockInfo(footer.getLong(), footer.getLong(), footer.getLong(), footer.getInt(),
+                    footer.getInt()));
+        }
+        return blockInfos;
+    }
+
+    /**
+     * Decompresses a block and returns its lines.
+     *
+     * @param block The compressed block
+     * @return The lines in the block
+     * @throws IOException If the block could not be decompressed
+     */
+    static @NotNull List<LogLine> readBlock(byte @NotNull [] block) throws IOException {
+        List<LogLine> lines = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new GZIPInputStream(new ByteArrayInputStream(block)), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int tabIndex = line.indexOf('\t');
+                lines.add(new LogLine(Long.parseLong(line.substring(0, tabIndex)), line.substring(tabIndex + 1)));
+            }
+        }
+        return lines;
+    }
+
+    private static byte @NotNull [] compress(byte @NotNull [] data) {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(data.length / 4);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+            gzip.write(data);
+        } catch (IOException e) {
+            // Writing to a ByteArrayOutputStream doesn't throw
+            throw new UncheckedIOException(e);
+        }
+        return compressed.toByteArray();
+    }
+}
@@ -0,0 +1,167 @@
+package osbourn.cloudcubes.core.logs;
+
+import org.jetbrains.annotations.NotNull;
+import osbourn.cloudcubes.core.database.DatabaseEntry;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
+import software.amazon.awssdk.services.s3.model.S3Object;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * <p>
+ * Reads the console log lines a server printed during a time window from the segments shipped by the server agent.
+ * </p>
+ *
+ * <p>
+ * Only the byte ranges that are needed are downloaded: for each segment that overlaps the window, the end of the
+ * object is read to find the block list, and then only the blocks that overlap the window are fetched in a single
+ * ranged request. Recent segments are found through the index in the server's database entry; older segments are
+ * found by listing the log bucket.
+ * </p>
+ *
+ * <p>
+ * A bucket can have several segments, one for every agent that shipped lines during it, for example when the server
+ * was restarted. The lines of all segments are merged in the order of their timestamps.
+ * </p>
+ */
+public class ServerLogReader {
+    /**
+     * How much of the end of a segment is read at first. This is enough for the trailer and for the footer of a segment
+     * with a few hundred blocks, so most segments need only one request before their blocks are fetched.
+     */
+    private static final int TAIL_READ_SIZE = 8 * 1024;
+
+    private final S3Client s3Client;
+    private final String logBucketName;
+    private final DatabaseEntry serverEntry;
+
+    /**
+     * Creates a ServerLogReader object.
+     *
+     * @param s3Client      The S3 client used to make requests
+     * @param logBucketName The name of the bucket the segments are stored in
+     * @param serverEntry   The database entry of the server whose logs should be read
+     */
+    public ServerLogReader(@NotNull S3Client s3Client,
+                           @NotNull String logBucketName,
+                           @NotNull DatabaseEntry serverEntry) {
+        this.s3Client = s3Client;
+        this.logBucketName = logBucketName;
+        this.serverEntry = serverEntry;
+    }
+
+    /**
+     * Reads the log lines in a time window.
+     *
+     * @param fromMillis The start of the window in milliseconds since the epoch, inclusive
+     * @param toMillis   The end of the window in milliseconds since the epoch, inclusive
+     * @return The lines in the window, in the order they were printed
+     * @throws IOException If a segment could not be read
+     */
+    public @NotNull List<LogLine> readLines(long fromMillis, long toMillis) throws IOException {
+        LogIndex index = LogIndex.fromString(serverEntry.requestStringValueFromDatabase("LogIndex"));
+        List<LogIndex.Segment> segments = new ArrayList<>();
+        if (fromMillis < index.getOldestBucketStartMillis()) {
+            segments.addAll(listSegments(fromMillis, Math.min(toMillis, index.getOldestBucketStartMillis() - 1)));
+        }
+        segments.addAll(index.getSegments(fromMillis, toMillis));
+
+        List<LogLine> lines = new ArrayList<>();
+        for (LogIndex.Segment segment : segments) {
+            lines.addAll(readSegment(segment, fromMillis, toMillis));
+        }
+        // The segments of different agents may overlap in time. The sort is stable, so the lines of one segment keep
+        // their order.
+        lines.sort(Comparator.comparingLong(LogLine::getTimestampMillis));
+        return lines;
+    }
+
+    private @NotNull List<LogIndex.Segment> listSegments(long fromMillis, long toMillis) {
+        String prefix = LogSegment.getObjectKeyPrefix(serverEntry.getId());
+        // Start listing at the last bucket that starts before the window, since it may extend into the window. The
+        // start time alone sorts before every key of a later bucket, whichever agent shipped it.
+        String startAfter = prefix + (fromMillis - LogSegment.BUCKET_DURATION_MILLIS - 1);
+        ListObjectsV2Request request = ListObjectsV2Request.builder()
+                .bucket(logBucketName)
+                .prefix(prefix)
+                .startAfter(startAfter)
+                .build();
+
+        List<LogIndex.Segment> segments = new ArrayList<>();
+        for (S3Object object : s3Client.listObjectsV2Paginator(request).contents()) {
+            // The name is "<bucket start>-<agent start>.cclog", or "<bucket start>.cclog" for older segments
+            String name = object.key().substring(prefix.length());
+            name = name.substring(0, name.indexOf('.'));
+            int separatorIndex = name.indexOf('-');
+            long bucketStartMillis = Long.parseLong(separatorIndex >= 0 ? name.substring(0, separatorIndex) : name);
+            long agentStartMillis = separatorIndex >= 0 ? Long.parseLong(name.substring(separatorIndex + 1)) : 0;
+            if (bucketStartMillis > toMillis) {
+                break;
+            }
+            long endMillis = bucketStartMillis + LogSegment.BUCKET_DURATION_MILLIS - 1;
+            if (endMillis >= fromMillis) {
+                segments.add(new LogIndex.Segment(bucketStartMillis, endMillis, object.size(), agentStartMillis));
+            }
+        }
+        return segments;
+    }
+
+    private @NotNull List<LogLine> readSegment(@NotNull LogIndex.Segment segment, long fromMillis, long toMillis)
+            throws IOException {
+        String key = LogSegment.getObjectKey(serverEntry.getId(), segment.getBucketStartMillis(),
+                segment.getAgentStartMillis());
+        long size = segment.getSize();
+
+        // Read the end of the object, which holds the trailer and usually the whole footer
+        long tailStart = Math.max(0, size - TAIL_READ_SIZE);
+        byte[] tail = getRange(key, tailStart, size - 1);
+        long[] footerPosition = LogSegment.readTrailer(
+                ByteBuffer.wrap(tail, tail.length - LogSegment.TRAILER_SIZE, LogSegment.TRAILER_SIZE));
+        long footerOffset = footerPosition[0];
+        int footerLength = (int) footerPosition[1];
+        ByteBuffer footer = footerOffset >= tailStart
+                ? ByteBuffer.wrap(tail, (int) (footerOffset - tailStart), footerLength)
+                : ByteBuffer.wrap(getRange(key, footerOffset, footerOffset + footerLength - 1));
+
+        // Blocks are in time order, so the blocks that overlap the window are next to each other in the object
+        List<LogSegment.BlockInfo> overlappingBlocks = new ArrayList<>();
+        for (LogSegment.BlockInfo blockInfo : LogSegment.readFooter(footer)) {
+            if (blockInfo.startMillis <= toMillis && blockInfo.endMillis >= fromMillis) {
+                overlappingBlocks.add(blockInfo);
+            }
+        }
+        if (overlappingBlocks.isEmpty()) {
+            return new ArrayList<>();
+        }
+        LogSegment.BlockInfo first = overlappingBlocks.get(0);
+        LogSegment.BlockInfo last = overlappingBlocks.get(overlappingBlocks.size() - 1);
+        byte[] blocks = getRange(key, first.offset, last.offset + last.length - 1);
+
+        List<LogLine> lines = new ArrayList<>();
+        for (LogSegment.BlockInfo blockInfo : overlappingBlocks) {
+            byte[] block = new byte[blockInfo.length];
+            System.arraycopy(blocks, (int) (blockInfo.offset - first.offset), block, 0, blockInfo.length);
+            for (LogLine line : LogSegment.readBlock(block)) {
+                if (line.getTimestampMillis() >= fromMillis && line.getTimestampMillis() <= toMillis) {
+                    lines.add(line);
+                }
+            }
+        }
+        return lines;
+    }
+
+    private byte @NotNull [] getRange(@NotNull String key, long firstByte, long lastByte) {
+        GetObjectRequest request = GetObjectRequest.builder()
+                .bucket(logBucketName)
+                .key(key)
+                .range("bytes=" + firstByte + "-" + lastByte)
+                .build();
+        return s3Client.getObjectAsBytes(request).asByteArray();
+    }
+}
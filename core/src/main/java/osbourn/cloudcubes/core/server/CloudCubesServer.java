@@ -1,26 +1,58 @@
 package osbourn.cloudcubes.core.server;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import osbourn.cloudcubes.core.artifacts.ArtifactManifest;
+import osbourn.cloudcubes.core.artifacts.ArtifactStore;
 import osbourn.cloudcubes.core.constructs.InfrastructureConfiguration;
 import osbourn.cloudcubes.core.constructs.InfrastructureConfiguration.InfrastructureSetting;
 import osbourn.cloudcubes.core.constructs.InfrastructureConstructor;
 import osbourn.cloudcubes.core.database.DatabaseEntry;
 import osbourn.cloudcubes.core.database.DynamoDBEntry;
+import osbourn.cloudcubes.core.database.PackedRecord;
+import osbourn.cloudcubes.core.logs.ServerLogReader;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Map;
 import java.util.UUID;
 
 public class CloudCubesServer implements Server {
+    private static final int MAX_LATENCY_WRITE_ATTEMPTS = 10;
+
     private final UUID id;
-    private final DatabaseEntry databaseEntry;
-    private final InstanceManager instanceManager;
+    /**
+     * The entry in the replica of the server table in the server's home region. The server table is a global table
+     * whose replicas only check conditions against their own copy and resolve concurrent writes by keeping the last
+     * one, so the start claims and the conditional updates of the server are only exclusive if every writer uses the
+     * same replica.
+     */
+    private DynamoDBEntry databaseEntry;
+    /**
+     * The entry in the replica of the server table in the region of the InfrastructureConfiguration the server was
+     * loaded with, which is used to read the status of the server without a request to another region.
+     */
+    private final DynamoDBEntry statusEntry;
+    private final InfrastructureConstructor infrastructureConstructor;
+    private Region homeRegion;
+    private InstanceManager instanceManager;
 
     private CloudCubesServer(
             UUID id,
             DynamoDBEntry databaseEntry,
+            DynamoDBEntry statusEntry,
+            InfrastructureConstructor infrastructureConstructor,
+            Region homeRegion,
             InstanceManager instanceManager
     ) {
         this.id = id;
         this.databaseEntry = databaseEntry;
+        this.statusEntry = statusEntry;
+        this.infrastructureConstructor = infrastructureConstructor;
+        this.homeRegion = homeRegion;
         this.instanceManager = instanceManager;
     }
 
@@ -31,12 +63,250 @@ public class CloudCubesServer implements Server {
 
     @Override
     public ProvisionalServerState getServerState() {
-        return null;
+        // The state and the heartbeat are read together
+        PackedRecord record = ServerRecord.of(statusEntry).request();
+        ProvisionalServerState serverState = record.get(ServerRecord.STATE);
+        if (serverState == null || serverState == ProvisionalServerState.OFFLINE) {
+            return ProvisionalServerState.OFFLINE;
+        } else if (serverState == ProvisionalServerState.ONLINE) {
+            // A server that has stopped sending heartbeats may have crashed, so its state has to be verified
+            ServerHealth health = record.get(ServerRecord.HEARTBEAT);
+            return health != null && health.isFresh(System.currentTimeMillis())
+                    ? ProvisionalServerState.ONLINE
+                    : ProvisionalServerState.UNKNOWN;
+        } else {
+            return ProvisionalServerState.UNKNOWN;
+        }
+    }
+
+    @Override
+    public @Nullable ServerHealth getHealth() {
+        return ServerRecord.of(statusEntry).request(ServerRecord.HEARTBEAT);
     }
 
+    /**
+     * Launches the server if it is offline.
+     *
+     * @throws IllegalStateException   If the server is currently online
+     * @throws ServerStartingException If the server is still starting
+     */
     @Override
     public void startServer() {
-        instanceManager.setState(ServerState.ONLINE);
+        if (instanceManager.isStarting()) {
+            throw new ServerStartingException("The server is still starting");
+        }
+        if (!instanceManager.setState(ServerState.ONLINE)) {
+            throw new IllegalStateException("The server is currently online");
+        }
+    }
+
+    /**
+     * Gets whether the server has been launched but hasn't come online yet, in which case starting it again is
+     * refused.
+     *
+     * @return True if the server is starting
+     * @see InstanceManager#isStarting()
+     */
+    public boolean isStarting() {
+        return instanceManager.isStarting();
+    }
+
+    @Override
+    public void stopServer() {
+        if (!instanceManager.setState(ServerState.OFFLINE)) {
+            throw new IllegalStateException("The server is currently offline");
+        }
+    }
+
+    @Override
+    public @Nullable String getServerAddress() {
+        return this.statusEntry.requestStringValueFromDatabase("ServerAddress");
+    }
+
+    /**
+     * Gets the region the server runs in. Servers that have never been assigned a region run in the region of the
+     * InfrastructureConfiguration they were loaded with.
+     *
+     * @return The home region of the server
+     */
+    public Region getHomeRegion() {
+        return homeRegion;
+    }
+
+    /**
+     * Gets the latency statistics that players have reported for this server.
+     *
+     * @return The latency statistics of the server
+     */
+    public RegionLatencies getRegionLatencies() {
+        return RegionLatencies.fromString(databaseEntry.requestStringValueFromDatabase("RegionLatencies"));
+    }
+
+    /**
+     * Records latency measurements taken by players of this server. The proxies of every region record measurements
+     * for the same server, so the statistics are written with a conditional write and read again if another proxy has
+     * written them in the meantime.
+     *
+     * @param region        The region the measurements were taken in
+     * @param latencyMillis The average measured round trip time in milliseconds
+     * @param sampleCount   The number of measurements that were averaged
+     * @throws IllegalStateException If the statistics kept changing while they were being written
+     */
+    public void recordPlayerLatency(Region region, double latencyMillis, int sampleCount) {
+        for (int attempt = 0; attempt < MAX_LATENCY_WRITE_ATTEMPTS; attempt++) {
+            String current = databaseEntry.requestStringValueFromDatabase("RegionLatencies");
+            RegionLatencies regionLatencies = RegionLatencies.fromString(current);
+            regionLatencies.record(region, latencyMillis, sampleCount);
+            if (databaseEntry.setStringValuesIf(Collections.singletonMap("RegionLatencies", current),
+                    Collections.singletonMap("RegionLatencies", regionLatencies.toString()))) {
+                return;
+            }
+        }
+        throw new IllegalStateException("The latency statistics of the server kept changing");
+    }
+
+    /**
+     * Moves the server to another region, which copies its world there. The copy runs in the background, since it
+     * takes much longer than a request may; the server can't be started until it is done, and a start that arrives
+     * in the meantime starts the server once the world has arrived. Only servers on their own spot instance can be
+     * moved.
+     *
+     * @param region The region to move the server to
+     * @throws IllegalStateException If the server isn't offline, or is already being moved
+     * @see EC2SpotInstanceManager#beginVolumeTransfer(Region, String, boolean)
+     */
+    public void moveToRegion(Region region) {
+        if (!(instanceManager instanceof EC2SpotInstanceManager)) {
+            throw new IllegalStateException("The server does not run on its own spot instance");
+        }
+        if (!infrastructureConstructor.getInfrastructureConfiguration().getServerRegions().contains(region)) {
+            throw new IllegalArgumentException("CloudCubes is not deployed to " + region);
+        }
+        if (instanceManager.isStarting() || instanceManager.getState() != ServerState.OFFLINE) {
+            throw new IllegalStateException("The server is not offline");
+        }
+        EC2SpotInstanceManager ec2SpotInstanceManager = (EC2SpotInstanceManager) instanceManager;
+        if (region.equals(getHomeRegion())) {
+            return;
+        }
+        if (ec2SpotInstanceManager.getDataVolumeId() == null) {
+            // There is no world to copy yet
+            databaseEntry.setStringValue("HomeRegion", region.id());
+            InfrastructureConstructor regionalConstructor = infrastructureConstructor.forRegion(region);
+            databaseEntry = getHomeRegionEntry(statusEntry, regionalConstructor);
+            homeRegion = region;
+            instanceManager = createInstanceManager(databaseEntry, regionalConstructor);
+            return;
+        }
+        ec2SpotInstanceManager.beginVolumeTransfer(region, null, false);
+    }
+
+    /**
+     * Carries out the next step of moving the server's data volume, and switches the server to its new region once
+     * the move is done.
+     *
+     * @return True if the move is done or there is none, false if it needs more steps
+     * @see EC2SpotInstanceManager#advanceVolumeTransfer(EC2SpotInstanceManager)
+     */
+    public boolean advanceVolumeTransfer() {
+        if (!(instanceManager instanceof EC2SpotInstanceManager)) {
+            return true;
+        }
+        EC2SpotInstanceManager ec2SpotInstanceManager = (EC2SpotInstanceManager) instanceManager;
+        VolumeTransfer transfer = ec2SpotInstanceManager.getVolumeTransfer();
+        if (transfer == null) {
+            return true;
+        }
+        EC2SpotInstanceManager target = ec2SpotInstanceManager;
+        DynamoDBEntry targetEntry = databaseEntry;
+        if (!transfer.getTargetRegion().equals(getHomeRegion())) {
+            InfrastructureConstructor regionalConstructor =
+                    infrastructureConstructor.forRegion(transfer.getTargetRegion());
+            targetEntry = getHomeRegionEntry(statusEntry, regionalConstructor);
+            target = createInstanceManager(targetEntry, regionalConstructor);
+        }
+        if (!ec2SpotInstanceManager.advanceVolumeTransfer(target)) {
+            return false;
+        }
+        databaseEntry = targetEntry;
+        homeRegion = transfer.getTargetRegion();
+        instanceManager = target;
+        return true;
+    }
+
+    /**
+     * Relaunches the server on a new instance after its instance received a spot interruption notice.
+     *
+     * @see EC2SpotInstanceManager#relaunchAfterInterruption()
+     * @see SharedHostInstanceManager#relaunchAfterInterruption()
+     */
+    public void relaunchAfterInterruption() {
+        if (instanceManager instanceof EC2SpotInstanceManager) {
+            ((EC2SpotInstanceManager) instanceManager).relaunchAfterInterruption();
+        } else if (instanceManager instanceof SharedHostInstanceManager) {
+            ((SharedHostInstanceManager) instanceManager).relaunchAfterInterruption();
+        } else {
+            throw new IllegalStateException("The server does not run on a spot instance");
+        }
+    }
+
+    /**
+     * Moves the server to an instance with another launch profile. A server that is offline keeps its instance type
+     * until it is next started; a server that is online is restarted on the new instance type right away, so it should
+     * be empty. Only servers on their own spot instance can be resized.
+     *
+     * @param launchProfile The launch profile to move the server to
+     * @see EC2SpotInstanceManager#resize(LaunchProfile)
+     */
+    public void resize(LaunchProfile launchProfile) {
+        if (!(instanceManager instanceof EC2SpotInstanceManager)) {
+            throw new IllegalStateException("The server does not run on its own spot instance");
+        }
+        EC2SpotInstanceManager ec2SpotInstanceManager = (EC2SpotInstanceManager) instanceManager;
+        if (instanceManager.getState() == ServerState.OFFLINE) {
+            ec2SpotInstanceManager.recordResize(launchProfile);
+        } else {
+            ec2SpotInstanceManager.resize(launchProfile);
+        }
+    }
+
+    /**
+     * Gets a reader for the console logs the server has shipped. Servers ship their logs to the log bucket of the
+     * region they run in, so logs from before the server last moved to another region are not included.
+     *
+     * @return A reader for the server's logs
+     */
+    public ServerLogReader getLogReader() {
+        InfrastructureConstructor homeRegionConstructor = infrastructureConstructor.forRegion(getHomeRegion());
+        return new ServerLogReader(
+                homeRegionConstructor.getS3Client(),
+                homeRegionConstructor.getInfrastructureConfiguration().getValue(InfrastructureSetting.LOGBUCKETNAME),
+                databaseEntry);
+    }
+
+    /**
+     * Publishes the contents of a directory as the files of this server. The files are uploaded to the artifact store
+     * of every server region, since the server may move to any of them, and are installed into the server directory by
+     * the agent the next time the server starts.
+     *
+     * @param directory The directory containing the server jar, mods and configs
+     * @return The manifest of the published files
+     * @throws IOException If a file could not be read
+     */
+    public ArtifactManifest publishArtifacts(Path directory) throws IOException {
+        ArtifactManifest manifest = null;
+        for (Region region : infrastructureConstructor.getInfrastructureConfiguration().getServerRegions()) {
+            InfrastructureConstructor regionalConstructor = infrastructureConstructor.forRegion(region);
+            ArtifactStore artifactStore = new ArtifactStore(regionalConstructor.getS3Client(),
+                    regionalConstructor.getInfrastructureConfiguration()
+                            .getValue(InfrastructureSetting.RESOURCEBUCKETNAME));
+            manifest = artifactStore.publish(directory);
+        }
+        if (manifest == null) {
+            throw new IllegalStateException("There are no server regions to publish to");
+        }
+        databaseEntry.setStringValue("ArtifactManifest", manifest.getHash());
+        return manifest;
     }
 
     /**
@@ -62,19 +332,127 @@ public class CloudCubesServer implements Server {
     }
 
     public static CloudCubesServer fromId(UUID id, InfrastructureConfiguration infrastructureConfiguration) {
-        InfrastructureConstructor infrastructureConstructor = new InfrastructureConstructor(infrastructureConfiguration);
+        return fromId(id, new InfrastructureConstructor(infrastructureConfiguration));
+    }
+
+    /**
+     * Creates a CloudCubesServer object for the server with the given id, reusing the AWS clients held by the given
+     * InfrastructureConstructor. Long-running processes should prefer this overload so that clients are not recreated
+     * for every server.
+     *
+     * @param id                        The id of the server in the server database
+     * @param infrastructureConstructor The InfrastructureConstructor used to obtain AWS clients
+     * @return The server object that was just created
+     */
+    public static CloudCubesServer fromId(UUID id, InfrastructureConstructor infrastructureConstructor) {
+        InfrastructureConfiguration infrastructureConfiguration =
+                infrastructureConstructor.getInfrastructureConfiguration();
+        // The home region is read from the local replica, and the entry is moved to the home region in fromEntry
         DynamoDBEntry dynamoDBEntry = DynamoDBEntry.fromId(
                 id,
                 infrastructureConstructor.getDynamoDBClient(),
                 infrastructureConfiguration.getValue(InfrastructureSetting.SERVERDATABASENAME));
-        EC2SpotInstanceManager EC2SpotInstanceManager = new EC2SpotInstanceManager(
+        return fromEntry(dynamoDBEntry, infrastructureConstructor);
+    }
+
+    /**
+     * Creates a CloudCubesServer object from an item that was read from the server database, for example by a
+     * {@link osbourn.cloudcubes.core.export.ServerTableExport}. The values in the item are used instead of reading
+     * them again, so creating servers for a whole table only costs the scan.
+     *
+     * @param item                      The item, which must include the "Id" attribute
+     * @param infrastructureConstructor The InfrastructureConstructor used to obtain AWS clients
+     * @return The server object that was just created
+     */
+    public static CloudCubesServer fromItem(Map<String, AttributeValue> item,
+                                            InfrastructureConstructor infrastructureConstructor) {
+        DynamoDBEntry dynamoDBEntry = DynamoDBEntry.fromItem(
+                item,
+                infrastructureConstructor.getDynamoDBClient(),
+                infrastructureConstructor.getInfrastructureConfiguration()
+                        .getValue(InfrastructureSetting.SERVERDATABASENAME));
+        return fromEntry(dynamoDBEntry, infrastructureConstructor);
+    }
+
+    private static CloudCubesServer fromEntry(DynamoDBEntry statusEntry,
+                                              InfrastructureConstructor infrastructureConstructor) {
+        UUID id = statusEntry.getId();
+        // The instance is managed with the resources of the server's home region, and the server is written to the
+        // replica there
+        Region homeRegion = getHomeRegion(statusEntry, infrastructureConstructor);
+        InfrastructureConstructor homeRegionConstructor = infrastructureConstructor.forRegion(homeRegion);
+        DynamoDBEntry dynamoDBEntry = homeRegionConstructor == infrastructureConstructor
+                ? statusEntry
+                : getHomeRegionEntry(statusEntry, homeRegionConstructor);
+        InstanceManager instanceManager;
+        switch (InstanceBackend.fromString(dynamoDBEntry.getStringValue("InstanceBackend"))) {
+            case CONTAINER:
+                instanceManager = createContainerInstanceManager(dynamoDBEntry, homeRegionConstructor);
+                break;
+            case SHARED_HOST:
+                instanceManager = new SharedHostInstanceManager(dynamoDBEntry, new SharedHostPool(
+                        homeRegionConstructor.getDynamoDBClient(),
+                        homeRegionConstructor.getEc2Client(),
+                        homeRegionConstructor.getInfrastructureConfiguration()));
+                break;
+            case EC2_SPOT:
+            default:
+                instanceManager = createInstanceManager(dynamoDBEntry, homeRegionConstructor);
+                break;
+        }
+        return new CloudCubesServer(id, dynamoDBEntry, statusEntry, infrastructureConstructor, homeRegion,
+                instanceManager);
+    }
+
+    /**
+     * Gets the entry of a server in the replica of the server table in the region of the given
+     * InfrastructureConstructor.
+     */
+    private static DynamoDBEntry getHomeRegionEntry(DynamoDBEntry statusEntry,
+                                                    InfrastructureConstructor regionalConstructor) {
+        return DynamoDBEntry.fromId(
+                statusEntry.getId(),
+                regionalConstructor.getDynamoDBClient(),
+                regionalConstructor.getInfrastructureConfiguration()
+                        .getValue(InfrastructureSetting.SERVERDATABASENAME));
+    }
+
+    private static Region getHomeRegion(DatabaseEntry databaseEntry, InfrastructureConstructor infrastructureConstructor) {
+        String homeRegion = databaseEntry.getStringValue("HomeRegion");
+        return homeRegion != null
+                ? Region.of(homeRegion)
+                : infrastructureConstructor.getInfrastructureConfiguration().getRegion();
+    }
+
+    private static ContainerInstanceManager createContainerInstanceManager(
+            DynamoDBEntry dynamoDBEntry,
+            InfrastructureConstructor regionalConstructor
+    ) {
+        InfrastructureConfiguration regionalConfiguration = regionalConstructor.getInfrastructureConfiguration();
+        ECSTaskRunner taskRunner = new ECSTaskRunner(
+                regionalConstructor.getEcsClient(),
+                regionalConfiguration.getValue(InfrastructureSetting.CONTAINERCLUSTERNAME),
+                regionalConfiguration.getValue(InfrastructureSetting.CONTAINERTASKDEFINITIONARN),
+                regionalConfiguration.getValue(InfrastructureSetting.CONTAINERCAPACITYPROVIDER),
+                regionalConfiguration.getServerSubnetIds(),
+                regionalConfiguration.getValue(InfrastructureSetting.SERVERSECURITYGROUPID)
+        );
+        return new ContainerInstanceManager(dynamoDBEntry, taskRunner, regionalConfiguration);
+    }
+
+    private static EC2SpotInstanceManager createInstanceManager(
+            DynamoDBEntry dynamoDBEntry,
+            InfrastructureConstructor regionalConstructor
+    ) {
+        InfrastructureConfiguration regionalConfiguration = regionalConstructor.getInfrastructureConfiguration();
+        return new EC2SpotInstanceManager(
                 dynamoDBEntry,
-                infrastructureConstructor.getEc2Client(),
-                infrastructureConfiguration,
-                infrastructureConfiguration.getValue(InfrastructureSetting.SERVERINSTANCEPROFILEARN),
-                infrastructureConfiguration.getServerSubnetIds().get(0),
-                infrastructureConfiguration.getValue(InfrastructureSetting.SERVERSECURITYGROUPID)
+                regionalConstructor.getEc2Client(),
+                regionalConfiguration,
+                regionalConfiguration.getValue(InfrastructureSetting.SERVERINSTANCEPROFILEARN),
+                regionalConfiguration.getServerSubnetIds(),
+                regionalConfiguration.getValue(InfrastructureSetting.SERVERSECURITYGROUPID),
+                regionalConstructor.getEventBridgeClient()
         );
-        return new CloudCubesServer(id, dynamoDBEntry, EC2SpotInstanceManager);
     }
 }
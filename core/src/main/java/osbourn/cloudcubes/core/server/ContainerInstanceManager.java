@@ -0,0 +1,244 @@
+package osbourn.cloudcubes.core.server;
+
+import org.jetbrains.annotations.NotNull;
+import osbourn.cloudcubes.core.constructs.InfrastructureConfiguration;
+import osbourn.cloudcubes.core.database.DatabaseEntry;
+import osbourn.cloudcubes.core.database.TypedRecord;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * <p>
+ * Runs a server as a container task instead of on its own instance. The task runs the same server agent as the spot
+ * instances, so the database entry is used in the same way: the server is UNKNOWN while the task starts, the agent
+ * marks it ONLINE and publishes heartbeats, and stopping it makes the agent save the world first.
+ * </p>
+ *
+ * <p>
+ * The worlds of all container servers are kept on a shared file system that is mounted at {@link #WORLD_ROOT}, in a
+ * directory per server. The size of the task is stored in the {@code ContainerMemoryMiB} attribute of the server.
+ * </p>
+ *
+ * <p>
+ * Only one task may use a world at a time. A start claims the server by recording when it was requested with a
+ * conditional write, like the EC2 backend, and starts that arrive while the task boots are refused. A task that
+ * stopped sending heartbeats is stopped, and the new task is only run once the old one has saved the world and exited.
+ * </p>
+ */
+public class ContainerInstanceManager implements InstanceManager {
+    /**
+     * The directory the shared file system is mounted at in containers and on shared hosts
+     */
+    public static final String WORLD_ROOT = "/mnt/worlds";
+    /**
+     * The directory in {@link #WORLD_ROOT} that holds the artifact cache shared by the servers on the file system
+     */
+    public static final String ARTIFACT_CACHE_DIRECTORY_NAME = ".artifact-cache";
+    private static final int DEFAULT_MEMORY_MIB = 4096;
+    /**
+     * How long a task may take to bring the server online. A server that has been starting for longer is assumed to
+     * have failed to boot, and the next start replaces its task.
+     */
+    private static final long STARTUP_TIMEOUT_MILLIS = 10 * 60 * 1000;
+    /**
+     * How long a start waits for the task it replaces to exit. Tasks get two minutes to save the world after SIGTERM.
+     */
+    private static final long OLD_TASK_STOP_TIMEOUT_MILLIS = 150 * 1000;
+    private static final long OLD_TASK_POLL_INTERVAL_MILLIS = 2000;
+
+    private final DatabaseEntry server;
+    private final TaskRunner taskRunner;
+    private final InfrastructureConfiguration infrastructureConfiguration;
+
+    public ContainerInstanceManager(DatabaseEntry server,
+                                    TaskRunner taskRunner,
+                                    InfrastructureConfiguration infrastructureConfiguration) {
+        this.server = server;
+        this.taskRunner = taskRunner;
+        this.infrastructureConfiguration = infrastructureConfiguration;
+    }
+
+    /**
+     * Returns the id of the task running the server, or null if there is none.
+     *
+     * @return The id of the task, or null if the server is not running
+     */
+    public String getTaskId() {
+        return server.getStringValue("ContainerTaskId");
+    }
+
+    /**
+     * Returns the memory of the server's task. The CPU of the task is derived from it.
+     *
+     * @return The memory of the task in MiB
+     */
+    public int getMemoryMiB() {
+        String memoryMiB = server.getStringValue("ContainerMemoryMiB");
+        return memoryMiB != null ? Integer.parseInt(memoryMiB) : DEFAULT_MEMORY_MIB;
+    }
+
+    /**
+     * The ProvisionalServerState representing whether the server is online.
+     *
+     * @return The ProvisionalServerState representing whether the server is online.
+     * @see #isServerOnline()
+     */
+    public ProvisionalServerState getServerState() {
+        ProvisionalServerState state;
+        try {
+            state = ServerRecord.of(server).get(ServerRecord.STATE);
+        } catch (IllegalArgumentException e) {
+            return ProvisionalServerState.UNKNOWN;
+        }
+        return state != null ? state : ProvisionalServerState.OFFLINE;
+    }
+
+    /**
+     * Returns true if the server is online, which requires a fresh heartbeat from the server agent.
+     *
+     * @return True if the server is online, false otherwise.
+     */
+    public boolean isServerOnline() {
+        if (getServerState() != ProvisionalServerState.ONLINE) {
+            return false;
+        }
+        ServerHealth health = ServerRecord.of(server).request(ServerRecord.HEARTBEAT);
+        return health != null && health.isFresh(System.currentTimeMillis());
+    }
+
+    /**
+     * Runs a task for the server. Only one start can run at a time, see {@link EC2SpotInstanceManager#startServer()}.
+     *
+     * @throws IllegalStateException   If the server is online
+     * @throws ServerStartingException If the server is still starting, or the task it replaces hasn't exited yet
+     */
+    public void startServer() {
+        if (isServerOnline()) {
+            throw new IllegalStateException("The server is currently online");
+        }
+        String startRequestedAtMillis = server.requestStringValueFromDatabase("StartRequestedAtMillis");
+        long now = System.currentTimeMillis();
+        if (isStarting(startRequestedAtMillis, now)) {
+            throw new ServerStartingException("The server is still starting");
+        }
+        if (!server.setStringValuesIf(Collections.singletonMap("StartRequestedAtMillis", startRequestedAtMillis),
+                Collections.singletonMap("StartRequestedAtMillis", Long.toString(now)))) {
+            throw new ServerStartingException("The server is being started by another request");
+        }
+        // Once the server starts, the agent will update the state in the database with a ONLINE state. Until then the
+        // server is starting, also while the old task exits.
+        ServerRecord.of(server).set(ServerRecord.STATE, ProvisionalServerState.UNKNOWN);
+
+        String oldTaskId = getTaskId();
+        if (oldTaskId != null && taskRunner.isTaskRunning(oldTaskId)) {
+            // The task has stopped sending heartbeats or never came online, so it is replaced
+            taskRunner.stopTask(oldTaskId);
+            waitUntilStopped(oldTaskId);
+        }
+
+        int memoryMiB = getMemoryMiB();
+        Map<String, String> environment = new HashMap<>(infrastructureConfiguration.toEnvironmentVariableMap());
+        environment.put("SERVER_ID", server.getId().toString());
+        environment.put("SERVER_DIRECTORY", WORLD_ROOT + "/" + server.getId());
+        // Container servers share one artifact cache, so common server jars and mods are only downloaded once
+        environment.put("ARTIFACT_CACHE_DIRECTORY", WORLD_ROOT + "/" + ARTIFACT_CACHE_DIRECTORY_NAME);
+        environment.put("MINECRAFT_JVM_OPTS", String.join(" ", LaunchProfile.getJvmOptions(memoryMiB)));
+        String taskId = taskRunner.runTask(server.getId(), environment, getCpu(memoryMiB), memoryMiB);
+        server.setStringValue("ContainerTaskId", taskId);
+    }
+
+    /**
+     * Stops the server by stopping its task. The agent in the task receives SIGTERM and saves the world before the
+     * task stops.
+     */
+    public void stopServer() {
+        if (getServerState() == ProvisionalServerState.OFFLINE) {
+            throw new IllegalStateException("The server is currently offline");
+        }
+
+        String taskId = getTaskId();
+        if (taskId != null) {
+            taskRunner.stopTask(taskId);
+        }
+        ServerRecord.of(server).apply(new TypedRecord.Update()
+                .set(ServerRecord.STATE, ProvisionalServerState.OFFLINE)
+                .removeString("ContainerTaskId")
+                .removeString("ServerAddress"));
+    }
+
+    /**
+     * Waits until a task has exited, since the old task may still be saving the world when the stop returns.
+     *
+     * @throws ServerStartingException If the task is still running after {@link #OLD_TASK_STOP_TIMEOUT_MILLIS}
+     */
+    private void waitUntilStopped(@NotNull String taskId) {
+        long deadline = System.currentTimeMillis() + OLD_TASK_STOP_TIMEOUT_MILLIS;
+        while (taskRunner.isTaskRunning(taskId)) {
+            if (System.currentTimeMillis() >= deadline) {
+                throw new ServerStartingException("The previous task of the server is still stopping");
+            }
+            try {
+                Thread.sleep(OLD_TASK_POLL_INTERVAL_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for the previous task to stop", e);
+            }
+        }
+    }
+
+    /**
+     * Chooses the CPU units for a task with the given memory, using the smallest CPU size that Fargate allows with
+     * that much memory.
+     *
+     * @param memoryMiB The memory of the task in MiB
+     * @return The CPU units of the task
+     */
+    private static int getCpu(int memoryMiB) {
+        if (memoryMiB <= 8192) {
+            return 1024;
+        } else if (memoryMiB <= 16384) {
+            return 2048;
+        } else {
+            return 4096;
+        }
+    }
+
+    @Override
+    public boolean setState(@NotNull ServerState state) {
+        if (!isServerOnline() && state == ServerState.ONLINE) {
+            this.startServer();
+            return true;
+        } else if (getServerState() != ProvisionalServerState.OFFLINE && state == ServerState.OFFLINE) {
+            this.stopServer();
+            return true;
+        } else return false;
+    }
+
+    @Override
+    public ServerState getState() {
+        return isServerOnline() ? ServerState.ONLINE : ServerState.OFFLINE;
+    }
+
+    /**
+     * Returns true if the server's task has been run but the server hasn't come online yet. The server is starting
+     * while its state is UNKNOWN, its last start was requested less than {@link #STARTUP_TIMEOUT_MILLIS} ago, and its
+     * task is running, which is the previous task while the start waits for it to exit, or hasn't been run yet.
+     *
+     * @return True if the server is starting
+     */
+    @Override
+    public boolean isStarting() {
+        return isStarting(server.requestStringValueFromDatabase("StartRequestedAtMillis"), System.currentTimeMillis());
+    }
+
+    private boolean isStarting(String startRequestedAtMillis, long now) {
+        if (startRequestedAtMillis == null || now - Long.parseLong(startRequestedAtMillis) > STARTUP_TIMEOUT_MILLIS
+                || ServerRecord.of(server).request(ServerRecord.STATE) != ProvisionalServerState.UNKNOWN) {
+            return false;
+        }
+        String taskId = server.requestStringValueFromDatabase("ContainerTaskId");
+        return taskId == null || taskRunner.isTaskRunning(taskId);
+    }
+}
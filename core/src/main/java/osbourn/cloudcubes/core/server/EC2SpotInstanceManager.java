@@ -1,41 +1,104 @@
 package osbourn.cloudcubes.core.server;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import osbourn.cloudcubes.core.constructs.InfrastructureConfiguration;
 import osbourn.cloudcubes.core.constructs.InfrastructureConfiguration.InfrastructureSetting;
 import osbourn.cloudcubes.core.database.DynamoDBEntry;
+import osbourn.cloudcubes.core.database.TypedRecord;
+import software.amazon.awssdk.regions.Region;
 import software.amazon.awssdk.services.ec2.Ec2Client;
 import software.amazon.awssdk.services.ec2.model.*;
+import software.amazon.awssdk.services.eventbridge.EventBridgeClient;
+import software.amazon.awssdk.services.eventbridge.model.PutEventsRequest;
+import software.amazon.awssdk.services.eventbridge.model.PutEventsRequestEntry;
 
-import java.util.Base64;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
 
 /**
+ * <p>
  * Represents an EC2 instance that corresponds to a DynamoDBEntry object.
  * Can be online or offline.
+ * </p>
+ *
+ * <p>
+ * The world of the server is kept on a separate EBS data volume that outlives the instances. Stopping the server
+ * terminates the instance but keeps the volume, which is recorded in the server's database entry and attached to the
+ * next instance by the startup script. Because a volume can only be attached in its own availability zone, the next
+ * instance is launched in a subnet in that zone; if that isn't possible the volume is moved through a snapshot.
+ * </p>
+ *
+ * <p>
+ * Moving a volume to another zone or region takes as long as snapshotting and copying the whole world, which is far
+ * longer than the Lambda functions that start servers may run. Moves are therefore recorded as a
+ * {@link VolumeTransfer} and carried out in the background, one short step at a time: every step is triggered by the
+ * event {@link #requestVolumeTransferStep()} sends, which a state machine turns into calls to
+ * {@link #advanceVolumeTransfer(EC2SpotInstanceManager)} until the move is done.
+ * </p>
  */
 public class EC2SpotInstanceManager implements InstanceManager {
     private final DynamoDBEntry server;
     private final Ec2Client ec2Client;
     private final InfrastructureConfiguration infrastructureConfiguration;
     private final String serverInstanceProfileArn;
-    private final String subnetId;
+    private final List<String> subnetIds;
     private final String serverSecurityGroup;
-    private String userData = null;
+    private final EventBridgeClient eventBridgeClient;
+
+    /**
+     * The source and detail type of the event the server agent sends when its instance receives a spot interruption
+     * notice. The event triggers {@link #relaunchAfterInterruption()}.
+     */
+    public static final String INTERRUPTION_EVENT_SOURCE = "cloudcubes.agent";
+    public static final String INTERRUPTION_EVENT_DETAIL_TYPE = "CloudCubes Server Interruption";
+    /**
+     * The source and detail type of the event that asks for the next step of a {@link VolumeTransfer}. The event
+     * starts the state machine that calls {@link #advanceVolumeTransfer(EC2SpotInstanceManager)} until the transfer
+     * is done.
+     */
+    public static final String VOLUME_TRANSFER_EVENT_SOURCE = "cloudcubes.server";
+    public static final String VOLUME_TRANSFER_EVENT_DETAIL_TYPE = "CloudCubes Volume Transfer";
+
+    /**
+     * Size of newly created data volumes, which hold the world and any files the server downloads
+     */
+    private static final int DATA_VOLUME_SIZE_GIB = 16;
+    /**
+     * How long a launched server may take to come online. A server that has been starting for longer is assumed to
+     * have failed to boot, and the next start replaces its instance.
+     */
+    private static final long STARTUP_TIMEOUT_MILLIS = 15 * 60 * 1000;
+    /**
+     * A start of a server whose volume transfer was requested longer ago than this asks for the next step of the
+     * transfer again, in case the state machine that carried it out has failed
+     */
+    private static final long VOLUME_TRANSFER_RESUME_AFTER_MILLIS = 60 * 60 * 1000;
+    /**
+     * How many instance types are tried in the zone of the data volume when a server is relaunched after an
+     * interruption, including the type of its launch profile
+     */
+    private static final int MAX_RELAUNCH_INSTANCE_TYPES = 3;
+    /**
+     * How long a spot request made by a relaunch may take to be fulfilled before the next instance type is tried.
+     * EC2 usually evaluates a request within a few seconds.
+     */
+    private static final long SPOT_FULFILLMENT_TIMEOUT_MILLIS = 30_000;
+    private static final long SPOT_FULFILLMENT_POLL_INTERVAL_MILLIS = 2_000;
 
     public EC2SpotInstanceManager(DynamoDBEntry server,
                                   Ec2Client ec2Client,
                                   InfrastructureConfiguration infrastructureConfiguration,
                                   String serverInstanceProfileArn,
-                                  String subnetId,
-                                  String serverSecurityGroup) {
+                                  List<String> subnetIds,
+                                  String serverSecurityGroup,
+                                  EventBridgeClient eventBridgeClient) {
         this.server = server;
         this.ec2Client = ec2Client;
         this.infrastructureConfiguration = infrastructureConfiguration;
         this.serverInstanceProfileArn = serverInstanceProfileArn;
-        this.subnetId = subnetId;
+        this.subnetIds = subnetIds;
         this.serverSecurityGroup = serverSecurityGroup;
+        this.eventBridgeClient = eventBridgeClient;
     }
 
     /**
@@ -83,6 +146,24 @@ public class EC2SpotInstanceManager implements InstanceManager {
         return server.getStringValue("EC2SpotRequestId");
     }
 
+    /**
+     * Returns the id of the EBS volume that holds the server's world, or null if the server has never been started.
+     *
+     * @return The id of the data volume, or null if it does not exist
+     */
+    public String getDataVolumeId() {
+        return server.getStringValue("DataVolumeId");
+    }
+
+    /**
+     * Returns the launch profile of the server, which selects the instance type it runs on.
+     *
+     * @return The launch profile of the server
+     */
+    public LaunchProfile getLaunchProfile() {
+        return LaunchProfile.fromString(server.getStringValue("LaunchProfile"));
+    }
+
     /**
      * The ProvisionalServerState representing whether the server is online. The ProvisionalServerState can be Unknown, so it is recommended
      * to use {@link #isServerOnline()} in most situations.
@@ -91,58 +172,178 @@ public class EC2SpotInstanceManager implements InstanceManager {
      * @see #isServerOnline()
      */
     public ProvisionalServerState getServerState() {
-        String serverStateAsString = server.getStringValue("ServerState");
-        assert serverStateAsString != null;
-        switch (serverStateAsString) {
-            case "OFFLINE":
-                return ProvisionalServerState.OFFLINE;
-            case "ONLINE":
-                return ProvisionalServerState.ONLINE;
-            case "UNKNOWN":
-                return ProvisionalServerState.UNKNOWN;
-            default:
-                // TODO Throw exception or log warning
-                return ProvisionalServerState.UNKNOWN;
+        ProvisionalServerState state;
+        try {
+            state = ServerRecord.of(server).get(ServerRecord.STATE);
+        } catch (IllegalArgumentException e) {
+            // TODO Throw exception or log warning
+            return ProvisionalServerState.UNKNOWN;
         }
+        assert state != null;
+        return state;
     }
 
     private void setServerState(ProvisionalServerState provisionalServerState) {
-        String serverStateAsString;
-        switch (provisionalServerState) {
-            case OFFLINE:
-                serverStateAsString = "OFFLINE";
-                break;
-            case ONLINE:
-                serverStateAsString = "ONLINE";
-                break;
-            case UNKNOWN:
-            default:
-                serverStateAsString = "UNKNOWN";
-                break;
-        }
-        server.setStringValue("ServerState", serverStateAsString);
+        ServerRecord.of(server).set(ServerRecord.STATE, provisionalServerState);
     }
 
+    /**
+     * Launches the server on a new spot instance. Only one start can run at a time: a start records when it was
+     * requested with a conditional write, and a start that arrives while the server is still starting is refused, since
+     * it would launch a second instance and overwrite the spot request of the first. A start that arrives while the
+     * data volume is being moved makes the server start once the move is done.
+     *
+     * @throws IllegalStateException   If the server is online
+     * @throws ServerStartingException If the server is still starting, or its data volume is being moved
+     */
     public void startServer() {
-        final String amazonLinux2AmiId = "ami-0233c2d874b811deb";
-
         if (isServerOnline()) {
             throw new IllegalStateException("The server is currently online");
         }
+        String startRequestedAtMillis = server.requestStringValueFromDatabase("StartRequestedAtMillis");
+        long now = System.currentTimeMillis();
+        VolumeTransfer transfer = getVolumeTransfer();
+        if (transfer != null) {
+            startWhenTransferred(transfer, now);
+            throw new ServerStartingException("The data volume of the server is being moved");
+        }
+        if (isStarting(startRequestedAtMillis, now)) {
+            throw new ServerStartingException("The server is still starting");
+        }
+        if (!server.setStringValuesIf(Collections.singletonMap("StartRequestedAtMillis", startRequestedAtMillis),
+                Collections.singletonMap("StartRequestedAtMillis", Long.toString(now)))) {
+            throw new ServerStartingException("The server is being started by another request");
+        }
+        launch();
+    }
+
+    /**
+     * Launches the server once the start has been claimed. If the data volume is in a zone without a server subnet,
+     * it is moved first, and the server is launched once the move is done.
+     */
+    private void launch() {
+        if (getSpotRequestId() != null || getEC2InstanceId() != null) {
+            // The instance either stopped sending heartbeats or never brought the server online, so it is replaced
+            terminateInstance();
+        }
 
         // Once the server starts, it will update the state in the database with a ONLINE state
         // If the server startup fails the database will contain an UNKNOWN state
         // and it will be checked the next time the state is read.
         setServerState(ProvisionalServerState.UNKNOWN);
 
+        // The instance has to be launched next to the data volume, so that the volume can be attached to it
+        Map<String, String> subnetIdsByAvailabilityZone = getSubnetIdsByAvailabilityZone();
+        String availabilityZone = prepareDataVolume(subnetIdsByAvailabilityZone);
+        if (availabilityZone == null) {
+            return;
+        }
+        String subnetId = subnetIdsByAvailabilityZone.get(availabilityZone);
+
+        requestSpotInstance(getLaunchProfile(), subnetId);
+        // The EC2 Instance Id is recorded by the server agent once the server has started
+    }
+
+    /**
+     * Makes sure the server starts once its volume transfer is done, and asks for the next step of the transfer again
+     * if the transfer has been running for a long time.
+     */
+    private void startWhenTransferred(VolumeTransfer transfer, long now) {
+        if (!transfer.isStartWhenDone()) {
+            server.setStringValuesIf(Collections.singletonMap("VolumeTransfer", transfer.toString()),
+                    Collections.singletonMap("VolumeTransfer", transfer.withStartWhenDone().toString()));
+        }
+        if (now - Long.parseLong(transfer.getId()) > VOLUME_TRANSFER_RESUME_AFTER_MILLIS) {
+            requestVolumeTransferStep();
+        }
+    }
+
+    /**
+     * <p>
+     * Moves the running server to an instance with another launch profile. The server should be empty, since it is
+     * restarted. The old instance is terminated, which makes its agent save the world and release the data volume.
+     * </p>
+     *
+     * <p>
+     * Once the volume is released, a snapshot of it is taken, which holds the world as it was saved before the move
+     * and is kept until the next resize in case the new instance can't run the server. Only then is the new instance
+     * requested in the zone of the volume, so that nothing can write to the volume before the snapshot is taken. A
+     * snapshot captures the volume as it was when it was created, so the new instance doesn't have to wait for the
+     * snapshot to complete.
+     * </p>
+     *
+     * @param launchProfile The launch profile to move the server to
+     */
+    public void resize(LaunchProfile launchProfile) {
+        if (!isServerOnline()) {
+            throw new IllegalStateException("The server is not online");
+        }
+        String volumeId = getDataVolumeId();
+        String availabilityZone = server.getStringValue("DataVolumeAvailabilityZone");
+        Map<String, String> subnetIdsByAvailabilityZone = getSubnetIdsByAvailabilityZone();
+        if (volumeId == null || !subnetIdsByAvailabilityZone.containsKey(availabilityZone)) {
+            // The volume has to be moved first, which needs the server to be stopped
+            stopServer();
+            recordResize(launchProfile);
+            startServer();
+            return;
+        }
+
+        // The server counts as starting from here on, so that starts that arrive during the move are refused
+        server.setStringValue("StartRequestedAtMillis", Long.toString(System.currentTimeMillis()));
+        terminateInstance();
+        setServerState(ProvisionalServerState.UNKNOWN);
+        recordResize(launchProfile);
+
+        ec2Client.waiter().waitUntilVolumeAvailable(DescribeVolumesRequest.builder().volumeIds(volumeId).build());
+        String snapshotId = ec2Client.createSnapshot(CreateSnapshotRequest.builder()
+                .volumeId(volumeId)
+                .description("CloudCubes data volume for server " + server.id + " before resizing to "
+                        + launchProfile)
+                .tagSpecifications(TagSpecification.builder()
+                        .resourceType(ResourceType.SNAPSHOT)
+                        .tags(Tag.builder().key("CloudCubesServerId").value(server.id.toString()).build())
+                        .build())
+                .build()).snapshotId();
+        String previousSnapshotId = server.getStringValue("ResizeSnapshotId");
+        server.setStringValue("ResizeSnapshotId", snapshotId);
+        if (previousSnapshotId != null) {
+            ec2Client.deleteSnapshot(DeleteSnapshotRequest.builder().snapshotId(previousSnapshotId).build());
+        }
+
+        requestSpotInstance(launchProfile, subnetIdsByAvailabilityZone.get(availabilityZone));
+    }
+
+    /**
+     * Records the launch profile the server is moved to, which the next launch uses.
+     *
+     * @param launchProfile The new launch profile of the server
+     */
+    void recordResize(LaunchProfile launchProfile) {
+        ServerRecord.of(server).apply(new TypedRecord.Update()
+                .setString("LaunchProfile", launchProfile.getInstanceType())
+                .set(ServerRecord.RESIZED_AT_MILLIS, System.currentTimeMillis()));
+    }
+
+    /**
+     * Requests a spot instance for the server and records the request in the database. The data volume must be in the
+     * zone of the subnet, but may still be attached to the previous instance.
+     *
+     * @param launchProfile The launch profile of the instance
+     * @param subnetId      The subnet to launch the instance in
+     */
+    private void requestSpotInstance(LaunchProfile launchProfile, String subnetId) {
+        // The JVM settings of the Minecraft server are derived from the memory of the instance type
+        List<String> jvmOptions = LaunchProfile.getJvmOptions(getInstanceMemoryMiB(launchProfile.getInstanceType()));
+
         // Request EC2 Instance
         RequestSpotLaunchSpecification launchSpecification = RequestSpotLaunchSpecification.builder()
-                .instanceType(InstanceType.M5_LARGE)
+                .instanceType(launchProfile.getInstanceType())
                 .subnetId(subnetId)
-                .imageId(amazonLinux2AmiId)
+                .imageId(infrastructureConfiguration.getValue(InfrastructureSetting.SERVERIMAGEID))
                 .iamInstanceProfile(IamInstanceProfileSpecification.builder().arn(serverInstanceProfileArn).build())
                 .securityGroupIds(serverSecurityGroup)
-                .userData(Base64.getEncoder().encodeToString(getUserData().getBytes()))
+                .userData(getUserData(getDataVolumeId(), jvmOptions))
                 .build();
         RequestSpotInstancesRequest spotInstancesRequest = RequestSpotInstancesRequest.builder()
                 .instanceCount(1)
@@ -158,67 +359,586 @@ public class EC2SpotInstanceManager implements InstanceManager {
         // Update database with requestId
         server.setStringValue("EC2SpotRequestId", spotInstanceId);
 
-        // TODO: Update database with the EC2 Instance Id once the server has started
+    }
+
+    /**
+     * Stops the server by terminating its instance. Terminating the instance shuts down its operating system, which
+     * stops the server agent; the agent saves the world and stops the Minecraft server before the instance goes away.
+     * The data volume is not deleted when the instance terminates, so it can be attached to the next instance. The
+     * next start waits for the volume to be released, which guarantees the world was saved before it is reused.
+     */
+    public void stopServer() {
+        if (getServerState() == ProvisionalServerState.OFFLINE) {
+            throw new IllegalStateException("The server is currently offline");
+        }
+
+        terminateInstance();
+        setServerState(ProvisionalServerState.OFFLINE);
+    }
+
+    /**
+     * <p>
+     * Relaunches the server after the server agent received a spot interruption notice. The agent has already saved
+     * the world and stopped the Minecraft server, so the instance is terminated right away instead of waiting for AWS
+     * to reclaim it.
+     * </p>
+     *
+     * <p>
+     * Moving the data volume to another zone copies the whole world, so the server is first relaunched in the zone of
+     * the volume. The instance type of its launch profile was just reclaimed there, so if its spot request isn't
+     * fulfilled, the same size in interchangeable families is tried, see
+     * {@link LaunchProfile#getAlternativeProfiles()}. Only if none of them gets capacity is the volume moved to another
+     * zone in the background, see {@link #beginVolumeTransfer(Region, String, boolean)}, and the server launched once
+     * it has arrived.
+     * </p>
+     */
+    public void relaunchAfterInterruption() {
+        String interruptedAvailabilityZone = server.getStringValue("InterruptedAvailabilityZone");
+        if (interruptedAvailabilityZone == null) {
+            throw new IllegalStateException("The server has not received an interruption notice");
+        }
+
+        terminateInstance();
+        // The interrupted instance was started by an earlier start, which must not keep this one from launching
+        server.removeValue("StartRequestedAtMillis");
+        server.removeValue("InterruptionNotice");
+        server.removeValue("InterruptedAvailabilityZone");
+
+        String volumeId = getDataVolumeId();
+        String volumeAvailabilityZone = server.getStringValue("DataVolumeAvailabilityZone");
+        Map<String, String> subnetIdsByAvailabilityZone = getSubnetIdsByAvailabilityZone();
+        if (volumeId == null || !subnetIdsByAvailabilityZone.containsKey(volumeAvailabilityZone)) {
+            // A server without a volume can launch anywhere, and a volume without a subnet is moved by the start
+            startServer();
+            return;
+        }
+
+        // The server counts as starting from here on, so that starts that arrive during the relaunch are refused
+        if (!server.setStringValuesIf(Collections.singletonMap("StartRequestedAtMillis", null),
+                Collections.singletonMap("StartRequestedAtMillis", Long.toString(System.currentTimeMillis())))) {
+            throw new ServerStartingException("The server is being started by another request");
+        }
+        setServerState(ProvisionalServerState.UNKNOWN);
+        ec2Client.waiter().waitUntilVolumeAvailable(DescribeVolumesRequest.builder().volumeIds(volumeId).build());
+        String subnetId = subnetIdsByAvailabilityZone.get(volumeAvailabilityZone);
+        List<LaunchProfile> launchProfiles = new ArrayList<>();
+        launchProfiles.add(getLaunchProfile());
+        launchProfiles.addAll(getLaunchProfile().getAlternativeProfiles());
+        for (LaunchProfile launchProfile : launchProfiles.subList(0,
+                Math.min(launchProfiles.size(), MAX_RELAUNCH_INSTANCE_TYPES))) {
+            try {
+                requestSpotInstance(launchProfile, subnetId);
+            } catch (IllegalStateException | Ec2Exception e) {
+                // The instance type isn't offered in the region or the zone
+                continue;
+            }
+            if (waitUntilSpotRequestFulfilled(getSpotRequestId())) {
+                return;
+            }
+            terminateInstance();
+        }
+
+        // There is no capacity in the zone of the volume, so the volume is moved to the first other zone
+        String availabilityZone = volumeAvailabilityZone;
+        for (String candidate : subnetIdsByAvailabilityZone.keySet()) {
+            if (!candidate.equals(volumeAvailabilityZone)) {
+                availabilityZone = candidate;
+                break;
+            }
+        }
+        if (availabilityZone.equals(volumeAvailabilityZone)) {
+            throw new IllegalStateException("There is no spot capacity in the only zone with a server subnet");
+        }
+        beginVolumeTransfer(infrastructureConfiguration.getRegion(), availabilityZone, true);
+    }
+
+    /**
+     * Waits until a spot request has launched an instance, or has been found not to get capacity.
+     *
+     * @param spotRequestId The id of the spot request
+     * @return True if the request was fulfilled, false if it can't be fulfilled or didn't get capacity in time
+     */
+    private boolean waitUntilSpotRequestFulfilled(String spotRequestId) {
+        long deadline = System.currentTimeMillis() + SPOT_FULFILLMENT_TIMEOUT_MILLIS;
+        while (System.currentTimeMillis() < deadline) {
+            for (SpotInstanceRequest spotRequest : ec2Client.describeSpotInstanceRequests(
+                    DescribeSpotInstanceRequestsRequest.builder().spotInstanceRequestIds(spotRequestId).build())
+                    .spotInstanceRequests()) {
+                if (spotRequest.state() == SpotInstanceState.ACTIVE) {
+                    return true;
+                } else if (spotRequest.state() != SpotInstanceState.OPEN) {
+                    return false;
+                }
+                // Requests that can't get capacity stay open with a status that says why
+                String statusCode = spotRequest.status() != null ? spotRequest.status().code() : null;
+                if ("capacity-not-available".equals(statusCode) || "capacity-oversubscribed".equals(statusCode)
+                        || "price-too-low".equals(statusCode) || "constraint-not-fulfillable".equals(statusCode)) {
+                    return false;
+                }
+            }
+            try {
+                Thread.sleep(SPOT_FULFILLMENT_POLL_INTERVAL_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for the spot request to be fulfilled", e);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Cancels the spot request of the server, terminates its instance and removes both from the database.
+     */
+    private void terminateInstance() {
+        cancelAndTerminate(ec2Client, getSpotRequestId(), getEC2InstanceId());
+
+        server.removeValue("EC2InstanceId");
+        server.removeValue("EC2SpotRequestId");
+        server.removeValue("ServerAddress");
+    }
+
+    /**
+     * Cancels a spot request and terminates its instance. The instance id is only recorded once the instance is up,
+     * so it is looked up from the spot request if it isn't known yet.
+     *
+     * @param ec2Client     The EC2 client used to make requests
+     * @param spotRequestId The id of the spot request, or null if there is none
+     * @param instanceId    The id of the instance, or null if it isn't known
+     */
+    static void cancelAndTerminate(Ec2Client ec2Client, String spotRequestId, String instanceId) {
+        if (spotRequestId != null) {
+            DescribeSpotInstanceRequestsResponse spotRequests = ec2Client.describeSpotInstanceRequests(
+                    DescribeSpotInstanceRequestsRequest.builder().spotInstanceRequestIds(spotRequestId).build());
+            for (SpotInstanceRequest spotRequest : spotRequests.spotInstanceRequests()) {
+                if (instanceId == null && spotRequest.instanceId() != null) {
+                    instanceId = spotRequest.instanceId();
+                }
+            }
+            // Make sure an unfulfilled request won't launch an instance after it is no longer needed
+            ec2Client.cancelSpotInstanceRequests(CancelSpotInstanceRequestsRequest.builder()
+                    .spotInstanceRequestIds(spotRequestId)
+                    .build());
+        }
+        if (instanceId != null) {
+            ec2Client.terminateInstances(TerminateInstancesRequest.builder().instanceIds(instanceId).build());
+        }
+    }
+
+    /**
+     * Makes sure the server has a data volume that can be attached in one of the server subnets, creating the volume
+     * if necessary. If the volume is still attached to an instance that is shutting down, this method waits for it to
+     * be released. If the volume is in a zone without a server subnet, a transfer to another zone is started, which
+     * starts the server once it is done.
+     *
+     * @param subnetIdsByAvailabilityZone The server subnets, keyed by availability zone
+     * @return The availability zone of the data volume, or null if the volume is being moved
+     */
+    private @Nullable String prepareDataVolume(Map<String, String> subnetIdsByAvailabilityZone) {
+        String volumeId = getDataVolumeId();
+        if (volumeId == null) {
+            String availabilityZone = subnetIdsByAvailabilityZone.keySet().iterator().next();
+            createDataVolume(availabilityZone, null);
+            return availabilityZone;
+        }
+
+        ec2Client.waiter().waitUntilVolumeAvailable(DescribeVolumesRequest.builder().volumeIds(volumeId).build());
+        Volume volume = ec2Client.describeVolumes(DescribeVolumesRequest.builder().volumeIds(volumeId).build())
+                .volumes().get(0);
+        if (subnetIdsByAvailabilityZone.containsKey(volume.availabilityZone())) {
+            return volume.availabilityZone();
+        }
+
+        // There is no longer a server subnet in the zone of the volume, so it has to be moved
+        beginVolumeTransfer(infrastructureConfiguration.getRegion(),
+                subnetIdsByAvailabilityZone.keySet().iterator().next(), true);
+        return null;
+    }
+
+    /**
+     * Gets the transfer of the data volume that is in progress.
+     *
+     * @return The transfer, or null if the data volume isn't being moved
+     */
+    public @Nullable VolumeTransfer getVolumeTransfer() {
+        return VolumeTransfer.fromString(server.requestStringValueFromDatabase("VolumeTransfer"));
+    }
+
+    /**
+     * Starts moving the data volume to another availability zone or region in the background. The server must not be
+     * running on the volume anymore, although its instance may still be shutting down.
+     *
+     * @param targetRegion           The region to move the volume to, which is the region of this manager when the
+     *                               volume moves to another zone
+     * @param targetAvailabilityZone The zone to move the volume to, or null for the first zone of the target region
+     *                               that has a server subnet
+     * @param startWhenDone          Whether the server is started once the volume has been moved
+     * @throws IllegalStateException If the server has no data volume or its volume is already being moved
+     */
+    public void beginVolumeTransfer(Region targetRegion, @Nullable String targetAvailabilityZone,
+                                    boolean startWhenDone) {
+        if (getDataVolumeId() == null) {
+            throw new IllegalStateException("The server has no data volume");
+        }
+        VolumeTransfer transfer = VolumeTransfer.create(System.currentTimeMillis(), targetRegion,
+                targetAvailabilityZone, startWhenDone);
+        if (!server.setStringValuesIf(Collections.singletonMap("VolumeTransfer", null),
+                Collections.singletonMap("VolumeTransfer", transfer.toString()))) {
+            throw new IllegalStateException("The data volume of the server is already being moved");
+        }
+        requestVolumeTransferStep();
+    }
+
+    /**
+     * Asks for the next step of the volume transfer to be carried out in the background, by sending the event that
+     * starts the state machine in the region of this manager.
+     */
+    public void requestVolumeTransferStep() {
+        eventBridgeClient.putEvents(PutEventsRequest.builder()
+                .entries(PutEventsRequestEntry.builder()
+                        .source(VOLUME_TRANSFER_EVENT_SOURCE)
+                        .detailType(VOLUME_TRANSFER_EVENT_DETAIL_TYPE)
+                        .detail("{\"ServerId\":\"" + server.id + "\"}")
+                        .build())
+                .build());
+    }
+
+    /**
+     * <p>
+     * Carries out the next step of the volume transfer. A step either starts an EC2 operation or checks whether the
+     * operation of the previous step has finished, so it never waits; it is meant to be called again and again, a
+     * little while apart, until it returns true. The steps are:
+     * </p>
+     * <ol>
+     *     <li>Once the old volume has been released by the last instance, a snapshot of it is created</li>
+     *     <li>If the volume moves to another region, the completed snapshot is copied to the target region</li>
+     *     <li>Once the snapshot in the target region is complete, the new volume is restored from it</li>
+     *     <li>Once the new volume is available, the old volume and the snapshots are deleted, and the server's entry
+     *     is switched to the new volume and region in a single write. If the transfer was started by a start of the
+     *     server, the server is launched in the target region.</li>
+     * </ol>
+     *
+     * <p>
+     * The progress is recorded after every step with a conditional write, and the snapshots and the volume are tagged
+     * with the transfer, so a step that fails or runs twice is picked up where it left off without creating anything
+     * twice.
+     * </p>
+     *
+     * @param target The instance manager of the region the volume moves to, which may be this manager
+     * @return True if the transfer is done or there is none, false if it needs more steps
+     * @throws IllegalStateException If a snapshot or the new volume failed, which needs the transfer to be looked at
+     */
+    public boolean advanceVolumeTransfer(EC2SpotInstanceManager target) {
+        VolumeTransfer transfer = getVolumeTransfer();
+        if (transfer == null) {
+            return true;
+        }
+        boolean crossRegion = !target.infrastructureConfiguration.getRegion()
+                .equals(infrastructureConfiguration.getRegion());
+
+        if (transfer.getSnapshotId() == null) {
+            String oldVolumeId = getDataVolumeId();
+            Volume oldVolume = ec2Client.describeVolumes(DescribeVolumesRequest.builder().volumeIds(oldVolumeId)
+                    .build()).volumes().get(0);
+            if (oldVolume.state() != VolumeState.AVAILABLE) {
+                // The last instance may still be saving the world
+                return false;
+            }
+            String snapshotId = findTransferSnapshot(ec2Client, transfer);
+            if (snapshotId == null) {
+                snapshotId = ec2Client.createSnapshot(CreateSnapshotRequest.builder()
+                        .volumeId(oldVolumeId)
+                        .description("CloudCubes data volume for server " + server.id)
+                        .tagSpecifications(getTransferTags(ResourceType.SNAPSHOT, transfer))
+                        .build()).snapshotId();
+            }
+            recordVolumeTransfer(transfer, transfer.withSnapshotId(snapshotId));
+            return false;
+        }
+        if (!isSnapshotCompleted(ec2Client, transfer.getSnapshotId())) {
+            return false;
+        }
+
+        if (transfer.getCopiedSnapshotId() == null) {
+            String copiedSnapshotId = transfer.getSnapshotId();
+            if (crossRegion) {
+                // Snapshots are copied by the destination region
+                copiedSnapshotId = findTransferSnapshot(target.ec2Client, transfer);
+                if (copiedSnapshotId == null) {
+                    copiedSnapshotId = target.ec2Client.copySnapshot(CopySnapshotRequest.builder()
+                            .sourceRegion(infrastructureConfiguration.getRegion().id())
+                            .sourceSnapshotId(transfer.getSnapshotId())
+                            .description("CloudCubes data volume for server " + server.id)
+                            .tagSpecifications(getTransferTags(ResourceType.SNAPSHOT, transfer))
+                            .build()).snapshotId();
+                }
+            }
+            recordVolumeTransfer(transfer, transfer.withCopiedSnapshotId(copiedSnapshotId));
+            return false;
+        }
+        if (crossRegion && !isSnapshotCompleted(target.ec2Client, transfer.getCopiedSnapshotId())) {
+            return false;
+        }
+
+        if (transfer.getVolumeId() == null) {
+            String availabilityZone = transfer.getTargetAvailabilityZone() != null
+                    ? transfer.getTargetAvailabilityZone()
+                    : target.getSubnetIdsByAvailabilityZone().keySet().iterator().next();
+            String volumeId = target.ec2Client.createVolume(CreateVolumeRequest.builder()
+                    .availabilityZone(availabilityZone)
+                    .volumeType(VolumeType.GP3)
+                    .snapshotId(transfer.getCopiedSnapshotId())
+                    // Creating the volume again after a failed step returns the volume that was already created
+                    .clientToken(server.id + "-" + transfer.getId())
+                    .tagSpecifications(getTransferTags(ResourceType.VOLUME, transfer))
+                    .build()).volumeId();
+            recordVolumeTransfer(transfer, transfer.withVolume(availabilityZone, volumeId));
+            return false;
+        }
+        Volume volume = target.ec2Client.describeVolumes(DescribeVolumesRequest.builder()
+                .volumeIds(transfer.getVolumeId()).build()).volumes().get(0);
+        if (volume.state() == VolumeState.CREATING) {
+            return false;
+        } else if (volume.state() != VolumeState.AVAILABLE) {
+            throw new IllegalStateException("The new data volume " + transfer.getVolumeId() + " is " + volume.state());
+        }
+
+        // The old resources are deleted before the entry is switched to the new volume, so that a failure in between
+        // is retried instead of leaving them behind
+        String oldVolumeId = getDataVolumeId();
+        if (oldVolumeId != null && !oldVolumeId.equals(transfer.getVolumeId())) {
+            ignoreNotFound(() -> ec2Client.deleteVolume(DeleteVolumeRequest.builder().volumeId(oldVolumeId).build()));
+        }
+        ignoreNotFound(() -> ec2Client.deleteSnapshot(DeleteSnapshotRequest.builder()
+                .snapshotId(transfer.getSnapshotId()).build()));
+        if (crossRegion) {
+            ignoreNotFound(() -> target.ec2Client.deleteSnapshot(DeleteSnapshotRequest.builder()
+                    .snapshotId(transfer.getCopiedSnapshotId()).build()));
+        }
+
+        TypedRecord.Update update = new TypedRecord.Update()
+                .setString("DataVolumeId", transfer.getVolumeId())
+                .setString("DataVolumeAvailabilityZone", transfer.getTargetAvailabilityZone())
+                .setString("HomeRegion", transfer.getTargetRegion().id())
+                .removeString("VolumeTransfer")
+                // A step that ran at the same time has already switched the server to the new volume
+                .expectString("VolumeTransfer", transfer.toString());
+        if (transfer.isStartWhenDone()) {
+            // The start is claimed in the same write, so that no other start launches the server in the meantime
+            update.set(ServerRecord.STATE, ProvisionalServerState.UNKNOWN)
+                    .setString("StartRequestedAtMillis", Long.toString(System.currentTimeMillis()));
+        }
+        if (!ServerRecord.of(server).apply(update)) {
+            return true;
+        }
+        if (transfer.isStartWhenDone()) {
+            target.launch();
+        }
+        return true;
+    }
+
+    /**
+     * Records the progress of a volume transfer, unless another step has recorded progress in the meantime.
+     *
+     * @return True if the progress was recorded
+     */
+    private boolean recordVolumeTransfer(VolumeTransfer current, VolumeTransfer next) {
+        return server.setStringValuesIf(Collections.singletonMap("VolumeTransfer", current.toString()),
+                Collections.singletonMap("VolumeTransfer", next.toString()));
+    }
+
+    private TagSpecification getTransferTags(ResourceType resourceType, VolumeTransfer transfer) {
+        return TagSpecification.builder()
+                .resourceType(resourceType)
+                .tags(Tag.builder().key("CloudCubesServerId").value(server.id.toString()).build(),
+                        Tag.builder().key("CloudCubesVolumeTransfer").value(transfer.getId()).build())
+                .build();
+    }
+
+    /**
+     * Finds the snapshot a failed step of the transfer already created in a region.
+     *
+     * @return The id of the snapshot, or null if there is none
+     */
+    private @Nullable String findTransferSnapshot(Ec2Client regionalEc2Client, VolumeTransfer transfer) {
+        List<Snapshot> snapshots = regionalEc2Client.describeSnapshots(DescribeSnapshotsRequest.builder()
+                .ownerIds("self")
+                .filters(Filter.builder().name("tag:CloudCubesServerId").values(server.id.toString()).build(),
+                        Filter.builder().name("tag:CloudCubesVolumeTransfer").values(transfer.getId()).build())
+                .build()).snapshots();
+        return snapshots.isEmpty() ? null : snapshots.get(0).snapshotId();
+    }
+
+    private static boolean isSnapshotCompleted(Ec2Client regionalEc2Client, String snapshotId) {
+        Snapshot snapshot = regionalEc2Client.describeSnapshots(DescribeSnapshotsRequest.builder()
+                .snapshotIds(snapshotId).build()).snapshots().get(0);
+        if (snapshot.state() == SnapshotState.ERROR) {
+            throw new IllegalStateException("The snapshot " + snapshotId + " of the data volume failed");
+        }
+        return snapshot.state() == SnapshotState.COMPLETED;
+    }
+
+    private static void ignoreNotFound(Runnable deletion) {
+        try {
+            deletion.run();
+        } catch (Ec2Exception e) {
+            // The resource was deleted by an earlier attempt
+            if (!e.awsErrorDetails().errorCode().endsWith(".NotFound")) {
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Creates a new data volume, records it in the database and waits for it to become available.
+     *
+     * @param availabilityZone The availability zone to create the volume in
+     * @param snapshotId       The snapshot to restore the volume from, or null to create an empty volume
+     */
+    private void createDataVolume(String availabilityZone, String snapshotId) {
+        CreateVolumeRequest.Builder request = CreateVolumeRequest.builder()
+                .availabilityZone(availabilityZone)
+                .volumeType(VolumeType.GP3)
+                .tagSpecifications(TagSpecification.builder()
+                        .resourceType(ResourceType.VOLUME)
+                        .tags(Tag.builder().key("CloudCubesServerId").value(server.id.toString()).build())
+                        .build());
+        if (snapshotId != null) {
+            request.snapshotId(snapshotId);
+        } else {
+            request.size(DATA_VOLUME_SIZE_GIB);
+        }
+        String volumeId = ec2Client.createVolume(request.build()).volumeId();
+        ec2Client.waiter().waitUntilVolumeAvailable(DescribeVolumesRequest.builder().volumeIds(volumeId).build());
+
+        Map<String, String> values = new HashMap<>();
+        values.put("DataVolumeId", volumeId);
+        values.put("DataVolumeAvailabilityZone", availabilityZone);
+        server.setStringValues(values);
+    }
+
+    /**
+     * Looks up the availability zones of the server subnets. The map keeps the order of the configured subnets.
+     *
+     * @return The ids of the server subnets, keyed by availability zone
+     */
+    private Map<String, String> getSubnetIdsByAvailabilityZone() {
+        Map<String, String> availabilityZonesBySubnetId = new HashMap<>();
+        DescribeSubnetsResponse response = ec2Client.describeSubnets(
+                DescribeSubnetsRequest.builder().subnetIds(subnetIds).build());
+        for (Subnet subnet : response.subnets()) {
+            availabilityZonesBySubnetId.put(subnet.subnetId(), subnet.availabilityZone());
+        }
+
+        Map<String, String> subnetIdsByAvailabilityZone = new LinkedHashMap<>();
+        for (String subnetId : subnetIds) {
+            subnetIdsByAvailabilityZone.putIfAbsent(availabilityZonesBySubnetId.get(subnetId), subnetId);
+        }
+        return subnetIdsByAvailabilityZone;
     }
 
     /**
      * Returns true if the server is online, false if it isn't. This is often preferable to {@link #getServerState()}
-     * because it will verify the server state if it is unknown.
+     * because it will verify the server state if it is unknown, and because a server is only considered online while
+     * its heartbeats are fresh.
      *
      * @return True if the server is online, false otherwise.
      */
     public boolean isServerOnline() {
         // TODO: Verify the server state if the server state is UNKNOWN
-        return getServerState() == ProvisionalServerState.ONLINE;
+        if (getServerState() != ProvisionalServerState.ONLINE) {
+            return false;
+        }
+        // A server that stopped publishing heartbeats has crashed or hung, even though the database still says ONLINE
+        ServerHealth health = getHealth();
+        return health != null && health.isFresh(System.currentTimeMillis());
     }
 
     /**
-     * Generates the user data for an EC2 instance. User data is a series of (usually shell) commands that will be run
-     * from the root account as soon as the instance starts up. Note that you will probably need to convert the output
-     * of this method to base64 before using it.
+     * Returns true if the server has been launched but hasn't come online yet. The server is starting while its state
+     * is UNKNOWN, its last start was requested less than {@link #STARTUP_TIMEOUT_MILLIS} ago, and its spot request is
+     * open or active, or hasn't been made yet because the data volume is still being prepared. A server whose data
+     * volume is being moved is also starting if it will be launched once the move is done.
      *
-     * @return The generated user data
+     * @return True if the server is starting
      */
-    private String getUserData() {
-        if (userData == null) {
-            // Strings not matching this regex may contain values that are not interpreted literally by bash
-            // (i.e. they need to be escaped)
-            final String allowedCharactersPattern = "^[a-zA-Z0-9,._+:@%/-]+$";
-
-            String resourceBucketName = infrastructureConfiguration.getValue(InfrastructureSetting.RESOURCEBUCKETNAME);
-            if (!resourceBucketName.matches(allowedCharactersPattern)) {
-                throw new IllegalStateException(
-                        "The resource bucket name stored inside the provided infrastructure data contains invalid characters");
-            }
+    @Override
+    public boolean isStarting() {
+        VolumeTransfer transfer = getVolumeTransfer();
+        if (transfer != null) {
+            return transfer.isStartWhenDone();
+        }
+        return isStarting(server.requestStringValueFromDatabase("StartRequestedAtMillis"), System.currentTimeMillis());
+    }
 
-            StringBuilder builder = new StringBuilder();
-            // Lets server know that the remaining commands should be run with bash
-            builder.append("#!/bin/bash\n");
-            builder.append("cd /home/ec2-user\n");
-            // Set environment variables to the values in infrastructureData
-            for (Map.Entry<String, String> entry : infrastructureConfiguration.toEnvironmentVariableMap().entrySet()) {
-                if (!entry.getKey().matches(allowedCharactersPattern) || !entry.getValue().matches(allowedCharactersPattern)) {
-                    // TODO: Log warning
-                    continue;
+    private boolean isStarting(String startRequestedAtMillis, long now) {
+        if (startRequestedAtMillis == null || now - Long.parseLong(startRequestedAtMillis) > STARTUP_TIMEOUT_MILLIS
+                || ServerRecord.of(server).request(ServerRecord.STATE) != ProvisionalServerState.UNKNOWN) {
+            return false;
+        }
+        String spotRequestId = server.requestStringValueFromDatabase("EC2SpotRequestId");
+        if (spotRequestId == null) {
+            return true;
+        }
+        try {
+            for (SpotInstanceRequest spotRequest : ec2Client.describeSpotInstanceRequests(
+                    DescribeSpotInstanceRequestsRequest.builder().spotInstanceRequestIds(spotRequestId).build())
+                    .spotInstanceRequests()) {
+                if (spotRequest.state() == SpotInstanceState.OPEN || spotRequest.state() == SpotInstanceState.ACTIVE) {
+                    return true;
                 }
-                builder.append(String.format("export %s=%s\n", entry.getKey(), entry.getValue()));
             }
-            builder.append(String.format("export SERVER_ID=%s\n", server.id));
-            // Download and invoke script (the hyphen at the end of the s3 command tells it to print to stdout)
-            String s3command = "aws s3 cp s3://" + resourceBucketName + "/server-startup/startup.sh -";
-            builder.append("su -c '").append(s3command).append(" | bash' ec2-user\n");
-            userData = builder.toString();
+        } catch (Ec2Exception e) {
+            // Closed requests are forgotten by EC2 after a while
+            if (!"InvalidSpotInstanceRequestID.NotFound".equals(e.awsErrorDetails().errorCode())) {
+                throw e;
+            }
         }
-        return userData;
+        return false;
+    }
+
+    /**
+     * Returns the latest heartbeat published by the server agent. The heartbeat is always read from the database,
+     * since it changes every few seconds.
+     *
+     * @return The latest heartbeat, or null if the server has never published one
+     */
+    public ServerHealth getHealth() {
+        return ServerRecord.of(server).request(ServerRecord.HEARTBEAT);
+    }
+
+    private long getInstanceMemoryMiB(String instanceType) {
+        DescribeInstanceTypesRequest request = DescribeInstanceTypesRequest.builder()
+                .instanceTypesWithStrings(instanceType)
+                .build();
+        List<InstanceTypeInfo> instanceTypes = ec2Client.describeInstanceTypes(request).instanceTypes();
+        if (instanceTypes.isEmpty()) {
+            throw new IllegalStateException("Instance type " + instanceType + " is not available in this region");
+        }
+        return instanceTypes.get(0).memoryInfo().sizeInMiB();
+    }
+
+    /**
+     * Generates the user data for the server's instance, which attaches the data volume and starts the server agent.
+     *
+     * @param dataVolumeId The id of the data volume that the instance should attach
+     * @param jvmOptions   The JVM options of the Minecraft server
+     * @return The generated user data in base64
+     */
+    private String getUserData(String dataVolumeId, List<String> jvmOptions) {
+        Map<String, String> variables = new LinkedHashMap<>();
+        variables.put("SERVER_ID", server.id.toString());
+        variables.put("DATA_VOLUME_ID", dataVolumeId);
+        variables.put("MINECRAFT_JVM_OPTS", String.join(" ", jvmOptions));
+        return UserData.create(infrastructureConfiguration, variables, "startup.sh");
     }
 
     @Override
     public boolean setState(@NotNull ServerState state) {
-        if (isServerOnline() && state == ServerState.OFFLINE) {
+        if (!isServerOnline() && state == ServerState.ONLINE) {
             this.startServer();
             return true;
-        } else if (!isServerOnline() && state == ServerState.OFFLINE) {
-            // TODO Stop Server
+        } else if (getServerState() != ProvisionalServerState.OFFLINE && state == ServerState.OFFLINE) {
+            this.stopServer();
             return true;
         } else return false;
     }
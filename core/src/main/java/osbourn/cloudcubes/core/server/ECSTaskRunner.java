@@ -0,0 +1,111 @@
+package osbourn.cloudcubes.core.server;
+
+import org.jetbrains.annotations.NotNull;
+import software.amazon.awssdk.services.ecs.EcsClient;
+import software.amazon.awssdk.services.ecs.model.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Runs server tasks on an ECS cluster. Tasks use the awsvpc network mode and get a public IP address in one of the
+ * server subnets, so players connect to them directly, in the same way as to spot instances.
+ */
+public class ECSTaskRunner implements TaskRunner {
+    /**
+     * The name of the container that runs the server agent in the task definition
+     */
+    public static final String CONTAINER_NAME = "minecraft";
+
+    private final EcsClient ecsClient;
+    private final String clusterName;
+    private final String taskDefinitionArn;
+    private final String capacityProvider;
+    private final List<String> subnetIds;
+    private final String securityGroupId;
+
+    /**
+     * Creates an ECSTaskRunner object.
+     *
+     * @param ecsClient         The ECS client used to make requests
+     * @param clusterName       The cluster to run tasks in
+     * @param taskDefinitionArn The task definition of the server tasks
+     * @param capacityProvider  The capacity provider of the tasks, for example {@code FARGATE_SPOT}
+     * @param subnetIds         The subnets tasks can be placed in
+     * @param securityGroupId   The security group of the tasks
+     */
+    public ECSTaskRunner(@NotNull EcsClient ecsClient,
+                         @NotNull String clusterName,
+                         @NotNull String taskDefinitionArn,
+                         @NotNull String capacityProvider,
+                         @NotNull List<String> subnetIds,
+                         @NotNull String securityGroupId) {
+        this.ecsClient = ecsClient;
+        this.clusterName = clusterName;
+        this.taskDefinitionArn = taskDefinitionArn;
+        this.capacityProvider = capacityProvider;
+        this.subnetIds = subnetIds;
+        this.securityGroupId = securityGroupId;
+    }
+
+    @Override
+    public @NotNull String runTask(@NotNull UUID serverId, @NotNull Map<String, String> environment, int cpu,
+                                   int memoryMiB) {
+        List<KeyValuePair> environmentOverrides = new ArrayList<>();
+        for (Map.Entry<String, String> entry : environment.entrySet()) {
+            environmentOverrides.add(KeyValuePair.builder().name(entry.getKey()).value(entry.getValue()).build());
+        }
+
+        RunTaskRequest request = RunTaskRequest.builder()
+                .cluster(clusterName)
+                .taskDefinition(taskDefinitionArn)
+                .capacityProviderStrategy(CapacityProviderStrategyItem.builder()
+                        .capacityProvider(capacityProvider)
+                        .weight(1)
+                        .build())
+                .networkConfiguration(NetworkConfiguration.builder()
+                        .awsvpcConfiguration(AwsVpcConfiguration.builder()
+                                .subnets(subnetIds)
+                                .securityGroups(securityGroupId)
+                                .assignPublicIp(AssignPublicIp.ENABLED)
+                                .build())
+                        .build())
+                // The task size is chosen per server, so it overrides the size in the task definition
+                .overrides(TaskOverride.builder()
+                        .cpu(Integer.toString(cpu))
+                        .memory(Integer.toString(memoryMiB))
+                        .containerOverrides(ContainerOverride.builder()
+                                .name(CONTAINER_NAME)
+                                .environment(environmentOverrides)
+                                .build())
+                        .build())
+                .startedBy("cloudcubes")
+                .build();
+        RunTaskResponse response = ecsClient.runTask(request);
+        if (response.tasks().isEmpty()) {
+            String reason = response.failures().isEmpty() ? "unknown reason" : response.failures().get(0).reason();
+            throw new IllegalStateException("Could not start a task for server " + serverId + ": " + reason);
+        }
+        return response.tasks().get(0).taskArn();
+    }
+
+    @Override
+    public void stopTask(@NotNull String taskId) {
+        ecsClient.stopTask(StopTaskRequest.builder()
+                .cluster(clusterName)
+                .task(taskId)
+                .reason("Stopped by CloudCubes")
+                .build());
+    }
+
+    @Override
+    public boolean isTaskRunning(@NotNull String taskId) {
+        List<Task> tasks = ecsClient.describeTasks(DescribeTasksRequest.builder()
+                .cluster(clusterName)
+                .tasks(taskId)
+                .build()).tasks();
+        return !tasks.isEmpty() && !"STOPPED".equals(tasks.get(0).lastStatus());
+    }
+}
@@ -0,0 +1,96 @@
+package osbourn.cloudcubes.core.server;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.StringJoiner;
+import java.util.UUID;
+
+/**
+ * <p>
+ * A server placed on a shared host, together with the port it listens on and the resources reserved for it.
+ * </p>
+ *
+ * <p>
+ * The assignments of a host are stored in the host's entry as a single {@code Servers} attribute of the form
+ * {@code "id:port:memoryMiB:cpuUnits,id:port:memoryMiB:cpuUnits"}, so that the host agent learns about every change
+ * with a single read, and so that a change can be made conditional on the list not having changed in the meantime.
+ * </p>
+ */
+public final class HostAssignment {
+    private final UUID serverId;
+    private final int port;
+    private final int memoryMiB;
+    private final int cpuUnits;
+
+    public HostAssignment(@NotNull UUID serverId, int port, int memoryMiB, int cpuUnits) {
+        this.serverId = serverId;
+        this.port = port;
+        this.memoryMiB = memoryMiB;
+        this.cpuUnits = cpuUnits;
+    }
+
+    /**
+     * Parses the assignments stored in a host's entry.
+     *
+     * @param value The stored string, or null if the host has no servers
+     * @return The assignments, in the order they were made
+     */
+    public static @NotNull List<HostAssignment> listFromString(@Nullable String value) {
+        List<HostAssignment> assignments = new ArrayList<>();
+        if (value != null && !value.isEmpty()) {
+            for (String entry : value.split(",")) {
+                String[] parts = entry.split(":");
+                assignments.add(new HostAssignment(UUID.fromString(parts[0]), Integer.parseInt(parts[1]),
+                        Integer.parseInt(parts[2]), Integer.parseInt(parts[3])));
+            }
+        }
+        return assignments;
+    }
+
+    /**
+     * Formats assignments to be stored in a host's entry.
+     *
+     * @param assignments The assignments
+     * @return The string to store
+     */
+    public static @NotNull String listToString(@NotNull List<HostAssignment> assignments) {
+        StringJoiner joiner = new StringJoiner(",");
+        for (HostAssignment assignment : assignments) {
+            joiner.add(assignment.toString());
+        }
+        return joiner.toString();
+    }
+
+    public @NotNull UUID getServerId() {
+        return serverId;
+    }
+
+    /**
+     * @return The port the server listens on
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * @return The memory limit of the server in MiB
+     */
+    public int getMemoryMiB() {
+        return memoryMiB;
+    }
+
+    /**
+     * @return The CPU reserved for the server, in units of 1/1024 vCPU
+     */
+    public int getCpuUnits() {
+        return cpuUnits;
+    }
+
+    @Override
+    public String toString() {
+        return serverId + ":" + port + ":" + memoryMiB + ":" + cpuUnits;
+    }
+}
@@ -0,0 +1,101 @@
+package osbourn.cloudcubes.core.server;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ * Decides which shared host a server goes on. Servers arrive one at a time, as they are started, so each one is
+ * placed on the fullest host that still has room for it (best fit). This keeps the load concentrated on as few hosts
+ * as possible, which lets lightly used hosts empty out and be terminated as their servers stop.
+ * </p>
+ *
+ * <p>
+ * {@link #firstFitDecreasing(Map, int, int)} packs a whole set of servers at once, which shows how many hosts the
+ * fleet would need if it was packed from scratch, and so how much a consolidation would save.
+ * </p>
+ */
+public final class HostPacker {
+    private HostPacker() {
+    }
+
+    /**
+     * Chooses the host for a server from the hosts that accept servers.
+     *
+     * @param hosts  The hosts of the region
+     * @param demand The demand of the server
+     * @return The fullest host the server fits on, or null if it fits on none and a new host is needed
+     */
+    public static @Nullable SharedHost chooseHost(@NotNull List<SharedHost> hosts, @NotNull ServerDemand demand) {
+        SharedHost chosen = null;
+        for (SharedHost host : hosts) {
+            if (!host.isAcceptingServers() || host.getFreePort() < 0
+                    || !demand.fitsInto(host.getFreeMemoryMiB(), host.getFreeCpuUnits())) {
+                continue;
+            }
+            if (chosen == null || host.getFreeMemoryMiB() < chosen.getFreeMemoryMiB()) {
+                chosen = host;
+            }
+        }
+        return chosen;
+    }
+
+    /**
+     * Packs servers onto as few hosts of the given size as possible, with the first-fit decreasing heuristic: the
+     * servers are sorted by memory, largest first, and each goes on the first host it fits on. Memory is what limits
+     * Minecraft servers, and when a single dimension dominates like this the result is close to an optimal packing.
+     *
+     * @param demands           The demands of the servers, keyed by server
+     * @param memoryCapacityMiB The memory of a host that can be given to servers
+     * @param cpuCapacityUnits  The CPU of a host that can be given to servers
+     * @param <T>               The type identifying a server
+     * @return The servers of each host
+     * @throws IllegalArgumentException If a server doesn't fit on an empty host
+     */
+    public static <T> @NotNull List<List<T>> firstFitDecreasing(@NotNull Map<T, ServerDemand> demands,
+                                                                int memoryCapacityMiB,
+                                                                int cpuCapacityUnits) {
+        List<Map.Entry<T, ServerDemand>> sorted = new ArrayList<>(new LinkedHashMap<>(demands).entrySet());
+        sorted.sort(Comparator.comparingInt((Map.Entry<T, ServerDemand> entry) -> entry.getValue().getMemoryMiB())
+                .thenComparingInt(entry -> entry.getValue().getCpuUnits())
+                .reversed());
+
+        List<List<T>> hosts = new ArrayList<>();
+        List<long[]> freeCapacities = new ArrayList<>();
+        for (Map.Entry<T, ServerDemand> entry : sorted) {
+            ServerDemand demand = entry.getValue();
+            if (!demand.fitsInto(memoryCapacityMiB, cpuCapacityUnits)) {
+                throw new IllegalArgumentException("Server " + entry.getKey() + " doesn't fit on a host");
+            }
+            int hostIndex = -1;
+            for (int i = 0; i < hosts.size(); i++) {
+                long[] free = freeCapacities.get(i);
+                if (hosts.get(i).size() < SharedHost.MAX_SERVERS && demand.fitsInto(free[0], free[1])) {
+                    hostIndex = i;
+                    break;
+                }
+            }
+            if (hostIndex < 0) {
+                hosts.add(new ArrayList<>());
+                freeCapacities.add(new long[]{memoryCapacityMiB, cpuCapacityUnits});
+                hostIndex = hosts.size() - 1;
+            }
+            hosts.get(hostIndex).add(entry.getKey());
+            freeCapacities.get(hostIndex)[0] -= demand.getMemoryMiB();
+            freeCapacities.get(hostIndex)[1] -= demand.getCpuUnits();
+        }
+
+        List<List<T>> result = new ArrayList<>();
+        for (List<T> host : hosts) {
+            result.add(Collections.unmodifiableList(host));
+        }
+        return result;
+    }
+}
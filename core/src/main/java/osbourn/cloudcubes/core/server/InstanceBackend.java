@@ -0,0 +1,35 @@
+package osbourn.cloudcubes.core.server;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * The kind of compute a server runs on. The backend is stored in the server's database entry as the
+ * {@code InstanceBackend} attribute; servers without one run on EC2 spot instances.
+ */
+public enum InstanceBackend {
+    /**
+     * A dedicated EC2 spot instance, managed by {@link EC2SpotInstanceManager}. The world is kept on an EBS volume.
+     */
+    EC2_SPOT,
+    /**
+     * A container task on ECS, managed by {@link ContainerInstanceManager}. The world is kept on a shared file system.
+     * Containers start much faster than instances and are cheaper for small worlds.
+     */
+    CONTAINER,
+    /**
+     * A shared EC2 spot instance that runs several servers, managed by {@link SharedHostInstanceManager}. The world is
+     * kept on the shared file system.
+     */
+    SHARED_HOST;
+
+    /**
+     * Parses the backend stored in the database.
+     *
+     * @param value The stored string, or null if the server doesn't have a backend
+     * @return The parsed backend
+     */
+    public static @NotNull InstanceBackend fromString(@Nullable String value) {
+        return value == null || value.isEmpty() ? EC2_SPOT : valueOf(value);
+    }
+}
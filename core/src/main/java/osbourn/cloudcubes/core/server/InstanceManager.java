@@ -11,6 +11,7 @@ public interface InstanceManager {
      *
      * @param state The state to set the server to
      * @return true if the server was launched or stopped, false if it was already in the requested state
+     * @throws ServerStartingException If the server is asked to start while it is still starting
      */
     boolean setState(@NotNull ServerState state);
 
@@ -21,4 +22,12 @@ public interface InstanceManager {
      * @return ONLINE if the server is online, OFFLINE if it is offline
      */
     ServerState getState();
+
+    /**
+     * Gets whether the server has been launched but hasn't come online yet. A server that is starting is OFFLINE
+     * according to {@link #getState()}, but must not be started again, since that would launch a second instance.
+     *
+     * @return True if the server is starting
+     */
+    boolean isStarting();
 }
@@ -0,0 +1,234 @@
+package osbourn.cloudcubes.core.server;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * <p>
+ * Describes the instance a server is launched on and how the Minecraft server is tuned for it. The profile is stored in
+ * the server's database entry as the {@code LaunchProfile} attribute, whose value is the EC2 instance type, for example
+ * {@code "r5.large"}. Servers without a profile use {@link #DEFAULT_INSTANCE_TYPE}.
+ * </p>
+ *
+ * <p>
+ * The JVM settings of the Minecraft server are derived from the memory of the instance: the heap gets everything that
+ * isn't needed by the operating system, the agent and the page cache, is fully committed and pre-touched at startup so
+ * the server never stalls on page faults later, and is backed by transparent huge pages to cut TLB misses. G1 is used
+ * with pause-oriented settings, since Minecraft allocates heavily and players notice pauses more than throughput.
+ * </p>
+ */
+public final class LaunchProfile {
+    public static final String DEFAULT_INSTANCE_TYPE = "m5.large";
+    /**
+     * Memory left to the rest of the instance is the larger of this and {@link #RESERVED_MEMORY_FRACTION}
+     */
+    private static final long MINIMUM_RESERVED_MEMORY_MIB = 1024;
+    private static final double RESERVED_MEMORY_FRACTION = 0.15;
+    private static final long MINIMUM_HEAP_MIB = 1024;
+    /**
+     * The heap of the fallback options is this fraction of the tuned heap, which leaves room for memory that is
+     * committed later than expected when the tuned options fail
+     */
+    private static final double FALLBACK_HEAP_FRACTION = 0.75;
+    /**
+     * Heaps of at least this size use the G1 settings for large heaps, which give the young generation more room
+     */
+    private static final long LARGE_HEAP_MIB = 12 * 1024;
+    /**
+     * The sizes a server can be resized between, smallest first. Each size has twice the vCPUs and memory of the one
+     * before it in every general purpose, compute and memory optimized family; the sizes above them don't double.
+     */
+    private static final List<String> RESIZE_SIZES = Arrays.asList("large", "xlarge", "2xlarge", "4xlarge", "8xlarge");
+    /**
+     * Families whose instances of the same size have the same vCPUs and memory, so a server can run on any of them
+     * with the same settings. Spot capacity is pooled per instance type, so when one family has no capacity in a zone
+     * another one often does.
+     */
+    private static final List<List<String>> INTERCHANGEABLE_FAMILIES = Arrays.asList(
+            Arrays.asList("m5", "m5a", "m6i", "m6a"),
+            Arrays.asList("c5", "c5a", "c6i", "c6a"),
+            Arrays.asList("r5", "r5a", "r6i", "r6a"));
+
+    private final String instanceType;
+
+    private LaunchProfile(String instanceType) {
+        this.instanceType = instanceType;
+    }
+
+    /**
+     * Parses the launch profile stored in the database.
+     *
+     * @param value The stored string, or null if the server doesn't have a profile
+     * @return The parsed profile
+     */
+    public static @NotNull LaunchProfile fromString(@Nullable String value) {
+        if (value == null || value.isEmpty()) {
+            return new LaunchProfile(DEFAULT_INSTANCE_TYPE);
+        }
+        if (!value.matches("^[a-z0-9-]+\\.[a-z0-9]+$")) {
+            throw new IllegalArgumentException("Invalid launch profile " + value);
+        }
+        return new LaunchProfile(value);
+    }
+
+    /**
+     * Gets the EC2 instance type the server is launched on.
+     *
+     * @return The instance type, for example {@code "m5.large"}
+     */
+    public @NotNull String getInstanceType() {
+        return instanceType;
+    }
+
+    /**
+     * Gets the profile with the next larger instance size in the same family, for example {@code "m5.xlarge"} for
+     * {@code "m5.large"}.
+     *
+     * @return The larger profile, or null if this is the largest size a server is resized to
+     */
+    public @Nullable LaunchProfile getLargerProfile() {
+        return getResizedProfile(1);
+    }
+
+    /**
+     * Gets the profile with the next smaller instance size in the same family, for example {@code "m5.large"} for
+     * {@code "m5.xlarge"}.
+     *
+     * @return The smaller profile, or null if this is the smallest size a server is resized to
+     */
+    public @Nullable LaunchProfile getSmallerProfile() {
+        return getResizedProfile(-1);
+    }
+
+    private @Nullable LaunchProfile getResizedProfile(int steps) {
+        int separatorIndex = instanceType.indexOf('.');
+        int sizeIndex = RESIZE_SIZES.indexOf(instanceType.substring(separatorIndex + 1));
+        if (sizeIndex < 0 || sizeIndex + steps < 0 || sizeIndex + steps >= RESIZE_SIZES.size()) {
+            return null;
+        }
+        return new LaunchProfile(instanceType.substring(0, separatorIndex + 1) + RESIZE_SIZES.get(sizeIndex + steps));
+    }
+
+    /**
+     * Gets the profiles with the same instance size in the families that are interchangeable with the family of this
+     * profile, for example {@code "m5a.large"} and {@code "m6i.large"} for {@code "m5.large"}. They are used when there
+     * is no spot capacity for this profile.
+     *
+     * @return The alternative profiles, in order of preference, which is empty for families without alternatives
+     */
+    public @NotNull List<LaunchProfile> getAlternativeProfiles() {
+        int separatorIndex = instanceType.indexOf('.');
+        String family = instanceType.substring(0, separatorIndex);
+        List<LaunchProfile> alternatives = new ArrayList<>();
+        for (List<String> families : INTERCHANGEABLE_FAMILIES) {
+            if (!families.contains(family)) {
+                continue;
+            }
+            for (String alternative : families) {
+                if (!alternative.equals(family)) {
+                    alternatives.add(new LaunchProfile(alternative + instanceType.substring(separatorIndex)));
+                }
+            }
+        }
+        return alternatives;
+    }
+
+    /**
+     * Gets the heap size of the Minecraft server on an instance with the given amount of memory.
+     *
+     * @param instanceMemoryMiB The memory of the instance in MiB
+     * @return The heap size in MiB, rounded down to a multiple of 256 MiB
+     */
+    public static long getHeapSizeMiB(long instanceMemoryMiB) {
+        long reservedMiB = Math.max(MINIMUM_RESERVED_MEMORY_MIB, (long) (instanceMemoryMiB * RESERVED_MEMORY_FRACTION));
+        long heapMiB = (instanceMemoryMiB - reservedMiB) / 256 * 256;
+        return Math.max(MINIMUM_HEAP_MIB, heapMiB);
+    }
+
+    /**
+     * Gets the heap size of the Minecraft server with the fallback options from {@link #getFallbackJvmOptions(long)}.
+     *
+     * @param instanceMemoryMiB The memory of the instance in MiB
+     * @return The heap size in MiB, rounded down to a multiple of 256 MiB
+     */
+    public static long getFallbackHeapSizeMiB(long instanceMemoryMiB) {
+        long heapMiB = (long) (getHeapSizeMiB(instanceMemoryMiB) * FALLBACK_HEAP_FRACTION) / 256 * 256;
+        return Math.max(MINIMUM_HEAP_MIB, heapMiB);
+    }
+
+    /**
+     * Gets the JVM options for the Minecraft server on an instance with the given amount of memory.
+     *
+     * @param instanceMemoryMiB The memory of the instance in MiB
+     * @return The JVM options, one option per element
+     */
+    public static @NotNull List<String> getJvmOptions(long instanceMemoryMiB) {
+        List<String> options = getG1Options(getHeapSizeMiB(instanceMemoryMiB));
+        options.add("-XX:+AlwaysPreTouch");
+        options.add("-XX:+UseTransparentHugePages");
+        return options;
+    }
+
+    /**
+     * Gets conservative JVM options that are used when the tuned options from {@link #getJvmOptions(long)} fail
+     * validation on the instance, for example because huge pages aren't available. The heap is smaller, see
+     * {@link #getFallbackHeapSizeMiB(long)}, and is neither pre-touched nor backed by huge pages.
+     *
+     * @param instanceMemoryMiB The memory of the instance in MiB
+     * @return The JVM options, one option per element
+     */
+    public static @NotNull List<String> getFallbackJvmOptions(long instanceMemoryMiB) {
+        return getG1Options(getFallbackHeapSizeMiB(instanceMemoryMiB));
+    }
+
+    private static @NotNull List<String> getG1Options(long heapMiB) {
+        List<String> options = new ArrayList<>();
+        options.add("-Xms" + heapMiB + "M");
+        options.add("-Xmx" + heapMiB + "M");
+        options.add("-XX:+UseG1GC");
+        options.add("-XX:+ParallelRefProcEnabled");
+        options.add("-XX:MaxGCPauseMillis=200");
+        options.add("-XX:+UnlockExperimentalVMOptions");
+        options.add("-XX:+DisableExplicitGC");
+        options.add("-XX:G1HeapWastePercent=5");
+        options.add("-XX:G1MixedGCCountTarget=4");
+        options.add("-XX:G1MixedGCLiveThresholdPercent=90");
+        options.add("-XX:G1RSetUpdatingPauseTimePercent=5");
+        options.add("-XX:SurvivorRatio=32");
+        options.add("-XX:+PerfDisableSharedMem");
+        options.add("-XX:MaxTenuringThreshold=1");
+        if (heapMiB >= LARGE_HEAP_MIB) {
+            options.add("-XX:G1NewSizePercent=40");
+            options.add("-XX:G1MaxNewSizePercent=50");
+            options.add("-XX:G1HeapRegionSize=16M");
+            options.add("-XX:G1ReservePercent=15");
+            options.add("-XX:InitiatingHeapOccupancyPercent=20");
+        } else {
+            options.add("-XX:G1NewSizePercent=30");
+            options.add("-XX:G1MaxNewSizePercent=40");
+            options.add("-XX:G1HeapRegionSize=8M");
+            options.add("-XX:G1ReservePercent=20");
+            options.add("-XX:InitiatingHeapOccupancyPercent=15");
+        }
+        return options;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof LaunchProfile && ((LaunchProfile) o).instanceType.equals(instanceType);
+    }
+
+    @Override
+    public int hashCode() {
+        return instanceType.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return instanceType;
+    }
+}
@@ -0,0 +1,61 @@
+package osbourn.cloudcubes.core.server;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * The recent heartbeats of a server, which {@link ResizePolicy} decides on. The database only holds the latest
+ * heartbeat, so whoever watches the server records each heartbeat it reads here. Only the heartbeats of the last
+ * {@link ResizePolicy#SHRINK_WINDOW_MILLIS} are kept.
+ */
+public final class LoadHistory {
+    private final Deque<ServerHealth> samples = new ArrayDeque<>();
+
+    /**
+     * Records a heartbeat. A heartbeat that is not newer than the last one recorded is ignored, so the same heartbeat
+     * can be passed in every time it is read.
+     *
+     * @param health The heartbeat, or null if the server has none, which is ignored
+     */
+    public void add(@Nullable ServerHealth health) {
+        if (health == null) {
+            return;
+        }
+        ServerHealth latest = samples.peekLast();
+        if (latest != null && health.getTimestampMillis() <= latest.getTimestampMillis()) {
+            return;
+        }
+        samples.addLast(health);
+        while (health.getTimestampMillis() - samples.peekFirst().getTimestampMillis()
+                > ResizePolicy.SHRINK_WINDOW_MILLIS) {
+            samples.removeFirst();
+        }
+    }
+
+    /**
+     * Forgets every heartbeat, which is needed when the server moves to another instance and its old heartbeats no
+     * longer say anything about its load.
+     */
+    public void clear() {
+        samples.clear();
+    }
+
+    /**
+     * @return The recorded heartbeats, oldest first
+     */
+    public @NotNull List<ServerHealth> getSamples() {
+        return new ArrayList<>(samples);
+    }
+
+    /**
+     * @return The latest recorded heartbeat, or null if there is none
+     */
+    public @Nullable ServerHealth getLatest() {
+        return samples.peekLast();
+    }
+}
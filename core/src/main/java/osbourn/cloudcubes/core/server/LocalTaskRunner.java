@@ -0,0 +1,89 @@
+package osbourn.cloudcubes.core.server;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * A stand-in for ECS that runs each task as a process on the local machine, for example the server agent jar. This
+ * lets the container backend, including the server agent and its database contract, be run and tested on a developer
+ * machine without AWS.
+ * </p>
+ *
+ * <p>
+ * The CPU and memory of a task are not enforced. Task ids only refer to processes started by this object.
+ * </p>
+ */
+public class LocalTaskRunner implements TaskRunner {
+    /**
+     * How long a stopped task gets to save its world before it is killed, like the stop timeout of an ECS task
+     */
+    private static final long STOP_TIMEOUT_SECONDS = 120;
+
+    private final List<String> command;
+    private final Path logDirectory;
+    private final Map<String, Process> tasks = new HashMap<>();
+
+    /**
+     * Creates a LocalTaskRunner object.
+     *
+     * @param command      The command that runs a task, for example {@code java -jar agent/build/deploy/agent-all.jar}
+     * @param logDirectory The directory the output of each task is written to
+     */
+    public LocalTaskRunner(@NotNull List<String> command, @NotNull Path logDirectory) {
+        this.command = command;
+        this.logDirectory = logDirectory;
+    }
+
+    @Override
+    public synchronized @NotNull String runTask(@NotNull UUID serverId, @NotNull Map<String, String> environment,
+                                                int cpu, int memoryMiB) {
+        ProcessBuilder processBuilder = new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.appendTo(logDirectory.resolve(serverId + ".log").toFile()));
+        processBuilder.environment().putAll(environment);
+        Process process;
+        try {
+            process = processBuilder.start();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not start a task for server " + serverId, e);
+        }
+        String taskId = "local-" + process.pid();
+        tasks.put(taskId, process);
+        return taskId;
+    }
+
+    @Override
+    public void stopTask(@NotNull String taskId) {
+        Process process;
+        synchronized (this) {
+            process = tasks.remove(taskId);
+        }
+        if (process == null) {
+            return;
+        }
+        process.destroy();
+        try {
+            if (!process.waitFor(STOP_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                process.destroyForcibly();
+            }
+        } catch (InterruptedException e) {
+            process.destroyForcibly();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public synchronized boolean isTaskRunning(@NotNull String taskId) {
+        Process process = tasks.get(taskId);
+        return process != null && process.isAlive();
+    }
+}
@@ -0,0 +1,176 @@
+package osbourn.cloudcubes.core.server;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import software.amazon.awssdk.regions.Region;
+
+import java.util.*;
+
+/**
+ * <p>
+ * Keeps track of the latency that a server's players have measured to each region. The latency of each region is kept
+ * as an exponentially weighted moving average, so recent players count more than players who haven't been around for
+ * a while.
+ * </p>
+ *
+ * <p>
+ * Each region's average comes from the players who happened to connect through the proxy of that region, so the
+ * averages of two regions describe different players and can't be compared to decide where a server should run.
+ * Players connect through the proxy closest to them, however, so the number of samples taken in each region says where
+ * the players of the server are. {@link #getPreferredRegion()} uses the sample counts to pick the region a server
+ * should run in. The counts are halved whenever their total passes {@link #MAX_TOTAL_SAMPLE_COUNT}, so that players
+ * who stopped playing on the server eventually no longer count.
+ * </p>
+ *
+ * <p>
+ * The statistics are stored in the database as a single string of the form
+ * {@code "us-east-2:45.0:12,eu-west-1:130.5:3"}, where each entry is a region, its average latency in milliseconds,
+ * and the number of samples it is based on.
+ * </p>
+ */
+public final class RegionLatencies {
+    /**
+     * How much weight a new sample gets in the moving average
+     */
+    private static final double SMOOTHING_FACTOR = 0.2;
+    /**
+     * The number of samples above which the counts of all regions are halved
+     */
+    static final int MAX_TOTAL_SAMPLE_COUNT = 1000;
+    /**
+     * How many samples have to be taken before a region is preferred, so that a few players don't move a server
+     */
+    static final int MIN_PREFERRED_SAMPLE_COUNT = 50;
+    /**
+     * The share of the samples that has to be taken in a region for it to be preferred. A server whose players are
+     * spread evenly over several regions isn't moved back and forth between them.
+     */
+    static final double MIN_PREFERRED_SHARE = 2.0 / 3;
+
+    private final Map<Region, Statistic> statistics;
+
+    private RegionLatencies(Map<Region, Statistic> statistics) {
+        this.statistics = statistics;
+    }
+
+    /**
+     * Parses the latency statistics stored in the database.
+     *
+     * @param value The stored string, or null if no statistics have been stored yet
+     * @return The parsed statistics
+     */
+    public static @NotNull RegionLatencies fromString(@Nullable String value) {
+        Map<Region, Statistic> statistics = new LinkedHashMap<>();
+        if (value != null && !value.isEmpty()) {
+            for (String entry : value.split(",")) {
+                String[] parts = entry.split(":");
+                if (parts.length != 3) {
+                    continue;
+                }
+                statistics.put(Region.of(parts[0]),
+                        new Statistic(Double.parseDouble(parts[1]), Integer.parseInt(parts[2])));
+            }
+        }
+        return new RegionLatencies(statistics);
+    }
+
+    /**
+     * Adds a latency measurement for a region.
+     *
+     * @param region        The region the measurement was taken in
+     * @param latencyMillis The measured round trip time in milliseconds
+     * @param sampleCount   How many measurements the latency is the average of
+     */
+    public void record(@NotNull Region region, double latencyMillis, int sampleCount) {
+        Statistic statistic = statistics.get(region);
+        if (statistic == null) {
+            statistics.put(region, new Statistic(latencyMillis, sampleCount));
+        } else {
+            // Applying the smoothing factor once per sample keeps the result independent of how samples were batched
+            double weight = 1 - Math.pow(1 - SMOOTHING_FACTOR, sampleCount);
+            statistic.averageMillis += weight * (latencyMillis - statistic.averageMillis);
+            statistic.sampleCount += sampleCount;
+        }
+        while (getTotalSampleCount() > MAX_TOTAL_SAMPLE_COUNT) {
+            Iterator<Statistic> iterator = statistics.values().iterator();
+            while (iterator.hasNext()) {
+                Statistic halved = iterator.next();
+                halved.sampleCount /= 2;
+                if (halved.sampleCount == 0) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the region the server should run in, which is the region that most of the samples were taken in. A region
+     * is only preferred once enough samples have been taken and it has a large enough share of them.
+     *
+     * @return The preferred region, or null if the samples don't point to a single region
+     * @see #MIN_PREFERRED_SAMPLE_COUNT
+     * @see #MIN_PREFERRED_SHARE
+     */
+    public @Nullable Region getPreferredRegion() {
+        int totalSampleCount = getTotalSampleCount();
+        if (totalSampleCount < MIN_PREFERRED_SAMPLE_COUNT) {
+            return null;
+        }
+        for (Map.Entry<Region, Statistic> entry : statistics.entrySet()) {
+            if (entry.getValue().sampleCount >= MIN_PREFERRED_SHARE * totalSampleCount) {
+                return entry.getKey();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gets the average latency the players who connected through a region have measured.
+     *
+     * @param region The region of the proxy the players connected through
+     * @return The average round trip time in milliseconds, or null if no players have connected through the region
+     */
+    public @Nullable Double getAverageMillis(@NotNull Region region) {
+        Statistic statistic = statistics.get(region);
+        return statistic == null ? null : statistic.averageMillis;
+    }
+
+    /**
+     * Gets the number of latency measurements that were taken through a region.
+     *
+     * @param region The region of the proxy the measurements were taken through
+     * @return The number of measurements
+     */
+    public int getSampleCount(@NotNull Region region) {
+        Statistic statistic = statistics.get(region);
+        return statistic == null ? 0 : statistic.sampleCount;
+    }
+
+    private int getTotalSampleCount() {
+        int totalSampleCount = 0;
+        for (Statistic statistic : statistics.values()) {
+            totalSampleCount += statistic.sampleCount;
+        }
+        return totalSampleCount;
+    }
+
+    @Override
+    public String toString() {
+        StringJoiner joiner = new StringJoiner(",");
+        for (Map.Entry<Region, Statistic> entry : statistics.entrySet()) {
+            joiner.add(String.format(Locale.ROOT, "%s:%.1f:%d",
+                    entry.getKey().id(), entry.getValue().averageMillis, entry.getValue().sampleCount));
+        }
+        return joiner.toString();
+    }
+
+    private static final class Statistic {
+        private double averageMillis;
+        private int sampleCount;
+
+        private Statistic(double averageMillis, int sampleCount) {
+            this.averageMillis = averageMillis;
+            this.sampleCount = sampleCount;
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package osbourn.cloudcubes.core.server;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.List;
+
+/**
+ * <p>
+ * Decides when a server should move to a larger or smaller instance, from its recent heartbeats. A server grows when
+ * most of its heartbeats over {@link #GROW_WINDOW_MILLIS} show it falling behind its tick budget, or when it is about
+ * to run out of memory. It shrinks when it had players for most of the longer {@link #SHRINK_WINDOW_MILLIS} and every
+ * heartbeat with players shows it using less than a third of its tick budget, which leaves room for the tick time to
+ * double on an instance half the size. An empty server says nothing about the size it needs, and is stopped as idle
+ * rather than shrunk. The memory use of the server doesn't count towards shrinking, since the heap is committed in
+ * full at startup.
+ * </p>
+ *
+ * <p>
+ * Resizing restarts the server, so a resize is only decided on, not carried out: the chosen profile is kept as the
+ * server's pending profile until the server is empty, and only then is the server moved. A pending grow is kept until
+ * then even if the load drops, since the players who caused it are likely to return; a pending shrink is dropped as
+ * soon as the server is busy again. After a resize the server is left alone for {@link #COOLDOWN_MILLIS}, so that it
+ * doesn't flip between two sizes.
+ * </p>
+ */
+public final class ResizePolicy {
+    public static final long GROW_WINDOW_MILLIS = 10 * 60_000;
+    public static final long SHRINK_WINDOW_MILLIS = 30 * 60_000;
+    public static final long COOLDOWN_MILLIS = 30 * 60_000;
+    /**
+     * How long a server must have been empty before it is moved, so that it isn't moved while a player reconnects
+     */
+    public static final long HANDOFF_EMPTY_MILLIS = 2 * 60_000;
+    /**
+     * The heartbeats must span at least this fraction of a window for the window to count, so that a server that has
+     * just started is not judged on its first few heartbeats
+     */
+    private static final double WINDOW_COVERAGE = 0.8;
+    private static final double GROW_OVERLOADED_FRACTION = 0.6;
+    private static final double GROW_MEMORY_FRACTION = 0.95;
+    private static final double SHRINK_MAX_MILLIS_PER_TICK = 15;
+    private static final double SHRINK_OCCUPIED_FRACTION = 0.5;
+
+    /**
+     * What should happen to the size of a server.
+     */
+    public enum Decision {
+        KEEP,
+        GROW,
+        SHRINK
+    }
+
+    private ResizePolicy() {
+    }
+
+    /**
+     * Decides whether the server needs a different size.
+     *
+     * @param history          The recent heartbeats of the server, oldest first
+     * @param lastResizeMillis When the server was last resized, or 0 if it never was
+     * @param nowMillis        The current time in milliseconds since the epoch
+     * @return The decision
+     */
+    public static @NotNull Decision decide(@NotNull List<ServerHealth> history, long lastResizeMillis, long nowMillis) {
+        if (history.isEmpty() || nowMillis - lastResizeMillis < COOLDOWN_MILLIS) {
+            return Decision.KEEP;
+        }
+        ServerHealth latest = history.get(history.size() - 1);
+        if (!latest.isFresh(nowMillis)) {
+            return Decision.KEEP;
+        }
+
+        if (latest.getMemoryUsedMiB() > 0 && latest.getMemoryTotalMiB() > 0
+                && latest.getMemoryUsedMiB() >= latest.getMemoryTotalMiB() * GROW_MEMORY_FRACTION) {
+            return Decision.GROW;
+        }
+        if (coversWindow(history, GROW_WINDOW_MILLIS, nowMillis)) {
+            int sampleCount = 0;
+            int overloadedCount = 0;
+            for (ServerHealth health : history) {
+                if (nowMillis - health.getTimestampMillis() <= GROW_WINDOW_MILLIS) {
+                    sampleCount++;
+                    if (health.isOverloaded()) {
+                        overloadedCount++;
+                    }
+                }
+            }
+            if (overloadedCount >= sampleCount * GROW_OVERLOADED_FRACTION) {
+                return Decision.GROW;
+            }
+        }
+
+        if (coversWindow(history, SHRINK_WINDOW_MILLIS, nowMillis)) {
+            int sampleCount = 0;
+            int occupiedCount = 0;
+            for (ServerHealth health : history) {
+                if (nowMillis - health.getTimestampMillis() > SHRINK_WINDOW_MILLIS) {
+                    continue;
+                }
+                sampleCount++;
+                if (health.getPlayerCount() == 0) {
+                    continue;
+                }
+                occupiedCount++;
+                // Servers that can't report their tick time are never shrunk
+                if (health.getMillisPerTick() < 0 || health.getMillisPerTick() > SHRINK_MAX_MILLIS_PER_TICK) {
+                    return Decision.KEEP;
+                }
+            }
+            if (occupiedCount >= sampleCount * SHRINK_OCCUPIED_FRACTION) {
+                return Decision.SHRINK;
+            }
+        }
+        return Decision.KEEP;
+    }
+
+    /**
+     * Chooses the pending profile of the server: the profile it should be moved to once it is empty.
+     *
+     * @param history          The recent heartbeats of the server, oldest first
+     * @param current          The profile the server runs with
+     * @param pending          The pending profile chosen before, or null if there is none
+     * @param lastResizeMillis When the server was last resized, or 0 if it never was
+     * @param nowMillis        The current time in milliseconds since the epoch
+     * @return The new pending profile, or null if the server should keep its size
+     */
+    public static @Nullable LaunchProfile choosePendingProfile(@NotNull List<ServerHealth> history,
+                                                               @NotNull LaunchProfile current,
+                                                               @Nullable LaunchProfile pending,
+                                                               long lastResizeMillis,
+                                                               long nowMillis) {
+        switch (decide(history, lastResizeMillis, nowMillis)) {
+            case GROW:
+                return current.getLargerProfile();
+            case SHRINK:
+                return current.getSmallerProfile();
+            case KEEP:
+            default:
+                if (pending != null && pending.equals(current.getSmallerProfile())) {
+                    return null;
+                }
+                return pending;
+        }
+    }
+
+    /**
+     * Returns true if a server with a pending profile can be moved now, which is when its heartbeats have shown no
+     * players for {@link #HANDOFF_EMPTY_MILLIS}.
+     *
+     * @param history   The recent heartbeats of the server, oldest first
+     * @param nowMillis The current time in milliseconds since the epoch
+     * @return True if the server can be moved
+     */
+    public static boolean isReadyForHandoff(@NotNull List<ServerHealth> history, long nowMillis) {
+        if (history.isEmpty() || !history.get(history.size() - 1).isFresh(nowMillis)) {
+            return false;
+        }
+        for (int i = history.size() - 1; i >= 0; i--) {
+            ServerHealth health = history.get(i);
+            if (health.getPlayerCount() != 0) {
+                return false;
+            }
+            if (nowMillis - health.getTimestampMillis() >= HANDOFF_EMPTY_MILLIS) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean coversWindow(@NotNull List<ServerHealth> history, long windowMillis, long nowMillis) {
+        return nowMillis - history.get(0).getTimestampMillis() >= windowMillis * WINDOW_COVERAGE;
+    }
+}
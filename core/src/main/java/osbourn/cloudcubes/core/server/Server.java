@@ -1,6 +1,7 @@
 package osbourn.cloudcubes.core.server;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import osbourn.cloudcubes.core.util.Identifiable;
 
 import java.util.UUID;
@@ -32,9 +33,36 @@ public interface Server extends Identifiable {
      * thrown.
      *
      * @throws java.lang.IllegalStateException If the server is currently online
+     * @throws ServerStartingException         If the server has been launched but hasn't come online yet
      */
     void startServer();
 
+    /**
+     * Stops the server if it is online. The server is given a chance to save the world before its instance shuts down,
+     * and the world is kept so that the next start resumes where the server left off.
+     *
+     * @throws java.lang.IllegalStateException If the server is currently offline
+     */
+    void stopServer();
+
+    /**
+     * Gets the address that players can use to connect directly to the running server, in the form "host" or
+     * "host:port". The address is recorded by the server instance once it has come online, so this method always reads
+     * the latest value from the database.
+     *
+     * @return The address of the running server, or null if the server has not come online
+     */
+    @Nullable String getServerAddress();
+
+    /**
+     * Gets the latest heartbeat of the server, which tells whether the server is alive and whether it keeps up with its
+     * tick rate; see {@link ServerHealth#getStatus(ServerHealth, long)}. The heartbeat is published by the server
+     * instance every few seconds, so this method always reads the latest value from the database.
+     *
+     * @return The latest heartbeat of the server, or null if the server has never published one
+     */
+    @Nullable ServerHealth getHealth();
+
     /**
      * Gets the display name of the server.
      *
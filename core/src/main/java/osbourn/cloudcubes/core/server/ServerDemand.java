@@ -0,0 +1,96 @@
+package osbourn.cloudcubes.core.server;
+
+import org.jetbrains.annotations.NotNull;
+import osbourn.cloudcubes.core.database.DatabaseEntry;
+
+/**
+ * <p>
+ * The memory and CPU a server needs on a shared host. The demand is the larger of what the server declares in its
+ * {@code MemoryLimitMiB} and {@code CpuUnits} attributes and what its last heartbeat showed it using, so a server that
+ * outgrew its declared size gets room for what it actually uses the next time it is placed.
+ * </p>
+ *
+ * <p>
+ * CPU is measured in units of 1/1024 of a vCPU, as in ECS.
+ * </p>
+ */
+public final class ServerDemand {
+    public static final int DEFAULT_MEMORY_MIB = 2048;
+    public static final int DEFAULT_CPU_UNITS = 512;
+    /**
+     * Memory is handed out in steps of this size, which keeps the heap sizes of servers on a host regular
+     */
+    private static final int MEMORY_STEP_MIB = 256;
+    /**
+     * The observed memory use is multiplied by this, since the heartbeat shows a single moment and the heap grows
+     * when players explore
+     */
+    private static final double MEMORY_HEADROOM = 1.25;
+    /**
+     * The CPU used by a server's other threads (networking, chunk generation and GC) on top of its main thread
+     */
+    private static final int BACKGROUND_CPU_UNITS = 256;
+
+    private final int memoryMiB;
+    private final int cpuUnits;
+
+    public ServerDemand(int memoryMiB, int cpuUnits) {
+        this.memoryMiB = memoryMiB;
+        this.cpuUnits = cpuUnits;
+    }
+
+    /**
+     * Gets the demand of a server from its declared size and its last heartbeat.
+     *
+     * @param server The database entry of the server
+     * @return The demand of the server
+     */
+    public static @NotNull ServerDemand of(@NotNull DatabaseEntry server) {
+        int memoryMiB = parseOrDefault(server.getStringValue("MemoryLimitMiB"), DEFAULT_MEMORY_MIB);
+        int cpuUnits = parseOrDefault(server.getStringValue("CpuUnits"), DEFAULT_CPU_UNITS);
+
+        // The heartbeat is kept after the server stops, so it describes the server's last run
+        ServerHealth health = ServerRecord.of(server).request(ServerRecord.HEARTBEAT);
+        if (health != null) {
+            if (health.getMemoryUsedMiB() > 0) {
+                memoryMiB = Math.max(memoryMiB, (int) Math.ceil(health.getMemoryUsedMiB() * MEMORY_HEADROOM));
+            }
+            if (health.getMillisPerTick() > 0) {
+                // The main thread is busy for the given share of every 50 ms tick
+                int mainThreadCpuUnits = (int) Math.ceil(Math.min(health.getMillisPerTick(), 50) / 50 * 1024);
+                cpuUnits = Math.max(cpuUnits, mainThreadCpuUnits + BACKGROUND_CPU_UNITS);
+            }
+        }
+        memoryMiB = (memoryMiB + MEMORY_STEP_MIB - 1) / MEMORY_STEP_MIB * MEMORY_STEP_MIB;
+        return new ServerDemand(memoryMiB, cpuUnits);
+    }
+
+    private static int parseOrDefault(String value, int defaultValue) {
+        return value != null ? Integer.parseInt(value) : defaultValue;
+    }
+
+    /**
+     * @return The memory the server needs in MiB, which is also its memory limit on the host
+     */
+    public int getMemoryMiB() {
+        return memoryMiB;
+    }
+
+    /**
+     * @return The CPU the server needs, in units of 1/1024 vCPU
+     */
+    public int getCpuUnits() {
+        return cpuUnits;
+    }
+
+    /**
+     * Returns true if this demand fits into the given free capacity.
+     *
+     * @param freeMemoryMiB The free memory in MiB
+     * @param freeCpuUnits  The free CPU units
+     * @return True if both the memory and the CPU fit
+     */
+    public boolean fitsInto(long freeMemoryMiB, long freeCpuUnits) {
+        return memoryMiB <= freeMemoryMiB && cpuUnits <= freeCpuUnits;
+    }
+}
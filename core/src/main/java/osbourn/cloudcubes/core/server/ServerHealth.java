@@ -0,0 +1,194 @@
+package osbourn.cloudcubes.core.server;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Locale;
+
+/**
+ * <p>
+ * The latest heartbeat of a server, published by the server agent while the Minecraft server runs. A heartbeat holds
+ * the tick rate, the average time per tick, the number of players and the memory use of the server, and its timestamp
+ * tells whether the server is still alive: a server whose agent has stopped publishing has crashed or hung, even if
+ * its state in the database is still ONLINE.
+ * </p>
+ *
+ * <p>
+ * The heartbeat is stored in the server's database entry as a single {@code Heartbeat} attribute of the form
+ * {@code "timestamp:tps:mspt:players:maxPlayers:memoryUsedMiB:memoryTotalMiB"}, so that publishing it is one small
+ * write. Values the agent couldn't measure are stored as -1.
+ * </p>
+ */
+public final class ServerHealth {
+    /**
+     * The agent publishes at least this often, even if nothing has changed
+     */
+    public static final long HEARTBEAT_INTERVAL_MILLIS = 15_000;
+    /**
+     * A heartbeat older than this means the server is unresponsive. This allows for two missed heartbeats.
+     */
+    public static final long STALE_AFTER_MILLIS = 3 * HEARTBEAT_INTERVAL_MILLIS;
+    /**
+     * A server that needs more than this many milliseconds per tick on average is close to falling behind the 50 ms
+     * tick budget, so it is considered overloaded
+     */
+    private static final double OVERLOADED_MILLIS_PER_TICK = 45;
+
+    /**
+     * The health of a server at a point in time.
+     */
+    public enum Status {
+        /**
+         * The server is publishing heartbeats and keeping up with its tick rate
+         */
+        HEALTHY,
+        /**
+         * The server is publishing heartbeats but is close to or behind its tick budget, so it needs a bigger instance
+         */
+        OVERLOADED,
+        /**
+         * The server has published heartbeats, but not recently
+         */
+        UNRESPONSIVE,
+        /**
+         * The server has never published a heartbeat
+         */
+        UNKNOWN
+    }
+
+    private final long timestampMillis;
+    private final double ticksPerSecond;
+    private final double millisPerTick;
+    private final int playerCount;
+    private final int maxPlayers;
+    private final long memoryUsedMiB;
+    private final long memoryTotalMiB;
+
+    public ServerHealth(long timestampMillis, double ticksPerSecond, double millisPerTick, int playerCount,
+                        int maxPlayers, long memoryUsedMiB, long memoryTotalMiB) {
+        this.timestampMillis = timestampMillis;
+        this.ticksPerSecond = ticksPerSecond;
+        this.millisPerTick = millisPerTick;
+        this.playerCount = playerCount;
+        this.maxPlayers = maxPlayers;
+        this.memoryUsedMiB = memoryUsedMiB;
+        this.memoryTotalMiB = memoryTotalMiB;
+    }
+
+    /**
+     * Parses the heartbeat stored in the database.
+     *
+     * @param value The stored string, or null if the server has never published a heartbeat
+     * @return The parsed heartbeat, or null if there is none
+     */
+    public static @Nullable ServerHealth fromString(@Nullable String value) {
+        if (value == null || value.isEmpty()) {
+            return null;
+        }
+        String[] parts = value.split(":");
+        if (parts.length != 7) {
+            return null;
+        }
+        return new ServerHealth(Long.parseLong(parts[0]), Double.parseDouble(parts[1]), Double.parseDouble(parts[2]),
+                Integer.parseInt(parts[3]), Integer.parseInt(parts[4]), Long.parseLong(parts[5]),
+                Long.parseLong(parts[6]));
+    }
+
+    /**
+     * Gets the status of a server from its latest heartbeat.
+     *
+     * @param health    The latest heartbeat of the server, or null if it has never published one
+     * @param nowMillis The current time in milliseconds since the epoch
+     * @return The status of the server
+     */
+    public static @NotNull Status getStatus(@Nullable ServerHealth health, long nowMillis) {
+        if (health == null) {
+            return Status.UNKNOWN;
+        }
+        return health.getStatus(nowMillis);
+    }
+
+    /**
+     * Gets the status of the server from this heartbeat.
+     *
+     * @param nowMillis The current time in milliseconds since the epoch
+     * @return The status of the server
+     */
+    public @NotNull Status getStatus(long nowMillis) {
+        if (!isFresh(nowMillis)) {
+            return Status.UNRESPONSIVE;
+        }
+        return isOverloaded() ? Status.OVERLOADED : Status.HEALTHY;
+    }
+
+    /**
+     * Returns true if the heartbeat is recent enough to show that the server is alive.
+     *
+     * @param nowMillis The current time in milliseconds since the epoch
+     * @return True if the heartbeat is fresh
+     */
+    public boolean isFresh(long nowMillis) {
+        return nowMillis - timestampMillis <= STALE_AFTER_MILLIS;
+    }
+
+    /**
+     * Returns true if the server is close to or behind its tick budget.
+     *
+     * @return True if the server is overloaded
+     */
+    public boolean isOverloaded() {
+        return millisPerTick >= OVERLOADED_MILLIS_PER_TICK;
+    }
+
+    public long getTimestampMillis() {
+        return timestampMillis;
+    }
+
+    /**
+     * @return The average tick rate, or -1 if it couldn't be measured
+     */
+    public double getTicksPerSecond() {
+        return ticksPerSecond;
+    }
+
+    /**
+     * @return The average time per tick in milliseconds, or -1 if it couldn't be measured
+     */
+    public double getMillisPerTick() {
+        return millisPerTick;
+    }
+
+    /**
+     * @return The number of players online, or -1 if it couldn't be measured
+     */
+    public int getPlayerCount() {
+        return playerCount;
+    }
+
+    /**
+     * @return The maximum number of players, or -1 if it couldn't be measured
+     */
+    public int getMaxPlayers() {
+        return maxPlayers;
+    }
+
+    /**
+     * @return The resident memory of the Minecraft server in MiB, or -1 if it couldn't be measured
+     */
+    public long getMemoryUsedMiB() {
+        return memoryUsedMiB;
+    }
+
+    /**
+     * @return The memory of the instance in MiB, or -1 if it couldn't be measured
+     */
+    public long getMemoryTotalMiB() {
+        return memoryTotalMiB;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "%d:%.1f:%.1f:%d:%d:%d:%d", timestampMillis, ticksPerSecond, millisPerTick,
+                playerCount, maxPlayers, memoryUsedMiB, memoryTotalMiB);
+    }
+}
@@ -0,0 +1,91 @@
+package osbourn.cloudcubes.core.server;
+
+import org.jetbrains.annotations.NotNull;
+import osbourn.cloudcubes.core.database.DatabaseEntry;
+import osbourn.cloudcubes.core.database.RecordCodec;
+import osbourn.cloudcubes.core.database.RecordField;
+import osbourn.cloudcubes.core.database.RecordSchema;
+import osbourn.cloudcubes.core.database.TypedRecord;
+
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * <p>
+ * The fields of a server that are packed into its {@code Record} attribute: the ones that are read on every status
+ * request and sweep, and written with every heartbeat. The other attributes of a server stay strings, either because
+ * they are rarely used or because people read them in the console.
+ * </p>
+ *
+ * <p>
+ * The heartbeat is packed as seven numbers instead of its string form, with the tick rate and tick time in tenths,
+ * which is the precision of the string form as well. Each field keeps the name of the string attribute it replaces,
+ * so entries that haven't been migrated, and agents that don't know the record yet, keep working.
+ * </p>
+ */
+public final class ServerRecord {
+    public static final RecordField<ProvisionalServerState> STATE =
+            new RecordField<>("ServerState", 1, RecordCodec.forEnum(ProvisionalServerState.class));
+    public static final RecordField<ServerHealth> HEARTBEAT = new RecordField<>("Heartbeat", 2, new HealthCodec());
+    public static final RecordField<Long> RESIZED_AT_MILLIS =
+            new RecordField<>("ResizedAtMillis", 3, RecordCodec.unsignedLong());
+
+    /**
+     * Version 1: {@link #STATE}, {@link #HEARTBEAT} and {@link #RESIZED_AT_MILLIS}
+     */
+    public static final RecordSchema SCHEMA = new RecordSchema("Record", 1, STATE, HEARTBEAT, RESIZED_AT_MILLIS);
+
+    private ServerRecord() {
+    }
+
+    /**
+     * Gets the record of a server.
+     *
+     * @param serverEntry The database entry of the server
+     * @return The record
+     */
+    public static @NotNull TypedRecord of(@NotNull DatabaseEntry serverEntry) {
+        return new TypedRecord(serverEntry, SCHEMA);
+    }
+
+    private static final class HealthCodec implements RecordCodec<ServerHealth> {
+        @Override
+        public void write(@NotNull ServerHealth value, @NotNull DataOutput output) throws IOException {
+            RecordCodec.writeUnsigned(value.getTimestampMillis(), output);
+            // Values the agent couldn't measure are -1
+            RecordCodec.writeSigned(Math.round(value.getTicksPerSecond() * 10), output);
+            RecordCodec.writeSigned(Math.round(value.getMillisPerTick() * 10), output);
+            RecordCodec.writeSigned(value.getPlayerCount(), output);
+            RecordCodec.writeSigned(value.getMaxPlayers(), output);
+            RecordCodec.writeSigned(value.getMemoryUsedMiB(), output);
+            RecordCodec.writeSigned(value.getMemoryTotalMiB(), output);
+        }
+
+        @Override
+        public @NotNull ServerHealth read(@NotNull DataInputStream input) throws IOException {
+            return new ServerHealth(
+                    RecordCodec.readUnsigned(input),
+                    RecordCodec.readSigned(input) / 10.0,
+                    RecordCodec.readSigned(input) / 10.0,
+                    (int) RecordCodec.readSigned(input),
+                    (int) RecordCodec.readSigned(input),
+                    RecordCodec.readSigned(input),
+                    RecordCodec.readSigned(input));
+        }
+
+        @Override
+        public @NotNull ServerHealth parse(@NotNull String value) {
+            ServerHealth health = ServerHealth.fromString(value);
+            if (health == null) {
+                throw new IllegalArgumentException("Invalid heartbeat " + value);
+            }
+            return health;
+        }
+
+        @Override
+        public @NotNull String format(@NotNull ServerHealth value) {
+            return value.toString();
+        }
+    }
+}
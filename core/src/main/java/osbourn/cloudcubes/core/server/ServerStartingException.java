@@ -0,0 +1,12 @@
+package osbourn.cloudcubes.core.server;
+
+/**
+ * Thrown when a server is asked to start while an earlier start is still launching it. Unlike a server that is
+ * already online, the server has no address yet, so callers should wait for it to come online instead of starting it
+ * again.
+ */
+public class ServerStartingException extends IllegalStateException {
+    public ServerStartingException(String errorMessage) {
+        super(errorMessage);
+    }
+}
@@ -0,0 +1,236 @@
+package osbourn.cloudcubes.core.server;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import osbourn.cloudcubes.core.database.DatabaseEntry;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * <p>
+ * A snapshot of a shared host: a spot instance that runs several small servers side by side, each on its own port and
+ * with its own memory limit. Hosts are kept in the host table of their region, which is separate from the server
+ * table because hosts never leave their region.
+ * </p>
+ *
+ * <p>
+ * The snapshot is read once, so that a decision about the host is based on a consistent view of it. Changes to the
+ * list of servers are made with {@link #updateAssignments(List)}, which only succeeds if nobody else changed the host
+ * since the snapshot was read.
+ * </p>
+ */
+public final class SharedHost {
+    /**
+     * The port of the first server on a host
+     */
+    public static final int FIRST_PORT = 25565;
+    /**
+     * The number of ports opened for servers on a host, which limits how many servers a host can run
+     */
+    public static final int MAX_SERVERS = 32;
+
+    /**
+     * The lifecycle of a host.
+     */
+    public enum State {
+        /**
+         * The instance has been requested and servers can be placed on it, but its agent hasn't started yet
+         */
+        LAUNCHING,
+        /**
+         * The host agent is running the host's servers
+         */
+        ONLINE,
+        /**
+         * The instance received a spot interruption notice, so no new servers are placed on it
+         */
+        INTERRUPTED,
+        /**
+         * The host has no servers left and its instance is being terminated
+         */
+        TERMINATING,
+        /**
+         * The instance failed to boot, for example because the shared file system couldn't be mounted, and shut
+         * itself down. No servers are placed on the host, and the pool removes it.
+         */
+        FAILED
+    }
+
+    private final DatabaseEntry entry;
+    private final State state;
+    private final int memoryMiB;
+    private final int cpuUnits;
+    private final long launchRequestedAtMillis;
+    private final @Nullable String assignmentsString;
+    private final List<HostAssignment> assignments;
+
+    private SharedHost(DatabaseEntry entry, State state, int memoryMiB, int cpuUnits, long launchRequestedAtMillis,
+                       @Nullable String assignmentsString) {
+        this.entry = entry;
+        this.state = state;
+        this.memoryMiB = memoryMiB;
+        this.cpuUnits = cpuUnits;
+        this.launchRequestedAtMillis = launchRequestedAtMillis;
+        this.assignmentsString = assignmentsString;
+        this.assignments = Collections.unmodifiableList(HostAssignment.listFromString(assignmentsString));
+    }
+
+    /**
+     * Creates a snapshot of a host from the values of its entry.
+     *
+     * @param entry  The entry of the host in the host table
+     * @param values The values of the entry, read at once
+     * @return The snapshot, or null if the values don't describe a host
+     */
+    static @Nullable SharedHost fromValues(@NotNull DatabaseEntry entry, @NotNull Map<String, String> values) {
+        String state = values.get("HostState");
+        String memoryMiB = values.get("HostMemoryMiB");
+        String cpuUnits = values.get("HostCpuUnits");
+        if (state == null || memoryMiB == null || cpuUnits == null) {
+            return null;
+        }
+        String launchRequestedAtMillis = values.get("LaunchRequestedAtMillis");
+        return new SharedHost(entry, State.valueOf(state), Integer.parseInt(memoryMiB), Integer.parseInt(cpuUnits),
+                launchRequestedAtMillis != null ? Long.parseLong(launchRequestedAtMillis) : 0,
+                values.get("Servers"));
+    }
+
+    public @NotNull UUID getId() {
+        return entry.getId();
+    }
+
+    public @NotNull DatabaseEntry getEntry() {
+        return entry;
+    }
+
+    public @NotNull State getState() {
+        return state;
+    }
+
+    /**
+     * Returns true if new servers can be placed on the host.
+     *
+     * @return True if the host is launching or online
+     */
+    public boolean isAcceptingServers() {
+        return state == State.LAUNCHING || state == State.ONLINE;
+    }
+
+    /**
+     * @return The time the instance of the host was requested, or 0 for hosts launched before this was recorded
+     */
+    public long getLaunchRequestedAtMillis() {
+        return launchRequestedAtMillis;
+    }
+
+    public @NotNull List<HostAssignment> getAssignments() {
+        return assignments;
+    }
+
+    /**
+     * @return The memory of the host that can be given to servers, in MiB
+     */
+    public int getMemoryMiB() {
+        return memoryMiB;
+    }
+
+    /**
+     * @return The CPU of the host that can be given to servers, in units of 1/1024 vCPU
+     */
+    public int getCpuUnits() {
+        return cpuUnits;
+    }
+
+    public long getFreeMemoryMiB() {
+        long used = 0;
+        for (HostAssignment assignment : assignments) {
+            used += assignment.getMemoryMiB();
+        }
+        return memoryMiB - used;
+    }
+
+    public long getFreeCpuUnits() {
+        long used = 0;
+        for (HostAssignment assignment : assignments) {
+            used += assignment.getCpuUnits();
+        }
+        return cpuUnits - used;
+    }
+
+    /**
+     * Finds the lowest port that no server on the host uses.
+     *
+     * @return The free port, or -1 if every port is taken
+     */
+    public int getFreePort() {
+        boolean[] used = new boolean[MAX_SERVERS];
+        for (HostAssignment assignment : assignments) {
+            used[assignment.getPort() - FIRST_PORT] = true;
+        }
+        for (int i = 0; i < MAX_SERVERS; i++) {
+            if (!used[i]) {
+                return FIRST_PORT + i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Gets the assignment of a server on this host.
+     *
+     * @param serverId The id of the server
+     * @return The assignment, or null if the server is not on this host
+     */
+    public @Nullable HostAssignment getAssignment(@NotNull UUID serverId) {
+        for (HostAssignment assignment : assignments) {
+            if (assignment.getServerId().equals(serverId)) {
+                return assignment;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Replaces the servers of the host, unless the host changed since this snapshot was read.
+     *
+     * @param newAssignments The new servers of the host
+     * @return True if the servers were replaced, false if the snapshot is out of date
+     */
+    public boolean updateAssignments(@NotNull List<HostAssignment> newAssignments) {
+        return updateIfUnchanged(Collections.singletonMap("Servers", HostAssignment.listToString(newAssignments)));
+    }
+
+    /**
+     * Sets values of the host, unless its state or servers changed since this snapshot was read.
+     *
+     * @param values The values to set
+     * @return True if the values were set, false if the snapshot is out of date
+     */
+    boolean updateIfUnchanged(@NotNull Map<String, String> values) {
+        Map<String, String> expectedValues = new HashMap<>();
+        expectedValues.put("HostState", state.name());
+        expectedValues.put("Servers", assignmentsString);
+        return entry.setStringValuesIf(expectedValues, values);
+    }
+
+    /**
+     * Gets the assignments without the given server.
+     *
+     * @param serverId The id of the server to leave out
+     * @return A new list of the remaining assignments
+     */
+    public @NotNull List<HostAssignment> getAssignmentsWithout(@NotNull UUID serverId) {
+        List<HostAssignment> remaining = new ArrayList<>();
+        for (HostAssignment assignment : assignments) {
+            if (!assignment.getServerId().equals(serverId)) {
+                remaining.add(assignment);
+            }
+        }
+        return remaining;
+    }
+}
@@ -0,0 +1,206 @@
+package osbourn.cloudcubes.core.server;
+
+import org.jetbrains.annotations.NotNull;
+import osbourn.cloudcubes.core.database.DynamoDBEntry;
+import osbourn.cloudcubes.core.database.TypedRecord;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * <p>
+ * Runs a server on a shared host next to other servers. Starting the server places it on a host through the
+ * {@link SharedHostPool} and records the host in the server's {@code HostId} and {@code HostPort} attributes; the host
+ * agent notices the new assignment and starts the server with its own port and memory limit. Stopping the server
+ * removes the assignment, and the host agent drains the server while the other servers on the host keep running.
+ * </p>
+ *
+ * <p>
+ * Worlds are kept on the shared file system, like those of container servers, so a server can be placed on any host.
+ * </p>
+ *
+ * <p>
+ * A new host takes minutes to boot, so a server is starting from the moment it is placed until it comes online, and
+ * starts that arrive in the meantime are refused rather than moving the server to another host. Like the EC2 backend,
+ * a start claims the server by recording when it was requested with a conditional write, so that only one start
+ * places it.
+ * </p>
+ */
+public class SharedHostInstanceManager implements InstanceManager {
+    /**
+     * How long a placed server may take to come online, which includes launching a new host. A server that has been
+     * starting for longer is assumed to have failed, and the next start places it again.
+     */
+    private static final long STARTUP_TIMEOUT_MILLIS = 15 * 60 * 1000;
+
+    private final DynamoDBEntry server;
+    private final SharedHostPool hostPool;
+
+    public SharedHostInstanceManager(DynamoDBEntry server, SharedHostPool hostPool) {
+        this.server = server;
+        this.hostPool = hostPool;
+    }
+
+    /**
+     * Gets the id of the host the server is placed on.
+     *
+     * @return The id of the host, or null if the server is not placed on a host
+     */
+    public UUID getHostId() {
+        String hostId = server.getStringValue("HostId");
+        return hostId != null ? UUID.fromString(hostId) : null;
+    }
+
+    /**
+     * The ProvisionalServerState representing whether the server is online.
+     *
+     * @return The ProvisionalServerState representing whether the server is online.
+     * @see #isServerOnline()
+     */
+    public ProvisionalServerState getServerState() {
+        ProvisionalServerState state;
+        try {
+            state = ServerRecord.of(server).get(ServerRecord.STATE);
+        } catch (IllegalArgumentException e) {
+            return ProvisionalServerState.UNKNOWN;
+        }
+        return state != null ? state : ProvisionalServerState.OFFLINE;
+    }
+
+    /**
+     * Returns true if the server is online, which requires a fresh heartbeat from the server agent.
+     *
+     * @return True if the server is online, false otherwise.
+     */
+    public boolean isServerOnline() {
+        if (getServerState() != ProvisionalServerState.ONLINE) {
+            return false;
+        }
+        ServerHealth health = ServerRecord.of(server).request(ServerRecord.HEARTBEAT);
+        return health != null && health.isFresh(System.currentTimeMillis());
+    }
+
+    /**
+     * Places the server on a host. Only one start can run at a time, see {@link EC2SpotInstanceManager#startServer()}.
+     *
+     * @throws IllegalStateException   If the server is online
+     * @throws ServerStartingException If the server is still starting
+     */
+    public void startServer() {
+        if (isServerOnline()) {
+            throw new IllegalStateException("The server is currently online");
+        }
+        String startRequestedAtMillis = server.requestStringValueFromDatabase("StartRequestedAtMillis");
+        long now = System.currentTimeMillis();
+        if (isStarting(startRequestedAtMillis, now)) {
+            throw new ServerStartingException("The server is still starting");
+        }
+        if (!server.setStringValuesIf(Collections.singletonMap("StartRequestedAtMillis", startRequestedAtMillis),
+                Collections.singletonMap("StartRequestedAtMillis", Long.toString(now)))) {
+            throw new ServerStartingException("The server is being started by another request");
+        }
+
+        UUID oldHostId = getHostId();
+        if (oldHostId != null) {
+            // The server has stopped sending heartbeats or never came online, so it is taken off its host and placed
+            // again
+            hostPool.release(oldHostId, server.id);
+        }
+
+        // Once the server starts, the agent will update the state in the database with a ONLINE state
+        ServerRecord.of(server).set(ServerRecord.STATE, ProvisionalServerState.UNKNOWN);
+
+        SharedHostPool.Placement placement = hostPool.place(server.id, ServerDemand.of(server));
+        Map<String, String> values = new HashMap<>();
+        values.put("HostId", placement.getHostId().toString());
+        values.put("HostPort", Integer.toString(placement.getAssignment().getPort()));
+        server.setStringValues(values);
+    }
+
+    /**
+     * Stops the server by removing it from its host. The host agent saves the world and stops the server.
+     */
+    public void stopServer() {
+        if (getServerState() == ProvisionalServerState.OFFLINE) {
+            throw new IllegalStateException("The server is currently offline");
+        }
+
+        UUID hostId = getHostId();
+        if (hostId != null) {
+            hostPool.release(hostId, server.id);
+        }
+        ServerRecord.of(server).apply(new TypedRecord.Update()
+                .set(ServerRecord.STATE, ProvisionalServerState.OFFLINE)
+                .removeString("HostId")
+                .removeString("HostPort")
+                .removeString("ServerAddress"));
+    }
+
+    /**
+     * Places the server on another host after its host received a spot interruption notice. The host agent has
+     * already saved the world and stopped the server. The host is marked as interrupted first, so that neither this
+     * server nor any other is placed on it again.
+     */
+    public void relaunchAfterInterruption() {
+        if (server.getStringValue("InterruptedAvailabilityZone") == null) {
+            throw new IllegalStateException("The server has not received an interruption notice");
+        }
+        UUID hostId = getHostId();
+        if (hostId != null) {
+            hostPool.markInterrupted(hostId);
+            hostPool.release(hostId, server.id);
+            server.removeValue("HostId");
+            server.removeValue("HostPort");
+        }
+        server.removeValue("InterruptionNotice");
+        server.removeValue("InterruptedAvailabilityZone");
+        // The relaunch replaces the start that placed the server on the interrupted host
+        server.removeValue("StartRequestedAtMillis");
+        startServer();
+    }
+
+    @Override
+    public boolean setState(@NotNull ServerState state) {
+        if (!isServerOnline() && state == ServerState.ONLINE) {
+            this.startServer();
+            return true;
+        } else if (getServerState() != ProvisionalServerState.OFFLINE && state == ServerState.OFFLINE) {
+            this.stopServer();
+            return true;
+        } else return false;
+    }
+
+    @Override
+    public ServerState getState() {
+        return isServerOnline() ? ServerState.ONLINE : ServerState.OFFLINE;
+    }
+
+    /**
+     * Returns true if the server has been placed but hasn't come online yet. The server is starting while its state is
+     * UNKNOWN, its last start was requested less than {@link #STARTUP_TIMEOUT_MILLIS} ago, and its host still exists,
+     * accepts servers and holds its assignment. A host whose instance is never launched is removed by the
+     * {@link SharedHostPool}, which ends the start early.
+     *
+     * @return True if the server is starting
+     */
+    @Override
+    public boolean isStarting() {
+        return isStarting(server.requestStringValueFromDatabase("StartRequestedAtMillis"), System.currentTimeMillis());
+    }
+
+    private boolean isStarting(String startRequestedAtMillis, long now) {
+        if (startRequestedAtMillis == null || now - Long.parseLong(startRequestedAtMillis) > STARTUP_TIMEOUT_MILLIS
+                || ServerRecord.of(server).request(ServerRecord.STATE) != ProvisionalServerState.UNKNOWN) {
+            return false;
+        }
+        String hostId = server.requestStringValueFromDatabase("HostId");
+        if (hostId == null) {
+            // The start that claimed the server hasn't placed it yet
+            return true;
+        }
+        SharedHost host = hostPool.getHost(UUID.fromString(hostId));
+        return host != null && host.isAcceptingServers() && host.getAssignment(server.id) != null;
+    }
+}
@@ -0,0 +1,383 @@
+package osbourn.cloudcubes.core.server;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import osbourn.cloudcubes.core.constructs.InfrastructureConfiguration;
+import osbourn.cloudcubes.core.constructs.InfrastructureConfiguration.InfrastructureSetting;
+import osbourn.cloudcubes.core.database.DynamoDBEntry;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.DeleteItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.GetItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.ScanRequest;
+import software.amazon.awssdk.services.ec2.Ec2Client;
+import software.amazon.awssdk.services.ec2.model.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * <p>
+ * The shared hosts of a region. Small servers don't need a whole instance, so instead of launching an instance per
+ * server, the pool places servers on larger hosts next to each other, launching a new host only when no existing host
+ * has room, and terminating a host once its last server is gone.
+ * </p>
+ *
+ * <p>
+ * Several control plane functions may start and stop servers at the same time, so every change to a host is a
+ * conditional write that only succeeds if the host hasn't changed since it was read; a change that loses a race is
+ * retried with a fresh view of the hosts.
+ * </p>
+ */
+public class SharedHostPool {
+    /**
+     * The instance type of new hosts. It has 32 GiB of memory and 8 vCPUs, which fits about a dozen small servers.
+     */
+    public static final String HOST_INSTANCE_TYPE = "m5.2xlarge";
+    /**
+     * The memory of a host that is kept for the operating system and the host agent
+     */
+    private static final int RESERVED_MEMORY_MIB = 1536;
+    /**
+     * The CPU of a host that is kept for the operating system and the host agent
+     */
+    private static final int RESERVED_CPU_UNITS = 256;
+    private static final int MAX_PLACEMENT_ATTEMPTS = 5;
+    /**
+     * A host whose spot request hasn't launched an instance this long after it was made is removed, for example when
+     * there is no spot capacity for {@link #HOST_INSTANCE_TYPE}
+     */
+    private static final long LAUNCH_TIMEOUT_MILLIS = 10 * 60 * 1000;
+
+    private final DynamoDbClient dynamoDbClient;
+    private final Ec2Client ec2Client;
+    private final InfrastructureConfiguration infrastructureConfiguration;
+    private final String hostTableName;
+
+    /**
+     * Creates a SharedHostPool object.
+     *
+     * @param dynamoDbClient              The DynamoDB client used to access the host table
+     * @param ec2Client                   The EC2 client used to launch and terminate hosts
+     * @param infrastructureConfiguration The configuration of the region the hosts run in
+     */
+    public SharedHostPool(@NotNull DynamoDbClient dynamoDbClient,
+                          @NotNull Ec2Client ec2Client,
+                          @NotNull InfrastructureConfiguration infrastructureConfiguration) {
+        this.dynamoDbClient = dynamoDbClient;
+        this.ec2Client = ec2Client;
+        this.infrastructureConfiguration = infrastructureConfiguration;
+        this.hostTableName = infrastructureConfiguration.getValue(InfrastructureSetting.HOSTDATABASENAME);
+    }
+
+    /**
+     * The host a server was placed on, and the port and resources it got there.
+     */
+    public static final class Placement {
+        private final UUID hostId;
+        private final HostAssignment assignment;
+
+        private Placement(UUID hostId, HostAssignment assignment) {
+            this.hostId = hostId;
+            this.assignment = assignment;
+        }
+
+        public @NotNull UUID getHostId() {
+            return hostId;
+        }
+
+        public @NotNull HostAssignment getAssignment() {
+            return assignment;
+        }
+    }
+
+    /**
+     * Places a server on a host, launching a new host if none has room. The host agent starts the server as soon as it
+     * sees the new assignment, without restarting the host or its other servers.
+     *
+     * @param serverId The id of the server
+     * @param demand   The memory and CPU the server needs
+     * @return The placement of the server
+     */
+    public @NotNull Placement place(@NotNull UUID serverId, @NotNull ServerDemand demand) {
+        for (int attempt = 0; attempt < MAX_PLACEMENT_ATTEMPTS; attempt++) {
+            SharedHost host = HostPacker.chooseHost(removeFailedHosts(listHosts()), demand);
+            if (host == null) {
+                host = launchHost(demand);
+            }
+            HostAssignment assignment = new HostAssignment(serverId, host.getFreePort(), demand.getMemoryMiB(),
+                    demand.getCpuUnits());
+            List<HostAssignment> assignments = new ArrayList<>(host.getAssignments());
+            assignments.add(assignment);
+            if (host.updateAssignments(assignments)) {
+                return new Placement(host.getId(), assignment);
+            }
+            // Another server was placed on or removed from the host in the meantime, so look at the hosts again
+        }
+        throw new IllegalStateException("Could not place server " + serverId + " because the hosts kept changing");
+    }
+
+    /**
+     * Removes a server from its host. The host agent drains the server when it sees that the assignment is gone. If it
+     * was the last server on the host, the host is terminated.
+     *
+     * @param hostId   The id of the host
+     * @param serverId The id of the server
+     */
+    public void release(@NotNull UUID hostId, @NotNull UUID serverId) {
+        for (int attempt = 0; attempt < MAX_PLACEMENT_ATTEMPTS; attempt++) {
+            SharedHost host = getHost(hostId);
+            if (host == null) {
+                return;
+            }
+            if (host.getAssignment(serverId) == null) {
+                terminateIfEmpty(host);
+                return;
+            }
+            if (host.updateAssignments(host.getAssignmentsWithout(serverId))) {
+                SharedHost updatedHost = getHost(hostId);
+                if (updatedHost != null) {
+                    terminateIfEmpty(updatedHost);
+                }
+                return;
+            }
+        }
+        throw new IllegalStateException("Could not remove server " + serverId + " because its host kept changing");
+    }
+
+    /**
+     * Marks a host as interrupted, so that no more servers are placed on it while it is being reclaimed.
+     *
+     * @param hostId The id of the host
+     */
+    public void markInterrupted(@NotNull UUID hostId) {
+        for (int attempt = 0; attempt < MAX_PLACEMENT_ATTEMPTS; attempt++) {
+            SharedHost host = getHost(hostId);
+            if (host == null || !host.isAcceptingServers()) {
+                return;
+            }
+            if (host.updateIfUnchanged(Collections.singletonMap("HostState", SharedHost.State.INTERRUPTED.name()))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Reads a host with a strongly consistent read, so that the snapshot includes every change made so far.
+     *
+     * @param hostId The id of the host
+     * @return The host, or null if it doesn't exist
+     */
+    public @Nullable SharedHost getHost(@NotNull UUID hostId) {
+        Map<String, AttributeValue> item = dynamoDbClient.getItem(GetItemRequest.builder()
+                .tableName(hostTableName)
+                .key(Collections.singletonMap("Id", AttributeValue.builder().s(hostId.toString()).build()))
+                .consistentRead(true)
+                .build()).item();
+        if (item == null || item.isEmpty()) {
+            return null;
+        }
+        return SharedHost.fromValues(DynamoDBEntry.fromId(hostId, dynamoDbClient, hostTableName), toStrings(item));
+    }
+
+    /**
+     * Reads all hosts of the region. A region has few hosts, so a consistent scan of the whole table is cheap.
+     *
+     * @return The hosts
+     */
+    public @NotNull List<SharedHost> listHosts() {
+        List<SharedHost> hosts = new ArrayList<>();
+        ScanRequest request = ScanRequest.builder()
+                .tableName(hostTableName)
+                .consistentRead(true)
+                .build();
+        for (Map<String, AttributeValue> item : dynamoDbClient.scanPaginator(request).items()) {
+            UUID hostId = UUID.fromString(item.get("Id").s());
+            SharedHost host = SharedHost.fromValues(DynamoDBEntry.fromId(hostId, dynamoDbClient, hostTableName),
+                    toStrings(item));
+            if (host != null) {
+                hosts.add(host);
+            }
+        }
+        return hosts;
+    }
+
+    /**
+     * Packs the servers currently on the hosts from scratch. Comparing the number of hosts in the plan with the number
+     * of hosts running shows how much stopping and restarting servers would save.
+     *
+     * @return The servers of each host in the plan
+     */
+    public @NotNull List<List<UUID>> planConsolidation() {
+        Map<UUID, ServerDemand> demands = new LinkedHashMap<>();
+        for (SharedHost host : listHosts()) {
+            for (HostAssignment assignment : host.getAssignments()) {
+                demands.put(assignment.getServerId(),
+                        new ServerDemand(assignment.getMemoryMiB(), assignment.getCpuUnits()));
+            }
+        }
+        int[] capacity = getHostCapacity();
+        return HostPacker.firstFitDecreasing(demands, capacity[0], capacity[1]);
+    }
+
+    private @NotNull SharedHost launchHost(@NotNull ServerDemand demand) {
+        int[] capacity = getHostCapacity();
+        if (!demand.fitsInto(capacity[0], capacity[1])) {
+            throw new IllegalStateException("A server that needs " + demand.getMemoryMiB()
+                    + " MiB doesn't fit on a shared host, so it needs its own instance");
+        }
+
+        UUID hostId = UUID.randomUUID();
+        DynamoDBEntry entry = DynamoDBEntry.fromId(hostId, dynamoDbClient, hostTableName);
+        Map<String, String> values = new HashMap<>();
+        values.put("HostState", SharedHost.State.LAUNCHING.name());
+        values.put("HostMemoryMiB", Integer.toString(capacity[0]));
+        values.put("HostCpuUnits", Integer.toString(capacity[1]));
+        values.put("InstanceType", HOST_INSTANCE_TYPE);
+        values.put("Servers", "");
+        values.put("LaunchRequestedAtMillis", Long.toString(System.currentTimeMillis()));
+        if (!entry.setStringValuesIf(Collections.singletonMap("HostState", null), values)) {
+            throw new IllegalStateException("Host " + hostId + " already exists");
+        }
+
+        Map<String, String> variables = new LinkedHashMap<>();
+        variables.put("HOST_ID", hostId.toString());
+        // Hosts only need one subnet, since their servers keep their worlds on the shared file system
+        RequestSpotLaunchSpecification launchSpecification = RequestSpotLaunchSpecification.builder()
+                .instanceType(HOST_INSTANCE_TYPE)
+                .subnetId(infrastructureConfiguration.getServerSubnetIds().get(0))
+                .imageId(infrastructureConfiguration.getValue(InfrastructureSetting.SERVERIMAGEID))
+                .iamInstanceProfile(IamInstanceProfileSpecification.builder()
+                        .arn(infrastructureConfiguration.getValue(InfrastructureSetting.SERVERINSTANCEPROFILEARN))
+                        .build())
+                .securityGroupIds(infrastructureConfiguration.getValue(InfrastructureSetting.SERVERSECURITYGROUPID))
+                .userData(UserData.create(infrastructureConfiguration, variables, "host-startup.sh"))
+                .build();
+        RequestSpotInstancesResponse response = ec2Client.requestSpotInstances(RequestSpotInstancesRequest.builder()
+                .instanceCount(1)
+                .launchSpecification(launchSpecification)
+                .build());
+        // A host whose request is never fulfilled is removed by removeFailedHosts
+        entry.setStringValue("EC2SpotRequestId", response.spotInstanceRequests().get(0).spotInstanceRequestId());
+
+        values.put("EC2SpotRequestId", response.spotInstanceRequests().get(0).spotInstanceRequestId());
+        SharedHost host = SharedHost.fromValues(entry, values);
+        assert host != null;
+        return host;
+    }
+
+    private void terminateIfEmpty(@NotNull SharedHost host) {
+        if (!host.getAssignments().isEmpty() || host.getState() == SharedHost.State.TERMINATING) {
+            return;
+        }
+        // Fails if a server was placed on the host in the meantime, in which case the host is still needed
+        if (!host.updateIfUnchanged(Collections.singletonMap("HostState", SharedHost.State.TERMINATING.name()))) {
+            return;
+        }
+        EC2SpotInstanceManager.cancelAndTerminate(ec2Client,
+                host.getEntry().getStringValue("EC2SpotRequestId"),
+                host.getEntry().getStringValue("EC2InstanceId"));
+        deleteHost(host);
+    }
+
+    /**
+     * Removes the hosts that failed to boot, and the hosts whose spot request still hasn't launched an instance long
+     * after it was made. The servers placed on such a host were never started; the next start of each of them finds
+     * its host gone and places it again, see {@link SharedHostInstanceManager#startServer()}.
+     *
+     * @param hosts The hosts of the region
+     * @return The hosts that were kept
+     */
+    private @NotNull List<SharedHost> removeFailedHosts(@NotNull List<SharedHost> hosts) {
+        long nowMillis = System.currentTimeMillis();
+        List<SharedHost> keptHosts = new ArrayList<>();
+        for (SharedHost host : hosts) {
+            boolean failed = host.getState() == SharedHost.State.FAILED;
+            if (!failed && (host.getState() != SharedHost.State.LAUNCHING
+                    || nowMillis - host.getLaunchRequestedAtMillis() < LAUNCH_TIMEOUT_MILLIS)) {
+                keptHosts.add(host);
+                continue;
+            }
+            String spotRequestId = host.getEntry().getStringValue("EC2SpotRequestId");
+            if (!failed && isSpotRequestFulfilled(spotRequestId)) {
+                // The instance is up, and its agent marks the host as online once it has started
+                keptHosts.add(host);
+                continue;
+            }
+            // Fails if a server was placed on the host or the host came online or failed in the meantime
+            if (!host.updateIfUnchanged(Collections.singletonMap("HostState", SharedHost.State.TERMINATING.name()))) {
+                continue;
+            }
+            // Terminates the instance if the request was fulfilled after all
+            EC2SpotInstanceManager.cancelAndTerminate(ec2Client, spotRequestId, null);
+            deleteHost(host);
+        }
+        return keptHosts;
+    }
+
+    /**
+     * @param spotRequestId The id of the spot request, or null if the request wasn't recorded
+     * @return True if the spot request has launched an instance
+     */
+    private boolean isSpotRequestFulfilled(@Nullable String spotRequestId) {
+        if (spotRequestId == null) {
+            return false;
+        }
+        try {
+            for (SpotInstanceRequest spotRequest : ec2Client.describeSpotInstanceRequests(
+                    DescribeSpotInstanceRequestsRequest.builder().spotInstanceRequestIds(spotRequestId).build())
+                    .spotInstanceRequests()) {
+                if (spotRequest.instanceId() != null) {
+                    return true;
+                }
+            }
+        } catch (Ec2Exception e) {
+            // Closed requests are forgotten by EC2 after a while
+            if (!"InvalidSpotInstanceRequestID.NotFound".equals(e.awsErrorDetails().errorCode())) {
+                throw e;
+            }
+        }
+        return false;
+    }
+
+    private void deleteHost(@NotNull SharedHost host) {
+        dynamoDbClient.deleteItem(DeleteItemRequest.builder()
+                .tableName(hostTableName)
+                .key(Collections.singletonMap("Id", AttributeValue.builder().s(host.getId().toString()).build()))
+                .build());
+    }
+
+    /**
+     * Gets the memory and CPU of a host that can be given to servers.
+     *
+     * @return The memory in MiB and the CPU units
+     */
+    private int[] getHostCapacity() {
+        List<InstanceTypeInfo> instanceTypes = ec2Client.describeInstanceTypes(DescribeInstanceTypesRequest.builder()
+                .instanceTypesWithStrings(HOST_INSTANCE_TYPE)
+                .build()).instanceTypes();
+        if (instanceTypes.isEmpty()) {
+            throw new IllegalStateException("Instance type " + HOST_INSTANCE_TYPE + " is not available in this region");
+        }
+        InstanceTypeInfo instanceType = instanceTypes.get(0);
+        return new int[]{
+                (int) (instanceType.memoryInfo().sizeInMiB() - RESERVED_MEMORY_MIB),
+                instanceType.vCpuInfo().defaultVCpus() * 1024 - RESERVED_CPU_UNITS
+        };
+    }
+
+    private static @NotNull Map<String, String> toStrings(@NotNull Map<String, AttributeValue> item) {
+        Map<String, String> values = new HashMap<>();
+        for (Map.Entry<String, AttributeValue> entry : item.entrySet()) {
+            if (entry.getValue().s() != null) {
+                values.put(entry.getKey(), entry.getValue().s());
+            }
+        }
+        return values;
+    }
+}
@@ -0,0 +1,39 @@
+package osbourn.cloudcubes.core.server;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Runs the container tasks of {@link ContainerInstanceManager}. {@link ECSTaskRunner} runs them on ECS, and
+ * {@link LocalTaskRunner} runs them as local processes, so that the container backend can be exercised without AWS.
+ */
+public interface TaskRunner {
+    /**
+     * Starts a task for a server.
+     *
+     * @param serverId    The id of the server
+     * @param environment The environment variables of the task
+     * @param cpu         The CPU units of the task, where 1024 is one vCPU
+     * @param memoryMiB   The memory of the task in MiB
+     * @return The id of the task
+     * @throws IllegalStateException If the task could not be started, for example because there is no capacity
+     */
+    @NotNull String runTask(@NotNull UUID serverId, @NotNull Map<String, String> environment, int cpu, int memoryMiB);
+
+    /**
+     * Stops a task. The task receives SIGTERM first, so the server agent can save the world before the task stops.
+     *
+     * @param taskId The id of the task
+     */
+    void stopTask(@NotNull String taskId);
+
+    /**
+     * Returns true if the task hasn't stopped yet.
+     *
+     * @param taskId The id of the task
+     * @return True if the task is starting or running
+     */
+    boolean isTaskRunning(@NotNull String taskId);
+}
@@ -0,0 +1,75 @@
+package osbourn.cloudcubes.core.server;
+
+import osbourn.cloudcubes.core.constructs.InfrastructureConfiguration;
+import osbourn.cloudcubes.core.constructs.InfrastructureConfiguration.InfrastructureSetting;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Map;
+
+/**
+ * Generates the user data of the instances launched by CloudCubes. User data is a series of (usually shell) commands
+ * that will be run from the root account as soon as the instance starts up. The user data exports the infrastructure
+ * configuration and the given variables, and then downloads and runs a script from the server-startup folder of the
+ * resource bucket.
+ */
+final class UserData {
+    /**
+     * Strings not matching this regex may contain values that are not interpreted literally by bash (i.e. they need to
+     * be escaped)
+     */
+    private static final String ALLOWED_CHARACTERS_PATTERN = "^[a-zA-Z0-9,._+:@%/-]+$";
+    /**
+     * Variables are quoted, so they may also contain spaces and '=', as JVM options do
+     */
+    private static final String ALLOWED_VARIABLE_CHARACTERS_PATTERN = "^[a-zA-Z0-9,._+:@%/= -]*$";
+
+    private UserData() {
+    }
+
+    /**
+     * Generates the user data, encoded as base64 as the EC2 API expects it.
+     *
+     * @param infrastructureConfiguration The configuration to export to the instance
+     * @param variables                   Additional environment variables to export
+     * @param scriptName                  The name of the script in the server-startup folder to run
+     * @return The generated user data in base64
+     */
+    static String create(InfrastructureConfiguration infrastructureConfiguration,
+                         Map<String, String> variables,
+                         String scriptName) {
+        String resourceBucketName = infrastructureConfiguration.getValue(InfrastructureSetting.RESOURCEBUCKETNAME);
+        if (!resourceBucketName.matches(ALLOWED_CHARACTERS_PATTERN)) {
+            throw new IllegalStateException(
+                    "The resource bucket name stored inside the provided infrastructure data contains invalid characters");
+        }
+        if (!scriptName.matches(ALLOWED_CHARACTERS_PATTERN)) {
+            throw new IllegalStateException("The script name " + scriptName + " contains invalid characters");
+        }
+
+        StringBuilder builder = new StringBuilder();
+        // Lets server know that the remaining commands should be run with bash
+        builder.append("#!/bin/bash\n");
+        builder.append("cd /home/ec2-user\n");
+        // Set environment variables to the values in infrastructureData
+        for (Map.Entry<String, String> entry : infrastructureConfiguration.toEnvironmentVariableMap().entrySet()) {
+            if (!entry.getKey().matches(ALLOWED_CHARACTERS_PATTERN)
+                    || !entry.getValue().matches(ALLOWED_CHARACTERS_PATTERN)) {
+                // TODO: Log warning
+                continue;
+            }
+            builder.append(String.format("export %s=%s\n", entry.getKey(), entry.getValue()));
+        }
+        for (Map.Entry<String, String> entry : variables.entrySet()) {
+            if (!entry.getKey().matches(ALLOWED_CHARACTERS_PATTERN)
+                    || !entry.getValue().matches(ALLOWED_VARIABLE_CHARACTERS_PATTERN)) {
+                throw new IllegalStateException("Variable " + entry.getKey() + " contains invalid characters");
+            }
+            builder.append(String.format("export %s='%s'\n", entry.getKey(), entry.getValue()));
+        }
+        // Download and invoke script (the hyphen at the end of the s3 command tells it to print to stdout)
+        String s3command = "aws s3 cp s3://" + resourceBucketName + "/server-startup/" + scriptName + " -";
+        builder.append("su -c '").append(s3command).append(" | bash' ec2-user\n");
+        return Base64.getEncoder().encodeToString(builder.toString().getBytes(StandardCharsets.UTF_8));
+    }
+}
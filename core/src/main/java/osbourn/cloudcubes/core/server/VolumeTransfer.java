@@ -0,0 +1,172 @@
+package osbourn.cloudcubes.core.server;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import software.amazon.awssdk.regions.Region;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.StringJoiner;
+
+/**
+ * <p>
+ * The progress of moving a server's data volume to another availability zone or region. Snapshotting, copying and
+ * restoring a volume can take much longer than a Lambda function may run, so the move is split into steps that each
+ * only start an EC2 operation or check whether it has finished, and the progress is recorded in the server's
+ * {@code VolumeTransfer} attribute after every step. See {@link EC2SpotInstanceManager#advanceVolumeTransfer}.
+ * </p>
+ *
+ * <p>
+ * The transfer is stored as a string of the form
+ * {@code "id=1700000000000,region=eu-west-1,zone=eu-west-1a,start=true,snapshot=snap-1,copy=snap-2,volume=vol-1"},
+ * where the zone, snapshots and volume are only present once they are known. The id is the time the transfer was
+ * requested, and is used to find the resources of the transfer again if a step fails after creating one of them.
+ * </p>
+ */
+public final class VolumeTransfer {
+    private final String id;
+    private final Region targetRegion;
+    private final @Nullable String targetAvailabilityZone;
+    private final boolean startWhenDone;
+    private final @Nullable String snapshotId;
+    private final @Nullable String copiedSnapshotId;
+    private final @Nullable String volumeId;
+
+    private VolumeTransfer(String id,
+                           Region targetRegion,
+                           @Nullable String targetAvailabilityZone,
+                           boolean startWhenDone,
+                           @Nullable String snapshotId,
+                           @Nullable String copiedSnapshotId,
+                           @Nullable String volumeId) {
+        this.id = id;
+        this.targetRegion = targetRegion;
+        this.targetAvailabilityZone = targetAvailabilityZone;
+        this.startWhenDone = startWhenDone;
+        this.snapshotId = snapshotId;
+        this.copiedSnapshotId = copiedSnapshotId;
+        this.volumeId = volumeId;
+    }
+
+    /**
+     * Creates a transfer that hasn't started yet.
+     *
+     * @param requestedAtMillis      The time the transfer is requested
+     * @param targetRegion           The region to move the volume to
+     * @param targetAvailabilityZone The zone to move the volume to, or null for the first zone with a server subnet
+     * @param startWhenDone          Whether the server is started once the volume has been moved
+     * @return The transfer
+     */
+    public static @NotNull VolumeTransfer create(long requestedAtMillis,
+                                                 @NotNull Region targetRegion,
+                                                 @Nullable String targetAvailabilityZone,
+                                                 boolean startWhenDone) {
+        return new VolumeTransfer(Long.toString(requestedAtMillis), targetRegion, targetAvailabilityZone,
+                startWhenDone, null, null, null);
+    }
+
+    /**
+     * Parses the transfer stored in the database.
+     *
+     * @param value The stored string, or null if the server's volume isn't being moved
+     * @return The parsed transfer, or null if there is none
+     */
+    public static @Nullable VolumeTransfer fromString(@Nullable String value) {
+        if (value == null || value.isEmpty()) {
+            return null;
+        }
+        Map<String, String> values = new HashMap<>();
+        for (String entry : value.split(",")) {
+            int separatorIndex = entry.indexOf('=');
+            if (separatorIndex <= 0) {
+                throw new IllegalArgumentException("Invalid volume transfer " + value);
+            }
+            values.put(entry.substring(0, separatorIndex), entry.substring(separatorIndex + 1));
+        }
+        if (!values.containsKey("id") || !values.containsKey("region")) {
+            throw new IllegalArgumentException("Invalid volume transfer " + value);
+        }
+        return new VolumeTransfer(values.get("id"), Region.of(values.get("region")), values.get("zone"),
+                Boolean.parseBoolean(values.get("start")), values.get("snapshot"), values.get("copy"),
+                values.get("volume"));
+    }
+
+    public @NotNull String getId() {
+        return id;
+    }
+
+    public @NotNull Region getTargetRegion() {
+        return targetRegion;
+    }
+
+    public @Nullable String getTargetAvailabilityZone() {
+        return targetAvailabilityZone;
+    }
+
+    public boolean isStartWhenDone() {
+        return startWhenDone;
+    }
+
+    /**
+     * @return The snapshot of the old volume, or null if it hasn't been created yet
+     */
+    public @Nullable String getSnapshotId() {
+        return snapshotId;
+    }
+
+    /**
+     * @return The snapshot in the target region, which is the snapshot of the old volume if the volume stays in its
+     * region, or null if it hasn't been copied yet
+     */
+    public @Nullable String getCopiedSnapshotId() {
+        return copiedSnapshotId;
+    }
+
+    /**
+     * @return The new volume, or null if it hasn't been created yet
+     */
+    public @Nullable String getVolumeId() {
+        return volumeId;
+    }
+
+    public @NotNull VolumeTransfer withStartWhenDone() {
+        return new VolumeTransfer(id, targetRegion, targetAvailabilityZone, true, snapshotId, copiedSnapshotId,
+                volumeId);
+    }
+
+    public @NotNull VolumeTransfer withSnapshotId(@NotNull String snapshotId) {
+        return new VolumeTransfer(id, targetRegion, targetAvailabilityZone, startWhenDone, snapshotId,
+                copiedSnapshotId, volumeId);
+    }
+
+    public @NotNull VolumeTransfer withCopiedSnapshotId(@NotNull String copiedSnapshotId) {
+        return new VolumeTransfer(id, targetRegion, targetAvailabilityZone, startWhenDone, snapshotId,
+                copiedSnapshotId, volumeId);
+    }
+
+    public @NotNull VolumeTransfer withVolume(@NotNull String availabilityZone, @NotNull String volumeId) {
+        return new VolumeTransfer(id, targetRegion, availabilityZone, startWhenDone, snapshotId, copiedSnapshotId,
+                volumeId);
+    }
+
+    @Override
+    public String toString() {
+        StringJoiner joiner = new StringJoiner(",");
+        joiner.add("id=" + id);
+        joiner.add("region=" + targetRegion.id());
+        if (targetAvailabilityZone != null) {
+            joiner.add("zone=" + targetAvailabilityZone);
+        }
+        joiner.add("start=" + startWhenDone);
+        if (snapshotId != null) {
+            joiner.add("snapshot=" + snapshotId);
+        }
+        if (copiedSnapshotId != null) {
+            joiner.add("copy=" + copiedSnapshotId);
+        }
+        if (volumeId != null) {
+            joiner.add("volume=" + volumeId);
+        }
+        return joiner.toString();
+    }
+}
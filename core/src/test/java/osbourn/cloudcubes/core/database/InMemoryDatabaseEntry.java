@@ -0,0 +1,135 @@
+package osbourn.cloudcubes.core.database;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+
+/**
+ * A database entry that is kept in memory, for testing code that reads and writes server entries without DynamoDB.
+ * Every write is atomic, like the conditional writes of {@link DynamoDBEntry}.
+ */
+public class InMemoryDatabaseEntry implements DatabaseEntry {
+    private final UUID id;
+    private final Map<String, String> stringValues = new HashMap<>();
+    private final Map<String, byte[]> binaryValues = new HashMap<>();
+
+    public InMemoryDatabaseEntry(@NotNull UUID id) {
+        this.id = id;
+    }
+
+    @Override
+    public @NotNull UUID getId() {
+        return id;
+    }
+
+    @Override
+    public synchronized @Nullable String getStringValue(@NotNull String key) {
+        return stringValues.get(key);
+    }
+
+    @Override
+    public @Nullable String requestStringValueFromDatabase(@NotNull String key) {
+        return getStringValue(key);
+    }
+
+    @Override
+    public synchronized @NotNull Map<String, String> requestStringValuesFromDatabase(
+            @NotNull Collection<String> keys) {
+        Map<String, String> values = new HashMap<>();
+        for (String key : keys) {
+            values.put(key, stringValues.get(key));
+        }
+        return values;
+    }
+
+    @Override
+    public @NotNull Map<String, String> getStringValues(@NotNull Collection<String> keys) {
+        return requestStringValuesFromDatabase(keys);
+    }
+
+    @Override
+    public synchronized @Nullable byte[] getBinaryValue(@NotNull String key) {
+        byte[] value = binaryValues.get(key);
+        return value == null ? null : value.clone();
+    }
+
+    @Override
+    public @Nullable byte[] requestBinaryValueFromDatabase(@NotNull String key) {
+        return getBinaryValue(key);
+    }
+
+    @Override
+    public synchronized boolean setBinaryValueIf(@NotNull String key,
+                                                 @Nullable byte[] expectedValue,
+                                                 @NotNull byte[] value,
+                                                 @NotNull Map<String, String> expectedStringValues,
+                                                 @NotNull Map<String, String> stringValues,
+                                                 @NotNull Collection<String> removedKeys) {
+        if (!Arrays.equals(binaryValues.get(key), expectedValue) || !matches(expectedStringValues)) {
+            return false;
+        }
+        binaryValues.put(key, value.clone());
+        this.stringValues.putAll(stringValues);
+        for (String removedKey : removedKeys) {
+            this.stringValues.remove(removedKey);
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized void setStringValue(@NotNull String key, @NotNull String value) {
+        stringValues.put(key, value);
+    }
+
+    @Override
+    public synchronized void setStringValues(@NotNull Map<String, String> values) {
+        stringValues.putAll(values);
+    }
+
+    @Override
+    public boolean setStringValuesIf(@NotNull Map<String, String> expectedValues,
+                                     @NotNull Map<String, String> values) {
+        return setStringValuesIf(expectedValues, values, Collections.emptySet());
+    }
+
+    @Override
+    public synchronized boolean setStringValuesIf(@NotNull Map<String, String> expectedValues,
+                                                  @NotNull Map<String, String> values,
+                                                  @NotNull Collection<String> removedKeys) {
+        if (!matches(expectedValues)) {
+            return false;
+        }
+        stringValues.putAll(values);
+        for (String removedKey : removedKeys) {
+            stringValues.remove(removedKey);
+            binaryValues.remove(removedKey);
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized void removeValue(@NotNull String key) {
+        stringValues.remove(key);
+        binaryValues.remove(key);
+    }
+
+    private boolean matches(@NotNull Map<String, String> expectedValues) {
+        for (Map.Entry<String, String> expectedValue : expectedValues.entrySet()) {
+            // A binary value exists as well, so it fails a condition that the key must not exist
+            if (expectedValue.getValue() == null && binaryValues.containsKey(expectedValue.getKey())) {
+                return false;
+            }
+            if (!Objects.equals(stringValues.get(expectedValue.getKey()), expectedValue.getValue())) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
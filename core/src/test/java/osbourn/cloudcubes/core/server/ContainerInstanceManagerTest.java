@@ -0,0 +1,195 @@
+package osbourn.cloudcubes.core.server;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import osbourn.cloudcubes.core.constructs.InfrastructureConfiguration;
+import osbourn.cloudcubes.core.constructs.InfrastructureConfiguration.InfrastructureSetting;
+import osbourn.cloudcubes.core.database.InMemoryDatabaseEntry;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs the container backend with {@link LocalTaskRunner}, which runs each task as a local shell that prints its
+ * environment and exits cleanly on SIGTERM, like the server agent does.
+ */
+class ContainerInstanceManagerTest {
+    private static final String TASK_SCRIPT = "echo \"SERVER_ID=$SERVER_ID\"; "
+            + "echo \"SERVER_DIRECTORY=$SERVER_DIRECTORY\"; "
+            + "echo \"ARTIFACT_CACHE_DIRECTORY=$ARTIFACT_CACHE_DIRECTORY\"; "
+            + "echo \"MINECRAFT_JVM_OPTS=$MINECRAFT_JVM_OPTS\"; "
+            + "echo \"CLOUDCUBESREGION=$CLOUDCUBESREGION\"; "
+            + "trap 'echo stopped; exit 0' TERM; "
+            + "while true; do sleep 0.05; done";
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    @TempDir
+    Path logDirectory;
+
+    private final UUID serverId = UUID.randomUUID();
+    private InMemoryDatabaseEntry server;
+    private LocalTaskRunner taskRunner;
+    private ContainerInstanceManager instanceManager;
+
+    @BeforeEach
+    void createInstanceManager() {
+        server = new InMemoryDatabaseEntry(serverId);
+        taskRunner = new LocalTaskRunner(Arrays.asList("sh", "-c", TASK_SCRIPT), logDirectory);
+        instanceManager = new ContainerInstanceManager(server, taskRunner, createConfiguration());
+    }
+
+    @AfterEach
+    void stopTask() {
+        String taskId = instanceManager.getTaskId();
+        if (taskId != null) {
+            taskRunner.stopTask(taskId);
+        }
+    }
+
+    @Test
+    void startRunsATaskWithTheServerEnvironment() throws Exception {
+        assertTrue(instanceManager.setState(ServerState.ONLINE));
+
+        String taskId = instanceManager.getTaskId();
+        assertNotNull(taskId);
+        assertTrue(taskRunner.isTaskRunning(taskId));
+        // The agent in the task marks the server ONLINE once it accepts players
+        assertEquals(ProvisionalServerState.UNKNOWN, instanceManager.getServerState());
+        assertEquals(ServerState.OFFLINE, instanceManager.getState());
+
+        String log = waitForLog("CLOUDCUBESREGION=");
+        assertTrue(log.contains("SERVER_ID=" + serverId + "\n"));
+        assertTrue(log.contains("SERVER_DIRECTORY=/mnt/worlds/" + serverId + "\n"));
+        assertTrue(log.contains("ARTIFACT_CACHE_DIRECTORY=/mnt/worlds/.artifact-cache\n"));
+        assertTrue(log.contains("MINECRAFT_JVM_OPTS=" + String.join(" ", LaunchProfile.getJvmOptions(4096)) + "\n"));
+        assertTrue(log.contains("CLOUDCUBESREGION=us-east-1\n"));
+    }
+
+    @Test
+    void startSizesTheServerToTheMemoryOfItsTask() throws Exception {
+        server.setStringValue("ContainerMemoryMiB", "8192");
+
+        instanceManager.startServer();
+
+        assertEquals(8192, instanceManager.getMemoryMiB());
+        String log = waitForLog("MINECRAFT_JVM_OPTS=");
+        assertTrue(log.contains("MINECRAFT_JVM_OPTS=" + String.join(" ", LaunchProfile.getJvmOptions(8192)) + "\n"));
+    }
+
+    @Test
+    void stopStopsTheTaskGracefullyAndMarksTheServerOffline() throws Exception {
+        instanceManager.startServer();
+        String taskId = instanceManager.getTaskId();
+        waitForLog("CLOUDCUBESREGION=");
+        server.setStringValue("ServerAddress", "127.0.0.1:25565");
+
+        assertTrue(instanceManager.setState(ServerState.OFFLINE));
+
+        assertFalse(taskRunner.isTaskRunning(taskId));
+        // The task received SIGTERM rather than being killed, so the agent could have saved the world
+        assertTrue(waitForLog("stopped").contains("stopped\n"));
+        assertEquals(ProvisionalServerState.OFFLINE, instanceManager.getServerState());
+        assertNull(instanceManager.getTaskId());
+        assertNull(server.getStringValue("ServerAddress"));
+    }
+
+    @Test
+    void startIsRefusedWhileTheServerIsOnline() {
+        instanceManager.startServer();
+        String taskId = instanceManager.getTaskId();
+        markOnline(System.currentTimeMillis());
+
+        assertThrows(IllegalStateException.class, instanceManager::startServer);
+        assertFalse(instanceManager.setState(ServerState.ONLINE));
+        assertEquals(taskId, instanceManager.getTaskId());
+        assertTrue(taskRunner.isTaskRunning(taskId));
+    }
+
+    @Test
+    void startReplacesATaskThatStoppedSendingHeartbeats() {
+        instanceManager.startServer();
+        String oldTaskId = instanceManager.getTaskId();
+        markOnline(System.currentTimeMillis() - ServerHealth.STALE_AFTER_MILLIS - 1000);
+        assertEquals(ServerState.OFFLINE, instanceManager.getState());
+
+        assertTrue(instanceManager.setState(ServerState.ONLINE));
+
+        String newTaskId = instanceManager.getTaskId();
+        assertNotEquals(oldTaskId, newTaskId);
+        assertFalse(taskRunner.isTaskRunning(oldTaskId));
+        assertTrue(taskRunner.isTaskRunning(newTaskId));
+        assertEquals(ProvisionalServerState.UNKNOWN, instanceManager.getServerState());
+    }
+
+    @Test
+    void startIsRefusedWhileTheTaskBoots() {
+        instanceManager.startServer();
+        String taskId = instanceManager.getTaskId();
+
+        assertTrue(instanceManager.isStarting());
+        assertThrows(ServerStartingException.class, instanceManager::startServer);
+        assertEquals(taskId, instanceManager.getTaskId());
+        assertTrue(taskRunner.isTaskRunning(taskId));
+    }
+
+    @Test
+    void startReplacesATaskThatDidNotComeOnlineInTime() {
+        instanceManager.startServer();
+        String oldTaskId = instanceManager.getTaskId();
+        server.setStringValue("StartRequestedAtMillis", Long.toString(System.currentTimeMillis() - 11 * 60 * 1000));
+        assertFalse(instanceManager.isStarting());
+
+        instanceManager.startServer();
+
+        String newTaskId = instanceManager.getTaskId();
+        assertNotEquals(oldTaskId, newTaskId);
+        assertFalse(taskRunner.isTaskRunning(oldTaskId));
+        assertTrue(taskRunner.isTaskRunning(newTaskId));
+        assertTrue(instanceManager.isStarting());
+    }
+
+    @Test
+    void stopIsRefusedWhileTheServerIsOffline() {
+        assertEquals(ProvisionalServerState.OFFLINE, instanceManager.getServerState());
+
+        assertThrows(IllegalStateException.class, instanceManager::stopServer);
+        assertFalse(instanceManager.setState(ServerState.OFFLINE));
+        assertFalse(instanceManager.isStarting());
+    }
+
+    private void markOnline(long heartbeatMillis) {
+        ServerRecord.of(server).set(ServerRecord.STATE, ProvisionalServerState.ONLINE);
+        ServerRecord.of(server).set(ServerRecord.HEARTBEAT,
+                new ServerHealth(heartbeatMillis, 20, 10, 0, 20, 1024, 4096));
+    }
+
+    private String waitForLog(String text) throws IOException, InterruptedException {
+        Path logFile = logDirectory.resolve(serverId + ".log");
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (true) {
+            String log = Files.exists(logFile) ? Files.readString(logFile) : "";
+            if (log.contains(text)) {
+                return log;
+            }
+            assertTrue(System.currentTimeMillis() < deadline, "The task did not print " + text);
+            Thread.sleep(50);
+        }
+    }
+
+    private static InfrastructureConfiguration createConfiguration() {
+        InfrastructureConfiguration configuration = new InfrastructureConfiguration();
+        for (InfrastructureSetting setting : InfrastructureSetting.values()) {
+            configuration.setValue(setting, "test");
+        }
+        configuration.setValue(InfrastructureSetting.REGIONASSTRING, "us-east-1");
+        configuration.setServerRegions(Arrays.asList("us-east-1"));
+        return configuration;
+    }
+}
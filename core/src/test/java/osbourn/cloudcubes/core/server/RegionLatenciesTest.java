@@ -0,0 +1,58 @@
+package osbourn.cloudcubes.core.server;
+
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.regions.Region;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RegionLatenciesTest {
+    @Test
+    void prefersTheRegionMostPlayersConnectFrom() {
+        RegionLatencies latencies = RegionLatencies.fromString(null);
+        latencies.record(Region.US_EAST_2, 40, 20);
+        latencies.record(Region.EU_WEST_1, 30, 80);
+
+        assertEquals(Region.EU_WEST_1, latencies.getPreferredRegion());
+    }
+
+    @Test
+    void prefersNoRegionBeforeEnoughSamplesWereTaken() {
+        RegionLatencies latencies = RegionLatencies.fromString(null);
+        latencies.record(Region.EU_WEST_1, 30, RegionLatencies.MIN_PREFERRED_SAMPLE_COUNT - 1);
+
+        assertNull(latencies.getPreferredRegion());
+    }
+
+    @Test
+    void prefersNoRegionWhenPlayersAreSpreadOut() {
+        RegionLatencies latencies = RegionLatencies.fromString(null);
+        latencies.record(Region.US_EAST_2, 40, 50);
+        latencies.record(Region.EU_WEST_1, 30, 50);
+
+        assertNull(latencies.getPreferredRegion());
+    }
+
+    @Test
+    void forgetsPlayersWhoStoppedPlaying() {
+        RegionLatencies latencies = RegionLatencies.fromString(null);
+        latencies.record(Region.US_EAST_2, 40, RegionLatencies.MAX_TOTAL_SAMPLE_COUNT);
+        for (int i = 0; i < 30; i++) {
+            latencies.record(Region.EU_WEST_1, 30, 100);
+        }
+
+        assertEquals(Region.EU_WEST_1, latencies.getPreferredRegion());
+        assertTrue(latencies.getSampleCount(Region.US_EAST_2) < RegionLatencies.MIN_PREFERRED_SAMPLE_COUNT);
+    }
+
+    @Test
+    void readsTheStatisticsItWrote() {
+        RegionLatencies latencies = RegionLatencies.fromString(null);
+        latencies.record(Region.US_EAST_2, 45, 12);
+
+        RegionLatencies parsed = RegionLatencies.fromString(latencies.toString());
+
+        assertEquals(45.0, parsed.getAverageMillis(Region.US_EAST_2));
+        assertEquals(12, parsed.getSampleCount(Region.US_EAST_2));
+        assertNull(parsed.getAverageMillis(Region.EU_WEST_1));
+    }
+}
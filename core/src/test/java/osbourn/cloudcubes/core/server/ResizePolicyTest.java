@@ -0,0 +1,177 @@
+package osbourn.cloudcubes.core.server;
+
+import org.junit.jupiter.api.Test;
+import osbourn.cloudcubes.core.server.ResizePolicy.Decision;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.LongToDoubleFunction;
+import java.util.function.LongToIntFunction;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ResizePolicyTest {
+    private static final long NOW_MILLIS = 1_700_000_000_000L;
+    private static final long MINUTE_MILLIS = 60_000;
+    private static final long NEVER_RESIZED = 0;
+    private static final long MEMORY_TOTAL_MIB = 8192;
+    private static final double LIGHT_MILLIS_PER_TICK = 8;
+    private static final double OVERLOADED_MILLIS_PER_TICK = 50;
+
+    private static final LaunchProfile LARGE = LaunchProfile.fromString("m5.large");
+    private static final LaunchProfile XLARGE = LaunchProfile.fromString("m5.xlarge");
+    private static final LaunchProfile TWO_XLARGE = LaunchProfile.fromString("m5.2xlarge");
+
+    @Test
+    void keepsAServerWithoutHeartbeats() {
+        assertEquals(Decision.KEEP, ResizePolicy.decide(Collections.emptyList(), NEVER_RESIZED, NOW_MILLIS));
+    }
+
+    @Test
+    void growsAServerThatIsOverloadedForMostOfTheGrowWindow() {
+        // Overloaded for 7 of the last 10 minutes
+        List<ServerHealth> history = history(10, age -> 10, age -> age < 7 * MINUTE_MILLIS
+                ? OVERLOADED_MILLIS_PER_TICK : LIGHT_MILLIS_PER_TICK);
+
+        assertEquals(Decision.GROW, ResizePolicy.decide(history, NEVER_RESIZED, NOW_MILLIS));
+    }
+
+    @Test
+    void keepsAServerWithShortLagSpikes() {
+        // Overloaded for 4 of the last 10 minutes
+        List<ServerHealth> history = history(10, age -> 10, age -> age < 4 * MINUTE_MILLIS
+                ? OVERLOADED_MILLIS_PER_TICK : 30);
+
+        assertEquals(Decision.KEEP, ResizePolicy.decide(history, NEVER_RESIZED, NOW_MILLIS));
+    }
+
+    @Test
+    void keepsAServerThatHasJustStarted() {
+        // Five minutes of heartbeats don't cover enough of the grow window
+        List<ServerHealth> history = history(5, age -> 10, age -> OVERLOADED_MILLIS_PER_TICK);
+
+        assertEquals(Decision.KEEP, ResizePolicy.decide(history, NEVER_RESIZED, NOW_MILLIS));
+    }
+
+    @Test
+    void growsAServerThatIsRunningOutOfMemoryRightAway() {
+        List<ServerHealth> history = new ArrayList<>();
+        history.add(new ServerHealth(NOW_MILLIS, 20, LIGHT_MILLIS_PER_TICK, 10, 20, 7900, MEMORY_TOTAL_MIB));
+
+        assertEquals(Decision.GROW, ResizePolicy.decide(history, NEVER_RESIZED, NOW_MILLIS));
+    }
+
+    @Test
+    void keepsAServerDuringTheCooldownAfterAResize() {
+        List<ServerHealth> history = history(10, age -> 10, age -> OVERLOADED_MILLIS_PER_TICK);
+        long cooldownLeftMillis = ServerHealth.HEARTBEAT_INTERVAL_MILLIS;
+        long resizedMillis = NOW_MILLIS - ResizePolicy.COOLDOWN_MILLIS + cooldownLeftMillis;
+
+        assertEquals(Decision.KEEP, ResizePolicy.decide(history, resizedMillis, NOW_MILLIS));
+        assertEquals(Decision.GROW, ResizePolicy.decide(history, resizedMillis, NOW_MILLIS + cooldownLeftMillis));
+    }
+
+    @Test
+    void keepsAServerWhoseLatestHeartbeatIsStale() {
+        List<ServerHealth> history = history(10, age -> 10, age -> OVERLOADED_MILLIS_PER_TICK);
+        long later = NOW_MILLIS + ServerHealth.STALE_AFTER_MILLIS + MINUTE_MILLIS;
+
+        assertEquals(Decision.KEEP, ResizePolicy.decide(history, NEVER_RESIZED, later));
+    }
+
+    @Test
+    void shrinksABusyServerWithLightLoad() {
+        List<ServerHealth> history = history(30, age -> 5, age -> LIGHT_MILLIS_PER_TICK);
+
+        assertEquals(Decision.SHRINK, ResizePolicy.decide(history, NEVER_RESIZED, NOW_MILLIS));
+    }
+
+    @Test
+    void keepsAnEmptyServer() {
+        // An empty server is stopped as idle instead
+        List<ServerHealth> history = history(30, age -> 0, age -> LIGHT_MILLIS_PER_TICK);
+
+        assertEquals(Decision.KEEP, ResizePolicy.decide(history, NEVER_RESIZED, NOW_MILLIS));
+    }
+
+    @Test
+    void keepsAServerThatHadPlayersForLessThanHalfTheShrinkWindow() {
+        List<ServerHealth> history = history(30, age -> age < 10 * MINUTE_MILLIS ? 5 : 0,
+                age -> LIGHT_MILLIS_PER_TICK);
+
+        assertEquals(Decision.KEEP, ResizePolicy.decide(history, NEVER_RESIZED, NOW_MILLIS));
+    }
+
+    @Test
+    void keepsAServerThatOnceUsedMoreThanAThirdOfItsTickBudget() {
+        List<ServerHealth> history = history(30, age -> 5, age -> age == 20 * MINUTE_MILLIS
+                ? 20 : LIGHT_MILLIS_PER_TICK);
+
+        assertEquals(Decision.KEEP, ResizePolicy.decide(history, NEVER_RESIZED, NOW_MILLIS));
+    }
+
+    @Test
+    void keepsAServerThatCannotReportItsTickTime() {
+        List<ServerHealth> history = history(30, age -> 5, age -> -1);
+
+        assertEquals(Decision.KEEP, ResizePolicy.decide(history, NEVER_RESIZED, NOW_MILLIS));
+    }
+
+    @Test
+    void choosesTheNextSizeAsThePendingProfile() {
+        List<ServerHealth> overloaded = history(10, age -> 10, age -> OVERLOADED_MILLIS_PER_TICK);
+        List<ServerHealth> light = history(30, age -> 5, age -> LIGHT_MILLIS_PER_TICK);
+
+        assertEquals(TWO_XLARGE,
+                ResizePolicy.choosePendingProfile(overloaded, XLARGE, null, NEVER_RESIZED, NOW_MILLIS));
+        assertEquals(LARGE, ResizePolicy.choosePendingProfile(light, XLARGE, null, NEVER_RESIZED, NOW_MILLIS));
+        // The smallest size can't shrink any further
+        assertNull(ResizePolicy.choosePendingProfile(light, LARGE, null, NEVER_RESIZED, NOW_MILLIS));
+    }
+
+    @Test
+    void keepsAPendingGrowButDropsAPendingShrinkOnceTheLoadChanges() {
+        // Neither overloaded nor light enough to shrink
+        List<ServerHealth> moderate = history(30, age -> 5, age -> 30);
+
+        assertEquals(TWO_XLARGE,
+                ResizePolicy.choosePendingProfile(moderate, XLARGE, TWO_XLARGE, NEVER_RESIZED, NOW_MILLIS));
+        assertNull(ResizePolicy.choosePendingProfile(moderate, XLARGE, LARGE, NEVER_RESIZED, NOW_MILLIS));
+    }
+
+    @Test
+    void handsOffAServerOnceItHasBeenEmptyForAWhile() {
+        List<ServerHealth> emptyForThreeMinutes = history(10, age -> age <= 3 * MINUTE_MILLIS ? 0 : 5,
+                age -> LIGHT_MILLIS_PER_TICK);
+        List<ServerHealth> emptyForOneMinute = history(10, age -> age <= MINUTE_MILLIS ? 0 : 5,
+                age -> LIGHT_MILLIS_PER_TICK);
+
+        assertTrue(ResizePolicy.isReadyForHandoff(emptyForThreeMinutes, NOW_MILLIS));
+        assertFalse(ResizePolicy.isReadyForHandoff(emptyForOneMinute, NOW_MILLIS));
+        // Nothing is known about the server once its heartbeats are stale
+        assertFalse(ResizePolicy.isReadyForHandoff(emptyForThreeMinutes,
+                NOW_MILLIS + ServerHealth.STALE_AFTER_MILLIS + MINUTE_MILLIS));
+        assertFalse(ResizePolicy.isReadyForHandoff(Collections.emptyList(), NOW_MILLIS));
+    }
+
+    /**
+     * Creates the heartbeats of a server over the last minutes, one every heartbeat interval and the last one now.
+     *
+     * @param minutes       How many minutes the heartbeats span
+     * @param players       The player count of a heartbeat, by its age in milliseconds
+     * @param millisPerTick The tick time of a heartbeat, by its age in milliseconds
+     * @return The heartbeats, oldest first
+     */
+    private static List<ServerHealth> history(int minutes, LongToIntFunction players,
+                                              LongToDoubleFunction millisPerTick) {
+        List<ServerHealth> history = new ArrayList<>();
+        for (long age = minutes * MINUTE_MILLIS; age >= 0; age -= ServerHealth.HEARTBEAT_INTERVAL_MILLIS) {
+            double tickTime = millisPerTick.applyAsDouble(age);
+            double ticksPerSecond = tickTime < 0 ? -1 : Math.min(20, 1000 / tickTime);
+            history.add(new ServerHealth(NOW_MILLIS - age, ticksPerSecond, tickTime, players.applyAsInt(age), 20,
+                    4096, MEMORY_TOTAL_MIB));
+        }
+        return history;
+    }
+}
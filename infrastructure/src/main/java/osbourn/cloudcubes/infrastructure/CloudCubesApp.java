@@ -1,12 +1,37 @@
 package osbourn.cloudcubes.infrastructure;
 
 import software.amazon.awscdk.App;
+import software.amazon.awscdk.Environment;
+import software.amazon.awscdk.StackProps;
+
+import java.util.Arrays;
+import java.util.List;
 
 public class CloudCubesApp {
     public static void main(String[] args) {
         App app = new App();
 
-        new CloudCubesStack(app, "cloudcubes");
+        // The regions servers can run in, e.g. "us-east-2,eu-west-1". The first region is the primary region.
+        // This can be overridden on the command line with "cdk synth -c serverRegions=..."
+        String serverRegionsContext = (String) app.getNode().tryGetContext("serverRegions");
+        List<String> serverRegions = Arrays.asList(serverRegionsContext.split(","));
+
+        CloudCubesStack primaryStack = null;
+        for (String region : serverRegions) {
+            StackProps props = StackProps.builder()
+                    .env(Environment.builder()
+                            .account(System.getenv("CDK_DEFAULT_ACCOUNT"))
+                            .region(region)
+                            .build())
+                    .build();
+            if (primaryStack == null) {
+                primaryStack = new CloudCubesStack(app, "cloudcubes", props, serverRegions);
+            } else {
+                // The other regions use the replicas of the server table, which the primary stack creates
+                CloudCubesStack regionalStack = new CloudCubesStack(app, "cloudcubes-" + region, props, serverRegions);
+                regionalStack.addDependency(primaryStack);
+            }
+        }
 
         app.synth();
     }
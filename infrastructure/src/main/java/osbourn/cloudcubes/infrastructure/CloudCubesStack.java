@@ -2,38 +2,120 @@ package osbourn.cloudcubes.infrastructure;
 
 import osbourn.cloudcubes.core.constructs.InfrastructureConfiguration;
 import osbourn.cloudcubes.core.constructs.InfrastructureConfiguration.InfrastructureSetting;
+import osbourn.cloudcubes.core.server.ContainerInstanceManager;
+import osbourn.cloudcubes.core.server.EC2SpotInstanceManager;
+import osbourn.cloudcubes.core.server.ECSTaskRunner;
+import osbourn.cloudcubes.core.server.SharedHost;
 import software.amazon.awscdk.Duration;
 import software.amazon.awscdk.RemovalPolicy;
 import software.amazon.awscdk.Stack;
+import software.amazon.awscdk.StackProps;
 import software.amazon.awscdk.services.dynamodb.Attribute;
 import software.amazon.awscdk.services.dynamodb.AttributeType;
 import software.amazon.awscdk.services.dynamodb.BillingMode;
+import software.amazon.awscdk.services.dynamodb.ITable;
 import software.amazon.awscdk.services.dynamodb.Table;
 import software.amazon.awscdk.services.ec2.*;
+import software.amazon.awscdk.services.ecs.AwsLogDriverProps;
+import software.amazon.awscdk.services.ecs.Cluster;
+import software.amazon.awscdk.services.ecs.ContainerDefinition;
+import software.amazon.awscdk.services.ecs.ContainerDefinitionOptions;
+import software.amazon.awscdk.services.ecs.ContainerImage;
+import software.amazon.awscdk.services.ecs.EfsVolumeConfiguration;
+import software.amazon.awscdk.services.ecs.FargateTaskDefinition;
+import software.amazon.awscdk.services.ecs.LogDriver;
+import software.amazon.awscdk.services.ecs.MountPoint;
+import software.amazon.awscdk.services.ecs.PortMapping;
+import software.amazon.awscdk.services.efs.FileSystem;
+import software.amazon.awscdk.services.events.EventPattern;
+import software.amazon.awscdk.services.events.Rule;
+import software.amazon.awscdk.services.events.RuleTargetInput;
+import software.amazon.awscdk.services.events.targets.LambdaFunction;
+import software.amazon.awscdk.services.events.targets.SfnStateMachine;
+import software.amazon.awscdk.services.events.targets.SfnStateMachineProps;
 import software.amazon.awscdk.services.iam.*;
 import software.amazon.awscdk.services.lambda.Code;
 import software.amazon.awscdk.services.lambda.Function;
 import software.amazon.awscdk.services.lambda.Runtime;
+import software.amazon.awscdk.services.s3.BlockPublicAccess;
 import software.amazon.awscdk.services.s3.Bucket;
+import software.amazon.awscdk.services.s3.LifecycleRule;
 import software.amazon.awscdk.services.s3.deployment.BucketDeployment;
 import software.amazon.awscdk.services.s3.deployment.Source;
+import software.amazon.awscdk.services.ssm.StringParameter;
+import software.amazon.awscdk.services.stepfunctions.Chain;
+import software.amazon.awscdk.services.stepfunctions.Choice;
+import software.amazon.awscdk.services.stepfunctions.Condition;
+import software.amazon.awscdk.services.stepfunctions.RetryProps;
+import software.amazon.awscdk.services.stepfunctions.StateMachine;
+import software.amazon.awscdk.services.stepfunctions.Succeed;
+import software.amazon.awscdk.services.stepfunctions.Wait;
+import software.amazon.awscdk.services.stepfunctions.WaitTime;
+import software.amazon.awscdk.services.stepfunctions.tasks.LambdaInvoke;
 import software.constructs.Construct;
 
 import java.util.*;
 
+/**
+ * The resources CloudCubes needs in a single region. One stack is synthesized for every region servers can run in; the
+ * stack of the first (primary) region also owns the server table, which is replicated to the other regions.
+ */
 public class CloudCubesStack extends Stack {
-    public CloudCubesStack(final Construct parent, final String name) {
-        super(parent, name);
+    /**
+     * The server table has a fixed name so that the stacks of the other regions can find their replica of it
+     */
+    private static final String SERVER_TABLE_NAME = "CloudCubesServerTable";
+    /**
+     * The host table has a fixed name so that the control plane of every region can be granted access to the host
+     * tables of all regions
+     */
+    private static final String HOST_TABLE_NAME = "CloudCubesHostTable";
 
-        // Create the DynamoDB table that stores the data for the servers
-        Attribute serverTablePartitionKey = Attribute.builder()
-                .name("Id")
-                .type(AttributeType.STRING)
-                .build();
-        Table serverTable = Table.Builder.create(this, "ServerTable")
-                .removalPolicy(RemovalPolicy.RETAIN)
+    public CloudCubesStack(final Construct parent, final String name, final StackProps props,
+                           final List<String> serverRegions) {
+        super(parent, name, props);
+        boolean isPrimaryRegion = this.getRegion().equals(serverRegions.get(0));
+
+        // Create the DynamoDB table that stores the data for the servers, or use the local replica of it
+        ITable serverTable;
+        if (isPrimaryRegion) {
+            Attribute serverTablePartitionKey = Attribute.builder()
+                    .name("Id")
+                    .type(AttributeType.STRING)
+                    .build();
+            Table.Builder serverTableBuilder = Table.Builder.create(this, "ServerTable")
+                    .tableName(SERVER_TABLE_NAME)
+                    .removalPolicy(RemovalPolicy.RETAIN)
+                    .billingMode(BillingMode.PAY_PER_REQUEST)
+                    .partitionKey(serverTablePartitionKey);
+            if (serverRegions.size() > 1) {
+                serverTableBuilder.replicationRegions(serverRegions.subList(1, serverRegions.size()));
+            }
+            serverTable = serverTableBuilder.build();
+        } else {
+            serverTable = Table.fromTableName(this, "ServerTable", SERVER_TABLE_NAME);
+        }
+
+        // Create the DynamoDB table that stores the shared hosts of this region. Hosts never leave their region, so the
+        // table isn't replicated.
+        Table hostTable = Table.Builder.create(this, "HostTable")
+                .tableName(HOST_TABLE_NAME)
+                .removalPolicy(RemovalPolicy.DESTROY)
                 .billingMode(BillingMode.PAY_PER_REQUEST)
-                .partitionKey(serverTablePartitionKey)
+                .partitionKey(Attribute.builder()
+                        .name("Id")
+                        .type(AttributeType.STRING)
+                        .build())
+                .build();
+        PolicyStatement manageHostsStatement = PolicyStatement.Builder.create()
+                .effect(Effect.ALLOW)
+                .resources(Collections.singletonList(
+                        "arn:aws:dynamodb:*:" + this.getAccount() + ":table/" + HOST_TABLE_NAME))
+                .actions(Arrays.asList(
+                        "dynamodb:GetItem",
+                        "dynamodb:Scan",
+                        "dynamodb:UpdateItem",
+                        "dynamodb:DeleteItem"))
                 .build();
 
         // Resources bucket: the contents of the resources folder will be made available as an S3 bucket
@@ -44,6 +126,25 @@ public class CloudCubesStack extends Stack {
         BucketDeployment resourceBucketDeployment = BucketDeployment.Builder.create(this, "ResourceBucketDeployment")
                 .destinationBucket(resourceBucket)
                 .sources(Collections.singletonList(Source.asset("./resources")))
+                // Keeps this deployment from deleting the files uploaded by the agent deployment and the artifact store
+                .exclude(Arrays.asList("agent/*", "artifacts/*"))
+                .build();
+        // The server agent is built separately and is downloaded by the startup script
+        BucketDeployment agentDeployment = BucketDeployment.Builder.create(this, "AgentDeployment")
+                .destinationBucket(resourceBucket)
+                .destinationKeyPrefix("agent/")
+                .sources(Collections.singletonList(Source.asset("agent/build/deploy")))
+                .build();
+
+        // Log bucket: server agents ship their console logs here. It is kept apart from the resource bucket so that
+        // the resource deployment, which deletes every object that isn't in the resources folder, can't prune logs.
+        Bucket logBucket = Bucket.Builder.create(this, "LogBucket")
+                .removalPolicy(RemovalPolicy.DESTROY)
+                .autoDeleteObjects(true)
+                .blockPublicAccess(BlockPublicAccess.BLOCK_ALL)
+                .lifecycleRules(Collections.singletonList(LifecycleRule.builder()
+                        .expiration(Duration.days(30))
+                        .build()))
                 .build();
 
         // Create VPC
@@ -62,8 +163,12 @@ public class CloudCubesStack extends Stack {
                 .allowAllOutbound(true)
                 .build();
         Connections connections = serverSecurityGroup.getConnections();
-        connections.allowFromAnyIpv4(Port.tcp(minecraftPort), "Allow TCP access to the Minecraft Server");
-        connections.allowFromAnyIpv4(Port.udp(minecraftPort), "Allow UDP access to the Minecraft Server");
+        // Shared hosts run each of their servers on its own port, starting at the usual Minecraft port
+        final int lastMinecraftPort = SharedHost.FIRST_PORT + SharedHost.MAX_SERVERS - 1;
+        connections.allowFromAnyIpv4(Port.tcpRange(minecraftPort, lastMinecraftPort),
+                "Allow TCP access to the Minecraft Servers");
+        connections.allowFromAnyIpv4(Port.udpRange(minecraftPort, lastMinecraftPort),
+                "Allow UDP access to the Minecraft Servers");
         connections.allowFromAnyIpv4(Port.tcp(sshPort), "Allows TCP access through SSH");
 
         // IAM Role for EC2 instances
@@ -73,49 +178,338 @@ public class CloudCubesStack extends Stack {
                 .build();
         serverRole.addManagedPolicy(ManagedPolicy.fromAwsManagedPolicyName("AmazonSSMManagedInstanceCore"));
         serverTable.grantReadWriteData(serverRole);
+        hostTable.grantReadWriteData(serverRole);
         resourceBucket.grantRead(serverRole);
+        logBucket.grantPut(serverRole);
+        // Instances attach the server's data volume to themselves when they start. Only the data volumes, which are
+        // all tagged with their server, may be attached, in any of the server regions.
+        serverRole.addToPrincipalPolicy(PolicyStatement.Builder.create()
+                .effect(Effect.ALLOW)
+                .resources(Collections.singletonList("arn:aws:ec2:*:" + this.getAccount() + ":volume/*"))
+                .actions(Collections.singletonList("ec2:AttachVolume"))
+                .conditions(Collections.singletonMap("StringLike",
+                        Collections.singletonMap("aws:ResourceTag/CloudCubesServerId", "*")))
+                .build());
+        serverRole.addToPrincipalPolicy(PolicyStatement.Builder.create()
+                .effect(Effect.ALLOW)
+                .resources(Collections.singletonList("arn:aws:ec2:*:" + this.getAccount() + ":instance/*"))
+                .actions(Collections.singletonList("ec2:AttachVolume"))
+                .build());
+        // DescribeVolumes doesn't support resource-level permissions
+        serverRole.addToPrincipalPolicy(PolicyStatement.Builder.create()
+                .effect(Effect.ALLOW)
+                .resources(Collections.singletonList("*"))
+                .actions(Collections.singletonList("ec2:DescribeVolumes"))
+                .build());
+        // Instances ask for a relaunch on the default event bus when they receive a spot interruption notice
+        serverRole.addToPrincipalPolicy(PolicyStatement.Builder.create()
+                .effect(Effect.ALLOW)
+                .resources(Collections.singletonList(
+                        "arn:aws:events:" + this.getRegion() + ":" + this.getAccount() + ":event-bus/default"))
+                .actions(Collections.singletonList("events:PutEvents"))
+                .build());
         CfnInstanceProfile serverInstanceProfile = CfnInstanceProfile.Builder.create(this, "ServerInstanceProfile")
                 .roles(Collections.singletonList(serverRole.getRoleName()))
                 .build();
 
+        // Container tasks are an alternative to spot instances that start faster and suit small servers. The worlds
+        // of container servers and of servers on shared hosts are kept on a shared file system, in a directory per
+        // server.
+        Cluster serverCluster = Cluster.Builder.create(this, "ServerCluster")
+                .vpc(serverVpc)
+                .enableFargateCapacityProviders(true)
+                .build();
+        FileSystem worldFileSystem = FileSystem.Builder.create(this, "WorldFileSystem")
+                .vpc(serverVpc)
+                .vpcSubnets(SubnetSelection.builder().subnetType(SubnetType.PUBLIC).build())
+                // Worlds outlive the stack, like the data volumes of spot instances
+                .removalPolicy(RemovalPolicy.RETAIN)
+                .build();
+        worldFileSystem.getConnections().allowDefaultPortFrom(serverSecurityGroup);
+        final String worldVolumeName = "worlds";
+        FargateTaskDefinition serverTaskDefinition = FargateTaskDefinition.Builder.create(this, "ServerTaskDefinition")
+                // The size of each task is chosen when it is started
+                .cpu(1024)
+                .memoryLimitMiB(4096)
+                .volumes(Collections.singletonList(software.amazon.awscdk.services.ecs.Volume.builder()
+                        .name(worldVolumeName)
+                        .efsVolumeConfiguration(EfsVolumeConfiguration.builder()
+                                .fileSystemId(worldFileSystem.getFileSystemId())
+                                .transitEncryption("ENABLED")
+                                .build())
+                        .build()))
+                .build();
+        ContainerDefinition serverContainer = serverTaskDefinition.addContainer(ECSTaskRunner.CONTAINER_NAME,
+                ContainerDefinitionOptions.builder()
+                        .image(ContainerImage.fromAsset("agent/build/container"))
+                        .logging(LogDriver.awsLogs(AwsLogDriverProps.builder().streamPrefix("server").build()))
+                        .portMappings(Collections.singletonList(PortMapping.builder()
+                                .containerPort(minecraftPort)
+                                .build()))
+                        // Gives the agent as long to drain the server as Fargate Spot gives before reclaiming a task
+                        .stopTimeout(Duration.seconds(120))
+                        .build());
+        serverContainer.addMountPoints(MountPoint.builder()
+                .sourceVolume(worldVolumeName)
+                .containerPath(ContainerInstanceManager.WORLD_ROOT)
+                .readOnly(false)
+                .build());
+        IRole serverTaskRole = serverTaskDefinition.getTaskRole();
+        serverTable.grantReadWriteData(serverTaskRole);
+        resourceBucket.grantRead(serverTaskRole);
+        logBucket.grantPut(serverTaskRole);
+        // The agent in a task looks up the public address of the task's network interface
+        serverTaskRole.addToPrincipalPolicy(PolicyStatement.Builder.create()
+                .effect(Effect.ALLOW)
+                .resources(Collections.singletonList("*"))
+                .actions(Collections.singletonList("ec2:DescribeNetworkInterfaces"))
+                .build());
+        assert serverTaskDefinition.getExecutionRole() != null;
+        PolicyStatement manageServerTasksStatement = PolicyStatement.Builder.create()
+                .effect(Effect.ALLOW)
+                .resources(Collections.singletonList("*"))
+                .actions(Arrays.asList("ecs:RunTask", "ecs:StopTask", "ecs:DescribeTasks"))
+                .build();
+        PolicyStatement passServerTaskRolesStatement = PolicyStatement.Builder.create()
+                .effect(Effect.ALLOW)
+                .resources(Arrays.asList(
+                        serverTaskRole.getRoleArn(),
+                        serverTaskDefinition.getExecutionRole().getRoleArn()))
+                .actions(Collections.singletonList("iam:PassRole"))
+                .build();
+
         // Create InfrastructureConfiguration object to determine environment variables for the lambda functions
         List<String> serverSubnetIds = new ArrayList<>();
         for (ISubnet subnet : serverVpc.getPublicSubnets()) {
             serverSubnetIds.add(subnet.getSubnetId());
         }
         InfrastructureConfiguration ic = new InfrastructureConfiguration();
-        ic.setValue(InfrastructureSetting.REGIONASSTRING, "US-EAST-2");
+        ic.setValue(InfrastructureSetting.REGIONASSTRING, this.getRegion());
+        ic.setServerRegions(serverRegions);
         ic.setValue(InfrastructureSetting.SERVERDATABASENAME, serverTable.getTableName());
         ic.setValue(InfrastructureSetting.RESOURCEBUCKETNAME, resourceBucket.getBucketName());
+        ic.setValue(InfrastructureSetting.LOGBUCKETNAME, logBucket.getBucketName());
         ic.setValue(InfrastructureSetting.SERVERROLEID, serverRole.getRoleId());
         ic.setValue(InfrastructureSetting.SERVERINSTANCEPROFILEARN, serverInstanceProfile.getAttrArn());
         ic.setValue(InfrastructureSetting.SERVERSECURITYGROUPID, serverSecurityGroup.getSecurityGroupId());
         ic.setValue(InfrastructureSetting.SERVERVPCID, serverVpc.getVpcId());
         ic.setServerSubnetIds(serverSubnetIds);
+        ic.setValue(InfrastructureSetting.CONTAINERCLUSTERNAME, serverCluster.getClusterName());
+        ic.setValue(InfrastructureSetting.CONTAINERTASKDEFINITIONARN, serverTaskDefinition.getTaskDefinitionArn());
+        ic.setValue(InfrastructureSetting.CONTAINERCAPACITYPROVIDER, "FARGATE_SPOT");
+        ic.setValue(InfrastructureSetting.HOSTDATABASENAME, hostTable.getTableName());
+        ic.setValue(InfrastructureSetting.WORLDFILESYSTEMID, worldFileSystem.getFileSystemId());
+        ic.setValue(InfrastructureSetting.SERVERIMAGEID, MachineImage.latestAmazonLinux(AmazonLinuxImageProps.builder()
+                .generation(AmazonLinuxGeneration.AMAZON_LINUX_2)
+                .build()).getImage(this).getImageId());
 
         Map<String, String> infrastructureDataMap = ic.toEnvironmentVariableMap();
 
+        // Publish the configuration so that code running in the other regions can launch servers in this region
+        StringParameter.Builder.create(this, "InfrastructureConfigurationParameter")
+                .parameterName(InfrastructureConfiguration.PARAMETER_NAME)
+                .stringValue(ic.toParameterString())
+                .build();
+        PolicyStatement readRegionalConfigurationStatement = PolicyStatement.Builder.create()
+                .effect(Effect.ALLOW)
+                .resources(Collections.singletonList(
+                        "arn:aws:ssm:*:" + this.getAccount() + ":parameter" + InfrastructureConfiguration.PARAMETER_NAME))
+                .actions(Collections.singletonList("ssm:GetParameter"))
+                .build();
+
+        // Starting a server whose data volume has to be moved sends the event that starts the volume transfer
+        PolicyStatement requestVolumeTransferStatement = PolicyStatement.Builder.create()
+                .effect(Effect.ALLOW)
+                .resources(Collections.singletonList(
+                        "arn:aws:events:" + this.getRegion() + ":" + this.getAccount() + ":event-bus/default"))
+                .actions(Collections.singletonList("events:PutEvents"))
+                .build();
+
         // Create the server starter function
         Function serverStarter = Function.Builder.create(this, "ServerStarter")
                 .code(Code.fromAsset("lambda/server-starter/build/libs/server-starter-all.jar"))
                 .handler("osbourn.cloudcubes.lambda.serverstarter.ServerStarterLambdaHandler")
                 .runtime(Runtime.JAVA_11)
                 .environment(infrastructureDataMap)
-                .timeout(Duration.seconds(30))
+                // Starting may have to wait for the data volume to be released; moving it happens in the background
+                .timeout(Duration.minutes(5))
                 .memorySize(512)
                 .build();
         assert serverStarter.getRole() != null;
         serverStarter.getRole().addToPrincipalPolicy(PolicyStatement.Builder.create()
                 .effect(Effect.ALLOW)
                 .resources(Collections.singletonList("*"))
-                .actions(Collections.singletonList("ec2:RequestSpotInstances"))
+                .actions(Arrays.asList(
+                        "ec2:RequestSpotInstances",
+                        "ec2:DescribeSpotInstanceRequests",
+                        "ec2:CancelSpotInstanceRequests",
+                        "ec2:TerminateInstances",
+                        "ec2:DescribeInstanceTypes",
+                        "ec2:DescribeSubnets",
+                        "ec2:DescribeVolumes",
+                        "ec2:CreateVolume",
+                        "ec2:DeleteVolume",
+                        "ec2:CreateSnapshot",
+                        "ec2:DescribeSnapshots",
+                        "ec2:DeleteSnapshot",
+                        "ec2:CreateTags"))
                 .build());
         // serverStarter needs a special permission in order to launch servers with IAM roles
+        // The server roles of the other regional stacks are included, since servers can be started in any region
         serverStarter.getRole().addToPrincipalPolicy(PolicyStatement.Builder.create()
                 .effect(Effect.ALLOW)
-                .resources(Collections.singletonList(serverRole.getRoleArn()))
+                .resources(Arrays.asList(
+                        serverRole.getRoleArn(),
+                        "arn:aws:iam::" + this.getAccount() + ":role/cloudcubes*-ServerRole*"))
                 .actions(Arrays.asList("iam:GetRole", "iam:PassRole"))
                 .build());
+        serverStarter.getRole().addToPrincipalPolicy(readRegionalConfigurationStatement);
+        serverStarter.getRole().addToPrincipalPolicy(manageServerTasksStatement);
+        serverStarter.getRole().addToPrincipalPolicy(passServerTaskRolesStatement);
         serverTable.grantReadWriteData(serverStarter);
+        serverStarter.getRole().addToPrincipalPolicy(manageHostsStatement);
+        serverStarter.getRole().addToPrincipalPolicy(requestVolumeTransferStatement);
+
+        // Create the server stopper function
+        Function serverStopper = Function.Builder.create(this, "ServerStopper")
+                .code(Code.fromAsset("lambda/server-stopper/build/libs/server-stopper-all.jar"))
+                .handler("osbourn.cloudcubes.lambda.serverstopper.ServerStopperLambdaHandler")
+                .runtime(Runtime.JAVA_11)
+                .environment(infrastructureDataMap)
+                .timeout(Duration.seconds(30))
+                .memorySize(512)
+                .build();
+        assert serverStopper.getRole() != null;
+        serverStopper.getRole().addToPrincipalPolicy(PolicyStatement.Builder.create()
+                .effect(Effect.ALLOW)
+                .resources(Collections.singletonList("*"))
+                .actions(Arrays.asList(
+                        "ec2:DescribeSpotInstanceRequests",
+                        "ec2:CancelSpotInstanceRequests",
+                        "ec2:TerminateInstances"))
+                .build());
+        serverStopper.getRole().addToPrincipalPolicy(readRegionalConfigurationStatement);
+        serverStopper.getRole().addToPrincipalPolicy(manageServerTasksStatement);
+        serverStopper.getRole().addToPrincipalPolicy(passServerTaskRolesStatement);
+        serverTable.grantReadWriteData(serverStopper);
+        serverStopper.getRole().addToPrincipalPolicy(manageHostsStatement);
+
+        // Create the server relauncher function, which moves servers off spot instances that are being reclaimed
+        Function serverRelauncher = Function.Builder.create(this, "ServerRelauncher")
+                .code(Code.fromAsset("lambda/server-relauncher/build/libs/server-relauncher-all.jar"))
+                .handler("osbourn.cloudcubes.lambda.serverrelauncher.ServerRelauncherLambdaHandler")
+                .runtime(Runtime.JAVA_11)
+                .environment(infrastructureDataMap)
+                // Relaunching waits for the data volume to be released and then for spot capacity in its zone, trying
+                // a few instance types; moving it to another zone happens in the background
+                .timeout(Duration.minutes(10))
+                .memorySize(512)
+                .build();
+        assert serverRelauncher.getRole() != null;
+        serverRelauncher.getRole().addToPrincipalPolicy(PolicyStatement.Builder.create()
+                .effect(Effect.ALLOW)
+                .resources(Collections.singletonList("*"))
+                .actions(Arrays.asList(
+                        "ec2:DescribeSpotInstanceRequests",
+                        "ec2:CancelSpotInstanceRequests",
+                        "ec2:TerminateInstances",
+                        "ec2:RequestSpotInstances",
+                        "ec2:DescribeInstanceTypes",
+                        "ec2:DescribeSubnets",
+                        "ec2:DescribeVolumes",
+                        "ec2:CreateVolume",
+                        "ec2:CreateTags"))
+                .build());
+        serverRelauncher.getRole().addToPrincipalPolicy(PolicyStatement.Builder.create()
+                .effect(Effect.ALLOW)
+                .resources(Collections.singletonList(serverRole.getRoleArn()))
+                .actions(Arrays.asList("iam:GetRole", "iam:PassRole"))
+                .build());
+        serverRelauncher.getRole().addToPrincipalPolicy(readRegionalConfigurationStatement);
+        serverTable.grantReadWriteData(serverRelauncher);
+        serverRelauncher.getRole().addToPrincipalPolicy(manageHostsStatement);
+        serverRelauncher.getRole().addToPrincipalPolicy(requestVolumeTransferStatement);
+        Rule.Builder.create(this, "ServerInterruptionRule")
+                .description("Relaunches CloudCubes servers whose spot instance received an interruption notice")
+                .eventPattern(EventPattern.builder()
+                        .source(Collections.singletonList(EC2SpotInstanceManager.INTERRUPTION_EVENT_SOURCE))
+                        .detailType(Collections.singletonList(EC2SpotInstanceManager.INTERRUPTION_EVENT_DETAIL_TYPE))
+                        .build())
+                .targets(Collections.singletonList(new LambdaFunction(serverRelauncher)))
+                .build();
+
+        // Create the volume mover function, which carries out one step of moving a data volume each time it is called
+        Function volumeMover = Function.Builder.create(this, "VolumeMover")
+                .code(Code.fromAsset("lambda/volume-mover/build/libs/volume-mover-all.jar"))
+                .handler("osbourn.cloudcubes.lambda.volumemover.VolumeMoverLambdaHandler")
+                .runtime(Runtime.JAVA_11)
+                .environment(infrastructureDataMap)
+                // A step only starts an EC2 operation or checks on it, except for the last, which launches the server
+                .timeout(Duration.minutes(2))
+                .memorySize(512)
+                .build();
+        assert volumeMover.getRole() != null;
+        volumeMover.getRole().addToPrincipalPolicy(PolicyStatement.Builder.create()
+                .effect(Effect.ALLOW)
+                .resources(Collections.singletonList("*"))
+                .actions(Arrays.asList(
+                        "ec2:DescribeSpotInstanceRequests",
+                        "ec2:CancelSpotInstanceRequests",
+                        "ec2:TerminateInstances",
+                        "ec2:RequestSpotInstances",
+                        "ec2:DescribeInstanceTypes",
+                        "ec2:DescribeSubnets",
+                        "ec2:DescribeVolumes",
+                        "ec2:CreateVolume",
+                        "ec2:DeleteVolume",
+                        "ec2:CreateSnapshot",
+                        "ec2:DescribeSnapshots",
+                        "ec2:DeleteSnapshot",
+                        "ec2:CopySnapshot",
+                        "ec2:CreateTags"))
+                .build());
+        // The server is launched in the region its volume was moved to, with the server role of that region
+        volumeMover.getRole().addToPrincipalPolicy(PolicyStatement.Builder.create()
+                .effect(Effect.ALLOW)
+                .resources(Arrays.asList(
+                        serverRole.getRoleArn(),
+                        "arn:aws:iam::" + this.getAccount() + ":role/cloudcubes*-ServerRole*"))
+                .actions(Arrays.asList("iam:GetRole", "iam:PassRole"))
+                .build());
+        volumeMover.getRole().addToPrincipalPolicy(readRegionalConfigurationStatement);
+        serverTable.grantReadWriteData(volumeMover);
+
+        // The state machine calls the volume mover until the transfer is done. Copying a snapshot to another region
+        // can take hours, far longer than a single function may run.
+        LambdaInvoke moveVolumeStep = LambdaInvoke.Builder.create(this, "MoveVolumeStep")
+                .lambdaFunction(volumeMover)
+                .payloadResponseOnly(true)
+                .build();
+        moveVolumeStep.addRetry(RetryProps.builder()
+                .errors(Collections.singletonList("States.ALL"))
+                .interval(Duration.seconds(30))
+                .maxAttempts(5)
+                .backoffRate(2)
+                .build());
+        Wait waitForVolume = Wait.Builder.create(this, "WaitForVolume")
+                .time(WaitTime.duration(Duration.seconds(30)))
+                .build();
+        Choice isVolumeMoved = Choice.Builder.create(this, "IsVolumeMoved").build()
+                .when(Condition.booleanEquals("$.Done", true), Succeed.Builder.create(this, "VolumeMoved").build())
+                .otherwise(waitForVolume.next(moveVolumeStep));
+        StateMachine volumeTransferStateMachine = StateMachine.Builder.create(this, "VolumeTransfer")
+                .definition(Chain.start(moveVolumeStep).next(isVolumeMoved))
+                .timeout(Duration.days(1))
+                .build();
+        Rule.Builder.create(this, "VolumeTransferRule")
+                .description("Moves the data volumes of CloudCubes servers to another availability zone or region")
+                .eventPattern(EventPattern.builder()
+                        .source(Collections.singletonList(EC2SpotInstanceManager.VOLUME_TRANSFER_EVENT_SOURCE))
+                        .detailType(Collections.singletonList(
+                                EC2SpotInstanceManager.VOLUME_TRANSFER_EVENT_DETAIL_TYPE))
+                        .build())
+                .targets(Collections.singletonList(new SfnStateMachine(volumeTransferStateMachine,
+                        SfnStateMachineProps.builder().input(RuleTargetInput.fromEventPath("$.detail")).build())))
+                .build();
     }
 }
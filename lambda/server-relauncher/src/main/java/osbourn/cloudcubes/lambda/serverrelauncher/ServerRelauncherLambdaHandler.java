@@ -0,0 +1,37 @@
+package osbourn.cloudcubes.lambda.serverrelauncher;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.LambdaLogger;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+import osbourn.cloudcubes.core.constructs.InfrastructureConfiguration;
+import osbourn.cloudcubes.core.server.CloudCubesServer;
+
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Handles the EventBridge event the server agent sends when its spot instance receives an interruption notice, by
+ * relaunching the server on a new instance, in the availability zone of its data volume if there is spot capacity
+ * there.
+ */
+public class ServerRelauncherLambdaHandler implements RequestHandler<Map<String, Object>, String> {
+    @Override
+    public String handleRequest(Map<String, Object> event, Context context) {
+        LambdaLogger logger = context.getLogger();
+        String response = "200 OK";
+
+        InfrastructureConfiguration infrastructureConfiguration = InfrastructureConfiguration.fromEnvironment();
+        @SuppressWarnings("unchecked")
+        Map<String, Object> detail = (Map<String, Object>) event.get("detail");
+        UUID serverId = UUID.fromString((String) detail.get("ServerId"));
+        CloudCubesServer server = CloudCubesServer.fromId(serverId, infrastructureConfiguration);
+        try {
+            server.relaunchAfterInterruption();
+        } catch (IllegalStateException e) {
+            logger.log("Server " + serverId + " was not relaunched: " + e.getMessage());
+            response = "409 Conflict";
+        }
+
+        return response;
+    }
+}
@@ -0,0 +1,31 @@
+package osbourn.cloudcubes.lambda.serverstopper;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.LambdaLogger;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+import osbourn.cloudcubes.core.constructs.InfrastructureConfiguration;
+import osbourn.cloudcubes.core.server.CloudCubesServer;
+import osbourn.cloudcubes.core.server.Server;
+
+import java.util.Map;
+import java.util.UUID;
+
+public class ServerStopperLambdaHandler implements RequestHandler<Map<String, String>, String> {
+    @Override
+    public String handleRequest(Map<String, String> event, Context context) {
+        LambdaLogger logger = context.getLogger();
+        String response = "200 OK";
+
+        InfrastructureConfiguration infrastructureConfiguration = InfrastructureConfiguration.fromEnvironment();
+        UUID serverId = UUID.fromString(event.get("ServerId"));
+        Server server = CloudCubesServer.fromId(serverId, infrastructureConfiguration);
+        try {
+            server.stopServer();
+        } catch (IllegalStateException e) {
+            logger.log("Server " + serverId + " is already offline");
+            response = "409 Conflict";
+        }
+
+        return response;
+    }
+}
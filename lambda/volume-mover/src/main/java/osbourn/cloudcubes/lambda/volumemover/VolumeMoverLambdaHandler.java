@@ -0,0 +1,34 @@
+package osbourn.cloudcubes.lambda.volumemover;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+import osbourn.cloudcubes.core.constructs.InfrastructureConfiguration;
+import osbourn.cloudcubes.core.server.CloudCubesServer;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Carries out one step of moving a server's data volume to another availability zone or region. The handler is
+ * called by the volume transfer state machine, which calls it again after a short wait until it reports that the
+ * move is done. The input and output both contain the id of the server, so the output of one step is the input of
+ * the next.
+ */
+public class VolumeMoverLambdaHandler implements RequestHandler<Map<String, Object>, Map<String, Object>> {
+    @Override
+    public Map<String, Object> handleRequest(Map<String, Object> event, Context context) {
+        InfrastructureConfiguration infrastructureConfiguration = InfrastructureConfiguration.fromEnvironment();
+        UUID serverId = UUID.fromString((String) event.get("ServerId"));
+        CloudCubesServer server = CloudCubesServer.fromId(serverId, infrastructureConfiguration);
+        boolean done = server.advanceVolumeTransfer();
+        if (done) {
+            context.getLogger().log("The data volume of server " + serverId + " has been moved");
+        }
+
+        Map<String, Object> response = new HashMap<>();
+        response.put("ServerId", serverId.toString());
+        response.put("Done", done);
+        return response;
+    }
+}
@@ -0,0 +1,100 @@
+package osbourn.cloudcubes.manager;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import osbourn.cloudcubes.core.server.InstanceBackend;
+import osbourn.cloudcubes.core.server.LaunchProfile;
+import osbourn.cloudcubes.core.server.LoadHistory;
+import osbourn.cloudcubes.core.server.ProvisionalServerState;
+import osbourn.cloudcubes.core.server.ResizePolicy;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>
+ * Watches the load of the servers on their own spot instances and decides when each should be resized, following
+ * {@link ResizePolicy}. The sweep passes every server in, which records one heartbeat per server and sweep, and gets
+ * back the profile a server should be moved to when it is time to move it: once an online server has been empty for
+ * long enough, or as soon as an offline server is seen, in which case the profile is used the next time it starts.
+ * </p>
+ *
+ * <p>
+ * Like the idle time of servers, the heartbeats and pending profiles are only kept by the manager, so a restart of the
+ * manager starts watching the servers again. The time of the last resize is kept in the database, so the cooldown after
+ * a resize survives a restart.
+ * </p>
+ */
+final class Autoscaler {
+    private final Map<UUID, LoadHistory> histories = new ConcurrentHashMap<>();
+    private final Map<UUID, LaunchProfile> pendingProfiles = new ConcurrentHashMap<>();
+
+    /**
+     * Records the latest heartbeat of the server and updates its pending profile.
+     *
+     * @param status    The snapshot of the server
+     * @param nowMillis The current time in milliseconds since the epoch
+     * @return The profile the server should be moved to now, or null if it should be left alone
+     */
+    @Nullable LaunchProfile update(@NotNull ServerStatus status, long nowMillis) {
+        UUID serverId = status.getId();
+        if (status.getBackend() != InstanceBackend.EC2_SPOT) {
+            forget(serverId);
+            return null;
+        }
+        ProvisionalServerState state = status.getState(nowMillis);
+        if (state != ProvisionalServerState.ONLINE) {
+            // Heartbeats from before the server stopped say nothing about its next run
+            histories.remove(serverId);
+            return state == ProvisionalServerState.OFFLINE ? pendingProfiles.get(serverId) : null;
+        }
+
+        LoadHistory history = histories.computeIfAbsent(serverId, id -> new LoadHistory());
+        history.add(status.getHealth());
+        LaunchProfile current = status.getLaunchProfile();
+        LaunchProfile pending = ResizePolicy.choosePendingProfile(history.getSamples(), current,
+                pendingProfiles.get(serverId), status.getResizedAtMillis(), nowMillis);
+        if (pending == null || pending.equals(current)) {
+            pendingProfiles.remove(serverId);
+            return null;
+        }
+        pendingProfiles.put(serverId, pending);
+        return ResizePolicy.isReadyForHandoff(history.getSamples(), nowMillis) ? pending : null;
+    }
+
+    /**
+     * Forgets the pending profile and heartbeats of a server once it has been resized.
+     *
+     * @param serverId The id of the server
+     */
+    void resized(@NotNull UUID serverId) {
+        forget(serverId);
+    }
+
+    /**
+     * Gets the profile the server will be moved to once it is empty.
+     *
+     * @param serverId The id of the server
+     * @return The pending profile, or null if there is none
+     */
+    @Nullable LaunchProfile getPendingProfile(@NotNull UUID serverId) {
+        return pendingProfiles.get(serverId);
+    }
+
+    /**
+     * Forgets the servers that no longer exist.
+     *
+     * @param serverIds The ids of all servers
+     */
+    void retainAll(@NotNull Set<UUID> serverIds) {
+        histories.keySet().retainAll(serverIds);
+        pendingProfiles.keySet().retainAll(serverIds);
+    }
+
+    private void forget(@NotNull UUID serverId) {
+        histories.remove(serverId);
+        pendingProfiles.remove(serverId);
+    }
+}
@@ -0,0 +1,228 @@
+package osbourn.cloudcubes.manager;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.jetbrains.annotations.NotNull;
+import osbourn.cloudcubes.core.constructs.InfrastructureConfiguration;
+import osbourn.cloudcubes.core.constructs.InfrastructureConfiguration.InfrastructureSetting;
+import osbourn.cloudcubes.core.constructs.InfrastructureConstructor;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeDefinition;
+import software.amazon.awssdk.services.dynamodb.model.BillingMode;
+import software.amazon.awssdk.services.dynamodb.model.CreateTableRequest;
+import software.amazon.awssdk.services.dynamodb.model.DescribeTableRequest;
+import software.amazon.awssdk.services.dynamodb.model.KeySchemaElement;
+import software.amazon.awssdk.services.dynamodb.model.KeyType;
+import software.amazon.awssdk.services.dynamodb.model.ResourceNotFoundException;
+import software.amazon.awssdk.services.dynamodb.model.ScalarAttributeType;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <p>
+ * A long-running service that starts, stops and reports on servers over HTTP. Unlike the Lambda handlers, which create
+ * new clients for every invocation, the manager creates one {@link InfrastructureConstructor} and shares its clients
+ * between all requests, and it answers status requests from a {@link ServerCache} that a sweep keeps warm.
+ * </p>
+ *
+ * <p>
+ * Every request runs on its own virtual thread, so requests that wait for DynamoDB or EC2 don't hold up the rest. The
+ * manager serves:
+ * </p>
+ * <ul>
+ *     <li>{@code GET /servers/<id>}: the status of the server</li>
+ *     <li>{@code POST /servers/<id>/start} and {@code POST /servers/<id>/stop}: start or stop the server in the
+ *     background, answering 202 once the operation is accepted</li>
+ *     <li>{@code POST /sweep}: reload every server, stop the idle and unresponsive ones, resize the ones whose load
+ *     calls for it and move offline ones to the region of their players, which also happens every
+ *     {@link #SWEEP_INTERVAL_SECONDS} seconds</li>
+ * </ul>
+ *
+ * <p>
+ * The configuration is read from the environment, like the Lambda handlers. If {@code DYNAMODB_ENDPOINT} is set, the
+ * manager uses that endpoint for DynamoDB and creates the server table if it doesn't exist, so it can be run against
+ * DynamoDB Local, for example with {@code DYNAMODB_ENDPOINT=http://localhost:8000}.
+ * </p>
+ */
+public class ManagerDaemon {
+    private static final Logger LOGGER = Logger.getLogger(ManagerDaemon.class.getName());
+    private static final int DEFAULT_PORT = 8080;
+    private static final long SWEEP_INTERVAL_SECONDS = 60;
+    /**
+     * Connections that arrive while every accepted connection is still being read are queued, so the queue is sized
+     * for bursts of thousands of clients
+     */
+    private static final int CONNECTION_BACKLOG = 4096;
+
+    private final ServerCache serverCache;
+    private final ServerOperations serverOperations;
+
+    ManagerDaemon(@NotNull ServerCache serverCache, @NotNull ServerOperations serverOperations) {
+        this.serverCache = serverCache;
+        this.serverOperations = serverOperations;
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = args.length >= 1 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        String dynamoDBEndpoint = System.getenv("DYNAMODB_ENDPOINT");
+
+        InfrastructureConfiguration configuration = InfrastructureConfiguration.fromEnvironment();
+        InfrastructureConstructor infrastructureConstructor = new InfrastructureConstructor(configuration,
+                dynamoDBEndpoint != null ? URI.create(dynamoDBEndpoint) : null);
+        DynamoDbClient dynamoDbClient = infrastructureConstructor.getDynamoDBClient();
+        String tableName = configuration.getValue(InfrastructureSetting.SERVERDATABASENAME);
+        if (dynamoDBEndpoint != null) {
+            createTableIfMissing(dynamoDbClient, tableName);
+        }
+
+        ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+        ServerCache serverCache = new ServerCache(dynamoDbClient, tableName, executor);
+        ServerOperations serverOperations = new ServerOperations(infrastructureConstructor, serverCache, executor);
+        ManagerDaemon daemon = new ManagerDaemon(serverCache, serverOperations);
+
+        HttpServer httpServer = HttpServer.create(new InetSocketAddress(port), CONNECTION_BACKLOG);
+        httpServer.createContext("/", daemon::handle);
+        httpServer.setExecutor(executor);
+        httpServer.start();
+        LOGGER.info("Listening on port " + port);
+
+        // The first sweep warms the cache, so that early status requests don't each wait for the database
+        ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sweeper.scheduleWithFixedDelay(daemon::sweep, 0, SWEEP_INTERVAL_SECONDS, TimeUnit.SECONDS);
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            sweeper.shutdownNow();
+            httpServer.stop(1);
+            // Operations that are still running are left to finish, since stopping them halfway leaves servers half
+            // started
+            executor.shutdown();
+        }));
+    }
+
+    private void sweep() {
+        try {
+            ServerOperations.SweepResult result = serverOperations.sweep();
+            LOGGER.info("Swept " + result.serverCount + " servers: stopped " + result.idleStopped + " idle and "
+                    + result.unresponsiveStopped + " unresponsive servers, resized " + result.resized + " and moved "
+                    + result.moved + " servers");
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Sweep failed", e);
+        }
+    }
+
+    private void handle(@NotNull HttpExchange exchange) throws IOException {
+        try {
+            String method = exchange.getRequestMethod();
+            String[] path = exchange.getRequestURI().getPath().replaceAll("^/+|/+$", "").split("/");
+            if (path.length == 1 && path[0].equals("health") && method.equals("GET")) {
+                respond(exchange, 200, "{\"cachedServers\":" + serverCache.size() + "}");
+            } else if (path.length == 1 && path[0].equals("sweep") && method.equals("POST")) {
+                respond(exchange, 200, serverOperations.sweep().toJson());
+            } else if (path.length >= 2 && path.length <= 3 && path[0].equals("servers")) {
+                handleServer(exchange, method, path);
+            } else {
+                respond(exchange, 404, error("Not found"));
+            }
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Failed to handle " + exchange.getRequestURI(), e);
+            respond(exchange, 500, error("Internal error"));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void handleServer(@NotNull HttpExchange exchange, @NotNull String method, @NotNull String[] path)
+            throws IOException {
+        UUID serverId;
+        try {
+            serverId = UUID.fromString(path[1]);
+        } catch (IllegalArgumentException e) {
+            respond(exchange, 400, error("Invalid server id"));
+            return;
+        }
+
+        if (path.length == 2 && method.equals("GET")) {
+            ServerStatus status = serverCache.get(serverId);
+            if (!status.exists()) {
+                respond(exchange, 404, error("No such server"));
+            } else {
+                respond(exchange, 200,
+                        status.toJson(System.currentTimeMillis(), serverOperations.getOperation(serverId),
+                                serverOperations.getPendingLaunchProfile(serverId)));
+            }
+        } else if (path.length == 3 && path[2].equals("start") && method.equals("POST")) {
+            respondToOperation(exchange, serverOperations.start(serverId));
+        } else if (path.length == 3 && path[2].equals("stop") && method.equals("POST")) {
+            respondToOperation(exchange, serverOperations.stop(serverId));
+        } else {
+            respond(exchange, 404, error("Not found"));
+        }
+    }
+
+    private static void respondToOperation(@NotNull HttpExchange exchange, @NotNull ServerOperations.Result result)
+            throws IOException {
+        switch (result) {
+            case ACCEPTED:
+                respond(exchange, 202, "{\"result\":\"accepted\"}");
+                break;
+            case NOT_FOUND:
+                respond(exchange, 404, error("No such server"));
+                break;
+            case ALREADY_IN_STATE:
+                respond(exchange, 409, error("The server is already in that state"));
+                break;
+            case BUSY:
+                respond(exchange, 409, error("Another operation is running on the server"));
+                break;
+        }
+    }
+
+    private static @NotNull String error(@NotNull String message) {
+        // The messages are constants, so they never need escaping
+        return "{\"error\":\"" + message + "\"}";
+    }
+
+    private static void respond(@NotNull HttpExchange exchange, int status, @NotNull String json) throws IOException {
+        byte[] body = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream output = exchange.getResponseBody()) {
+            output.write(body);
+        }
+    }
+
+    /**
+     * Creates the server table in DynamoDB Local, with the same key as the table the infrastructure stack creates.
+     */
+    private static void createTableIfMissing(@NotNull DynamoDbClient dynamoDbClient, @NotNull String tableName) {
+        try {
+            dynamoDbClient.describeTable(DescribeTableRequest.builder().tableName(tableName).build());
+        } catch (ResourceNotFoundException e) {
+            LOGGER.info("Creating table " + tableName);
+            dynamoDbClient.createTable(CreateTableRequest.builder()
+                    .tableName(tableName)
+                    .keySchema(KeySchemaElement.builder().attributeName("Id").keyType(KeyType.HASH).build())
+                    .attributeDefinitions(AttributeDefinition.builder()
+                            .attributeName("Id")
+                            .attributeType(ScalarAttributeType.S)
+                            .build())
+                    .billingMode(BillingMode.PAY_PER_REQUEST)
+                    .build());
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package osbourn.cloudcubes.manager;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import osbourn.cloudcubes.core.server.LaunchProfile;
+import osbourn.cloudcubes.core.server.ResizePolicy;
+import osbourn.cloudcubes.core.server.ServerHealth;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * <p>
+ * Runs the {@link Autoscaler} against simulated servers, to check its decisions without launching any instances. Each
+ * scenario gives the number of players and the memory the world needs for every minute of a simulated day. The
+ * simulated server sends a heartbeat every {@link ServerHealth#HEARTBEAT_INTERVAL_MILLIS} whose tick time grows with
+ * the players and shrinks with the size of the instance, is swept every minute like in the manager, is stopped after
+ * {@link ServerOperations#IDLE_STOP_AFTER_MILLIS} without players, and is down for a few minutes whenever it is
+ * resized or started.
+ * </p>
+ *
+ * <p>
+ * The simulation prints every resize and fails if a scenario doesn't end on the expected instance type, resizes more
+ * often than expected, resizes an online server that has players, or resizes a server again within
+ * {@link ResizePolicy#COOLDOWN_MILLIS}. It is run with {@code gradle :manager:simulateResize}.
+ * </p>
+ */
+public final class ResizeSimulation {
+    private static final long MINUTE_MILLIS = 60_000;
+    /**
+     * When the simulated day starts, which has to be well after the epoch since a server that was never resized is
+     * stored as resized at time 0
+     */
+    private static final long START_MILLIS = 1_700_000_000_000L;
+    private static final long SWEEP_INTERVAL_MILLIS = MINUTE_MILLIS;
+    private static final long BOOT_MILLIS = 3 * MINUTE_MILLIS;
+    /**
+     * The tick time of an empty server, and the tick time each player adds on the smallest size
+     */
+    private static final double BASE_MILLIS_PER_TICK = 3;
+    private static final double MILLIS_PER_TICK_PER_PLAYER = 3;
+    private static final long SMALLEST_MEMORY_MIB = 8192;
+    private static final int NORMAL_MEMORY_MIB = 5000;
+
+    private static final List<String> SIZES = Arrays.asList("large", "xlarge", "2xlarge", "4xlarge", "8xlarge");
+
+    private ResizeSimulation() {
+    }
+
+    /**
+     * A simulated day of a server.
+     */
+    private static final class Scenario {
+        final String name;
+        final String initialInstanceType;
+        final int durationMinutes;
+        final IntUnaryOperator playersByMinute;
+        final IntUnaryOperator memoryMiBByMinute;
+        final String expectedInstanceType;
+        final int maxResizes;
+
+        Scenario(String name, String initialInstanceType, int durationMinutes, IntUnaryOperator playersByMinute,
+                 IntUnaryOperator memoryMiBByMinute, String expectedInstanceType, int maxResizes) {
+            this.name = name;
+            this.initialInstanceType = initialInstanceType;
+            this.durationMinutes = durationMinutes;
+            this.playersByMinute = playersByMinute;
+            this.memoryMiBByMinute = memoryMiBByMinute;
+            this.expectedInstanceType = expectedInstanceType;
+            this.maxResizes = maxResizes;
+        }
+    }
+
+    public static void main(String[] args) {
+        IntUnaryOperator normalMemory = minute -> NORMAL_MEMORY_MIB;
+        List<Scenario> scenarios = Arrays.asList(
+                new Scenario("Light load", "m5.xlarge", 120,
+                        minute -> minute < 60 ? 3 : 0, normalMemory, "m5.large", 1),
+                new Scenario("Evening peak", "m5.large", 300,
+                        minute -> minute < 60 ? 4 : minute < 180 ? 20 : minute < 240 ? 0 : 4, normalMemory,
+                        "m5.xlarge", 1),
+                new Scenario("Sustained overload", "m5.large", 240,
+                        minute -> minute % 60 >= 55 ? 0 : 30, normalMemory, "m5.2xlarge", 2),
+                new Scenario("Memory pressure", "m5.large", 120,
+                        minute -> minute < 90 ? 5 : 0, minute -> minute < 30 ? NORMAL_MEMORY_MIB : 8000,
+                        "m5.xlarge", 1),
+                new Scenario("Flapping near the threshold", "m5.2xlarge", 240,
+                        minute -> minute % 2 == 0 ? 50 : 63, normalMemory, "m5.2xlarge", 0),
+                new Scenario("Short spike", "m5.xlarge", 180,
+                        minute -> minute >= 170 ? 0 : minute >= 60 && minute < 65 ? 40 : 10, normalMemory,
+                        "m5.xlarge", 0),
+                new Scenario("Cooldown between resizes", "m5.large", 240,
+                        minute -> minute % 20 >= 17 ? 0 : 40, normalMemory, "m5.2xlarge", 2));
+
+        int failedCount = 0;
+        for (Scenario scenario : scenarios) {
+            if (!run(scenario)) {
+                failedCount++;
+            }
+        }
+        System.out.println();
+        System.out.println((scenarios.size() - failedCount) + " of " + scenarios.size() + " scenarios passed");
+        if (failedCount > 0) {
+            System.exit(1);
+        }
+    }
+
+    private static boolean run(@NotNull Scenario scenario) {
+        System.out.println();
+        System.out.println(scenario.name + " (starting on " + scenario.initialInstanceType + ")");
+        UUID serverId = UUID.randomUUID();
+        Autoscaler autoscaler = new Autoscaler();
+        List<String> failures = new ArrayList<>();
+
+        String instanceType = scenario.initialInstanceType;
+        long resizedAtMillis = 0;
+        int resizeCount = 0;
+        boolean online = true;
+        long downUntilMillis = 0;
+        long emptySinceMillis = -1;
+        ServerHealth health = null;
+
+        long endMillis = scenario.durationMinutes * MINUTE_MILLIS;
+        for (long elapsedMillis = 0; elapsedMillis < endMillis;
+             elapsedMillis += ServerHealth.HEARTBEAT_INTERVAL_MILLIS) {
+            long nowMillis = START_MILLIS + elapsedMillis;
+            int minute = (int) (elapsedMillis / MINUTE_MILLIS);
+            int players = scenario.playersByMinute.applyAsInt(minute);
+            if (!online && players > 0) {
+                // A player starts the server again
+                online = true;
+                downUntilMillis = nowMillis + BOOT_MILLIS;
+                emptySinceMillis = -1;
+            }
+            boolean booting = nowMillis < downUntilMillis;
+            if (online && !booting) {
+                // Players wait for the server while it boots, so they only show up once it is running
+                health = heartbeat(nowMillis, instanceType, players, scenario.memoryMiBByMinute.applyAsInt(minute));
+                if (players > 0) {
+                    emptySinceMillis = -1;
+                } else if (emptySinceMillis < 0) {
+                    emptySinceMillis = nowMillis;
+                }
+            }
+            if (elapsedMillis % SWEEP_INTERVAL_MILLIS != 0) {
+                continue;
+            }
+
+            String state = !online ? "OFFLINE" : booting ? "UNKNOWN" : "ONLINE";
+            LaunchProfile target = autoscaler.update(status(serverId, state, instanceType, resizedAtMillis, health),
+                    nowMillis);
+            if (target != null) {
+                if (online && players > 0) {
+                    failures.add("resized at minute " + minute + " with " + players + " players online");
+                }
+                if (resizeCount > 0 && nowMillis - resizedAtMillis < ResizePolicy.COOLDOWN_MILLIS) {
+                    failures.add("resized at minute " + minute + " during the cooldown");
+                }
+                System.out.printf("  minute %3d: %s %s -> %s%n", minute, online ? "moved" : "set offline server",
+                        instanceType, target.getInstanceType());
+                autoscaler.resized(serverId);
+                instanceType = target.getInstanceType();
+                resizedAtMillis = nowMillis;
+                resizeCount++;
+                if (online) {
+                    downUntilMillis = nowMillis + BOOT_MILLIS;
+                    emptySinceMillis = -1;
+                }
+            } else if (online && !booting && emptySinceMillis >= 0
+                    && nowMillis - emptySinceMillis >= ServerOperations.IDLE_STOP_AFTER_MILLIS) {
+                System.out.printf("  minute %3d: stopped as idle%n", minute);
+                online = false;
+            }
+        }
+
+        if (!instanceType.equals(scenario.expectedInstanceType)) {
+            failures.add("ended on " + instanceType + " instead of " + scenario.expectedInstanceType);
+        }
+        if (resizeCount > scenario.maxResizes) {
+            failures.add("resized " + resizeCount + " times, at most " + scenario.maxResizes + " expected");
+        }
+        for (String failure : failures) {
+            System.out.println("  FAILED: " + failure);
+        }
+        if (failures.isEmpty()) {
+            System.out.println("  passed, ending on " + instanceType + " after " + resizeCount + " resizes");
+        }
+        return failures.isEmpty();
+    }
+
+    private static @NotNull ServerHealth heartbeat(long nowMillis, @NotNull String instanceType, int players,
+                                                   int memoryMiB) {
+        int scale = 1 << SIZES.indexOf(instanceType.substring(instanceType.indexOf('.') + 1));
+        double millisPerTick = BASE_MILLIS_PER_TICK + MILLIS_PER_TICK_PER_PLAYER * players / scale;
+        double ticksPerSecond = Math.min(20, 1000 / millisPerTick);
+        long memoryTotalMiB = SMALLEST_MEMORY_MIB * scale;
+        return new ServerHealth(nowMillis, ticksPerSecond, millisPerTick, players, 100,
+                Math.min(memoryMiB, memoryTotalMiB), memoryTotalMiB);
+    }
+
+    private static @NotNull ServerStatus status(@NotNull UUID serverId, @NotNull String state,
+                                                @NotNull String instanceType, long resizedAtMillis,
+                                                @Nullable ServerHealth health) {
+        Map<String, String> values = new HashMap<>();
+        values.put("Id", serverId.toString());
+        values.put("ServerState", state);
+        values.put("LaunchProfile", instanceType);
+        values.put("ResizedAtMillis", Long.toString(resizedAtMillis));
+        if (health != null) {
+            values.put("Heartbeat", health.toString());
+        }
+        return ServerStatus.fromValues(serverId, values, null);
+    }
+}
@@ -0,0 +1,211 @@
+package osbourn.cloudcubes.manager;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import osbourn.cloudcubes.core.database.DynamoDBEntry;
+import osbourn.cloudcubes.core.database.ParallelScan;
+import osbourn.cloudcubes.core.server.ServerHealth;
+import osbourn.cloudcubes.core.server.ServerRecord;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <p>
+ * Keeps the latest {@link ServerStatus} of every server in memory, so that status requests are answered without a
+ * database read. A snapshot is served for {@link #REFRESH_INTERVAL_MILLIS} and then refreshed in the background while
+ * the old snapshot keeps being served; only the first read of a server waits for the database, and concurrent first
+ * reads share a single request.
+ * </p>
+ *
+ * <p>
+ * The manager invalidates a server whenever it changes it, so the next read waits for the new values instead of
+ * serving the ones from before the change. {@link #refreshAll()} reloads every server with a scan of the table, which
+ * keeps the cache warm and drops servers that no longer exist.
+ * </p>
+ */
+final class ServerCache {
+    private static final Logger LOGGER = Logger.getLogger(ServerCache.class.getName());
+    /**
+     * How long a snapshot is served before it is read again. The heartbeat only changes every
+     * {@link ServerHealth#HEARTBEAT_INTERVAL_MILLIS}, but the state and address of a server change whenever it comes
+     * online or goes offline, and a client waiting for a server to come online shouldn't see the old state for long.
+     * Refreshes run in the background, so a shorter interval only costs reads, not latency.
+     */
+    static final long REFRESH_INTERVAL_MILLIS = 5_000;
+    private static final int SCAN_SEGMENT_COUNT = 4;
+    /**
+     * The sweep only reads a few small attributes of each server, so this is enough for tens of thousands of servers
+     * per minute while leaving the table's capacity to the servers
+     */
+    private static final double SCAN_MAX_READ_CAPACITY_PER_SECOND = 100;
+
+    private final DynamoDbClient dynamoDbClient;
+    private final String tableName;
+    private final ExecutorService executor;
+    private final Map<UUID, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * Creates an empty ServerCache object.
+     *
+     * @param dynamoDbClient The shared client used to read the server table
+     * @param tableName      The name of the server table
+     * @param executor       The executor background refreshes run on
+     */
+    ServerCache(@NotNull DynamoDbClient dynamoDbClient, @NotNull String tableName, @NotNull ExecutorService executor) {
+        this.dynamoDbClient = dynamoDbClient;
+        this.tableName = tableName;
+        this.executor = executor;
+    }
+
+    /**
+     * Gets the latest snapshot of the server.
+     *
+     * @param serverId The id of the server
+     * @return The snapshot, which says whether the server exists
+     */
+    @NotNull ServerStatus get(@NotNull UUID serverId) {
+        Entry entry = entries.computeIfAbsent(serverId, Entry::new);
+        ServerStatus status = entry.status;
+        if (status == null) {
+            return entry.load();
+        }
+        if (System.currentTimeMillis() - entry.loadedAtMillis > REFRESH_INTERVAL_MILLIS) {
+            refreshInBackground(entry);
+        }
+        return status;
+    }
+
+    /**
+     * Forgets the snapshot of the server, so that the next read waits for the values in the database. This must be
+     * called after the manager changes the server.
+     *
+     * @param serverId The id of the server
+     */
+    void invalidate(@NotNull UUID serverId) {
+        Entry entry = entries.get(serverId);
+        if (entry != null) {
+            // A load that is in progress read the values from before the change, so it must not store them
+            entry.generation.incrementAndGet();
+            entry.invalidatedAtMillis = System.currentTimeMillis();
+            entry.status = null;
+        }
+    }
+
+    /**
+     * Reloads every server in the table with a parallel scan and forgets the servers that no longer exist.
+     *
+     * @return The snapshots of all servers
+     */
+    @NotNull List<ServerStatus> refreshAll() {
+        long scanStartMillis = System.currentTimeMillis();
+        List<ServerStatus> statuses = new ArrayList<>();
+        Set<UUID> seenIds = new HashSet<>();
+        ParallelScan scan = new ParallelScan(dynamoDbClient, tableName, ServerStatus.ATTRIBUTES,
+                SCAN_SEGMENT_COUNT, SCAN_MAX_READ_CAPACITY_PER_SECOND);
+        scan.forEachItem(item -> {
+            Map<String, String> values = new HashMap<>();
+            for (Map.Entry<String, AttributeValue> attribute : item.entrySet()) {
+                values.put(attribute.getKey(), attribute.getValue().s());
+            }
+            AttributeValue record = item.get(ServerRecord.SCHEMA.getAttributeName());
+            UUID serverId = UUID.fromString(values.get("Id"));
+            ServerStatus status = ServerStatus.fromValues(serverId, values,
+                    record != null && record.b() != null ? record.b().asByteArray() : null);
+            Entry entry = entries.computeIfAbsent(serverId, Entry::new);
+            // Servers changed since the scan started may have been read before the change
+            if (entry.invalidatedAtMillis < scanStartMillis) {
+                entry.store(status, scanStartMillis);
+            }
+            statuses.add(status);
+            seenIds.add(serverId);
+        });
+        entries.keySet().retainAll(seenIds);
+        return statuses;
+    }
+
+    /**
+     * @return The number of servers in the cache
+     */
+    int size() {
+        return entries.size();
+    }
+
+    private void refreshInBackground(@NotNull Entry entry) {
+        if (!entry.refreshing.compareAndSet(false, true)) {
+            return;
+        }
+        executor.execute(() -> {
+            try {
+                entry.load();
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Failed to refresh server " + entry.serverId, e);
+            } finally {
+                entry.refreshing.set(false);
+            }
+        });
+    }
+
+    private final class Entry {
+        private final UUID serverId;
+        /**
+         * Held while the entry is read from the database. A ReentrantLock is used rather than synchronized, since a
+         * virtual thread that blocks on I/O inside a synchronized block pins its carrier thread.
+         */
+        private final ReentrantLock loadLock = new ReentrantLock();
+        private final AtomicBoolean refreshing = new AtomicBoolean(false);
+        private final AtomicLong generation = new AtomicLong();
+        private volatile @Nullable ServerStatus status = null;
+        private volatile long loadedAtMillis = 0;
+        private volatile long invalidatedAtMillis = 0;
+
+        private Entry(UUID serverId) {
+            this.serverId = serverId;
+        }
+
+        private @NotNull ServerStatus load() {
+            long startGeneration = generation.get();
+            loadLock.lock();
+            try {
+                // Another thread may have loaded the entry while this one waited for the lock
+                ServerStatus loaded = status;
+                if (loaded != null && generation.get() == startGeneration
+                        && System.currentTimeMillis() - loadedAtMillis <= REFRESH_INTERVAL_MILLIS) {
+                    return loaded;
+                }
+                long loadGeneration = generation.get();
+                long nowMillis = System.currentTimeMillis();
+                DynamoDBEntry serverEntry = DynamoDBEntry.fromId(serverId, dynamoDbClient, tableName);
+                Map<String, String> values = serverEntry.requestStringValuesFromDatabase(ServerStatus.ATTRIBUTES);
+                // The record was read along with the string values
+                loaded = ServerStatus.fromValues(serverId, values,
+                        serverEntry.getBinaryValue(ServerRecord.SCHEMA.getAttributeName()));
+                if (generation.get() == loadGeneration) {
+                    store(loaded, nowMillis);
+                }
+                return loaded;
+            } finally {
+                loadLock.unlock();
+            }
+        }
+
+        private void store(@NotNull ServerStatus loaded, long loadedAtMillis) {
+            this.loadedAtMillis = loadedAtMillis;
+            this.status = loaded;
+        }
+    }
+}
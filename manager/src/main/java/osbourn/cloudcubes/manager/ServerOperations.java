@@ -0,0 +1,281 @@
+package osbourn.cloudcubes.manager;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import osbourn.cloudcubes.core.constructs.InfrastructureConfiguration;
+import osbourn.cloudcubes.core.constructs.InfrastructureConstructor;
+import osbourn.cloudcubes.core.server.CloudCubesServer;
+import osbourn.cloudcubes.core.server.InstanceBackend;
+import osbourn.cloudcubes.core.server.LaunchProfile;
+import osbourn.cloudcubes.core.server.ProvisionalServerState;
+import osbourn.cloudcubes.core.server.RegionLatencies;
+import osbourn.cloudcubes.core.server.ServerHealth;
+import software.amazon.awssdk.regions.Region;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <p>
+ * Starts and stops servers for the manager. Starting or stopping a server can take minutes, so each operation runs in
+ * the background and the request only waits for it to be accepted. A server has at most one operation at a time, which
+ * keeps repeated requests from launching several instances for the same server.
+ * </p>
+ *
+ * <p>
+ * The sweep stops servers that nobody is using: servers that have been empty for {@link #IDLE_STOP_AFTER_MILLIS}, and
+ * servers that are stored as ONLINE but stopped sending heartbeats, whose instance has crashed or hung and would
+ * otherwise keep running until someone stops it by hand. How long a server has been empty is only known to the manager,
+ * so a restart of the manager starts the idle time again.
+ * </p>
+ *
+ * <p>
+ * The sweep also resizes servers whose load calls for a larger or smaller instance, as decided by the
+ * {@link Autoscaler}. An online server is resized once it has been empty for a while, before it is stopped as idle; an
+ * offline server is given its new size for the next time it starts.
+ * </p>
+ *
+ * <p>
+ * Finally, the sweep moves offline servers to the region their players connect from, as decided by
+ * {@link RegionLatencies#getPreferredRegion()}. Moving a server copies its world, which takes a while, so servers are
+ * only moved while they are offline; the move is done by the time the server is next started, or the start waits for
+ * it.
+ * </p>
+ */
+final class ServerOperations {
+    private static final Logger LOGGER = Logger.getLogger(ServerOperations.class.getName());
+    static final long IDLE_STOP_AFTER_MILLIS = 15 * 60_000;
+
+    /**
+     * The result of a request to start or stop a server.
+     */
+    enum Result {
+        ACCEPTED,
+        NOT_FOUND,
+        ALREADY_IN_STATE,
+        BUSY
+    }
+
+    /**
+     * What a sweep did.
+     */
+    static final class SweepResult {
+        final int serverCount;
+        final int idleStopped;
+        final int unresponsiveStopped;
+        final int resized;
+        final int moved;
+
+        private SweepResult(int serverCount, int idleStopped, int unresponsiveStopped, int resized, int moved) {
+            this.serverCount = serverCount;
+            this.idleStopped = idleStopped;
+            this.unresponsiveStopped = unresponsiveStopped;
+            this.resized = resized;
+            this.moved = moved;
+        }
+
+        @NotNull String toJson() {
+            return "{\"servers\":" + serverCount + ",\"idleStopped\":" + idleStopped
+                    + ",\"unresponsiveStopped\":" + unresponsiveStopped + ",\"resized\":" + resized
+                    + ",\"moved\":" + moved + "}";
+        }
+    }
+
+    private final InfrastructureConstructor infrastructureConstructor;
+    private final ServerCache serverCache;
+    private final ExecutorService executor;
+    /**
+     * The operation running on each server, by name
+     */
+    private final Map<UUID, String> operations = new ConcurrentHashMap<>();
+    /**
+     * When each online server was first seen without players
+     */
+    private final Map<UUID, Long> emptySinceMillis = new ConcurrentHashMap<>();
+    private final Autoscaler autoscaler = new Autoscaler();
+
+    /**
+     * Creates a ServerOperations object.
+     *
+     * @param infrastructureConstructor The constructor holding the clients shared by all operations
+     * @param serverCache               The cache that is invalidated when a server is changed
+     * @param executor                  The executor operations run on
+     */
+    ServerOperations(@NotNull InfrastructureConstructor infrastructureConstructor,
+                     @NotNull ServerCache serverCache,
+                     @NotNull ExecutorService executor) {
+        this.infrastructureConstructor = infrastructureConstructor;
+        this.serverCache = serverCache;
+        this.executor = executor;
+    }
+
+    /**
+     * Gets the operation running on the server.
+     *
+     * @param serverId The id of the server
+     * @return The name of the operation, or null if there is none
+     */
+    @Nullable String getOperation(@NotNull UUID serverId) {
+        return operations.get(serverId);
+    }
+
+    /**
+     * Gets the profile the server will be resized to once it is empty.
+     *
+     * @param serverId The id of the server
+     * @return The pending profile, or null if the server keeps its size
+     */
+    @Nullable LaunchProfile getPendingLaunchProfile(@NotNull UUID serverId) {
+        return autoscaler.getPendingProfile(serverId);
+    }
+
+    /**
+     * Starts the server in the background unless it is already online or another operation is running on it.
+     *
+     * @param serverId The id of the server
+     * @return Whether the start was accepted
+     */
+    @NotNull Result start(@NotNull UUID serverId) {
+        ServerStatus status = serverCache.get(serverId);
+        if (!status.exists()) {
+            return Result.NOT_FOUND;
+        }
+        if (status.getState(System.currentTimeMillis()) == ProvisionalServerState.ONLINE) {
+            return Result.ALREADY_IN_STATE;
+        }
+        return submit(serverId, "start", CloudCubesServer::startServer);
+    }
+
+    /**
+     * Stops the server in the background unless it is already offline or another operation is running on it.
+     *
+     * @param serverId The id of the server
+     * @return Whether the stop was accepted
+     */
+    @NotNull Result stop(@NotNull UUID serverId) {
+        ServerStatus status = serverCache.get(serverId);
+        if (!status.exists()) {
+            return Result.NOT_FOUND;
+        }
+        if (status.getState(System.currentTimeMillis()) == ProvisionalServerState.OFFLINE) {
+            return Result.ALREADY_IN_STATE;
+        }
+        return submit(serverId, "stop", CloudCubesServer::stopServer);
+    }
+
+    /**
+     * Reloads every server, stops the servers that are idle or unresponsive, resizes the servers whose load calls
+     * for it and moves offline servers to the region their players connect from. The stops, resizes and moves run in
+     * the background.
+     *
+     * @return What the sweep did
+     */
+    @NotNull SweepResult sweep() {
+        List<ServerStatus> statuses = serverCache.refreshAll();
+        long nowMillis = System.currentTimeMillis();
+        int idleStopped = 0;
+        int unresponsiveStopped = 0;
+        int resized = 0;
+        int moved = 0;
+        Set<UUID> serverIds = new HashSet<>();
+        for (ServerStatus status : statuses) {
+            UUID serverId = status.getId();
+            serverIds.add(serverId);
+            if (!status.isStoredOnline()) {
+                emptySinceMillis.remove(serverId);
+                if (resize(serverId, autoscaler.update(status, nowMillis))) {
+                    resized++;
+                } else if (move(status, nowMillis)) {
+                    moved++;
+                }
+                continue;
+            }
+            ServerHealth health = status.getHealth();
+            if (ServerHealth.getStatus(health, nowMillis) == ServerHealth.Status.UNRESPONSIVE) {
+                if (submit(serverId, "stop", CloudCubesServer::stopServer) == Result.ACCEPTED) {
+                    LOGGER.info("Stopping unresponsive server " + serverId);
+                    unresponsiveStopped++;
+                }
+                continue;
+            }
+            if (resize(serverId, autoscaler.update(status, nowMillis))) {
+                emptySinceMillis.remove(serverId);
+                resized++;
+                continue;
+            }
+            if (health == null || health.getPlayerCount() != 0) {
+                emptySinceMillis.remove(serverId);
+                continue;
+            }
+            long emptySince = emptySinceMillis.computeIfAbsent(serverId, id -> nowMillis);
+            if (nowMillis - emptySince >= IDLE_STOP_AFTER_MILLIS
+                    && submit(serverId, "stop", CloudCubesServer::stopServer) == Result.ACCEPTED) {
+                LOGGER.info("Stopping idle server " + serverId);
+                emptySinceMillis.remove(serverId);
+                idleStopped++;
+            }
+        }
+        // Servers that were deleted are no longer tracked
+        emptySinceMillis.keySet().retainAll(serverIds);
+        autoscaler.retainAll(serverIds);
+        return new SweepResult(statuses.size(), idleStopped, unresponsiveStopped, resized, moved);
+    }
+
+    private boolean move(@NotNull ServerStatus status, long nowMillis) {
+        if (status.getBackend() != InstanceBackend.EC2_SPOT || status.isMoving()
+                || status.getState(nowMillis) != ProvisionalServerState.OFFLINE) {
+            return false;
+        }
+        InfrastructureConfiguration configuration = infrastructureConstructor.getInfrastructureConfiguration();
+        Region region = status.getRegionLatencies().getPreferredRegion();
+        if (region == null || region.equals(status.getHomeRegion(configuration.getRegion()))
+                || !configuration.getServerRegions().contains(region)
+                || submit(status.getId(), "move", server -> server.moveToRegion(region)) != Result.ACCEPTED) {
+            return false;
+        }
+        LOGGER.info("Moving server " + status.getId() + " to " + region);
+        return true;
+    }
+
+    private boolean resize(@NotNull UUID serverId, @Nullable LaunchProfile launchProfile) {
+        if (launchProfile == null
+                || submit(serverId, "resize", server -> server.resize(launchProfile)) != Result.ACCEPTED) {
+            return false;
+        }
+        LOGGER.info("Resizing server " + serverId + " to " + launchProfile);
+        autoscaler.resized(serverId);
+        return true;
+    }
+
+    private @NotNull Result submit(@NotNull UUID serverId,
+                                   @NotNull String name,
+                                   @NotNull Consumer<CloudCubesServer> action) {
+        if (operations.putIfAbsent(serverId, name) != null) {
+            return Result.BUSY;
+        }
+        serverCache.invalidate(serverId);
+        executor.execute(() -> {
+            try {
+                LOGGER.info("Running " + name + " on server " + serverId);
+                action.accept(CloudCubesServer.fromId(serverId, infrastructureConstructor));
+            } catch (IllegalStateException e) {
+                // The server changed state after it was read from the cache
+                LOGGER.info("Could not " + name + " server " + serverId + ": " + e.getMessage());
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Failed to " + name + " server " + serverId, e);
+            } finally {
+                operations.remove(serverId);
+                serverCache.invalidate(serverId);
+            }
+        });
+        return Result.ACCEPTED;
+    }
+}
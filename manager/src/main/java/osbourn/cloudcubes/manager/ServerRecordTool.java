@@ -0,0 +1,195 @@
+package osbourn.cloudcubes.manager;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import osbourn.cloudcubes.core.constructs.InfrastructureConfiguration;
+import osbourn.cloudcubes.core.constructs.InfrastructureConfiguration.InfrastructureSetting;
+import osbourn.cloudcubes.core.constructs.InfrastructureConstructor;
+import osbourn.cloudcubes.core.database.DynamoDBEntry;
+import osbourn.cloudcubes.core.database.PackedRecord;
+import osbourn.cloudcubes.core.database.ParallelScan;
+import osbourn.cloudcubes.core.database.RecordField;
+import osbourn.cloudcubes.core.server.ServerRecord;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * <p>
+ * Moves the servers in the server table to the packed {@link ServerRecord}, and measures what that saves. The tool is
+ * run with one of these commands:
+ * </p>
+ * <ul>
+ *     <li>{@code benchmark}: reads every server and compares the size of the items as they are stored with the size
+ *     they would have with their fields packed, and the read and write units that costs</li>
+ *     <li>{@code migrate}: packs the fields of every server that still has them as string attributes</li>
+ * </ul>
+ *
+ * <p>
+ * Both commands read the whole table with a {@link ParallelScan}. The configuration is read from the environment, like
+ * the {@link ManagerDaemon}, including {@code DYNAMODB_ENDPOINT}.
+ * </p>
+ */
+public class ServerRecordTool {
+    private static final int SCAN_SEGMENT_COUNT = 4;
+    private static final double SCAN_MAX_READ_CAPACITY_PER_SECOND = 200;
+    /**
+     * The size of a read capacity unit, and of a write capacity unit, in bytes
+     */
+    private static final int READ_UNIT_BYTES = 4096;
+    private static final int WRITE_UNIT_BYTES = 1024;
+    private static final String RECORD_ATTRIBUTE = ServerRecord.SCHEMA.getAttributeName();
+
+    public static void main(String[] args) {
+        if (args.length != 1 || !(args[0].equals("benchmark") || args[0].equals("migrate"))) {
+            System.err.println("Usage: ServerRecordTool benchmark|migrate");
+            System.exit(2);
+            return;
+        }
+        String dynamoDBEndpoint = System.getenv("DYNAMODB_ENDPOINT");
+        InfrastructureConfiguration configuration = InfrastructureConfiguration.fromEnvironment();
+        InfrastructureConstructor infrastructureConstructor = new InfrastructureConstructor(configuration,
+                dynamoDBEndpoint != null ? URI.create(dynamoDBEndpoint) : null);
+        DynamoDbClient dynamoDbClient = infrastructureConstructor.getDynamoDBClient();
+        String tableName = configuration.getValue(InfrastructureSetting.SERVERDATABASENAME);
+
+        if (args[0].equals("benchmark")) {
+            benchmark(dynamoDbClient, tableName);
+        } else {
+            migrate(dynamoDbClient, tableName);
+        }
+    }
+
+    private static void benchmark(@NotNull DynamoDbClient dynamoDbClient, @NotNull String tableName) {
+        ParallelScan scan = new ParallelScan(dynamoDbClient, tableName, null, SCAN_SEGMENT_COUNT,
+                SCAN_MAX_READ_CAPACITY_PER_SECOND);
+        long[] totals = new long[7];
+        long itemCount = scan.forEachItem(item -> {
+            long currentSize = itemSize(item);
+            long packedSize = packedItemSize(item);
+            synchronized (totals) {
+                totals[0] += currentSize;
+                totals[1] += packedSize;
+                totals[2] += units(currentSize, READ_UNIT_BYTES);
+                totals[3] += units(packedSize, READ_UNIT_BYTES);
+                // A heartbeat is charged for the size of the whole item it is written to
+                totals[4] += units(currentSize, WRITE_UNIT_BYTES);
+                totals[5] += units(packedSize, WRITE_UNIT_BYTES);
+                totals[6] += item.containsKey(RECORD_ATTRIBUTE) ? 1 : 0;
+            }
+        });
+        if (itemCount == 0) {
+            System.out.println("The table is empty");
+            return;
+        }
+
+        System.out.printf("Servers: %d, of which %d have a record%n", itemCount, totals[6]);
+        System.out.printf("Average item size: %.1f bytes as stored, %.1f bytes packed (%.1f%% smaller)%n",
+                (double) totals[0] / itemCount, (double) totals[1] / itemCount,
+                percentSaved(totals[0], totals[1]));
+        // A scan rounds up the size of a whole page, rather than of each item, and eventually consistent reads cost
+        // half as much
+        System.out.printf("Eventually consistent scan: %.1f read units as stored, %.1f read units packed%n",
+                Math.ceil((double) totals[0] / READ_UNIT_BYTES) / 2,
+                Math.ceil((double) totals[1] / READ_UNIT_BYTES) / 2);
+        System.out.printf("Strongly consistent reads of every server: %d read units as stored, %d read units packed%n",
+                totals[2], totals[3]);
+        System.out.printf("Heartbeat of every server: %d write units as stored, %d write units packed%n",
+                totals[4], totals[5]);
+        System.out.printf("Read units consumed by this benchmark: %.1f%n", scan.getConsumedReadCapacity());
+    }
+
+    private static void migrate(@NotNull DynamoDbClient dynamoDbClient, @NotNull String tableName) {
+        ParallelScan scan = new ParallelScan(dynamoDbClient, tableName, null, SCAN_SEGMENT_COUNT,
+                SCAN_MAX_READ_CAPACITY_PER_SECOND);
+        long[] migratedCount = new long[1];
+        long itemCount = scan.forEachItem(item -> {
+            // The entry is read again by the migration, since it may have changed since the scan read it
+            DynamoDBEntry serverEntry = DynamoDBEntry.fromId(UUID.fromString(item.get("Id").s()), dynamoDbClient,
+                    tableName);
+            if (ServerRecord.of(serverEntry).migrate()) {
+                synchronized (migratedCount) {
+                    migratedCount[0]++;
+                }
+            }
+        });
+        System.out.printf("Migrated %d of %d servers, %.1f read units consumed by the scan%n",
+                migratedCount[0], itemCount, scan.getConsumedReadCapacity());
+    }
+
+    /**
+     * @return The size DynamoDB charges for: the names and values of the attributes
+     */
+    private static long itemSize(@NotNull Map<String, AttributeValue> item) {
+        long size = 0;
+        for (Map.Entry<String, AttributeValue> attribute : item.entrySet()) {
+            size += attributeSize(attribute.getKey(), attribute.getValue());
+        }
+        return size;
+    }
+
+    /**
+     * @return The size the item would have after {@link osbourn.cloudcubes.core.database.TypedRecord#migrate()}
+     */
+    private static long packedItemSize(@NotNull Map<String, AttributeValue> item) {
+        AttributeValue currentRecord = item.get(RECORD_ATTRIBUTE);
+        PackedRecord record = currentRecord != null && currentRecord.b() != null
+                ? PackedRecord.decode(ServerRecord.SCHEMA, currentRecord.b().asByteArray())
+                : PackedRecord.empty(ServerRecord.SCHEMA);
+        long size = 0;
+        for (Map.Entry<String, AttributeValue> attribute : item.entrySet()) {
+            String name = attribute.getKey();
+            RecordField<?> field = fieldNamed(name);
+            if (field != null && attribute.getValue().s() != null) {
+                record = with(record, field, attribute.getValue().s());
+            } else if (!name.equals(RECORD_ATTRIBUTE)) {
+                size += attributeSize(name, attribute.getValue());
+            }
+        }
+        return size + nameSize(RECORD_ATTRIBUTE) + record.encode().length;
+    }
+
+    private static <T> @NotNull PackedRecord with(@NotNull PackedRecord record,
+                                                  @NotNull RecordField<T> field,
+                                                  @NotNull String value) {
+        return record.with(field, field.getCodec().parse(value));
+    }
+
+    private static @Nullable RecordField<?> fieldNamed(@NotNull String name) {
+        for (RecordField<?> field : ServerRecord.SCHEMA.getFields()) {
+            if (field.getName().equals(name)) {
+                return field;
+            }
+        }
+        return null;
+    }
+
+    private static long attributeSize(@NotNull String name, @NotNull AttributeValue value) {
+        long valueSize;
+        if (value.s() != null) {
+            valueSize = value.s().getBytes(StandardCharsets.UTF_8).length;
+        } else if (value.b() != null) {
+            valueSize = value.b().asByteArray().length;
+        } else {
+            // CloudCubes writes no other types
+            valueSize = 0;
+        }
+        return nameSize(name) + valueSize;
+    }
+
+    private static long nameSize(@NotNull String name) {
+        return name.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    private static long units(long size, int unitBytes) {
+        return Math.max(1, (size + unitBytes - 1) / unitBytes);
+    }
+
+    private static double percentSaved(long before, long after) {
+        return before == 0 ? 0 : 100.0 * (before - after) / before;
+    }
+}
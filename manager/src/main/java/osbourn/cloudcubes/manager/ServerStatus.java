@@ -0,0 +1,196 @@
+package osbourn.cloudcubes.manager;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import osbourn.cloudcubes.core.server.InstanceBackend;
+import osbourn.cloudcubes.core.server.LaunchProfile;
+import osbourn.cloudcubes.core.server.ProvisionalServerState;
+import osbourn.cloudcubes.core.server.RegionLatencies;
+import osbourn.cloudcubes.core.server.ServerHealth;
+import osbourn.cloudcubes.core.server.ServerRecord;
+import software.amazon.awssdk.regions.Region;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * A snapshot of the attributes of a server that the manager reports and sweeps on. The snapshot is read with a single
+ * request, and the state is worked out when it is used, since whether the heartbeat is fresh depends on the time.
+ */
+final class ServerStatus {
+    /**
+     * The attributes read for a snapshot. The id is included so that a server that doesn't exist can be told apart
+     * from one without any of the other attributes. The state, heartbeat and resize time are packed into the record
+     * of migrated servers, and are string attributes of the others.
+     */
+    static final List<String> ATTRIBUTES = Collections.unmodifiableList(Arrays.asList(
+            "Id", ServerRecord.SCHEMA.getAttributeName(), "ServerState", "ServerAddress", "DisplayName",
+            "InstanceBackend", "Heartbeat", "LaunchProfile", "ResizedAtMillis", "HomeRegion", "RegionLatencies",
+            "VolumeTransfer"));
+
+    private final UUID id;
+    private final boolean exists;
+    private final @Nullable String storedState;
+    private final @Nullable String address;
+    private final @Nullable String displayName;
+    private final @Nullable String backend;
+    private final @Nullable ServerHealth health;
+    private final @Nullable String launchProfile;
+    private final @Nullable String resizedAtMillis;
+    private final @Nullable String homeRegion;
+    private final @Nullable String regionLatencies;
+    private final boolean moving;
+
+    private ServerStatus(UUID id, Map<String, String> values) {
+        this.id = id;
+        this.exists = values.get("Id") != null;
+        this.storedState = values.get("ServerState");
+        this.address = values.get("ServerAddress");
+        this.displayName = values.get("DisplayName");
+        this.backend = values.get("InstanceBackend");
+        this.health = ServerHealth.fromString(values.get("Heartbeat"));
+        this.launchProfile = values.get("LaunchProfile");
+        this.resizedAtMillis = values.get("ResizedAtMillis");
+        this.homeRegion = values.get("HomeRegion");
+        this.regionLatencies = values.get("RegionLatencies");
+        this.moving = values.get("VolumeTransfer") != null;
+    }
+
+    /**
+     * Creates a snapshot from the values of {@link #ATTRIBUTES}.
+     *
+     * @param id     The id of the server
+     * @param values The string values that were read; missing attributes may be absent or null
+     * @param record The record that was read, or null if the server has none
+     * @return The snapshot
+     */
+    static @NotNull ServerStatus fromValues(@NotNull UUID id,
+                                            @NotNull Map<String, String> values,
+                                            @Nullable byte[] record) {
+        return new ServerStatus(id, ServerRecord.SCHEMA.toStringValues(values, record));
+    }
+
+    @NotNull UUID getId() {
+        return id;
+    }
+
+    /**
+     * @return False if there is no server with this id in the database
+     */
+    boolean exists() {
+        return exists;
+    }
+
+    /**
+     * Gets the state of the server in the same way as {@code CloudCubesServer#getServerState()}: a server that is
+     * stored as ONLINE but has stopped sending heartbeats is UNKNOWN.
+     *
+     * @param nowMillis The current time in milliseconds since the epoch
+     * @return The state of the server
+     */
+    @NotNull ProvisionalServerState getState(long nowMillis) {
+        if (storedState == null || storedState.equals("OFFLINE")) {
+            return ProvisionalServerState.OFFLINE;
+        } else if (storedState.equals("ONLINE")) {
+            return health != null && health.isFresh(nowMillis)
+                    ? ProvisionalServerState.ONLINE
+                    : ProvisionalServerState.UNKNOWN;
+        } else {
+            return ProvisionalServerState.UNKNOWN;
+        }
+    }
+
+    /**
+     * @return True if the database says the server is online, whether or not it is still sending heartbeats
+     */
+    boolean isStoredOnline() {
+        return "ONLINE".equals(storedState);
+    }
+
+    @Nullable ServerHealth getHealth() {
+        return health;
+    }
+
+    @NotNull InstanceBackend getBackend() {
+        return InstanceBackend.fromString(backend);
+    }
+
+    @NotNull LaunchProfile getLaunchProfile() {
+        return LaunchProfile.fromString(launchProfile);
+    }
+
+    /**
+     * @return When the server was last resized, or 0 if it never was
+     */
+    long getResizedAtMillis() {
+        return resizedAtMillis != null ? Long.parseLong(resizedAtMillis) : 0;
+    }
+
+    /**
+     * Gets the region the server runs in.
+     *
+     * @param defaultRegion The region of servers that have never been assigned one
+     * @return The home region of the server
+     */
+    @NotNull Region getHomeRegion(@NotNull Region defaultRegion) {
+        return homeRegion != null ? Region.of(homeRegion) : defaultRegion;
+    }
+
+    @NotNull RegionLatencies getRegionLatencies() {
+        return RegionLatencies.fromString(regionLatencies);
+    }
+
+    /**
+     * @return True if the data volume of the server is being moved to another zone or region
+     */
+    boolean isMoving() {
+        return moving;
+    }
+
+    /**
+     * Writes the snapshot as a JSON object.
+     *
+     * @param nowMillis            The current time in milliseconds since the epoch
+     * @param operation            The operation the manager is running on the server, or null if there is none
+     * @param pendingLaunchProfile The profile the server will be moved to once it is empty, or null if there is none
+     * @return The JSON object
+     */
+    @NotNull String toJson(long nowMillis, @Nullable String operation, @Nullable LaunchProfile pendingLaunchProfile) {
+        StringBuilder json = new StringBuilder("{");
+        appendField(json, "id", id.toString());
+        appendField(json, "state", getState(nowMillis).name());
+        appendField(json, "health", ServerHealth.getStatus(health, nowMillis).name());
+        appendField(json, "displayName", displayName);
+        appendField(json, "address", address);
+        appendField(json, "backend", backend);
+        appendField(json, "launchProfile", getLaunchProfile().getInstanceType());
+        appendField(json, "pendingLaunchProfile",
+                pendingLaunchProfile != null ? pendingLaunchProfile.getInstanceType() : null);
+        appendField(json, "operation", operation);
+        json.append("\"players\":").append(health != null ? health.getPlayerCount() : -1);
+        return json.append('}').toString();
+    }
+
+    private static void appendField(StringBuilder json, String name, @Nullable String value) {
+        json.append('"').append(name).append("\":");
+        if (value == null) {
+            json.append("null");
+        } else {
+            json.append('"');
+            for (char c : value.toCharArray()) {
+                if (c == '"' || c == '\\') {
+                    json.append('\\').append(c);
+                } else if (c < 0x20) {
+                    json.append(String.format("\\u%04x", (int) c));
+                } else {
+                    json.append(c);
+                }
+            }
+            json.append('"');
+        }
+        json.append(',');
+    }
+}
@@ -0,0 +1,200 @@
+package osbourn.cloudcubes.proxy;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import osbourn.cloudcubes.core.constructs.InfrastructureConstructor;
+import osbourn.cloudcubes.core.server.CloudCubesServer;
+import osbourn.cloudcubes.core.server.ProvisionalServerState;
+import osbourn.cloudcubes.core.server.ServerStartingException;
+
+import software.amazon.awssdk.regions.Region;
+
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps track of where each server is running and starts servers on request. Every call to the database or to EC2 is
+ * made on a background executor so that the proxy's selector thread never blocks; the selector thread only ever reads
+ * the values cached here.
+ */
+final class BackendDirectory {
+    private static final Logger LOGGER = Logger.getLogger(BackendDirectory.class.getName());
+    private static final int DEFAULT_MINECRAFT_PORT = 25565;
+    /**
+     * How long a looked-up address is trusted before it is looked up again
+     */
+    private static final long ADDRESS_REFRESH_INTERVAL_MILLIS = 5_000;
+    /**
+     * How long to wait before asking for a server to be started again. Launching a spot instance and booting the
+     * server takes a few minutes, and repeated requests while it boots must not launch more instances.
+     */
+    private static final long START_REQUEST_COOLDOWN_MILLIS = 5 * 60_000;
+
+    private final InfrastructureConstructor infrastructureConstructor;
+    private final ExecutorService executor;
+    private final Map<UUID, Backend> backends = new ConcurrentHashMap<>();
+    /**
+     * Latency measurements that haven't been written to the database yet, stored as {sum of milliseconds, count}
+     */
+    private final Map<UUID, double[]> pendingLatencySamples = new HashMap<>();
+
+    BackendDirectory(InfrastructureConstructor infrastructureConstructor, ExecutorService executor) {
+        this.infrastructureConstructor = infrastructureConstructor;
+        this.executor = executor;
+    }
+
+    /**
+     * Gets the last known address of the server. If the cached value is out of date, a refresh is scheduled in the
+     * background and the old value is returned.
+     *
+     * @param serverId The id of the server
+     * @return The address of the server, or null if it is not known to be running
+     */
+    @Nullable InetSocketAddress getAddress(@NotNull UUID serverId) {
+        Backend backend = backend(serverId);
+        if (System.currentTimeMillis() - backend.lastRefreshMillis > ADDRESS_REFRESH_INTERVAL_MILLIS) {
+            refresh(serverId, backend);
+        }
+        return backend.address;
+    }
+
+    /**
+     * Forgets the cached address of the server, for example because connecting to it failed.
+     *
+     * @param serverId The id of the server
+     */
+    void invalidate(@NotNull UUID serverId) {
+        Backend backend = backend(serverId);
+        backend.lastRefreshMillis = 0;
+        refresh(serverId, backend);
+    }
+
+    /**
+     * Returns true if a start was requested for the server recently enough that it is probably still booting.
+     *
+     * @param serverId The id of the server
+     * @return True if the server is starting
+     */
+    boolean isStarting(@NotNull UUID serverId) {
+        return System.currentTimeMillis() - backend(serverId).lastStartRequestMillis < START_REQUEST_COOLDOWN_MILLIS;
+    }
+
+    /**
+     * Asks for the server to be started unless a start has been requested recently.
+     *
+     * @param serverId The id of the server
+     */
+    void requestStart(@NotNull UUID serverId) {
+        Backend backend = backend(serverId);
+        synchronized (backend) {
+            if (isStarting(serverId)) {
+                return;
+            }
+            backend.lastStartRequestMillis = System.currentTimeMillis();
+        }
+        executor.execute(() -> {
+            try {
+                LOGGER.info("Starting server " + serverId);
+                CloudCubesServer server = CloudCubesServer.fromId(serverId, infrastructureConstructor);
+                try {
+                    server.startServer();
+                } catch (ServerStartingException e) {
+                    // An earlier start is still launching the server; its address will be picked up once it is online
+                    LOGGER.info("Server " + serverId + " is still starting");
+                } catch (IllegalStateException e) {
+                    if (server.getServerState() != ProvisionalServerState.ONLINE) {
+                        throw e;
+                    }
+                    // The server is already online; its address will be picked up by the next refresh
+                    LOGGER.info("Server " + serverId + " is already online");
+                    invalidate(serverId);
+                }
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Failed to start server " + serverId, e);
+                backend.lastStartRequestMillis = 0;
+            }
+        });
+    }
+
+    /**
+     * Records the round trip time a player measured to this proxy while looking at the server. The measurements are
+     * collected in memory and written by {@link #flushLatencySamples()}, since only long-term averages are kept and
+     * not every sample needs to be written immediately.
+     *
+     * @param serverId      The id of the server
+     * @param latencyMillis The measured round trip time in milliseconds
+     */
+    synchronized void recordLatency(@NotNull UUID serverId, double latencyMillis) {
+        double[] samples = pendingLatencySamples.computeIfAbsent(serverId, id -> new double[2]);
+        samples[0] += latencyMillis;
+        samples[1] += 1;
+    }
+
+    /**
+     * Writes the collected latency measurements to the database in the background. The measurements are attributed to
+     * the region this proxy runs in.
+     */
+    synchronized void flushLatencySamples() {
+        Region region = infrastructureConstructor.getInfrastructureConfiguration().getRegion();
+        for (Map.Entry<UUID, double[]> entry : pendingLatencySamples.entrySet()) {
+            UUID serverId = entry.getKey();
+            int sampleCount = (int) entry.getValue()[1];
+            double averageMillis = entry.getValue()[0] / sampleCount;
+            executor.execute(() -> {
+                try {
+                    CloudCubesServer.fromId(serverId, infrastructureConstructor)
+                            .recordPlayerLatency(region, averageMillis, sampleCount);
+                } catch (RuntimeException e) {
+                    LOGGER.log(Level.WARNING, "Failed to record player latency for server " + serverId, e);
+                }
+            });
+        }
+        pendingLatencySamples.clear();
+    }
+
+    private void refresh(@NotNull UUID serverId, @NotNull Backend backend) {
+        if (!backend.refreshing.compareAndSet(false, true)) {
+            return;
+        }
+        executor.execute(() -> {
+            try {
+                String address = CloudCubesServer.fromId(serverId, infrastructureConstructor).getServerAddress();
+                backend.address = address == null ? null : parseAddress(address);
+                backend.lastRefreshMillis = System.currentTimeMillis();
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Failed to look up the address of server " + serverId, e);
+            } finally {
+                backend.refreshing.set(false);
+            }
+        });
+    }
+
+    // Called from the executor, since constructing the address resolves the hostname
+    private static @NotNull InetSocketAddress parseAddress(@NotNull String address) {
+        int colonIndex = address.lastIndexOf(':');
+        if (colonIndex < 0) {
+            return new InetSocketAddress(address, DEFAULT_MINECRAFT_PORT);
+        }
+        return new InetSocketAddress(
+                address.substring(0, colonIndex),
+                Integer.parseInt(address.substring(colonIndex + 1)));
+    }
+
+    private @NotNull Backend backend(@NotNull UUID serverId) {
+        return backends.computeIfAbsent(serverId, id -> new Backend());
+    }
+
+    private static final class Backend {
+        private volatile @Nullable InetSocketAddress address = null;
+        private volatile long lastRefreshMillis = 0;
+        private volatile long lastStartRequestMillis = 0;
+        private final AtomicBoolean refreshing = new AtomicBoolean(false);
+    }
+}
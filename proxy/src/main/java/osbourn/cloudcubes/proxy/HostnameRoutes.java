@@ -0,0 +1,57 @@
+package osbourn.cloudcubes.proxy;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+
+/**
+ * Maps the hostnames that players connect with to the ids of the servers they want to join. Many hostnames can point
+ * at the same proxy, so the hostname sent in the handshake is the only way to tell which server a player wants.
+ */
+public final class HostnameRoutes {
+    private final Map<String, UUID> routes;
+
+    private HostnameRoutes(Map<String, UUID> routes) {
+        this.routes = routes;
+    }
+
+    /**
+     * Loads routes from a properties file where each key is a hostname and each value is a server id, for example
+     * {@code survival.example.com=80000000-0000-0000-8000-000000000000}.
+     *
+     * @param path The path of the properties file
+     * @return The routes that were loaded
+     * @throws IOException If the file could not be read
+     * @throws IllegalArgumentException If a value is not a valid server id
+     */
+    public static @NotNull HostnameRoutes fromPropertiesFile(@NotNull Path path) throws IOException {
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        }
+        Map<String, UUID> routes = new HashMap<>();
+        for (String hostname : properties.stringPropertyNames()) {
+            routes.put(hostname.toLowerCase(), UUID.fromString(properties.getProperty(hostname).trim()));
+        }
+        return new HostnameRoutes(routes);
+    }
+
+    /**
+     * Gets the server that a hostname routes to.
+     *
+     * @param hostname The normalized hostname sent by the client
+     * @return The id of the server, or null if the hostname is not routed to any server
+     */
+    public @Nullable UUID getServerId(@NotNull String hostname) {
+        return routes.get(hostname);
+    }
+}
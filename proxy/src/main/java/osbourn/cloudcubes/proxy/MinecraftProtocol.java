@@ -0,0 +1,216 @@
+package osbourn.cloudcubes.proxy;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.net.ProtocolException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Helpers for the small subset of the Minecraft Java Edition protocol that the wake proxy needs to understand: the
+ * handshake packet, the status exchange and the login disconnect packet. Everything after the handshake is forwarded
+ * to the server without being parsed.
+ * See https://wiki.vg/Protocol for a description of the packet format.
+ */
+final class MinecraftProtocol {
+    /**
+     * The largest packet the proxy will accept before the connection is handed to the server. The handshake and login
+     * start packets are far smaller than this.
+     */
+    static final int MAX_PRE_LOGIN_PACKET_LENGTH = 2048;
+
+    static final int HANDSHAKE_PACKET_ID = 0x00;
+    static final int STATUS_REQUEST_PACKET_ID = 0x00;
+    static final int STATUS_PING_PACKET_ID = 0x01;
+    static final int STATUS_RESPONSE_PACKET_ID = 0x00;
+    static final int LOGIN_DISCONNECT_PACKET_ID = 0x00;
+
+    static final int NEXT_STATE_STATUS = 1;
+    static final int NEXT_STATE_LOGIN = 2;
+    static final int NEXT_STATE_TRANSFER = 3;
+
+    /**
+     * The first byte sent by clients older than 1.7 when pinging a server. These clients are not supported.
+     */
+    static final byte LEGACY_PING_BYTE = (byte) 0xFE;
+
+    private MinecraftProtocol() {
+    }
+
+    /**
+     * Reads the next length-prefixed packet from the buffer. If the buffer does not yet contain the whole packet, the
+     * position of the buffer is left unchanged and null is returned.
+     *
+     * @param buffer A buffer in read mode
+     * @return A buffer containing the packet id and body, or null if the packet is incomplete
+     * @throws ProtocolException If the packet length is invalid
+     */
+    static @Nullable ByteBuffer readFrame(@NotNull ByteBuffer buffer) throws ProtocolException {
+        int start = buffer.position();
+        try {
+            int length = readVarInt(buffer);
+            if (length <= 0 || length > MAX_PRE_LOGIN_PACKET_LENGTH) {
+                throw new ProtocolException("Invalid packet length " + length);
+            }
+            if (buffer.remaining() < length) {
+                buffer.position(start);
+                return null;
+            }
+            ByteBuffer frame = buffer.slice();
+            frame.limit(length);
+            buffer.position(buffer.position() + length);
+            return frame;
+        } catch (BufferUnderflowException e) {
+            buffer.position(start);
+            return null;
+        }
+    }
+
+    static int readVarInt(@NotNull ByteBuffer buffer) throws ProtocolException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new ProtocolException("VarInt is too long");
+    }
+
+    static @NotNull String readString(@NotNull ByteBuffer buffer, int maxLength) throws ProtocolException {
+        int length = readVarInt(buffer);
+        // Strings are limited by character count, and each character takes at most 3 bytes in UTF-8
+        if (length < 0 || length > maxLength * 3) {
+            throw new ProtocolException("Invalid string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Parses a handshake packet, which is always the first packet sent by a client.
+     *
+     * @param frame A frame returned by {@link #readFrame(ByteBuffer)}
+     * @return The parsed handshake
+     * @throws ProtocolException If the frame is not a valid handshake packet
+     */
+    static @NotNull Handshake readHandshake(@NotNull ByteBuffer frame) throws ProtocolException {
+        try {
+            int packetId = readVarInt(frame);
+            if (packetId != HANDSHAKE_PACKET_ID) {
+                throw new ProtocolException("Expected a handshake packet but got packet " + packetId);
+            }
+            int protocolVersion = readVarInt(frame);
+            String serverAddress = readString(frame, 255);
+            int port = frame.getShort() & 0xFFFF;
+            int nextState = readVarInt(frame);
+            return new Handshake(protocolVersion, serverAddress, port, nextState);
+        } catch (BufferUnderflowException e) {
+            throw new ProtocolException("Handshake packet is truncated");
+        }
+    }
+
+    /**
+     * Encodes a status response packet that makes the server list show the given message.
+     *
+     * @param protocolVersion The protocol version sent by the client, echoed so the client doesn't report a mismatch
+     * @param message         The message of the day to show
+     * @return The encoded packet, ready to be written
+     */
+    static @NotNull ByteBuffer statusResponse(int protocolVersion, @NotNull String message) {
+        String json = "{\"version\":{\"name\":\"CloudCubes\",\"protocol\":" + protocolVersion + "}," +
+                "\"players\":{\"max\":0,\"online\":0}," +
+                "\"description\":{\"text\":\"" + escapeJson(message) + "\"}}";
+        return packet(STATUS_RESPONSE_PACKET_ID, json);
+    }
+
+    /**
+     * Encodes a login disconnect packet, which closes a login attempt with a message shown to the player.
+     *
+     * @param message The message to show
+     * @return The encoded packet, ready to be written
+     */
+    static @NotNull ByteBuffer loginDisconnect(@NotNull String message) {
+        return packet(LOGIN_DISCONNECT_PACKET_ID, "{\"text\":\"" + escapeJson(message) + "\"}");
+    }
+
+    /**
+     * Re-encodes a frame as a packet, used to answer status pings with the same payload.
+     *
+     * @param frame A frame returned by {@link #readFrame(ByteBuffer)}, positioned at its start
+     * @return The encoded packet, ready to be written
+     */
+    static @NotNull ByteBuffer echo(@NotNull ByteBuffer frame) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeVarInt(out, frame.remaining());
+        byte[] body = new byte[frame.remaining()];
+        frame.get(body);
+        out.write(body, 0, body.length);
+        return ByteBuffer.wrap(out.toByteArray());
+    }
+
+    private static @NotNull ByteBuffer packet(int packetId, @NotNull String stringField) {
+        byte[] stringBytes = stringField.getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        writeVarInt(body, packetId);
+        writeVarInt(body, stringBytes.length);
+        body.write(stringBytes, 0, stringBytes.length);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeVarInt(out, body.size());
+        out.write(body.toByteArray(), 0, body.size());
+        return ByteBuffer.wrap(out.toByteArray());
+    }
+
+    private static void writeVarInt(@NotNull ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static @NotNull String escapeJson(@NotNull String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
+    /**
+     * The contents of a handshake packet.
+     */
+    static final class Handshake {
+        final int protocolVersion;
+        final @NotNull String serverAddress;
+        final int port;
+        final int nextState;
+
+        private Handshake(int protocolVersion, @NotNull String serverAddress, int port, int nextState) {
+            this.protocolVersion = protocolVersion;
+            this.serverAddress = serverAddress;
+            this.port = port;
+            this.nextState = nextState;
+        }
+
+        /**
+         * Gets the hostname the player typed, without the markers some mod loaders append after a null character and
+         * without a trailing dot.
+         *
+         * @return The normalized hostname
+         */
+        @NotNull String getHostname() {
+            String hostname = serverAddress;
+            int nullIndex = hostname.indexOf('\0');
+            if (nullIndex >= 0) {
+                hostname = hostname.substring(0, nullIndex);
+            }
+            if (hostname.endsWith(".")) {
+                hostname = hostname.substring(0, hostname.length() - 1);
+            }
+            return hostname.toLowerCase();
+        }
+    }
+}
@@ -0,0 +1,445 @@
+package osbourn.cloudcubes.proxy;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A single player connection accepted by the {@link WakeProxy}. The connection starts by reading the handshake to find
+ * out which server the player wants. Status pings for a server that isn't running are answered by the proxy itself,
+ * while login attempts start the server and are held until it comes online. Once the server is reachable, the bytes
+ * already received are replayed to it and the two sockets are spliced together.
+ * All methods of this class must be called from the proxy's selector thread.
+ */
+final class ProxyConnection {
+    private static final Logger LOGGER = Logger.getLogger(ProxyConnection.class.getName());
+    /**
+     * Connections that don't finish their handshake within this time are closed
+     */
+    private static final long HANDSHAKE_TIMEOUT_MILLIS = 10_000;
+    /**
+     * How long to hold a login attempt while the server boots. The vanilla client gives up on a silent server after 30
+     * seconds, so the player is disconnected with a message shortly before that.
+     */
+    private static final long LOGIN_HOLD_MILLIS = 25_000;
+
+    private enum Phase {
+        HANDSHAKE,
+        STATUS,
+        HOLDING_LOGIN,
+        CONNECTING,
+        SPLICING,
+        CLOSING,
+        CLOSED
+    }
+
+    private final WakeProxy proxy;
+    private final SocketChannel client;
+    private final SelectionKey clientKey;
+    private final long acceptedAtMillis;
+
+    /**
+     * Bytes received from the client before the connection is spliced, kept so they can be replayed to the server
+     */
+    private final ByteBuffer received = ByteBuffer.allocate(MinecraftProtocol.MAX_PRE_LOGIN_PACKET_LENGTH * 2);
+    private int parsedBytes = 0;
+    /**
+     * Packets generated by the proxy itself that are waiting to be written to the client
+     */
+    private final Deque<ByteBuffer> pendingWrites = new ArrayDeque<>();
+
+    private Phase phase = Phase.HANDSHAKE;
+    private @Nullable MinecraftProtocol.Handshake handshake = null;
+    private @Nullable UUID serverId = null;
+    private long holdDeadlineMillis = 0;
+    /**
+     * When the status response was written. The client sends its ping as soon as it receives the response, so the time
+     * until the ping arrives is the player's round trip time to this proxy.
+     */
+    private long statusResponseSentNanos = 0;
+
+    private @Nullable SocketChannel backend = null;
+    private @Nullable SelectionKey backendKey = null;
+    private @Nullable ByteBuffer clientToBackend = null;
+    private @Nullable ByteBuffer backendToClient = null;
+
+    ProxyConnection(@NotNull WakeProxy proxy, @NotNull SocketChannel client, @NotNull Selector selector)
+            throws IOException {
+        this.proxy = proxy;
+        this.client = client;
+        this.clientKey = client.register(selector, SelectionKey.OP_READ, this);
+        this.acceptedAtMillis = System.currentTimeMillis();
+    }
+
+    /**
+     * Handles a ready key belonging to this connection.
+     *
+     * @param key The key that is ready
+     */
+    void handle(@NotNull SelectionKey key) {
+        try {
+            if (!key.isValid()) {
+                close();
+                return;
+            }
+            if (key == backendKey && key.isConnectable()) {
+                finishBackendConnect();
+                return;
+            }
+            if (key.isReadable()) {
+                if (key == clientKey) {
+                    readFromClient();
+                } else {
+                    readFromBackend();
+                }
+            }
+            if (phase != Phase.CLOSED && key.isValid() && key.isWritable()) {
+                if (key == clientKey) {
+                    writeToClient();
+                } else {
+                    flush(clientToBackend, backend);
+                }
+            }
+            if (phase != Phase.CLOSED) {
+                updateInterest();
+            }
+        } catch (IOException | RuntimeException e) {
+            LOGGER.log(Level.FINE, "Closing connection after error", e);
+            close();
+        }
+    }
+
+    /**
+     * Called periodically by the proxy to advance connections that are waiting on something other than their sockets.
+     *
+     * @param nowMillis The current time
+     */
+    void tick(long nowMillis) {
+        try {
+            switch (phase) {
+                case HANDSHAKE:
+                    if (nowMillis - acceptedAtMillis > HANDSHAKE_TIMEOUT_MILLIS) {
+                        close();
+                    }
+                    break;
+                case HOLDING_LOGIN:
+                    assert serverId != null;
+                    InetSocketAddress address = proxy.getBackends().getAddress(serverId);
+                    if (address != null) {
+                        connectToBackend(address);
+                    } else if (nowMillis > holdDeadlineMillis) {
+                        disconnectLogin("The server is starting, please reconnect in a minute");
+                    }
+                    break;
+                default:
+                    break;
+            }
+        } catch (IOException | RuntimeException e) {
+            LOGGER.log(Level.FINE, "Closing connection after error", e);
+            close();
+        }
+    }
+
+    boolean isClosed() {
+        return phase == Phase.CLOSED;
+    }
+
+    private void readFromClient() throws IOException {
+        if (phase == Phase.SPLICING) {
+            assert clientToBackend != null;
+            if (client.read(clientToBackend) < 0) {
+                // Pass on whatever the client sent last before it closed the connection
+                flush(clientToBackend, backend);
+                close();
+                return;
+            }
+            flush(clientToBackend, backend);
+            return;
+        }
+
+        if (!received.hasRemaining()) {
+            throw new ProtocolException("Client sent too much data before logging in");
+        }
+        if (client.read(received) < 0) {
+            close();
+            return;
+        }
+        if (received.position() > 0 && received.get(0) == MinecraftProtocol.LEGACY_PING_BYTE) {
+            close();
+            return;
+        }
+        processReceivedPackets();
+    }
+
+    private void processReceivedPackets() throws IOException {
+        ByteBuffer view = received.duplicate();
+        view.flip();
+        view.position(parsedBytes);
+        ByteBuffer frame;
+        while ((phase == Phase.HANDSHAKE || phase == Phase.STATUS)
+                && (frame = MinecraftProtocol.readFrame(view)) != null) {
+            parsedBytes = view.position();
+            if (phase == Phase.HANDSHAKE) {
+                onHandshake(MinecraftProtocol.readHandshake(frame));
+            } else {
+                onStatusPacket(frame);
+            }
+            // A failed connection attempt to the server may already have parsed further packets
+            view.position(parsedBytes);
+        }
+    }
+
+    private void onHandshake(@NotNull MinecraftProtocol.Handshake handshake) throws IOException {
+        this.handshake = handshake;
+        this.serverId = proxy.getRoutes().getServerId(handshake.getHostname());
+        if (serverId == null) {
+            LOGGER.fine("No server is routed for hostname " + handshake.getHostname());
+            close();
+            return;
+        }
+
+        InetSocketAddress address = proxy.getBackends().getAddress(serverId);
+        switch (handshake.nextState) {
+            case MinecraftProtocol.NEXT_STATE_STATUS:
+                if (address != null) {
+                    connectToBackend(address);
+                } else {
+                    phase = Phase.STATUS;
+                }
+                break;
+            case MinecraftProtocol.NEXT_STATE_LOGIN:
+            case MinecraftProtocol.NEXT_STATE_TRANSFER:
+                if (address != null) {
+                    connectToBackend(address);
+                } else {
+                    proxy.getBackends().requestStart(serverId);
+                    holdLogin();
+                }
+                break;
+            default:
+                throw new ProtocolException("Unknown next state " + handshake.nextState);
+        }
+    }
+
+    private void onStatusPacket(@NotNull ByteBuffer frame) throws IOException {
+        assert handshake != null && serverId != null;
+        ByteBuffer packet = frame.duplicate();
+        int packetId = MinecraftProtocol.readVarInt(packet);
+        if (packetId == MinecraftProtocol.STATUS_REQUEST_PACKET_ID) {
+            String message = proxy.getBackends().isStarting(serverId)
+                    ? "Server is starting..."
+                    : "Server is asleep, join to start it";
+            pendingWrites.add(MinecraftProtocol.statusResponse(handshake.protocolVersion, message));
+        } else if (packetId == MinecraftProtocol.STATUS_PING_PACKET_ID) {
+            if (statusResponseSentNanos != 0) {
+                proxy.getBackends().recordLatency(serverId, (System.nanoTime() - statusResponseSentNanos) / 1e6);
+            }
+            pendingWrites.add(MinecraftProtocol.echo(frame));
+            phase = Phase.CLOSING;
+        } else {
+            throw new ProtocolException("Unexpected status packet " + packetId);
+        }
+    }
+
+    private void holdLogin() {
+        phase = Phase.HOLDING_LOGIN;
+        holdDeadlineMillis = System.currentTimeMillis() + LOGIN_HOLD_MILLIS;
+    }
+
+    private void disconnectLogin(@NotNull String message) {
+        pendingWrites.add(MinecraftProtocol.loginDisconnect(message));
+        phase = Phase.CLOSING;
+        updateInterest();
+    }
+
+    private void connectToBackend(@NotNull InetSocketAddress address) throws IOException {
+        phase = Phase.CONNECTING;
+        // Stop reading from the client until the server is connected; the bytes received so far are replayed
+        clientKey.interestOps(0);
+        backend = SocketChannel.open();
+        backend.configureBlocking(false);
+        backendKey = backend.register(clientKey.selector(), SelectionKey.OP_CONNECT, this);
+        try {
+            if (backend.connect(address)) {
+                startSplicing();
+            }
+        } catch (IOException e) {
+            onBackendConnectFailed();
+        }
+    }
+
+    private void finishBackendConnect() throws IOException {
+        assert backend != null;
+        try {
+            backend.finishConnect();
+        } catch (IOException e) {
+            onBackendConnectFailed();
+            return;
+        }
+        startSplicing();
+    }
+
+    /**
+     * The recorded address of a server can be out of date, for example while the instance is still booting or after a
+     * spot instance was reclaimed. In that case the connection falls back to the behaviour for an offline server.
+     */
+    private void onBackendConnectFailed() throws IOException {
+        assert serverId != null && handshake != null;
+        closeBackend();
+        proxy.getBackends().invalidate(serverId);
+        if (handshake.nextState == MinecraftProtocol.NEXT_STATE_STATUS) {
+            phase = Phase.STATUS;
+            processReceivedPackets();
+        } else {
+            proxy.getBackends().requestStart(serverId);
+            if (holdDeadlineMillis == 0) {
+                holdLogin();
+            } else {
+                phase = Phase.HOLDING_LOGIN;
+            }
+        }
+        updateInterest();
+    }
+
+    private void startSplicing() throws IOException {
+        phase = Phase.SPLICING;
+        clientToBackend = proxy.acquireBuffer();
+        backendToClient = proxy.acquireBuffer();
+
+        // Replay everything the client sent before the backend was connected, including the handshake
+        received.flip();
+        clientToBackend.put(received);
+        received.clear();
+        parsedBytes = 0;
+
+        flush(clientToBackend, backend);
+        updateInterest();
+    }
+
+    private void readFromBackend() throws IOException {
+        assert backend != null && backendToClient != null;
+        if (backend.read(backendToClient) < 0) {
+            // Pass on whatever the server sent last, such as a disconnect message
+            flush(backendToClient, client);
+            close();
+            return;
+        }
+        flush(backendToClient, client);
+    }
+
+    private void writeToClient() throws IOException {
+        if (phase == Phase.SPLICING) {
+            flush(backendToClient, client);
+            return;
+        }
+        while (!pendingWrites.isEmpty()) {
+            ByteBuffer next = pendingWrites.peek();
+            client.write(next);
+            if (next.hasRemaining()) {
+                return;
+            }
+            pendingWrites.poll();
+        }
+        if (phase == Phase.STATUS && statusResponseSentNanos == 0) {
+            statusResponseSentNanos = System.nanoTime();
+        }
+        if (phase == Phase.CLOSING) {
+            close();
+        }
+    }
+
+    /**
+     * Writes as much of the buffer as the destination will accept. The buffer is always left in write mode.
+     */
+    private static void flush(@Nullable ByteBuffer buffer, @Nullable SocketChannel destination) throws IOException {
+        if (buffer == null || destination == null || buffer.position() == 0 || !destination.isConnected()) {
+            return;
+        }
+        buffer.flip();
+        destination.write(buffer);
+        buffer.compact();
+    }
+
+    /**
+     * Recomputes which events each socket is interested in. While splicing, a socket is read only while there is room
+     * to buffer what it sends, which applies backpressure from the slower side to the faster side.
+     */
+    private void updateInterest() {
+        if (phase == Phase.CLOSED || !clientKey.isValid()) {
+            return;
+        }
+        switch (phase) {
+            case HANDSHAKE:
+            case STATUS:
+            case HOLDING_LOGIN:
+            case CLOSING:
+                int clientOps = pendingWrites.isEmpty() ? 0 : SelectionKey.OP_WRITE;
+                if (phase != Phase.CLOSING) {
+                    clientOps |= SelectionKey.OP_READ;
+                }
+                clientKey.interestOps(clientOps);
+                break;
+            case CONNECTING:
+                clientKey.interestOps(0);
+                break;
+            case SPLICING:
+                assert clientToBackend != null && backendToClient != null && backendKey != null;
+                clientKey.interestOps((clientToBackend.hasRemaining() ? SelectionKey.OP_READ : 0)
+                        | (backendToClient.position() > 0 ? SelectionKey.OP_WRITE : 0));
+                backendKey.interestOps((backendToClient.hasRemaining() ? SelectionKey.OP_READ : 0)
+                        | (clientToBackend.position() > 0 ? SelectionKey.OP_WRITE : 0));
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void closeBackend() {
+        if (backendKey != null) {
+            backendKey.cancel();
+            backendKey = null;
+        }
+        if (backend != null) {
+            try {
+                backend.close();
+            } catch (IOException ignored) {
+                // Nothing useful can be done if closing fails
+            }
+            backend = null;
+        }
+    }
+
+    void close() {
+        if (phase == Phase.CLOSED) {
+            return;
+        }
+        phase = Phase.CLOSED;
+        clientKey.cancel();
+        try {
+            client.close();
+        } catch (IOException ignored) {
+            // Nothing useful can be done if closing fails
+        }
+        closeBackend();
+        if (clientToBackend != null) {
+            proxy.releaseBuffer(clientToBackend);
+            clientToBackend = null;
+        }
+        if (backendToClient != null) {
+            proxy.releaseBuffer(backendToClient);
+            backendToClient = null;
+        }
+    }
+}
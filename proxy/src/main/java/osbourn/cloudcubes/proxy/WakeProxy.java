@@ -0,0 +1,156 @@
+package osbourn.cloudcubes.proxy;
+
+import org.jetbrains.annotations.NotNull;
+import osbourn.cloudcubes.core.constructs.InfrastructureConfiguration;
+import osbourn.cloudcubes.core.constructs.InfrastructureConstructor;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Logger;
+
+/**
+ * <p>
+ * A lightweight proxy that listens on the Minecraft port for many hostnames at once, so that connecting to a server is
+ * enough to start it. Servers that aren't running answer status pings through the proxy, and a login attempt starts the
+ * server and holds the player's connection while it boots. When the server is reachable, the player's connection is
+ * spliced through to it.
+ * </p>
+ *
+ * <p>
+ * All sockets are handled by a single selector thread. Forwarded bytes only ever pass through pooled direct buffers, so
+ * they are never copied onto the Java heap; lookups and start requests run on a small executor so the selector is
+ * never blocked by AWS calls.
+ * </p>
+ *
+ * <p>
+ * Usage: {@code WakeProxy <routes.properties> [port]}. The infrastructure settings are read from the environment in the
+ * same way as the Lambda functions.
+ * </p>
+ */
+public final class WakeProxy {
+    private static final Logger LOGGER = Logger.getLogger(WakeProxy.class.getName());
+    private static final int DEFAULT_PORT = 25565;
+    private static final int FORWARDING_BUFFER_SIZE = 64 * 1024;
+    private static final long TICK_INTERVAL_MILLIS = 1_000;
+    private static final long LATENCY_FLUSH_INTERVAL_MILLIS = 60_000;
+
+    private final HostnameRoutes routes;
+    private final BackendDirectory backends;
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    private final List<ProxyConnection> connections = new ArrayList<>();
+    private final Deque<ByteBuffer> bufferPool = new ArrayDeque<>();
+
+    public WakeProxy(@NotNull HostnameRoutes routes,
+                     @NotNull InfrastructureConstructor infrastructureConstructor,
+                     @NotNull ExecutorService executor,
+                     int port) throws IOException {
+        this.routes = routes;
+        this.backends = new BackendDirectory(infrastructureConstructor, executor);
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        this.serverChannel.bind(new InetSocketAddress(port));
+        this.serverChannel.configureBlocking(false);
+        this.serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: WakeProxy <routes.properties> [port]");
+            System.exit(1);
+        }
+        HostnameRoutes routes = HostnameRoutes.fromPropertiesFile(Paths.get(args[0]));
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_PORT;
+        InfrastructureConstructor infrastructureConstructor =
+                new InfrastructureConstructor(InfrastructureConfiguration.fromEnvironment());
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+
+        WakeProxy proxy = new WakeProxy(routes, infrastructureConstructor, executor, port);
+        LOGGER.info("Listening on port " + port);
+        proxy.run();
+    }
+
+    /**
+     * Runs the selector loop. This method does not return unless the selector is closed.
+     *
+     * @throws IOException If the selector fails
+     */
+    public void run() throws IOException {
+        long lastTickMillis = System.currentTimeMillis();
+        long lastLatencyFlushMillis = lastTickMillis;
+        while (selector.isOpen()) {
+            selector.select(TICK_INTERVAL_MILLIS);
+            for (SelectionKey key : selector.selectedKeys()) {
+                if (key.channel() == serverChannel) {
+                    accept();
+                } else {
+                    ((ProxyConnection) key.attachment()).handle(key);
+                }
+            }
+            selector.selectedKeys().clear();
+
+            long nowMillis = System.currentTimeMillis();
+            if (nowMillis - lastTickMillis >= TICK_INTERVAL_MILLIS) {
+                lastTickMillis = nowMillis;
+                // Iterate over a copy since ticking can open and close connections
+                for (ProxyConnection connection : new ArrayList<>(connections)) {
+                    connection.tick(nowMillis);
+                }
+                connections.removeIf(ProxyConnection::isClosed);
+            }
+            if (nowMillis - lastLatencyFlushMillis >= LATENCY_FLUSH_INTERVAL_MILLIS) {
+                lastLatencyFlushMillis = nowMillis;
+                backends.flushLatencySamples();
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel client;
+        while ((client = serverChannel.accept()) != null) {
+            client.configureBlocking(false);
+            client.socket().setTcpNoDelay(true);
+            connections.add(new ProxyConnection(this, client, selector));
+        }
+    }
+
+    @NotNull HostnameRoutes getRoutes() {
+        return routes;
+    }
+
+    @NotNull BackendDirectory getBackends() {
+        return backends;
+    }
+
+    /**
+     * Takes a forwarding buffer from the pool, or allocates a new one if the pool is empty.
+     *
+     * @return An empty direct buffer in write mode
+     */
+    @NotNull ByteBuffer acquireBuffer() {
+        ByteBuffer buffer = bufferPool.poll();
+        return buffer != null ? buffer : ByteBuffer.allocateDirect(FORWARDING_BUFFER_SIZE);
+    }
+
+    /**
+     * Returns a forwarding buffer to the pool once its connection has closed.
+     *
+     * @param buffer The buffer to return
+     */
+    void releaseBuffer(@NotNull ByteBuffer buffer) {
+        buffer.clear();
+        bufferPool.push(buffer);
+    }
+}
@@ -0,0 +1,35 @@
+#!/bin/bash
+# The steps shared by the startup scripts of servers and of shared hosts. The startup scripts source this file from the
+# home directory of ec2-user, with the names of any packages they need in addition to Java as arguments.
+
+# Get instance id
+ec2_instance_metadata_command_result=($(ec2-metadata -i))
+export EC2_ID=${ec2_instance_metadata_command_result[1]}
+ec2_zone_metadata_command_result=($(ec2-metadata -z))
+export EC2_ZONE=${ec2_zone_metadata_command_result[1]}
+ec2_public_ip_metadata_command_result=($(ec2-metadata -v))
+export EC2_PUBLIC_IP=${ec2_public_ip_metadata_command_result[1]}
+# The region is the availability zone without its trailing letter
+export AWS_DEFAULT_REGION=${EC2_ZONE%?}
+
+# Amazon Linux comes with AWS CLI version 1 by default, this will install version 2
+# See https://docs.aws.amazon.com/cli/latest/userguide/install-cliv2-linux.html
+# After installing version 2 can be accessed with /usr/local/bin/aws
+mkdir awscliv2
+cd awscliv2
+curl "https://awscli.amazonaws.com/awscli-exe-linux-x86_64.zip" -o "awscliv2.zip"
+unzip awscliv2.zip
+sudo ./aws/install --update
+cd ..
+rm -rf awscliv2
+
+# The agents and the Minecraft servers all need Java
+sudo yum install -y java-17-amazon-corretto-headless "$@"
+
+# Download contents of the server-startup folder and the server agent
+/usr/local/bin/aws s3 cp --recursive s3://"$CLOUDCUBESRESOURCEBUCKETNAME"/server-startup startup
+/usr/local/bin/aws s3 cp s3://"$CLOUDCUBESRESOURCEBUCKETNAME"/agent/agent-all.jar startup/agent-all.jar
+
+# The Minecraft servers ask for transparent huge pages for their heaps, which only works if they are enabled on request
+echo madvise | sudo tee /sys/kernel/mm/transparent_hugepage/enabled
+echo madvise | sudo tee /sys/kernel/mm/transparent_hugepage/defrag
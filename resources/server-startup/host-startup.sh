@@ -0,0 +1,45 @@
+#!/bin/bash
+# Startup script of shared hosts, which run several servers whose worlds are on the shared file system
+# Any failed step fails the boot, see fail_boot
+set -eo pipefail
+cd /home/ec2-user
+
+# Marks the host FAILED, with the reason in StartupFailure, and shuts the instance down, which terminates it. The host
+# agent is never started after a failure, since without the shared file system it would seed a new world for every
+# server on the host. No servers are placed on a failed host, and the control plane removes it.
+fail_boot() {
+    trap - ERR
+    echo "CloudCubes boot failed: $1" >&2
+    # The control plane uses the host table in the configured region, whose name is written like US_EAST_1
+    local table_region
+    table_region=$(echo "$CLOUDCUBESREGION" | tr 'A-Z_' 'a-z-')
+    local values="{\":failed\": {\"S\": \"FAILED\"}, \":launching\": {\"S\": \"LAUNCHING\"},"
+    values+=" \":reason\": {\"S\": \"$1\"}}"
+    aws dynamodb update-item --region "$table_region" --table-name "$CLOUDCUBESHOSTDATABASENAME" \
+        --key "{\"Id\": {\"S\": \"$HOST_ID\"}}" \
+        --update-expression "SET HostState = :failed, StartupFailure = :reason" \
+        --condition-expression "HostState = :launching" \
+        --expression-attribute-values "$values" \
+        || echo "Could not mark the host as failed" >&2
+    sudo shutdown -h now
+    exit 1
+}
+trap 'fail_boot "The boot script failed on line $LINENO"' ERR
+
+# The steps shared with servers, which install the EFS mount helper for the shared file system as well. They are
+# downloaded with the AWS CLI that comes with Amazon Linux.
+aws s3 cp s3://"$CLOUDCUBESRESOURCEBUCKETNAME"/server-startup/common.sh startup/common.sh
+source startup/common.sh amazon-efs-utils
+
+# Mount the shared file system that holds the worlds, in the same place as in container tasks
+sudo mkdir -p /mnt/worlds
+sudo mount -t efs -o tls "$CLOUDCUBESWORLDFILESYSTEMID":/ /mnt/worlds
+mountpoint -q /mnt/worlds || fail_boot "The shared file system is not mounted"
+sudo chown ec2-user:ec2-user /mnt/worlds
+
+# Run the host agent as a service. Systemd stops the service when the instance shuts down, which makes the agent save
+# the worlds and stop the Minecraft servers before the shared file system is unmounted.
+env | grep -E '^(CLOUDCUBES|HOST_ID=|EC2_|AWS_DEFAULT_REGION=)' > startup/agent.env
+sudo cp startup/cloudcubes-host-agent.service /etc/systemd/system/cloudcubes-host-agent.service
+sudo systemctl daemon-reload
+sudo systemctl start cloudcubes-host-agent
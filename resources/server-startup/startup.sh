@@ -1,33 +1,66 @@
 #!/bin/bash
-cd /home/ec2-user || exit
+# Any failed step fails the boot, see fail_boot
+set -eo pipefail
+cd /home/ec2-user
 
-# Get instance id
-ec2_instance_metadata_command_result=($(ec2-metadata -i))
-export EC2_ID=${ec2_instance_metadata_command_result[1]}
-ec2_zone_metadata_command_result=($(ec2-metadata -z))
-export EC2_ZONE=${ec2_zone_metadata_command_result[1]}
+# Marks the server OFFLINE, with the reason in StartupFailure, and shuts the instance down, which terminates it. The
+# agent is never started after a failure, since without the data volume it would start the server in an empty
+# directory and seed a new world. The state is written as a string attribute, which is read instead of the packed
+# record while it exists; OFFLINE lets the next start launch the server again right away.
+fail_boot() {
+    trap - ERR
+    echo "CloudCubes boot failed: $1" >&2
+    # The agent uses the table in the configured region, whose name is written like US_EAST_1
+    local table_region
+    table_region=$(echo "$CLOUDCUBESREGION" | tr 'A-Z_' 'a-z-')
+    local values="{\":offline\": {\"S\": \"OFFLINE\"}, \":reason\": {\"S\": \"$1\"}}"
+    aws dynamodb update-item --region "$table_region" --table-name "$CLOUDCUBESSERVERDATABASENAME" \
+        --key "{\"Id\": {\"S\": \"$SERVER_ID\"}}" \
+        --update-expression "SET ServerState = :offline, StartupFailure = :reason REMOVE ServerAddress" \
+        --expression-attribute-values "$values" \
+        || echo "Could not mark the server offline" >&2
+    sudo shutdown -h now
+    exit 1
+}
+trap 'fail_boot "The boot script failed on line $LINENO"' ERR
 
-# Amazon Linux comes with AWS CLI version 1 by default, this will install version 2
-# See https://docs.aws.amazon.com/cli/latest/userguide/install-cliv2-linux.html
-# After installing version 2 can be accessed with /usr/local/bin/aws
-mkdir awscliv2
-cd awscliv2
-curl "https://awscli.amazonaws.com/awscli-exe-linux-x86_64.zip" -o "awscliv2.zip"
-unzip awscliv2.zip
-sudo ./aws/install
-cd ..
-rm -rf awscliv2
+# The steps shared with shared hosts. They are downloaded with the AWS CLI that comes with Amazon Linux.
+aws s3 cp s3://"$CLOUDCUBESRESOURCEBUCKETNAME"/server-startup/common.sh startup/common.sh
+source startup/common.sh
 
-# Download contents of the server-startup folder
-/usr/local/bin/aws s3 cp --recursive s3://"$CLOUDCUBESRESOURCEBUCKETNAME"/server-startup startup
+# Attach the data volume that holds the world. The volume outlives the instance, so a resumed server finds its world
+# (and anything else it downloaded) already in place. When a server is resized, this instance is launched while the
+# previous one is still saving the world, so the volume is only attached once the previous instance has released it.
+/usr/local/bin/aws ec2 wait volume-available --volume-ids "$DATA_VOLUME_ID"
+/usr/local/bin/aws ec2 attach-volume --volume-id "$DATA_VOLUME_ID" --instance-id "$EC2_ID" --device /dev/sdf
+/usr/local/bin/aws ec2 wait volume-in-use --volume-ids "$DATA_VOLUME_ID" \
+    --filters Name=attachment.status,Values=attached
+# On Nitro instances the volume appears as an NVMe device whose serial number is the volume id without the hyphen
+data_volume_device=/dev/disk/by-id/nvme-Amazon_Elastic_Block_Store_${DATA_VOLUME_ID/-/}
+for _ in {1..60}; do
+    [ -e "$data_volume_device" ] && break
+    sleep 1
+done
+[ -e "$data_volume_device" ] || data_volume_device=/dev/xvdf
+[ -e "$data_volume_device" ] || fail_boot "The data volume $DATA_VOLUME_ID did not appear as a device"
+# A new volume doesn't have a filesystem yet
+is_new_data_volume=false
+if ! sudo blkid "$data_volume_device" > /dev/null; then
+    sudo mkfs -t xfs "$data_volume_device"
+    is_new_data_volume=true
+fi
+mkdir -p server
+sudo mount "$data_volume_device" server
+mountpoint -q server || fail_boot "The data volume $DATA_VOLUME_ID is not mounted"
+sudo chown ec2-user:ec2-user server
+if [ "$is_new_data_volume" = true ]; then
+    # Seed a new server with the files from the resource bucket, such as server.jar and eula.txt
+    /usr/local/bin/aws s3 cp --recursive s3://"$CLOUDCUBESRESOURCEBUCKETNAME"/server-files server
+fi
 
-# Update database with ONLINE state
-# See https://awscli.amazonaws.com/v2/documentation/api/latest/reference/dynamodb/update-item.html#examples
-printf '{"Id":{"S":"%s"}}\n' "$SERVER_ID" > startup/set-state-online-key.json
-/usr/local/bin/aws dynamodb update-item \
-    --table-name "$CLOUDCUBESSERVERDATABASENAME" \
-    --key file://startup/set-state-online-key.json \
-    --update-expression "SET #S = :s" \
-    --expression-attribute-names file://startup/set-state-online-expression-attribute-names.json \
-    --expression-attribute-values file://startup/set-state-online-expression-attribute-values.json \
-    --return-values NONE
+# Run the agent as a service. Systemd stops the service when the instance shuts down, which makes the agent save the
+# world and stop the Minecraft server before the data volume is detached.
+env | grep -E '^(CLOUDCUBES|SERVER_ID=|DATA_VOLUME_ID=|EC2_|AWS_DEFAULT_REGION=|MINECRAFT_JVM_OPTS=)' > startup/agent.env
+sudo cp startup/cloudcubes-agent.service /etc/systemd/system/cloudcubes-agent.service
+sudo systemctl daemon-reload
+sudo systemctl start cloudcubes-agent